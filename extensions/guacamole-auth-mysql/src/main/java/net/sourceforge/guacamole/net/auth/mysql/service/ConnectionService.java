@@ -32,8 +32,6 @@ import java.util.Map;
 import java.util.Set;
 import org.glyptodon.guacamole.GuacamoleException;
 import org.glyptodon.guacamole.net.GuacamoleSocket;
-import org.glyptodon.guacamole.net.InetGuacamoleSocket;
-import org.glyptodon.guacamole.net.SSLGuacamoleSocket;
 import net.sourceforge.guacamole.net.auth.mysql.ActiveConnectionMap;
 import net.sourceforge.guacamole.net.auth.mysql.AuthenticatedUser;
 import net.sourceforge.guacamole.net.auth.mysql.MySQLConnection;
@@ -50,8 +48,8 @@ import net.sourceforge.guacamole.net.auth.mysql.model.ConnectionHistoryExample;
 import net.sourceforge.guacamole.net.auth.mysql.model.ConnectionParameter;
 import net.sourceforge.guacamole.net.auth.mysql.model.ConnectionParameterExample;
 import net.sourceforge.guacamole.net.auth.mysql.properties.MySQLGuacamoleProperties;
+import org.glyptodon.guacamole.environment.GuacdBackends;
 import org.glyptodon.guacamole.properties.GuacamoleProperties;
-import org.glyptodon.guacamole.protocol.ConfiguredGuacamoleSocket;
 import org.glyptodon.guacamole.protocol.GuacamoleClientInformation;
 import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
 import org.apache.ibatis.session.RowBounds;
@@ -389,10 +387,6 @@ public class ConnectionService {
                 throw new GuacamoleClientTooManyException
                         ("Cannot connect. Connection already in use by this user.");
 
-            // Get guacd connection information
-            String host = GuacamoleProperties.getRequiredProperty(GuacamoleProperties.GUACD_HOSTNAME);
-            int port = GuacamoleProperties.getRequiredProperty(GuacamoleProperties.GUACD_PORT);
-
             // Build token filter containing credential tokens
             TokenFilter tokenFilter = new TokenFilter();
             StandardTokens.addStandardTokens(tokenFilter, currentUser.getCredentials());
@@ -401,18 +395,8 @@ public class ConnectionService {
             GuacamoleConfiguration config = new GuacamoleConfiguration(connection.getConfiguration());
             tokenFilter.filterValues(config.getParameters());
             
-            // Get socket
-            GuacamoleSocket socket;
-            if (GuacamoleProperties.getProperty(GuacamoleProperties.GUACD_SSL, false))
-                socket = new ConfiguredGuacamoleSocket(
-                    new SSLGuacamoleSocket(host, port),
-                    config, info
-                );
-            else
-                socket = new ConfiguredGuacamoleSocket(
-                    new InetGuacamoleSocket(host, port),
-                    config, info
-                );
+            // Get socket connected to least-loaded guacd
+            GuacamoleSocket socket = GuacdBackends.getRegistry().connect(config, info);
 
             // Mark this connection as active
             int historyID = activeConnectionMap.openConnection(connection.getConnectionID(), 
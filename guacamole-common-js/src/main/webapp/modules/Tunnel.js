@@ -132,6 +132,15 @@ Guacamole.Tunnel.State = {
 
 };
 
+/**
+ * The opcode of instructions used internally by the tunnel itself, rather
+ * than by the Guacamole protocol. These instructions are never passed to
+ * the oninstruction handler.
+ *
+ * @type String
+ */
+Guacamole.Tunnel.INTERNAL_DATA_OPCODE = "";
+
 /**
  * Guacamole Tunnel implemented over HTTP via XMLHttpRequest.
  * 
@@ -583,6 +592,63 @@ Guacamole.WebSocketTunnel = function(tunnelURL) {
      */
     var receive_timeout = null;
 
+    /**
+     * The UUID of the tunnel on the server, as announced by the server, or
+     * null if not yet known.
+     * @private
+     */
+    var tunnel_uuid = null;
+
+    /**
+     * The data originally given to connect(), reused when resuming the
+     * tunnel after the connection is lost.
+     * @private
+     */
+    var connect_data = null;
+
+    /**
+     * Whether the connection was lost and an attempt to resume the tunnel
+     * is in progress.
+     * @private
+     */
+    var resuming = false;
+
+    /**
+     * The WebSocket status code sent when the connection was lost without
+     * a close frame, such as due to a network failure.
+     * @private
+     */
+    var CLOSED_ABNORMALLY = 1006;
+
+    /**
+     * Whether instructions are exchanged as UTF-8 within binary messages
+     * ("guacamole-binary" subprotocol) rather than within text messages
+     * ("guacamole" subprotocol). This is only known once the WebSocket is
+     * open.
+     * @private
+     */
+    var binary = false;
+
+    /**
+     * Encoder for outbound binary messages, or null if the browser lacks
+     * TextEncoder and TextDecoder, in which case only text messages are
+     * requested.
+     * @private
+     */
+    var encoder = null;
+
+    /**
+     * Decoder for inbound binary messages, or null if the browser lacks
+     * TextEncoder and TextDecoder.
+     * @private
+     */
+    var decoder = null;
+
+    if (window.TextEncoder && window.TextDecoder) {
+        encoder = new TextEncoder();
+        decoder = new TextDecoder("utf-8");
+    }
+
     /**
      * The WebSocket protocol corresponding to the protocol used for the current
      * location.
@@ -675,7 +741,7 @@ Guacamole.WebSocketTunnel = function(tunnelURL) {
     this.sendMessage = function(elements) {
 
         // Do not attempt to send messages if not connected
-        if (tunnel.state !== Guacamole.Tunnel.State.OPEN)
+        if (tunnel.state !== Guacamole.Tunnel.State.OPEN || resuming)
             return;
 
         // Do not attempt to send empty messages
@@ -705,21 +771,59 @@ Guacamole.WebSocketTunnel = function(tunnelURL) {
         // Final terminator
         message += ";";
 
-        socket.send(message);
+        // Send as UTF-8 if binary messages were negotiated
+        if (binary)
+            socket.send(encoder.encode(message));
+        else
+            socket.send(message);
 
     };
 
-    this.connect = function(data) {
+    /**
+     * Returns whether a lost connection may be replaced by a new connection
+     * resuming the same tunnel on the server.
+     *
+     * @private
+     * @return {Boolean} true if the tunnel may be resumed, false otherwise.
+     */
+    function can_resume() {
+        return tunnel.state === Guacamole.Tunnel.State.OPEN
+            && tunnel_uuid !== null
+            && !resuming;
+    }
+
+    /**
+     * Opens a new WebSocket connection using the given connection data,
+     * handling all instructions received as instructions of this tunnel.
+     *
+     * @private
+     * @param {String} data The data to send to the tunnel when connecting.
+     */
+    function connect_socket(data) {
 
         reset_timeout();
 
-        // Connect socket
-        socket = new WebSocket(tunnelURL + "?" + data, "guacamole");
+        // Connect socket, preferring binary messages if they can be decoded
+        if (decoder)
+            socket = new WebSocket(tunnelURL + "?" + data, ["guacamole-binary", "guacamole"]);
+        else
+            socket = new WebSocket(tunnelURL + "?" + data, "guacamole");
+
+        socket.binaryType = "arraybuffer";
 
         socket.onopen = function(event) {
 
             reset_timeout();
 
+            // Use binary messages only if accepted by the server
+            binary = (socket.protocol === "guacamole-binary");
+
+            // Nothing further to do if resuming an already-open tunnel
+            if (resuming) {
+                resuming = false;
+                return;
+            }
+
             tunnel.state = Guacamole.Tunnel.State.OPEN;
             if (tunnel.onstatechange)
                 tunnel.onstatechange(tunnel.state);
@@ -727,18 +831,39 @@ Guacamole.WebSocketTunnel = function(tunnelURL) {
         };
 
         socket.onclose = function(event) {
+
+            // Attempt to resume the tunnel if the connection was lost
+            if (event.code === CLOSED_ABNORMALLY && can_resume()) {
+                resuming = true;
+                connect_socket(connect_data + "&resume="
+                        + encodeURIComponent(tunnel_uuid));
+                return;
+            }
+
             close_tunnel(new Guacamole.Status(parseInt(event.reason), event.reason));
+
         };
         
         socket.onerror = function(event) {
+
+            // Lost connections are handled by onclose, which follows
+            if (can_resume())
+                return;
+
             close_tunnel(new Guacamole.Status(Guacamole.Status.Code.SERVER_ERROR, event.data));
+
         };
 
         socket.onmessage = function(event) {
 
             reset_timeout();
 
+            // Decode binary messages, which always contain complete
+            // instructions encoded as UTF-8
             var message = event.data;
+            if (typeof message !== "string")
+                message = decoder.decode(new Uint8Array(message));
+
             var startIndex = 0;
             var elementEnd;
 
@@ -778,8 +903,14 @@ Guacamole.WebSocketTunnel = function(tunnelURL) {
                     // Get opcode
                     var opcode = elements.shift();
 
+                    // Note tunnel UUID, if announced
+                    if (opcode === Guacamole.Tunnel.INTERNAL_DATA_OPCODE) {
+                        if (elements[0] === "uuid")
+                            tunnel_uuid = elements[1];
+                    }
+
                     // Call instruction handler.
-                    if (tunnel.oninstruction)
+                    else if (tunnel.oninstruction)
                         tunnel.oninstruction(opcode, elements);
 
                     // Clear elements
@@ -795,6 +926,11 @@ Guacamole.WebSocketTunnel = function(tunnelURL) {
 
         };
 
+    }
+
+    this.connect = function(data) {
+        connect_data = data;
+        connect_socket(data);
     };
 
     this.disconnect = function() {
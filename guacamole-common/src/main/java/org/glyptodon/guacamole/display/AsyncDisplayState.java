@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.display;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+import org.glyptodon.guacamole.protocol.GuacamoleParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maintains a DisplayState from the instruction stream of a single tunnel
+ * without slowing that tunnel. Instructions fed to this object are copied
+ * into a lock-free queue and interpreted by a background executor. If the
+ * interpreter falls behind such that the queue would exceed its maximum
+ * size, instructions are dropped rather than blocking the tunnel, and the
+ * display state is invalidated until it has been repainted.
+ *
+ * All display states share a single background thread by default. Each
+ * display state should be closed once the tunnel is closed, freeing the
+ * memory of its layers.
+ *
+ * @author Michael Jumper
+ */
+public class AsyncDisplayState {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(AsyncDisplayState.class);
+
+    /**
+     * The default maximum number of characters which may be queued for
+     * interpretation.
+     */
+    public static final int DEFAULT_MAX_QUEUED_CHARS = 4194304;
+
+    /**
+     * The executor returned by getDefaultExecutor(), created when first
+     * needed.
+     */
+    private static ExecutorService defaultExecutor;
+
+    /**
+     * The display state being maintained. Access is guarded by the monitor
+     * of this object.
+     */
+    private final DisplayState state;
+
+    /**
+     * Parser used to interpret queued instructions. Access is guarded by
+     * the monitor of the display state.
+     */
+    private final GuacamoleParser parser = new GuacamoleParser();
+
+    /**
+     * The number of instructions reflected by the display state, including
+     * those dropped. Access is guarded by the monitor of the display state.
+     */
+    private long position = 0;
+
+    /**
+     * The maximum number of characters which may be queued.
+     */
+    private final int maxQueuedChars;
+
+    /**
+     * The executor interpreting queued instructions.
+     */
+    private final Executor executor;
+
+    /**
+     * Instructions not yet interpreted.
+     */
+    private final ConcurrentLinkedQueue<char[]> queue = new ConcurrentLinkedQueue<char[]>();
+
+    /**
+     * The number of characters currently queued.
+     */
+    private final AtomicLong queuedChars = new AtomicLong();
+
+    /**
+     * The number of instructions dropped since the queue was last drained.
+     */
+    private final AtomicLong droppedInstructions = new AtomicLong();
+
+    /**
+     * Whether the background executor has been scheduled to drain the
+     * queue.
+     */
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    /**
+     * Whether instructions are currently being dropped. Once degraded, all
+     * instructions are dropped until the queue has been drained.
+     */
+    private volatile boolean degraded = false;
+
+    /**
+     * Whether this display state has been closed.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Task which interprets all queued instructions.
+     */
+    private final Runnable drainTask = new Runnable() {
+
+        @Override
+        public void run() {
+
+            drainScheduled.set(false);
+            drain();
+
+            // Reschedule if instructions were queued after draining
+            if (!queue.isEmpty())
+                scheduleDrain();
+
+        }
+
+    };
+
+    /**
+     * Creates a new AsyncDisplayState which maintains the given display
+     * state using the given executor.
+     *
+     * @param state The display state to maintain.
+     * @param maxQueuedChars The maximum number of characters which may be
+     *                       queued before instructions are dropped.
+     * @param executor The executor which should interpret queued
+     *                 instructions.
+     */
+    public AsyncDisplayState(DisplayState state, int maxQueuedChars,
+            Executor executor) {
+        this.state = state;
+        this.maxQueuedChars = maxQueuedChars;
+        this.executor = executor;
+    }
+
+    /**
+     * Creates a new AsyncDisplayState whose layers may total at most the
+     * given number of pixels, using the default executor and queue size.
+     *
+     * @param maxPixels The maximum total number of pixels of all layers.
+     */
+    public AsyncDisplayState(long maxPixels) {
+        this(new DisplayState(maxPixels), DEFAULT_MAX_QUEUED_CHARS,
+                getDefaultExecutor());
+    }
+
+    /**
+     * Returns the executor shared by all display states by default,
+     * creating it if necessary. The executor runs a single daemon thread.
+     *
+     * @return The default background executor.
+     */
+    public static synchronized ExecutorService getDefaultExecutor() {
+
+        if (defaultExecutor == null) {
+            defaultExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "guacamole-display-state");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+
+            });
+        }
+
+        return defaultExecutor;
+
+    }
+
+    /**
+     * Queues a copy of the given instruction, which has just been sent to
+     * the client, for interpretation.
+     *
+     * @param instruction An array containing the characters of exactly one
+     *                    complete instruction.
+     * @param offset The offset of the first character of the instruction.
+     * @param length The number of characters in the instruction.
+     */
+    public void feed(char[] instruction, int offset, int length) {
+
+        if (closed)
+            return;
+
+        // Drop instructions until the interpreter has caught up
+        if (degraded) {
+            droppedInstructions.incrementAndGet();
+            return;
+        }
+
+        // Begin dropping instructions if the queue is full
+        if (queuedChars.addAndGet(length) > maxQueuedChars) {
+            queuedChars.addAndGet(-length);
+            droppedInstructions.incrementAndGet();
+            degraded = true;
+            logger.debug("Display state fell behind. Instructions will be "
+                    + "dropped until it catches up.");
+            scheduleDrain();
+            return;
+        }
+
+        // Copy data, as the given array is likely to be reused
+        char[] copy = new char[length];
+        System.arraycopy(instruction, offset, copy, 0, length);
+        queue.offer(copy);
+        scheduleDrain();
+
+    }
+
+    /**
+     * Schedules the background executor to drain the queue, if not already
+     * scheduled.
+     */
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true))
+            executor.execute(drainTask);
+    }
+
+    /**
+     * Interprets all queued instructions, invalidating the display state if
+     * any instructions were dropped.
+     */
+    private void drain() {
+
+        synchronized (state) {
+
+            char[] instruction;
+            while ((instruction = queue.poll()) != null) {
+
+                queuedChars.addAndGet(-instruction.length);
+                if (closed)
+                    continue;
+
+                try {
+
+                    int offset = 0;
+                    while (offset < instruction.length)
+                        offset += parser.append(instruction, offset,
+                                instruction.length - offset);
+
+                    GuacamoleInstruction parsed = parser.next();
+                    if (parsed != null)
+                        state.handle(parsed);
+
+                }
+                catch (GuacamoleException e) {
+                    logger.debug("Unable to interpret instruction.", e);
+                    state.invalidate();
+                }
+
+                position++;
+
+            }
+
+            // Account for dropped instructions once caught up
+            if (degraded) {
+                degraded = false;
+                position += droppedInstructions.getAndSet(0);
+                state.invalidate();
+            }
+
+        }
+
+    }
+
+    /**
+     * Returns whether the display state is currently entirely known, such
+     * that getSnapshot() would succeed were no further instructions fed.
+     *
+     * @return true if the display state is entirely known, false
+     *         otherwise.
+     */
+    public boolean isKnown() {
+        synchronized (state) {
+            return !degraded && state.isKnown();
+        }
+    }
+
+    /**
+     * Interprets all queued instructions and returns a snapshot of the
+     * resulting display state. The position of the snapshot is the number
+     * of instructions fed to this object which the snapshot reflects.
+     *
+     * @return A snapshot of the current display state, or null if the
+     *         display is not entirely known.
+     */
+    public DisplaySnapshot getSnapshot() {
+
+        synchronized (state) {
+
+            drain();
+
+            List<GuacamoleInstruction> instructions = state.getInstructions();
+            if (instructions == null)
+                return null;
+
+            return new DisplaySnapshot(instructions, position);
+
+        }
+
+    }
+
+    /**
+     * Stops maintaining the display state, freeing the memory it occupies.
+     * Further instructions are ignored.
+     */
+    public void close() {
+        closed = true;
+        synchronized (state) {
+            queue.clear();
+            state.clear();
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.display;
+
+import java.util.List;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+
+/**
+ * A sequence of instructions which reproduces the state of a remote display
+ * at a specific point within its instruction stream.
+ *
+ * @author Michael Jumper
+ */
+public class DisplaySnapshot {
+
+    /**
+     * The instructions reproducing the state of the display.
+     */
+    private final List<GuacamoleInstruction> instructions;
+
+    /**
+     * The number of instructions of the stream reflected by this snapshot.
+     */
+    private final long position;
+
+    /**
+     * Creates a new DisplaySnapshot consisting of the given instructions.
+     *
+     * @param instructions The instructions reproducing the state of the
+     *                     display.
+     * @param position The number of instructions of the stream reflected by
+     *                 the snapshot.
+     */
+    public DisplaySnapshot(List<GuacamoleInstruction> instructions,
+            long position) {
+        this.instructions = instructions;
+        this.position = position;
+    }
+
+    /**
+     * Returns the instructions which reproduce the state of the display
+     * when sent to a client having a new, empty display.
+     *
+     * @return The instructions reproducing the state of the display.
+     */
+    public List<GuacamoleInstruction> getInstructions() {
+        return instructions;
+    }
+
+    /**
+     * Returns the number of instructions of the stream reflected by this
+     * snapshot. Sending the instructions of this snapshot followed by every
+     * instruction of the stream from this position onward reproduces the
+     * display exactly.
+     *
+     * @return The number of instructions of the stream reflected by this
+     *         snapshot.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+}
@@ -0,0 +1,834 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.display;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.Area;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import javax.imageio.ImageIO;
+import org.glyptodon.guacamole.protocol.Base64Codec;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+
+/**
+ * Headless model of a remote display, maintained by interpreting the
+ * instructions sent to the client. The "size", "png", "copy", "rect",
+ * "cfill", "move", "shade", "distort", "dispose", "cursor" and "sync"
+ * instructions are interpreted, using only the SRC and OVER channel masks.
+ * Any other drawing to a layer, any use of another channel mask, or any
+ * drawing while clipping or a transform is in effect marks that layer as
+ * unknown until it is entirely replaced with a SRC image or fill. The total
+ * number of pixels of all layers is limited, with layers beyond that limit
+ * also marked unknown.
+ *
+ * While every layer is known, getInstructions() produces a compact sequence of
+ * instructions which reproduces the display: each layer as a single PNG,
+ * followed by its position and the current cursor.
+ *
+ * This class is not thread-safe. See AsyncDisplayState for maintaining a
+ * DisplayState without slowing the tunnel.
+ *
+ * @author Michael Jumper
+ */
+public class DisplayState {
+
+    /**
+     * The default maximum total number of pixels of all layers.
+     */
+    public static final int DEFAULT_MAX_PIXELS = 8388608;
+
+    /**
+     * The channel mask which replaces the destination with the source.
+     */
+    private static final int SRC = 0xC;
+
+    /**
+     * The channel mask which draws the source over the destination.
+     */
+    private static final int OVER = 0xE;
+
+    /**
+     * The opcodes of all instructions which build a path in ways which are
+     * not interpreted.
+     */
+    private static final Set<String> PATH_OPCODES = new HashSet<String>(
+            Arrays.asList("arc", "close", "curve", "line", "start"));
+
+    /**
+     * The index of the argument specifying the destination layer of each
+     * drawing instruction which is not interpreted.
+     */
+    private static final Map<String, Integer> DRAWING_LAYER_ARGUMENT =
+            new HashMap<String, Integer>();
+
+    static {
+        DRAWING_LAYER_ARGUMENT.put("cstroke", 1);
+        DRAWING_LAYER_ARGUMENT.put("lfill", 1);
+        DRAWING_LAYER_ARGUMENT.put("lstroke", 1);
+        DRAWING_LAYER_ARGUMENT.put("transfer", 6);
+    }
+
+    /**
+     * The state of a single layer or buffer.
+     */
+    private static class Layer {
+
+        /**
+         * The contents of this layer, or null if this layer has no size or
+         * could not be allocated.
+         */
+        private BufferedImage image;
+
+        /**
+         * The width of this layer, in pixels.
+         */
+        private int width = 0;
+
+        /**
+         * The height of this layer, in pixels.
+         */
+        private int height = 0;
+
+        /**
+         * Whether anything has been drawn to this layer since it was
+         * created.
+         */
+        private boolean drawn = false;
+
+        /**
+         * Whether the contents of this layer are known.
+         */
+        private boolean known;
+
+        /**
+         * Whether the parent, position and stacking of this layer are
+         * known.
+         */
+        private boolean placed;
+
+        /**
+         * The arguments of the last "move" instruction for this layer,
+         * excluding the layer itself, or null if never moved.
+         */
+        private List<String> move;
+
+        /**
+         * The arguments of the last "shade" instruction for this layer,
+         * excluding the layer itself, or null if never shaded.
+         */
+        private List<String> shade;
+
+        /**
+         * The arguments of the last "distort" instruction for this layer,
+         * excluding the layer itself, or null if never distorted.
+         */
+        private List<String> distort;
+
+        /**
+         * The current path, built by "rect" instructions.
+         */
+        private Path2D.Double path = new Path2D.Double();
+
+        /**
+         * Whether the current path is known, having been built only by
+         * "rect" instructions.
+         */
+        private boolean pathKnown = true;
+
+        /**
+         * Whether clipping or a transform currently alters drawing to this
+         * layer, such that drawing cannot be interpreted.
+         */
+        private boolean altered = false;
+
+        /**
+         * Creates a new, empty layer.
+         *
+         * @param known Whether the contents and placement of this layer are
+         *              known.
+         */
+        public Layer(boolean known) {
+            this.known = known;
+            this.placed = known;
+        }
+
+    }
+
+    /**
+     * The maximum total number of pixels of all layers.
+     */
+    private final long maxPixels;
+
+    /**
+     * The total number of pixels of all layers.
+     */
+    private long pixels = 0;
+
+    /**
+     * All layers and buffers, by index.
+     */
+    private final Map<Integer, Layer> layers = new TreeMap<Integer, Layer>();
+
+    /**
+     * The indices of all layers which have been disposed and not since
+     * recreated, such that a client which has seen those layers can be
+     * told to dispose of them.
+     */
+    private final Set<Integer> disposed = new TreeSet<Integer>();
+
+    /**
+     * Whether instructions may have been missed, such that layers which
+     * are not yet known may already exist.
+     */
+    private boolean lossy = false;
+
+    /**
+     * The current cursor image, or null if no cursor has been set.
+     */
+    private BufferedImage cursor;
+
+    /**
+     * The X coordinate of the hotspot of the current cursor.
+     */
+    private int cursorX;
+
+    /**
+     * The Y coordinate of the hotspot of the current cursor.
+     */
+    private int cursorY;
+
+    /**
+     * Whether the current cursor is known.
+     */
+    private boolean cursorKnown = true;
+
+    /**
+     * The timestamp of the last "sync" instruction, or null if none.
+     */
+    private String timestamp;
+
+    /**
+     * Creates a new DisplayState whose layers may total at most the given
+     * number of pixels.
+     *
+     * @param maxPixels The maximum total number of pixels of all layers.
+     */
+    public DisplayState(long maxPixels) {
+        this.maxPixels = maxPixels;
+        layers.put(0, new Layer(true));
+    }
+
+    /**
+     * Creates a new DisplayState whose layers may total at most
+     * DEFAULT_MAX_PIXELS pixels.
+     */
+    public DisplayState() {
+        this(DEFAULT_MAX_PIXELS);
+    }
+
+    /**
+     * Returns the layer having the given index, creating it if necessary.
+     *
+     * @param index The index of the layer.
+     * @return The layer having the given index.
+     */
+    private Layer getLayer(int index) {
+
+        Layer layer = layers.get(index);
+        if (layer == null) {
+            layer = new Layer(!lossy);
+            layers.put(index, layer);
+            disposed.remove(index);
+        }
+
+        return layer;
+
+    }
+
+    /**
+     * Resizes the given layer, preserving its contents. If the new size
+     * would exceed the pixel limit, the contents of the layer are discarded
+     * and become unknown.
+     *
+     * @param layer The layer to resize.
+     * @param width The new width of the layer.
+     * @param height The new height of the layer.
+     */
+    private void resize(Layer layer, int width, int height) {
+
+        if (width == layer.width && height == layer.height && layer.image != null)
+            return;
+
+        BufferedImage old = layer.image;
+        pixels -= (long) layer.width * layer.height;
+        layer.width = width;
+        layer.height = height;
+        layer.image = null;
+
+        long size = (long) width * height;
+        if (size == 0)
+            return;
+
+        // Layers beyond the limit are not kept
+        if (pixels + size > maxPixels) {
+            layer.known = false;
+            return;
+        }
+
+        pixels += size;
+        layer.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+
+        if (old != null) {
+            Graphics2D graphics = layer.image.createGraphics();
+            graphics.drawImage(old, 0, 0, null);
+            graphics.dispose();
+        }
+        else if (layer.drawn)
+            layer.known = false;
+
+    }
+
+    /**
+     * Grows the given layer, if a buffer, such that it contains the given
+     * rectangle, as buffers are automatically sized to fit what is drawn.
+     *
+     * @param index The index of the layer.
+     * @param layer The layer to grow.
+     * @param x The X coordinate of the rectangle.
+     * @param y The Y coordinate of the rectangle.
+     * @param width The width of the rectangle.
+     * @param height The height of the rectangle.
+     */
+    private void fit(int index, Layer layer, int x, int y, int width, int height) {
+        if (index < 0 && (x + width > layer.width || y + height > layer.height))
+            resize(layer, Math.max(layer.width, x + width),
+                    Math.max(layer.height, y + height));
+    }
+
+    /**
+     * Draws the given image to the given layer using the given channel
+     * mask. The layer becomes known if the image replaces its entire
+     * contents, and unknown if the channel mask is not supported.
+     *
+     * @param layer The layer to draw to.
+     * @param image The image to draw.
+     * @param mask The channel mask to use.
+     * @param x The X coordinate to draw the image at.
+     * @param y The Y coordinate to draw the image at.
+     */
+    private void draw(Layer layer, BufferedImage image, int mask, int x, int y) {
+
+        layer.drawn = true;
+
+        if (layer.image == null || layer.altered || (mask != SRC && mask != OVER)) {
+            layer.known = false;
+            return;
+        }
+
+        Graphics2D graphics = layer.image.createGraphics();
+        graphics.setComposite(mask == SRC ? AlphaComposite.Src : AlphaComposite.SrcOver);
+        graphics.drawImage(image, x, y, null);
+        graphics.dispose();
+
+        // Replacing everything makes the layer known
+        if (mask == SRC && x <= 0 && y <= 0
+                && x + image.getWidth() >= layer.width
+                && y + image.getHeight() >= layer.height)
+            layer.known = true;
+
+    }
+
+    /**
+     * Returns a copy of the given rectangle of the given layer, clipped to
+     * the bounds of the layer.
+     *
+     * @param layer The layer to copy from.
+     * @param x The X coordinate of the rectangle.
+     * @param y The Y coordinate of the rectangle.
+     * @param width The width of the rectangle.
+     * @param height The height of the rectangle.
+     * @return A copy of the given rectangle, or null if the rectangle lies
+     *         entirely outside the layer or the layer has no contents.
+     */
+    private static BufferedImage copyRegion(Layer layer, int x, int y,
+            int width, int height) {
+
+        if (layer == null || layer.image == null)
+            return null;
+
+        Rectangle region = new Rectangle(x, y, width, height).intersection(
+                new Rectangle(0, 0, layer.width, layer.height));
+        if (region.isEmpty())
+            return null;
+
+        BufferedImage copy = new BufferedImage(region.width, region.height,
+                BufferedImage.TYPE_INT_ARGB);
+
+        Graphics2D graphics = copy.createGraphics();
+        graphics.setComposite(AlphaComposite.Src);
+        graphics.drawImage(layer.image.getSubimage(region.x, region.y,
+                region.width, region.height), 0, 0, null);
+        graphics.dispose();
+
+        return copy;
+
+    }
+
+    /**
+     * Marks every layer and the cursor as unknown, as instructions have
+     * been missed. Layers become known again once their contents are
+     * entirely replaced and, for visible layers, once moved.
+     */
+    public void invalidate() {
+
+        lossy = true;
+        cursorKnown = false;
+
+        for (Layer layer : layers.values()) {
+            layer.known = false;
+            layer.placed = false;
+        }
+
+        // The default layer never moves
+        layers.get(0).placed = true;
+
+    }
+
+    /**
+     * Updates this display state with the given instruction, sent to the
+     * client.
+     *
+     * @param instruction The instruction sent to the client.
+     */
+    public void handle(GuacamoleInstruction instruction) {
+
+        String opcode = instruction.getOpcode();
+        List<String> args = instruction.getArgs();
+
+        try {
+            handle(opcode, args);
+        }
+
+        // Treat malformed instructions as missed
+        catch (NumberFormatException e) {
+            invalidate();
+        }
+        catch (IndexOutOfBoundsException e) {
+            invalidate();
+        }
+
+    }
+
+    /**
+     * Updates this display state with the given instruction, sent to the
+     * client.
+     *
+     * @param opcode The opcode of the instruction.
+     * @param args The arguments of the instruction.
+     */
+    private void handle(String opcode, List<String> args) {
+
+        // size layer width height
+        if (opcode.equals("size")) {
+            resize(getLayer(Integer.parseInt(args.get(0))),
+                    Integer.parseInt(args.get(1)),
+                    Integer.parseInt(args.get(2)));
+        }
+
+        // png mask layer x y data
+        else if (opcode.equals("png")) {
+
+            int mask = Integer.parseInt(args.get(0));
+            int index = Integer.parseInt(args.get(1));
+            int x = Integer.parseInt(args.get(2));
+            int y = Integer.parseInt(args.get(3));
+            Layer layer = getLayer(index);
+
+            BufferedImage image;
+            try {
+                image = ImageIO.read(new ByteArrayInputStream(
+                        Base64Codec.decode(args.get(4))));
+            }
+            catch (IOException e) {
+                image = null;
+            }
+            catch (IllegalArgumentException e) {
+                image = null;
+            }
+
+            if (image == null) {
+                layer.drawn = true;
+                layer.known = false;
+                return;
+            }
+
+            fit(index, layer, x, y, image.getWidth(), image.getHeight());
+            draw(layer, image, mask, x, y);
+
+        }
+
+        // copy srclayer srcx srcy width height mask dstlayer dstx dsty
+        else if (opcode.equals("copy")) {
+
+            Layer source = layers.get(Integer.parseInt(args.get(0)));
+            int srcX = Integer.parseInt(args.get(1));
+            int srcY = Integer.parseInt(args.get(2));
+            int width = Integer.parseInt(args.get(3));
+            int height = Integer.parseInt(args.get(4));
+            int mask = Integer.parseInt(args.get(5));
+            int index = Integer.parseInt(args.get(6));
+            int x = Integer.parseInt(args.get(7));
+            int y = Integer.parseInt(args.get(8));
+            Layer layer = getLayer(index);
+
+            // Copies of unknown data are unknown
+            boolean known = source != null ? source.known : !lossy;
+
+            BufferedImage region = copyRegion(source, srcX, srcY, width, height);
+            if (region != null) {
+                int offsetX = Math.max(0, srcX) - srcX;
+                int offsetY = Math.max(0, srcY) - srcY;
+                fit(index, layer, x + offsetX, y + offsetY,
+                        region.getWidth(), region.getHeight());
+                draw(layer, region, mask, x + offsetX, y + offsetY);
+            }
+
+            if (!known)
+                layer.known = false;
+
+        }
+
+        // rect layer x y width height
+        else if (opcode.equals("rect")) {
+            getLayer(Integer.parseInt(args.get(0))).path.append(new Rectangle(
+                    Integer.parseInt(args.get(1)), Integer.parseInt(args.get(2)),
+                    Integer.parseInt(args.get(3)), Integer.parseInt(args.get(4))),
+                    false);
+        }
+
+        // cfill mask layer r g b a
+        else if (opcode.equals("cfill")) {
+
+            int mask = Integer.parseInt(args.get(0));
+            int index = Integer.parseInt(args.get(1));
+            Layer layer = getLayer(index);
+            Color color = new Color(
+                    Integer.parseInt(args.get(2)), Integer.parseInt(args.get(3)),
+                    Integer.parseInt(args.get(4)), Integer.parseInt(args.get(5)));
+
+            Rectangle bounds = layer.path.getBounds();
+            fit(index, layer, bounds.x, bounds.y, bounds.width, bounds.height);
+            layer.drawn = true;
+
+            if (layer.image != null && layer.pathKnown && !layer.altered
+                    && (mask == SRC || mask == OVER)) {
+
+                Graphics2D graphics = layer.image.createGraphics();
+                graphics.setComposite(mask == SRC ? AlphaComposite.Src : AlphaComposite.SrcOver);
+                graphics.setColor(color);
+                graphics.fill(layer.path);
+                graphics.dispose();
+
+                // Filling everything makes the layer known
+                if (mask == SRC && new Area(layer.path).contains(0, 0, layer.width, layer.height))
+                    layer.known = true;
+
+            }
+            else
+                layer.known = false;
+
+            // Filling consumes the path
+            resetPath(layer);
+
+        }
+
+        // move layer parent x y z
+        else if (opcode.equals("move")) {
+            Layer layer = getLayer(Integer.parseInt(args.get(0)));
+            layer.move = new ArrayList<String>(args.subList(1, 5));
+            layer.placed = true;
+        }
+
+        // shade layer opacity
+        else if (opcode.equals("shade"))
+            getLayer(Integer.parseInt(args.get(0))).shade =
+                    new ArrayList<String>(args.subList(1, 2));
+
+        // distort layer a b c d e f
+        else if (opcode.equals("distort"))
+            getLayer(Integer.parseInt(args.get(0))).distort =
+                    new ArrayList<String>(args.subList(1, 7));
+
+        // dispose layer
+        else if (opcode.equals("dispose")) {
+            int index = Integer.parseInt(args.get(0));
+            Layer layer = layers.remove(index);
+            if (layer != null)
+                pixels -= (long) layer.width * layer.height;
+            if (index == 0)
+                layers.put(0, new Layer(true));
+            else
+                disposed.add(index);
+        }
+
+        // cursor x y srclayer srcx srcy width height
+        else if (opcode.equals("cursor")) {
+            Layer source = layers.get(Integer.parseInt(args.get(2)));
+            cursorX = Integer.parseInt(args.get(0));
+            cursorY = Integer.parseInt(args.get(1));
+            cursor = copyRegion(source,
+                    Integer.parseInt(args.get(3)), Integer.parseInt(args.get(4)),
+                    Integer.parseInt(args.get(5)), Integer.parseInt(args.get(6)));
+            cursorKnown = source != null ? source.known : !lossy;
+        }
+
+        // sync timestamp
+        else if (opcode.equals("sync"))
+            timestamp = args.get(0);
+
+        // Clipping and transforms alter all further drawing until reset
+        else if (opcode.equals("clip") || opcode.equals("transform")) {
+            Layer layer = getLayer(Integer.parseInt(args.get(0)));
+            layer.altered = true;
+            if (opcode.equals("clip"))
+                resetPath(layer);
+        }
+
+        // reset layer
+        else if (opcode.equals("reset")) {
+            Layer layer = getLayer(Integer.parseInt(args.get(0)));
+            layer.altered = false;
+            resetPath(layer);
+        }
+
+        // Paths built by other instructions are not interpreted
+        else if (PATH_OPCODES.contains(opcode))
+            getLayer(Integer.parseInt(args.get(0))).pathKnown = false;
+
+        // Any other drawing leaves the layer unknown
+        else {
+
+            Integer argument = DRAWING_LAYER_ARGUMENT.get(opcode);
+            if (argument == null)
+                return;
+
+            Layer layer = getLayer(Integer.parseInt(args.get(argument)));
+            layer.drawn = true;
+            layer.known = false;
+
+            // Strokes and fills consume the path
+            if (!opcode.equals("transfer"))
+                resetPath(layer);
+
+        }
+
+    }
+
+    /**
+     * Discards the current path of the given layer, as is done when the
+     * path is filled, stroked or used for clipping.
+     *
+     * @param layer The layer whose path should be discarded.
+     */
+    private static void resetPath(Layer layer) {
+        layer.path = new Path2D.Double();
+        layer.pathKnown = true;
+    }
+
+    /**
+     * Returns whether the entire display is currently known, such that a
+     * snapshot can be produced.
+     *
+     * @return true if every layer and the cursor are known, false
+     *         otherwise.
+     */
+    public boolean isKnown() {
+
+        if (!cursorKnown)
+            return false;
+
+        for (Layer layer : layers.values()) {
+            if (!layer.known || !layer.placed)
+                return false;
+        }
+
+        return true;
+
+    }
+
+    /**
+     * Returns the total number of pixels of all layers.
+     *
+     * @return The total number of pixels of all layers.
+     */
+    public long getPixels() {
+        return pixels;
+    }
+
+    /**
+     * Returns a "png" instruction which draws the given image to the given
+     * layer at the origin, replacing its contents.
+     *
+     * @param index The index of the layer.
+     * @param image The image to draw.
+     * @return A "png" instruction drawing the given image.
+     * @throws IOException If the image cannot be encoded as PNG.
+     */
+    private static GuacamoleInstruction png(int index, BufferedImage image)
+            throws IOException {
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", data);
+
+        return new GuacamoleInstruction("png", Integer.toString(SRC),
+                Integer.toString(index), "0", "0",
+                Base64Codec.encode(data.toByteArray()));
+
+    }
+
+    /**
+     * Returns a sequence of instructions which reproduces the current state
+     * of the display, or null if the display is not entirely known. The
+     * instructions may be sent either to a client having a new, empty
+     * display or to a client which has seen an earlier part of the same
+     * stream, as layers disposed since are disposed again.
+     *
+     * @return The instructions reproducing the current state of the
+     *         display, or null if the display is not entirely known.
+     */
+    public List<GuacamoleInstruction> getInstructions() {
+
+        if (!isKnown())
+            return null;
+
+        List<GuacamoleInstruction> instructions = new ArrayList<GuacamoleInstruction>();
+        int unused = -1;
+
+        // Remove layers the client may still have
+        for (Integer index : disposed)
+            instructions.add(new GuacamoleInstruction("dispose", index.toString()));
+
+        try {
+
+            for (Map.Entry<Integer, Layer> entry : layers.entrySet()) {
+
+                String index = Integer.toString(entry.getKey());
+                Layer layer = entry.getValue();
+
+                instructions.add(new GuacamoleInstruction("size", index,
+                        Integer.toString(layer.width),
+                        Integer.toString(layer.height)));
+
+                if (layer.drawn && layer.image != null)
+                    instructions.add(png(entry.getKey(), layer.image));
+
+                if (layer.move != null)
+                    instructions.add(new GuacamoleInstruction("move",
+                            prepend(index, layer.move)));
+
+                if (layer.shade != null)
+                    instructions.add(new GuacamoleInstruction("shade",
+                            prepend(index, layer.shade)));
+
+                if (layer.distort != null)
+                    instructions.add(new GuacamoleInstruction("distort",
+                            prepend(index, layer.distort)));
+
+            }
+
+            // Set cursor from a temporary buffer
+            if (cursor != null) {
+
+                while (layers.containsKey(unused) || disposed.contains(unused))
+                    unused--;
+
+                String buffer = Integer.toString(unused);
+                instructions.add(new GuacamoleInstruction("size", buffer,
+                        Integer.toString(cursor.getWidth()),
+                        Integer.toString(cursor.getHeight())));
+                instructions.add(png(unused, cursor));
+                instructions.add(new GuacamoleInstruction("cursor",
+                        Integer.toString(cursorX), Integer.toString(cursorY),
+                        buffer, "0", "0",
+                        Integer.toString(cursor.getWidth()),
+                        Integer.toString(cursor.getHeight())));
+                instructions.add(new GuacamoleInstruction("dispose", buffer));
+
+            }
+
+        }
+        catch (IOException e) {
+            return null;
+        }
+
+        // End frame such that the display is rendered
+        if (timestamp != null)
+            instructions.add(new GuacamoleInstruction("sync", timestamp));
+
+        return instructions;
+
+    }
+
+    /**
+     * Returns a new list consisting of the given value followed by the given
+     * values.
+     *
+     * @param value The first value of the list.
+     * @param values The remaining values of the list.
+     * @return A new list of all given values.
+     */
+    private static List<String> prepend(String value, List<String> values) {
+        List<String> list = new ArrayList<String>(values.size() + 1);
+        list.add(value);
+        list.addAll(values);
+        return list;
+    }
+
+    /**
+     * Discards all layers, freeing the memory they occupy.
+     */
+    public void clear() {
+        layers.clear();
+        layers.put(0, new Layer(true));
+        disposed.clear();
+        pixels = 0;
+        cursor = null;
+    }
+
+}
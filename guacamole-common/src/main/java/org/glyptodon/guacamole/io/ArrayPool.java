@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.io;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of fixed-length arrays, allowing short-lived buffers, such as
+ * those used by each HTTP tunnel request, to be reused rather than allocated
+ * anew. Arrays not returned to the pool are simply garbage collected, and
+ * arrays returned while the pool is full are discarded. This class is
+ * threadsafe.
+ *
+ * @author Michael Jumper
+ * @param <T> The type of array pooled.
+ */
+public abstract class ArrayPool<T> {
+
+    /**
+     * The length of each array provided by this pool.
+     */
+    private final int arrayLength;
+
+    /**
+     * The maximum number of unused arrays retained by this pool.
+     */
+    private final int maxPooled;
+
+    /**
+     * All unused arrays currently retained by this pool.
+     */
+    private final ConcurrentLinkedQueue<T> available = new ConcurrentLinkedQueue<T>();
+
+    /**
+     * The number of arrays within the available queue. This is tracked
+     * separately, as the size of a ConcurrentLinkedQueue is not a
+     * constant-time operation.
+     */
+    private final AtomicInteger pooledCount = new AtomicInteger();
+
+    /**
+     * The number of calls to acquire() satisfied by a pooled array.
+     */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /**
+     * The number of calls to acquire() which required a new array.
+     */
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * The number of arrays released while the pool was full.
+     */
+    private final AtomicLong discardCount = new AtomicLong();
+
+    /**
+     * Creates a new, empty ArrayPool which provides arrays of the given
+     * length, retaining at most the given number of unused arrays.
+     *
+     * @param arrayLength The length of each array provided by this pool.
+     * @param maxPooled The maximum number of unused arrays to retain.
+     */
+    public ArrayPool(int arrayLength, int maxPooled) {
+        this.arrayLength = arrayLength;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Allocates a new array of the given length.
+     *
+     * @param length The length of the array to allocate.
+     * @return A new array of the given length.
+     */
+    protected abstract T allocate(int length);
+
+    /**
+     * Returns the length of the given array.
+     *
+     * @param array The array to determine the length of.
+     * @return The length of the given array.
+     */
+    protected abstract int lengthOf(T array);
+
+    /**
+     * Returns an array of getArrayLength() elements, reusing a pooled array
+     * if one is available. The contents of the returned array are undefined.
+     *
+     * @return An array of getArrayLength() elements.
+     */
+    public T acquire() {
+
+        // Reuse pooled array if possible
+        T array = available.poll();
+        if (array != null) {
+            pooledCount.decrementAndGet();
+            hitCount.incrementAndGet();
+            return array;
+        }
+
+        // Otherwise, allocate
+        missCount.incrementAndGet();
+        return allocate(arrayLength);
+
+    }
+
+    /**
+     * Returns the given array to this pool. The array must no longer be used
+     * by the caller. Arrays which were not provided by this pool, as
+     * determined by their length, are ignored.
+     *
+     * @param array The array to return to the pool, or null.
+     */
+    public void release(T array) {
+
+        // Ignore arrays of the wrong length, such as grown buffers
+        if (array == null || lengthOf(array) != arrayLength)
+            return;
+
+        // Discard array if pool is full
+        if (pooledCount.incrementAndGet() > maxPooled) {
+            pooledCount.decrementAndGet();
+            discardCount.incrementAndGet();
+            return;
+        }
+
+        available.offer(array);
+
+    }
+
+    /**
+     * Returns the length of each array provided by this pool.
+     *
+     * @return The length of each array provided by this pool.
+     */
+    public int getArrayLength() {
+        return arrayLength;
+    }
+
+    /**
+     * Returns the maximum number of unused arrays retained by this pool.
+     *
+     * @return The maximum number of unused arrays retained by this pool.
+     */
+    public int getMaxPooled() {
+        return maxPooled;
+    }
+
+    /**
+     * Returns the number of unused arrays currently retained by this pool.
+     *
+     * @return The number of unused arrays currently retained by this pool.
+     */
+    public int getPooledCount() {
+        return pooledCount.get();
+    }
+
+    /**
+     * Returns the number of calls to acquire() which were satisfied by a
+     * pooled array.
+     *
+     * @return The number of calls to acquire() which reused an array.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of calls to acquire() which required a new array to
+     * be allocated.
+     *
+     * @return The number of calls to acquire() which allocated an array.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the number of arrays which were discarded upon release because
+     * the pool was full.
+     *
+     * @return The number of arrays discarded upon release.
+     */
+    public long getDiscardCount() {
+        return discardCount.get();
+    }
+
+    /**
+     * Returns the fraction of calls to acquire() which were satisfied by a
+     * pooled array, between 0 and 1 inclusive.
+     *
+     * @return The hit rate of this pool, or 0 if acquire() has never been
+     *         called.
+     */
+    public double getHitRate() {
+
+        long hits = hitCount.get();
+        long total = hits + missCount.get();
+        if (total == 0)
+            return 0;
+
+        return (double) hits / total;
+
+    }
+
+}
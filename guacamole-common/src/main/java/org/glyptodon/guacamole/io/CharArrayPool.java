@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.io;
+
+/**
+ * ArrayPool which provides char arrays. A default pool, shared by the tunnel
+ * implementations within this library, is available via getDefault().
+ *
+ * @author Michael Jumper
+ */
+public class CharArrayPool extends ArrayPool<char[]> {
+
+    /**
+     * The length of each array provided by the default pool.
+     */
+    public static final int DEFAULT_ARRAY_LENGTH = 8192;
+
+    /**
+     * The maximum number of unused arrays retained by the default pool.
+     */
+    public static final int DEFAULT_MAX_POOLED = 256;
+
+    /**
+     * The pool returned by getDefault().
+     */
+    private static CharArrayPool defaultPool;
+
+    /**
+     * Creates a new, empty CharArrayPool which provides arrays of the given
+     * length, retaining at most the given number of unused arrays.
+     *
+     * @param arrayLength The length of each array provided by this pool.
+     * @param maxPooled The maximum number of unused arrays to retain.
+     */
+    public CharArrayPool(int arrayLength, int maxPooled) {
+        super(arrayLength, maxPooled);
+    }
+
+    @Override
+    protected char[] allocate(int length) {
+        return new char[length];
+    }
+
+    @Override
+    protected int lengthOf(char[] array) {
+        return array.length;
+    }
+
+    /**
+     * Returns the default CharArrayPool, creating a pool of
+     * DEFAULT_MAX_POOLED arrays of DEFAULT_ARRAY_LENGTH elements if no
+     * default has yet been set.
+     *
+     * @return The default CharArrayPool.
+     */
+    public static synchronized CharArrayPool getDefault() {
+
+        if (defaultPool == null)
+            defaultPool = new CharArrayPool(DEFAULT_ARRAY_LENGTH, DEFAULT_MAX_POOLED);
+
+        return defaultPool;
+
+    }
+
+    /**
+     * Replaces the default CharArrayPool.
+     *
+     * @param pool The pool to return from all future calls to getDefault().
+     */
+    public static synchronized void setDefault(CharArrayPool pool) {
+        defaultPool = pool;
+    }
+
+}
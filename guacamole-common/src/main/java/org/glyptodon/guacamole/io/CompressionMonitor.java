@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.io;
+
+import java.util.zip.Deflater;
+import org.glyptodon.guacamole.net.GuacamoleTunnelStatistics;
+
+/**
+ * Tracks how well the data sent over a single tunnel compresses, deciding
+ * whether that data is currently worth compressing. Much of the Guacamole
+ * protocol is highly compressible text, but image data is sent already
+ * compressed (as base64-encoded PNG, JPEG, etc.), and compressing it again
+ * costs CPU while saving almost nothing. The compression ratio is tracked as
+ * a moving average of both the data actually compressed and, while
+ * compression is off, of periodic trial compressions of outbound data, with
+ * separate thresholds for switching compression on and off such that the
+ * decision does not flap. All compression recorded is also added to the
+ * totals of the default GuacamoleTunnelStatistics. This class is
+ * threadsafe.
+ *
+ * @author Michael Jumper
+ */
+public class CompressionMonitor {
+
+    /**
+     * The default ratio of compressed to uncompressed size at or below which
+     * compression is switched on.
+     */
+    public static final double DEFAULT_ENABLE_RATIO = 0.5;
+
+    /**
+     * The default ratio of compressed to uncompressed size above which
+     * compression is switched off.
+     */
+    public static final double DEFAULT_DISABLE_RATIO = 0.8;
+
+    /**
+     * The default number of uncompressed bytes which must be offered to
+     * sample() between trial compressions.
+     */
+    public static final int DEFAULT_SAMPLE_INTERVAL = 65536;
+
+    /**
+     * The maximum number of bytes compressed by each trial compression.
+     */
+    private static final int SAMPLE_LENGTH = 4096;
+
+    /**
+     * The weight given to each new measurement within the moving average of
+     * the compression ratio.
+     */
+    private static final double WEIGHT = 0.25;
+
+    /**
+     * The ratio at or below which compression is switched on.
+     */
+    private final double enableRatio;
+
+    /**
+     * The ratio above which compression is switched off.
+     */
+    private final double disableRatio;
+
+    /**
+     * The number of uncompressed bytes between trial compressions.
+     */
+    private final int sampleInterval;
+
+    /**
+     * Whether data is currently worth compressing.
+     */
+    private volatile boolean compressing = false;
+
+    /**
+     * The moving average of the ratio of compressed to uncompressed size,
+     * or a negative value if nothing has yet been measured.
+     */
+    private double ratio = -1;
+
+    /**
+     * The number of bytes offered to sample() since the last trial
+     * compression. This starts at the sample interval such that the first
+     * data offered is sampled immediately.
+     */
+    private int unsampledBytes;
+
+    /**
+     * The total number of bytes actually compressed.
+     */
+    private long uncompressedBytes = 0;
+
+    /**
+     * The total size of all compressed output, in bytes.
+     */
+    private long compressedBytes = 0;
+
+    /**
+     * The total number of trial compressions performed.
+     */
+    private long sampleCount = 0;
+
+    /**
+     * The total time spent compressing, including trial compressions, in
+     * nanoseconds.
+     */
+    private long compressionTime = 0;
+
+    /**
+     * The statistics shared by all tunnels.
+     */
+    private final GuacamoleTunnelStatistics statistics =
+            GuacamoleTunnelStatistics.getDefault();
+
+    /**
+     * Creates a new CompressionMonitor which uses the default thresholds and
+     * sample interval.
+     */
+    public CompressionMonitor() {
+        this(DEFAULT_ENABLE_RATIO, DEFAULT_DISABLE_RATIO, DEFAULT_SAMPLE_INTERVAL);
+    }
+
+    /**
+     * Creates a new CompressionMonitor which uses the given thresholds and
+     * sample interval.
+     *
+     * @param enableRatio The ratio of compressed to uncompressed size at or
+     *                    below which compression is switched on.
+     * @param disableRatio The ratio of compressed to uncompressed size above
+     *                     which compression is switched off. This must be no
+     *                     smaller than enableRatio.
+     * @param sampleInterval The number of uncompressed bytes which must be
+     *                       offered to sample() between trial compressions.
+     */
+    public CompressionMonitor(double enableRatio, double disableRatio,
+            int sampleInterval) {
+
+        if (disableRatio < enableRatio)
+            throw new IllegalArgumentException("The disable ratio must not be smaller than the enable ratio.");
+
+        this.enableRatio = enableRatio;
+        this.disableRatio = disableRatio;
+        this.sampleInterval = sampleInterval;
+        this.unsampledBytes = sampleInterval;
+
+    }
+
+    /**
+     * Returns whether the data sent over the tunnel is currently worth
+     * compressing. Compression is initially off until a sample shows
+     * otherwise.
+     *
+     * @return true if data should be compressed, false otherwise.
+     */
+    public boolean isCompressing() {
+        return compressing;
+    }
+
+    /**
+     * Offers uncompressed data which is about to be sent without
+     * compression. Once enough such data has been offered since the last
+     * trial, a portion of the given data is compressed to re-evaluate
+     * whether compression is worthwhile. Most calls therefore return
+     * immediately.
+     *
+     * @param data The array containing the data being sent.
+     * @param offset The offset of the first byte of data within the array.
+     * @param length The number of bytes being sent.
+     */
+    public void sample(byte[] data, int offset, int length) {
+
+        synchronized (this) {
+
+            // Only sample once enough data has passed
+            unsampledBytes += length;
+            if (unsampledBytes < sampleInterval || length == 0)
+                return;
+
+            unsampledBytes = 0;
+
+        }
+
+        // Compress a prefix of the data, discarding the output
+        int sampleLength = Math.min(length, SAMPLE_LENGTH);
+        byte[] output = new byte[SAMPLE_LENGTH];
+        long compressed = 0;
+
+        long start = System.nanoTime();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+
+            deflater.setInput(data, offset, sampleLength);
+            deflater.finish();
+            while (!deflater.finished())
+                compressed += deflater.deflate(output);
+
+        }
+        finally {
+            deflater.end();
+        }
+
+        long elapsed = System.nanoTime() - start;
+        statistics.sampled(elapsed);
+
+        synchronized (this) {
+            sampleCount++;
+            compressionTime += elapsed;
+            update((double) compressed / sampleLength);
+        }
+
+    }
+
+    /**
+     * Records the result of data which was actually compressed, updating
+     * the metrics and re-evaluating whether compression is worthwhile.
+     *
+     * @param uncompressed The number of bytes compressed.
+     * @param compressed The size of the resulting compressed output, in
+     *                   bytes.
+     * @param elapsed The time spent compressing, in nanoseconds.
+     */
+    public synchronized void record(long uncompressed, long compressed,
+            long elapsed) {
+
+        uncompressedBytes += uncompressed;
+        compressedBytes += compressed;
+        compressionTime += elapsed;
+        statistics.compressed(uncompressed, compressed, elapsed);
+
+        if (uncompressed > 0)
+            update((double) compressed / uncompressed);
+
+    }
+
+    /**
+     * Folds the given measurement into the moving average of the
+     * compression ratio, switching compression on or off if a threshold has
+     * been crossed. The monitor of this object must be held.
+     *
+     * @param measured The measured ratio of compressed to uncompressed size.
+     */
+    private void update(double measured) {
+
+        // Use the first measurement as-is
+        if (ratio < 0)
+            ratio = measured;
+        else
+            ratio += WEIGHT * (measured - ratio);
+
+        // Switch on or off only when the relevant threshold is crossed
+        if (compressing && ratio > disableRatio)
+            compressing = false;
+        else if (!compressing && ratio <= enableRatio)
+            compressing = true;
+
+    }
+
+    /**
+     * Returns the current moving average of the ratio of compressed to
+     * uncompressed size. Smaller values indicate better compression.
+     *
+     * @return The current compression ratio, or 1 if nothing has yet been
+     *         measured.
+     */
+    public synchronized double getRatio() {
+        return ratio < 0 ? 1 : ratio;
+    }
+
+    /**
+     * Returns the total number of bytes actually compressed, excluding
+     * trial compressions.
+     *
+     * @return The total number of bytes compressed.
+     */
+    public synchronized long getUncompressedBytes() {
+        return uncompressedBytes;
+    }
+
+    /**
+     * Returns the total size of all compressed output, excluding trial
+     * compressions.
+     *
+     * @return The total size of all compressed output, in bytes.
+     */
+    public synchronized long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /**
+     * Returns the total number of trial compressions performed while
+     * compression was off.
+     *
+     * @return The number of trial compressions performed.
+     */
+    public synchronized long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Returns the total time spent compressing, including trial
+     * compressions.
+     *
+     * @return The total time spent compressing, in nanoseconds.
+     */
+    public synchronized long getCompressionTime() {
+        return compressionTime;
+    }
+
+}
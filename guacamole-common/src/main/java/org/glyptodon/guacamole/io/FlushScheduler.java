@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.io;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared scheduler which flushes buffered GuacamoleWriters once their
+ * coalescing deadline has passed. A single daemon thread tracks the
+ * deadlines of all writers, but only hands each due flush off to a pool of
+ * daemon threads. The flushes themselves write to the underlying stream,
+ * which may block for as long as the peer is not reading, and must not
+ * delay the flushes of other writers.
+ *
+ * @author Michael Jumper
+ */
+final class FlushScheduler {
+
+    /**
+     * The number of threads created so far to perform flushes, used to
+     * name those threads.
+     */
+    private static final AtomicInteger flushThreadCount = new AtomicInteger();
+
+    /**
+     * The executor waiting for the deadlines of all scheduled flushes.
+     */
+    private static final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "guacamole-writer-timer");
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    });
+
+    /**
+     * The executor performing all flushes once due.
+     */
+    private static final ExecutorService flusher =
+            Executors.newCachedThreadPool(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "guacamole-writer-flush-"
+                    + flushThreadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    });
+
+    /**
+     * This class is not intended to be instantiated.
+     */
+    private FlushScheduler() {}
+
+    /**
+     * Schedules the given task to run once after the given delay. The task
+     * runs on a thread of its own, and may block.
+     *
+     * @param task The task to run.
+     * @param delay The number of milliseconds to wait before running the
+     *              task.
+     */
+    public static void schedule(final Runnable task, long delay) {
+        timer.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                flusher.execute(task);
+            }
+
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.io;
+
+import org.glyptodon.guacamole.GuacamoleException;
+
+/**
+ * A GuacamoleWriter which may hold written data in a buffer rather than
+ * sending it immediately, and which allows that buffer to be flushed
+ * explicitly.
+ *
+ * @author Michael Jumper
+ */
+public interface FlushableGuacamoleWriter extends GuacamoleWriter {
+
+    /**
+     * Sends any buffered data to the Guacamole instruction stream. If no data
+     * is buffered, this function has no effect.
+     *
+     * @throws GuacamoleException If an error occurred while sending the
+     *                            buffered data.
+     */
+    public void flush() throws GuacamoleException;
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import org.glyptodon.guacamole.GuacamoleConnectionClosedException;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.GuacamoleUpstreamTimeoutException;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+import org.glyptodon.guacamole.protocol.GuacamoleInstructionView;
+
+/**
+ * A GuacamoleReader which wraps a standard Java InputStream, using the UTF-8
+ * data read from that InputStream as the Guacamole instruction stream.
+ * Instructions are located by scanning the received bytes directly, counting
+ * the UTF-8 characters within each element as dictated by its length prefix,
+ * and are decoded to characters only if requested.
+ *
+ * As the length prefixes of the Guacamole protocol count Unicode characters,
+ * while Java characters are UTF-16 code units, the length prefixes of any
+ * instruction containing characters outside the Basic Multilingual Plane are
+ * rewritten when that instruction is decoded.
+ *
+ * @author Michael Jumper
+ */
+public class InputStreamGuacamoleReader implements UTF8GuacamoleReader,
+        BufferedGuacamoleReader {
+
+    /**
+     * Wrapped InputStream to be used for all input.
+     */
+    private final InputStream input;
+
+    /**
+     * Parser locating instructions within the data read from input.
+     */
+    private final UTF8GuacamoleParser parser;
+
+    /**
+     * Reusable view of the most recently read instruction, returned by
+     * readInstructionView().
+     */
+    private final GuacamoleInstructionView instructionView = new GuacamoleInstructionView();
+
+    /**
+     * Creates a new InputStreamGuacamoleReader which will use the given
+     * InputStream as the Guacamole instruction stream.
+     *
+     * @param input The InputStream to use as the Guacamole instruction
+     *              stream. All data read from this stream must be UTF-8.
+     */
+    public InputStreamGuacamoleReader(InputStream input) {
+        this.input = input;
+        this.parser = new UTF8GuacamoleParser();
+    }
+
+    @Override
+    public boolean available() throws GuacamoleException {
+        try {
+            return input.available() > 0 || parser.hasUnreadData();
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException(e);
+        }
+    }
+
+    /**
+     * Reads more data from input into the parser, blocking until data is
+     * available.
+     *
+     * @return true if data was read, false if the end of the stream has been
+     *         reached.
+     * @throws GuacamoleException If an error occurs while reading.
+     */
+    private boolean fill() throws GuacamoleException {
+        try {
+            return parser.fill(input) != -1;
+        }
+        catch (SocketTimeoutException e) {
+            throw new GuacamoleUpstreamTimeoutException("Connection to guacd timed out.", e);
+        }
+        catch (SocketException e) {
+            throw new GuacamoleConnectionClosedException("Connection to guacd is closed.", e);
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException(e);
+        }
+    }
+
+    @Override
+    public ByteBuffer readUTF8() throws GuacamoleException {
+
+        // Read until a complete instruction is available
+        ByteBuffer instruction;
+        while ((instruction = parser.nextUTF8()) == null) {
+            if (!fill())
+                return null;
+        }
+
+        return instruction;
+
+    }
+
+    @Override
+    public CharBuffer readBuffer() throws GuacamoleException {
+
+        // Read until a complete instruction is available
+        CharBuffer instruction;
+        while ((instruction = parser.nextBuffer()) == null) {
+            if (!fill())
+                return null;
+        }
+
+        return instruction;
+
+    }
+
+    @Override
+    public char[] read() throws GuacamoleException {
+
+        // Read next instruction, handle EOF
+        CharBuffer instructionBuffer = readBuffer();
+        if (instructionBuffer == null)
+            return null;
+
+        // Copy instruction data
+        char[] instruction = new char[instructionBuffer.remaining()];
+        instructionBuffer.get(instruction);
+
+        return instruction;
+
+    }
+
+    @Override
+    public GuacamoleInstructionView readInstructionView() throws GuacamoleException {
+
+        // Get instruction, handle EOF
+        CharBuffer instructionBuffer = readBuffer();
+        if (instructionBuffer == null)
+            return null;
+
+        // Point view at decoded instruction
+        instructionView.reset(instructionBuffer);
+        return instructionView;
+
+    }
+
+    @Override
+    public GuacamoleInstruction readInstruction() throws GuacamoleException {
+
+        // Get instruction, handle EOF
+        GuacamoleInstructionView view = readInstructionView();
+        if (view == null)
+            return null;
+
+        // Return independent copy of parsed instruction
+        return view.toInstruction();
+
+    }
+
+}
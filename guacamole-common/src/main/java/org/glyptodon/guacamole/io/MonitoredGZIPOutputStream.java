@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * OutputStream which gzip-compresses all data written, reporting the
+ * achieved compression and the time spent compressing to a
+ * CompressionMonitor. Each flush() completes the current deflate block such
+ * that all data written so far can be decompressed by the receiving end,
+ * which is required for data streamed over a long-lived response.
+ *
+ * @author Michael Jumper
+ */
+public class MonitoredGZIPOutputStream extends FilterOutputStream {
+
+    /**
+     * The size of the buffer used by the underlying deflater, in bytes.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Whether the running JVM can flush a GZIPOutputStream without finishing
+     * it. This requires the three-argument constructor added in Java 7.
+     */
+    private static final boolean SUPPORTED;
+
+    static {
+
+        boolean supported;
+        try {
+            GZIPOutputStream.class.getConstructor(OutputStream.class,
+                    int.class, boolean.class);
+            supported = true;
+        }
+        catch (NoSuchMethodException e) {
+            supported = false;
+        }
+
+        SUPPORTED = supported;
+
+    }
+
+    /**
+     * Stream which counts the compressed bytes written to the wrapped
+     * stream. Flushing this stream does nothing, such that the time spent
+     * flushing the wrapped stream is not counted as time spent compressing.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        /**
+         * The number of bytes written so far.
+         */
+        private long count = 0;
+
+        /**
+         * Creates a new CountingOutputStream which writes to the given
+         * stream.
+         *
+         * @param out The stream to write to.
+         */
+        public CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() {
+            // Flushed separately by MonitoredGZIPOutputStream
+        }
+
+    }
+
+    /**
+     * The monitor receiving compression metrics.
+     */
+    private final CompressionMonitor monitor;
+
+    /**
+     * The stream counting compressed output.
+     */
+    private final CountingOutputStream counter;
+
+    /**
+     * The stream performing compression.
+     */
+    private final GZIPOutputStream gzip;
+
+    /**
+     * The number of uncompressed bytes written since metrics were last
+     * reported.
+     */
+    private long pendingBytes = 0;
+
+    /**
+     * The number of compressed bytes written as of the last report.
+     */
+    private long reportedBytes = 0;
+
+    /**
+     * The time spent compressing since metrics were last reported, in
+     * nanoseconds.
+     */
+    private long pendingTime = 0;
+
+    /**
+     * Returns whether the running JVM supports flushing compressed output
+     * mid-stream. If not, this stream cannot be used.
+     *
+     * @return true if this stream can be used, false otherwise.
+     */
+    public static boolean isSupported() {
+        return SUPPORTED;
+    }
+
+    /**
+     * Creates a new MonitoredGZIPOutputStream which writes compressed data
+     * to the given stream and reports to the given monitor. The gzip header
+     * is written immediately.
+     *
+     * @param out The stream to write compressed data to.
+     * @param monitor The monitor to report compression metrics to.
+     * @throws IOException If an error occurs while writing the gzip header.
+     * @throws UnsupportedOperationException If the running JVM does not
+     *                                       support flushing compressed
+     *                                       output.
+     */
+    public MonitoredGZIPOutputStream(OutputStream out,
+            CompressionMonitor monitor) throws IOException {
+
+        super(out);
+
+        if (!SUPPORTED)
+            throw new UnsupportedOperationException("Flushable gzip compression requires Java 7 or later.");
+
+        this.monitor = monitor;
+        this.counter = new CountingOutputStream(out);
+        this.gzip = new GZIPOutputStream(counter, BUFFER_SIZE, true);
+
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+
+        long start = System.nanoTime();
+        gzip.write(b, off, len);
+        pendingTime += System.nanoTime() - start;
+
+        pendingBytes += len;
+
+    }
+
+    /**
+     * Reports all compression performed since the last report to the
+     * monitor.
+     */
+    private void report() {
+        monitor.record(pendingBytes, counter.count - reportedBytes, pendingTime);
+        reportedBytes = counter.count;
+        pendingBytes = 0;
+        pendingTime = 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+
+        long start = System.nanoTime();
+        gzip.flush();
+        pendingTime += System.nanoTime() - start;
+
+        report();
+        out.flush();
+
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        try {
+
+            long start = System.nanoTime();
+            gzip.finish();
+            pendingTime += System.nanoTime() - start;
+
+            report();
+
+        }
+        finally {
+            out.close();
+        }
+
+    }
+
+}
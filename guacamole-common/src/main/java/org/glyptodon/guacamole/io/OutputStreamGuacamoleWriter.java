@@ -0,0 +1,451 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import org.glyptodon.guacamole.GuacamoleConnectionClosedException;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.GuacamoleUpstreamTimeoutException;
+import org.glyptodon.guacamole.net.GuacamoleTunnelStatistics;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+import org.glyptodon.guacamole.protocol.GuacamoleInstructionView;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A GuacamoleWriter which wraps a standard Java OutputStream, writing the
+ * Guacamole instruction stream to that OutputStream as UTF-8. Data which is
+ * already UTF-8 can be written directly, without being decoded and
+ * re-encoded.
+ *
+ * By default, each write is sent to the OutputStream and flushed
+ * immediately. If a flush threshold is given, written data is instead
+ * coalesced within an internal buffer, and is sent only when the buffer
+ * reaches that threshold, when flush() is called, or when the given flush
+ * delay has elapsed since data was first buffered, whichever happens first.
+ *
+ * Writes and sends are also counted within the default
+ * GuacamoleTunnelStatistics.
+ *
+ * @author Michael Jumper
+ */
+public class OutputStreamGuacamoleWriter implements UTF8GuacamoleWriter,
+        FlushableGuacamoleWriter {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(OutputStreamGuacamoleWriter.class);
+
+    /**
+     * The minimum size of the internal buffer, in bytes.
+     */
+    private static final int MIN_BUFFER_SIZE = 8192;
+
+    /**
+     * Wrapped OutputStream to be used for all output.
+     */
+    private final OutputStream output;
+
+    /**
+     * The number of buffered bytes at which buffered data is sent
+     * automatically. If zero, all data is sent immediately.
+     */
+    private final int flushThreshold;
+
+    /**
+     * The maximum number of milliseconds that data may remain buffered
+     * before being sent automatically. If zero, buffered data is sent only
+     * when the flush threshold is reached or flush() is called.
+     */
+    private final int flushDelay;
+
+    /**
+     * Buffer containing encoded data which has been written but not yet
+     * sent.
+     */
+    private byte[] buffer;
+
+    /**
+     * The number of bytes currently within the buffer.
+     */
+    private int bufferedLength = 0;
+
+    /**
+     * Scratch space receiving the characters of each instruction element
+     * prior to encoding.
+     */
+    private char[] elementChars = new char[1024];
+
+    /**
+     * Whether a scheduled flush is currently pending.
+     */
+    private boolean flushPending = false;
+
+    /**
+     * The error which occurred during the last scheduled flush, if any. This
+     * error will be rethrown by the next write or flush.
+     */
+    private GuacamoleException flushError = null;
+
+    /**
+     * The number of calls to write(), writeUTF8() or writeInstruction() which
+     * have been accepted by this GuacamoleWriter.
+     */
+    private long writeCount = 0;
+
+    /**
+     * The number of times data has been sent to the wrapped OutputStream.
+     */
+    private long flushCount = 0;
+
+    /**
+     * The statistics shared by all tunnels.
+     */
+    private final GuacamoleTunnelStatistics statistics =
+            GuacamoleTunnelStatistics.getDefault();
+
+    /**
+     * Task which flushes the buffer once the flush delay has elapsed.
+     */
+    private final Runnable scheduledFlush = new Runnable() {
+
+        @Override
+        public void run() {
+            synchronized (OutputStreamGuacamoleWriter.this) {
+
+                flushPending = false;
+
+                try {
+                    flushBuffer();
+                }
+                catch (GuacamoleException e) {
+                    logger.debug("Scheduled flush of buffered instructions failed.", e);
+                    flushError = e;
+                }
+
+            }
+        }
+
+    };
+
+    /**
+     * Creates a new OutputStreamGuacamoleWriter which will use the given
+     * OutputStream as the Guacamole instruction stream. All written data will
+     * be sent immediately.
+     *
+     * @param output The OutputStream to use as the Guacamole instruction
+     *               stream.
+     */
+    public OutputStreamGuacamoleWriter(OutputStream output) {
+        this(output, 0, 0);
+    }
+
+    /**
+     * Creates a new OutputStreamGuacamoleWriter which will use the given
+     * OutputStream as the Guacamole instruction stream, coalescing written
+     * data until the given threshold is reached, the given delay has elapsed,
+     * or flush() is called.
+     *
+     * @param output The OutputStream to use as the Guacamole instruction
+     *               stream.
+     * @param flushThreshold The number of buffered bytes at which buffered
+     *                       data should be sent automatically, or zero to
+     *                       send all data immediately.
+     * @param flushDelay The maximum number of milliseconds that data may
+     *                   remain buffered, or zero if buffered data should be
+     *                   sent only when the threshold is reached or flush()
+     *                   is called.
+     */
+    public OutputStreamGuacamoleWriter(OutputStream output, int flushThreshold,
+            int flushDelay) {
+        this.output = output;
+        this.flushThreshold = flushThreshold;
+        this.flushDelay = flushDelay;
+        this.buffer = new byte[Math.max(flushThreshold, MIN_BUFFER_SIZE)];
+    }
+
+    /**
+     * Writes the given bytes to the wrapped OutputStream and flushes, mapping
+     * any resulting error to the appropriate GuacamoleException.
+     *
+     * @param chunk An array of bytes.
+     * @param off The start offset of the portion of the array to send.
+     * @param len The length of the portion of the array to send.
+     * @throws GuacamoleException If an error occurs while sending.
+     */
+    private void send(byte[] chunk, int off, int len) throws GuacamoleException {
+        try {
+            flushCount++;
+            statistics.flushed();
+            output.write(chunk, off, len);
+            output.flush();
+        }
+        catch (SocketTimeoutException e) {
+            throw new GuacamoleUpstreamTimeoutException("Connection to guacd timed out.", e);
+        }
+        catch (SocketException e) {
+            throw new GuacamoleConnectionClosedException("Connection to guacd is closed.", e);
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException(e);
+        }
+    }
+
+    /**
+     * Sends all buffered data, if any.
+     *
+     * @throws GuacamoleException If an error occurs while sending.
+     */
+    private void flushBuffer() throws GuacamoleException {
+
+        if (bufferedLength == 0)
+            return;
+
+        // Buffered data is discarded even on failure, as the stream cannot
+        // be recovered
+        int length = bufferedLength;
+        bufferedLength = 0;
+        send(buffer, 0, length);
+
+    }
+
+    /**
+     * Rethrows the error of the last failed scheduled flush, if any.
+     *
+     * @throws GuacamoleException If a scheduled flush has failed.
+     */
+    private void checkFlushError() throws GuacamoleException {
+        if (flushError != null)
+            throw flushError;
+    }
+
+    /**
+     * Sends the buffered data if the flush threshold has been reached,
+     * otherwise scheduling a flush for when the flush delay has elapsed.
+     *
+     * @throws GuacamoleException If an error occurs while sending.
+     */
+    private void buffered() throws GuacamoleException {
+
+        if (bufferedLength >= flushThreshold)
+            flushBuffer();
+
+        else if (flushDelay > 0 && !flushPending) {
+            flushPending = true;
+            FlushScheduler.schedule(scheduledFlush, flushDelay);
+        }
+
+    }
+
+    /**
+     * Returns the number of decimal digits required to represent the given
+     * non-negative integer.
+     *
+     * @param value The integer to measure.
+     * @return The number of decimal digits in the given integer.
+     */
+    private static int digits(int value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    /**
+     * Ensures the buffer has room for at least the given number of
+     * additional bytes, sending any buffered data and growing the buffer if
+     * necessary.
+     *
+     * @param length The number of bytes required.
+     * @throws GuacamoleException If an error occurs while sending buffered
+     *                            data.
+     */
+    private void reserve(int length) throws GuacamoleException {
+
+        if (length <= buffer.length - bufferedLength)
+            return;
+
+        flushBuffer();
+        if (length > buffer.length)
+            buffer = new byte[length];
+
+    }
+
+    /**
+     * Encodes the given characters as UTF-8, appending the result to the
+     * buffer. The buffer must already have room for MAX_BYTES_PER_CHAR bytes
+     * per character. Unpaired surrogates are replaced with '?'.
+     *
+     * @param chars An array of characters.
+     * @param off The start offset of the portion of the array to encode.
+     * @param len The length of the portion of the array to encode.
+     */
+    private void appendUTF8(char[] chars, int off, int len) {
+        bufferedLength = UTF8Encoder.encode(chars, off, len, buffer, bufferedLength);
+    }
+
+    /**
+     * Appends the given element, prefixed with its length and followed by
+     * the given terminator, to the buffer. The buffer must already have
+     * sufficient space.
+     *
+     * @param value The value of the element to append.
+     * @param terminator The character which should follow the element.
+     */
+    private void appendElement(String value, char terminator) {
+
+        // Write length in decimal, most significant digit first
+        int length = value.length();
+        int end = bufferedLength + digits(length);
+        for (int i = end - 1; i >= bufferedLength; i--) {
+            buffer[i] = (byte) ('0' + length % 10);
+            length /= 10;
+        }
+
+        buffer[end] = '.';
+        bufferedLength = end + 1;
+
+        // Encode value
+        length = value.length();
+        if (elementChars.length < length)
+            elementChars = new char[length];
+        value.getChars(0, length, elementChars, 0);
+        appendUTF8(elementChars, 0, length);
+
+        buffer[bufferedLength++] = (byte) terminator;
+
+    }
+
+    @Override
+    public synchronized void writeUTF8(byte[] chunk, int off, int len) throws GuacamoleException {
+
+        checkFlushError();
+        writeCount++;
+        statistics.written();
+
+        // Make room for chunk, if possible
+        if (len > buffer.length - bufferedLength)
+            flushBuffer();
+
+        // Send directly if the chunk alone would be flushed anyway
+        if (bufferedLength == 0 && len >= flushThreshold) {
+            send(chunk, off, len);
+            return;
+        }
+
+        System.arraycopy(chunk, off, buffer, bufferedLength, len);
+        bufferedLength += len;
+        buffered();
+
+    }
+
+    @Override
+    public synchronized void write(char[] chunk, int off, int len) throws GuacamoleException {
+
+        checkFlushError();
+        writeCount++;
+        statistics.written();
+
+        // Encode entire chunk directly into buffer
+        reserve(len * UTF8Encoder.MAX_BYTES_PER_CHAR);
+        appendUTF8(chunk, off, len);
+        buffered();
+
+    }
+
+    @Override
+    public void write(char[] chunk) throws GuacamoleException {
+        write(chunk, 0, chunk.length);
+    }
+
+    @Override
+    public synchronized void writeInstruction(GuacamoleInstruction instruction) throws GuacamoleException {
+
+        // Views already contain the serialized instruction
+        if (instruction instanceof GuacamoleInstructionView) {
+            GuacamoleInstructionView view = (GuacamoleInstructionView) instruction;
+            write(view.getBuffer(), view.getOffset(), view.getLength());
+            return;
+        }
+
+        checkFlushError();
+        writeCount++;
+        statistics.written();
+
+        String opcode = instruction.getOpcode();
+        List<String> args = instruction.getArgs();
+
+        // Calculate maximum serialized length of instruction
+        int length = digits(opcode.length()) + opcode.length() * UTF8Encoder.MAX_BYTES_PER_CHAR + 2;
+        for (String arg : args)
+            length += digits(arg.length()) + arg.length() * UTF8Encoder.MAX_BYTES_PER_CHAR + 2;
+
+        // Serialize directly into buffer
+        reserve(length);
+        int argCount = args.size();
+        appendElement(opcode, argCount == 0 ? ';' : ',');
+        for (int i = 0; i < argCount; i++)
+            appendElement(args.get(i), i == argCount - 1 ? ';' : ',');
+
+        buffered();
+
+    }
+
+    @Override
+    public synchronized void flush() throws GuacamoleException {
+        checkFlushError();
+        flushBuffer();
+    }
+
+    /**
+     * Returns the number of calls to write(), writeUTF8() or
+     * writeInstruction() which have been accepted by this GuacamoleWriter.
+     *
+     * @return The number of writes accepted so far.
+     */
+    public synchronized long getWriteCount() {
+        return writeCount;
+    }
+
+    /**
+     * Returns the number of times data has been sent to the wrapped
+     * OutputStream. Each send is a single write followed by a flush, and thus
+     * normally results in a single system call and at least one TCP segment
+     * when the OutputStream is backed by a socket. Comparing this value
+     * against getWriteCount() shows the effect of coalescing.
+     *
+     * @return The number of times data has been sent so far.
+     */
+    public synchronized long getFlushCount() {
+        return flushCount;
+    }
+
+}
@@ -27,21 +27,26 @@ import java.io.IOException;
 import java.io.Reader;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.util.Deque;
-import java.util.LinkedList;
+import java.nio.CharBuffer;
 import org.glyptodon.guacamole.GuacamoleConnectionClosedException;
 import org.glyptodon.guacamole.GuacamoleException;
 import org.glyptodon.guacamole.GuacamoleServerException;
 import org.glyptodon.guacamole.GuacamoleUpstreamTimeoutException;
 import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+import org.glyptodon.guacamole.protocol.GuacamoleInstructionView;
 
 /**
  * A GuacamoleReader which wraps a standard Java Reader, using that Reader as
  * the Guacamole instruction stream.
  *
+ * Read instructions are not removed from the internal buffer individually.
+ * Instead, the start of the unread data is advanced past each instruction,
+ * and unread data is moved to the beginning of the buffer only when more
+ * space is needed for the next read from the underlying Reader.
+ *
  * @author Michael Jumper
  */
-public class ReaderGuacamoleReader implements GuacamoleReader {
+public class ReaderGuacamoleReader implements BufferedGuacamoleReader {
 
     /**
      * Wrapped Reader to be used for all input.
@@ -64,30 +69,76 @@ public class ReaderGuacamoleReader implements GuacamoleReader {
      */
     private int parseStart;
 
+    /**
+     * The location within the received data buffer of the first character
+     * which has not yet been returned as part of a complete instruction.
+     */
+    private int instructionStart;
+
     /**
      * The buffer holding all received, unparsed data.
      */
     private char[] buffer = new char[20480];
 
     /**
-     * The number of characters currently used within the data buffer. All
-     * other characters within the buffer are free space available for
-     * future reads.
+     * View of the current data buffer, returned by readBuffer(). This view is
+     * recreated only if the data buffer is replaced.
+     */
+    private CharBuffer bufferView = CharBuffer.wrap(buffer);
+
+    /**
+     * The number of characters currently used within the data buffer,
+     * including any characters preceding instructionStart. All other
+     * characters within the buffer are free space available for future reads.
      */
     private int usedLength = 0;
 
+    /**
+     * Reusable view of the most recently read instruction, returned by
+     * readInstructionView().
+     */
+    private final GuacamoleInstructionView instructionView = new GuacamoleInstructionView();
+
     @Override
     public boolean available() throws GuacamoleException {
         try {
-            return input.ready() || usedLength != 0;
+            return input.ready() || usedLength != instructionStart;
         }
         catch (IOException e) {
             throw new GuacamoleServerException(e);
         }
     }
 
+    /**
+     * Moves all unread data to the beginning of the data buffer, replacing
+     * the data buffer with a larger buffer if the unread data would otherwise
+     * occupy more than half of the buffer.
+     */
+    private void compact() {
+
+        int unreadLength = usedLength - instructionStart;
+
+        // Grow buffer if unread data alone would pass threshold
+        char[] target = buffer;
+        if (unreadLength > buffer.length/2)
+            target = new char[buffer.length*2];
+
+        // Move unread data to beginning of buffer
+        System.arraycopy(buffer, instructionStart, target, 0, unreadLength);
+        parseStart -= instructionStart;
+        usedLength = unreadLength;
+        instructionStart = 0;
+
+        // Update view if buffer was replaced
+        if (target != buffer) {
+            buffer = target;
+            bufferView = CharBuffer.wrap(buffer);
+        }
+
+    }
+
     @Override
-    public char[] read() throws GuacamoleException {
+    public CharBuffer readBuffer() throws GuacamoleException {
 
         try {
 
@@ -132,16 +183,21 @@ public class ReaderGuacamoleReader implements GuacamoleReader {
                             // instruction.
                             if (terminator == ';') {
 
-                                // Copy instruction data
-                                char[] instruction = new char[i];
-                                System.arraycopy(buffer, 0, instruction, 0, i);
+                                // Advance past instruction without copying
+                                int start = instructionStart;
+                                instructionStart = i;
 
-                                // Update buffer
-                                usedLength -= i;
-                                parseStart = 0;
-                                System.arraycopy(buffer, i, buffer, 0, usedLength);
+                                // Reuse entire buffer if nothing is unread.
+                                // The returned instruction remains intact
+                                // until the next read from input.
+                                if (instructionStart == usedLength) {
+                                    usedLength = 0;
+                                    parseStart = 0;
+                                    instructionStart = 0;
+                                }
 
-                                return instruction;
+                                bufferView.limit(i).position(start);
+                                return bufferView;
 
                             }
 
@@ -163,12 +219,9 @@ public class ReaderGuacamoleReader implements GuacamoleReader {
 
                 }
 
-                // If past threshold, resize buffer before reading
-                if (usedLength > buffer.length/2) {
-                    char[] biggerBuffer = new char[buffer.length*2];
-                    System.arraycopy(buffer, 0, biggerBuffer, 0, usedLength);
-                    buffer = biggerBuffer;
-                }
+                // If past threshold, make room before reading
+                if (usedLength > buffer.length/2)
+                    compact();
 
                 // Attempt to fill buffer
                 int numRead = input.read(buffer, usedLength, buffer.length - usedLength);
@@ -194,78 +247,45 @@ public class ReaderGuacamoleReader implements GuacamoleReader {
     }
 
     @Override
-    public GuacamoleInstruction readInstruction() throws GuacamoleException {
-
-        // Get instruction
-        char[] instructionBuffer = read();
+    public char[] read() throws GuacamoleException {
 
-        // If EOF, return EOF
+        // Read next instruction, handle EOF
+        CharBuffer instructionBuffer = readBuffer();
         if (instructionBuffer == null)
             return null;
 
-        // Start of element
-        int elementStart = 0;
+        // Copy instruction data
+        char[] instruction = new char[instructionBuffer.remaining()];
+        instructionBuffer.get(instruction);
 
-        // Build list of elements
-        Deque<String> elements = new LinkedList<String>();
-        while (elementStart < instructionBuffer.length) {
+        return instruction;
 
-            // Find end of length
-            int lengthEnd = -1;
-            for (int i=elementStart; i<instructionBuffer.length; i++) {
-                if (instructionBuffer[i] == '.') {
-                    lengthEnd = i;
-                    break;
-                }
-            }
-
-            // read() is required to return a complete instruction. If it does
-            // not, this is a severe internal error.
-            if (lengthEnd == -1)
-                throw new GuacamoleServerException("Read returned incomplete instruction.");
-
-            // Parse length
-            int length = Integer.parseInt(new String(
-                    instructionBuffer,
-                    elementStart,
-                    lengthEnd - elementStart
-            ));
-
-            // Parse element from just after period
-            elementStart = lengthEnd + 1;
-            String element = new String(
-                    instructionBuffer,
-                    elementStart,
-                    length
-            );
-
-            // Append element to list of elements
-            elements.addLast(element);
-
-            // Read terminator after element
-            elementStart += length;
-            char terminator = instructionBuffer[elementStart];
-
-            // Continue reading instructions after terminator
-            elementStart++;
-
-            // If we've reached the end of the instruction
-            if (terminator == ';')
-                break;
+    }
 
-        }
+    @Override
+    public GuacamoleInstructionView readInstructionView() throws GuacamoleException {
 
-        // Pull opcode off elements list
-        String opcode = elements.removeFirst();
+        // Get instruction, handle EOF
+        CharBuffer instructionBuffer = readBuffer();
+        if (instructionBuffer == null)
+            return null;
 
-        // Create instruction
-        GuacamoleInstruction instruction = new GuacamoleInstruction(
-                opcode,
-                elements.toArray(new String[elements.size()])
-        );
+        // Point view at instruction within buffer
+        instructionView.reset(instructionBuffer);
+        return instructionView;
 
-        // Return parsed instruction
-        return instruction;
+    }
+
+    @Override
+    public GuacamoleInstruction readInstruction() throws GuacamoleException {
+
+        // Get instruction, handle EOF
+        GuacamoleInstructionView view = readInstructionView();
+        if (view == null)
+            return null;
+
+        // Return independent copy of parsed instruction
+        return view.toInstruction();
 
     }
 
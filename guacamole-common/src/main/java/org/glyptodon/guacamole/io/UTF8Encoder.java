@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.io;
+
+/**
+ * Encoder which converts characters to UTF-8 directly within a caller-provided
+ * byte array, without the intermediate allocations of String.getBytes().
+ *
+ * @author Michael Jumper
+ */
+final class UTF8Encoder {
+
+    /**
+     * The maximum number of bytes a single UTF-16 character can require
+     * when encoded as UTF-8. Surrogate pairs require four bytes for two
+     * characters.
+     */
+    public static final int MAX_BYTES_PER_CHAR = 3;
+
+    /**
+     * This class is not intended to be instantiated.
+     */
+    private UTF8Encoder() {}
+
+    /**
+     * Encodes the given characters as UTF-8, storing the result within the
+     * given buffer at the given position. The buffer must already have room
+     * for MAX_BYTES_PER_CHAR bytes per character. Unpaired surrogates are
+     * replaced with '?'.
+     *
+     * @param chars An array of characters.
+     * @param off The start offset of the portion of the array to encode.
+     * @param len The length of the portion of the array to encode.
+     * @param buffer The buffer to store the encoded bytes within.
+     * @param position The offset within the buffer of the first encoded
+     *                 byte.
+     * @return The offset within the buffer immediately following the last
+     *         encoded byte.
+     */
+    public static int encode(char[] chars, int off, int len, byte[] buffer,
+            int position) {
+
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+
+            char c = chars[i];
+
+            // Single byte (ASCII)
+            if (c < 0x80)
+                buffer[position++] = (byte) c;
+
+            // Two bytes
+            else if (c < 0x800) {
+                buffer[position++] = (byte) (0xC0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+
+            // Three bytes (outside surrogate range)
+            else if (c < 0xD800 || c > 0xDFFF) {
+                buffer[position++] = (byte) (0xE0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+
+            // Four bytes (surrogate pair)
+            else if (Character.isHighSurrogate(c) && i + 1 < end
+                    && Character.isLowSurrogate(chars[i + 1])) {
+                int codepoint = Character.toCodePoint(c, chars[++i]);
+                buffer[position++] = (byte) (0xF0 | (codepoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codepoint >> 12) & 0x3F));
+                buffer[position++] = (byte) (0x80 | ((codepoint >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (codepoint & 0x3F));
+            }
+
+            // Unpaired surrogate
+            else
+                buffer[position++] = '?';
+
+        }
+
+        return position;
+
+    }
+
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+
+/**
+ * Parser which locates complete Guacamole instructions within UTF-8 data as
+ * that data is received. Data is read into the parser with fill(), and any
+ * complete instructions are then retrieved with nextUTF8() or nextBuffer(),
+ * neither of which ever block. Instructions are located by scanning the
+ * received bytes directly, counting the UTF-8 characters within each element
+ * as dictated by its length prefix, and are decoded to characters only if
+ * requested.
+ *
+ * Each returned instruction is a view of the parser's internal buffers, and
+ * remains valid only until the next call to fill(), nextUTF8(), or
+ * nextBuffer().
+ *
+ * @author Michael Jumper
+ */
+public class UTF8GuacamoleParser {
+
+    /**
+     * The UTF-8 charset.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Decoder used to convert complete instructions to characters.
+     */
+    private final CharsetDecoder decoder = UTF8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /**
+     * The buffer holding all received, unparsed data.
+     */
+    private byte[] buffer = new byte[20480];
+
+    /**
+     * View of the current data buffer, returned by nextUTF8(). This view is
+     * recreated only if the data buffer is replaced.
+     */
+    private ByteBuffer bufferView = ByteBuffer.wrap(buffer);
+
+    /**
+     * The buffer receiving decoded instructions.
+     */
+    private char[] charBuffer = new char[1024];
+
+    /**
+     * View of the decoded instruction buffer, returned by nextBuffer(). This
+     * view is recreated only if the decoded instruction buffer is replaced.
+     */
+    private CharBuffer charBufferView = CharBuffer.wrap(charBuffer);
+
+    /**
+     * The number of bytes currently used within the data buffer, including
+     * any bytes preceding instructionStart. All other bytes within the buffer
+     * are free space available for future reads.
+     */
+    private int usedLength = 0;
+
+    /**
+     * The location within the data buffer of the first byte which has not
+     * yet been returned as part of a complete instruction.
+     */
+    private int instructionStart = 0;
+
+    /**
+     * The location within the data buffer that parsing should resume when
+     * more data is read.
+     */
+    private int parseStart = 0;
+
+    /**
+     * Whether the length prefix of the current element is being parsed. If
+     * false, the content or terminator of the current element is being
+     * parsed.
+     */
+    private boolean parsingLength = true;
+
+    /**
+     * The length of the current element, in characters, as parsed from its
+     * length prefix so far.
+     */
+    private int elementLength = 0;
+
+    /**
+     * The number of characters of the current element which have not yet
+     * been parsed.
+     */
+    private int charsRemaining = 0;
+
+    /**
+     * Whether the instruction currently being parsed contains any characters
+     * outside the Basic Multilingual Plane.
+     */
+    private boolean supplementary = false;
+
+    /**
+     * Whether the most recently read instruction contains any characters
+     * outside the Basic Multilingual Plane.
+     */
+    private boolean lastSupplementary = false;
+
+    /**
+     * Returns the number of bytes in the UTF-8 sequence starting with the
+     * given byte. Bytes which cannot start a valid sequence are treated as
+     * single-byte characters, to be replaced when decoded.
+     *
+     * @param lead The first byte of the UTF-8 sequence.
+     * @return The number of bytes in the UTF-8 sequence.
+     */
+    private static int getSequenceLength(byte lead) {
+
+        if ((lead & 0xE0) == 0xC0) return 2;
+        if ((lead & 0xF0) == 0xE0) return 3;
+        if ((lead & 0xF8) == 0xF0) return 4;
+
+        return 1;
+
+    }
+
+    /**
+     * Returns whether any received data has not yet been returned as part of
+     * a complete instruction.
+     *
+     * @return true if received data remains unread, false otherwise.
+     */
+    public boolean hasUnreadData() {
+        return usedLength != instructionStart;
+    }
+
+    /**
+     * Moves all unread data to the beginning of the data buffer, replacing
+     * the data buffer with a larger buffer if the unread data would otherwise
+     * occupy more than half of the buffer.
+     */
+    private void compact() {
+
+        int unreadLength = usedLength - instructionStart;
+
+        // Grow buffer if unread data alone would pass threshold
+        byte[] target = buffer;
+        if (unreadLength > buffer.length/2)
+            target = new byte[buffer.length*2];
+
+        // Move unread data to beginning of buffer
+        System.arraycopy(buffer, instructionStart, target, 0, unreadLength);
+        parseStart -= instructionStart;
+        usedLength = unreadLength;
+        instructionStart = 0;
+
+        // Update view if buffer was replaced
+        if (target != buffer) {
+            buffer = target;
+            bufferView = ByteBuffer.wrap(buffer);
+        }
+
+    }
+
+    /**
+     * Makes room within the data buffer for further data, if necessary.
+     */
+    private void prepareFill() {
+
+        // If past threshold, make room before reading
+        if (usedLength > buffer.length/2)
+            compact();
+
+    }
+
+    /**
+     * Reads as much data as is available from the given InputStream into the
+     * data buffer, blocking if no data is available.
+     *
+     * @param input The InputStream to read from.
+     * @return The number of bytes read, or -1 if the end of the stream has
+     *         been reached.
+     * @throws IOException If an error occurs while reading from the given
+     *                     InputStream.
+     */
+    public int fill(InputStream input) throws IOException {
+
+        prepareFill();
+
+        int numRead = input.read(buffer, usedLength, buffer.length - usedLength);
+        if (numRead > 0)
+            usedLength += numRead;
+
+        return numRead;
+
+    }
+
+    /**
+     * Returns the next complete instruction within the received data, as
+     * UTF-8, if any. The returned buffer is positioned at the start of the
+     * instruction and limited to its end.
+     *
+     * @return The next complete instruction, or null if more data must be
+     *         received before another instruction is complete.
+     * @throws GuacamoleException If the received data is not valid Guacamole
+     *                            protocol data.
+     */
+    public ByteBuffer nextUTF8() throws GuacamoleException {
+
+        // Resume where we left off
+        int i = parseStart;
+
+        // Parse instruction in buffer
+        parse: while (i < usedLength) {
+
+            // Parse length prefix
+            if (parsingLength) {
+
+                byte readByte = buffer[i++];
+
+                // If digit, update length
+                if (readByte >= '0' && readByte <= '9')
+                    elementLength = elementLength * 10 + readByte - '0';
+
+                // If period, begin parsing content
+                else if (readByte == '.') {
+                    charsRemaining = elementLength;
+                    elementLength = 0;
+                    parsingLength = false;
+                }
+
+                // Otherwise, parse error
+                else
+                    throw new GuacamoleServerException("Non-numeric character in element length.");
+
+            }
+
+            // Skip one complete character of content
+            else if (charsRemaining > 0) {
+
+                int sequenceLength = getSequenceLength(buffer[i]);
+
+                // Wait for more data if character is incomplete
+                if (i + sequenceLength > usedLength)
+                    break parse;
+
+                if (sequenceLength == 4)
+                    supplementary = true;
+
+                i += sequenceLength;
+                charsRemaining--;
+
+            }
+
+            // Parse terminator
+            else {
+
+                byte terminator = buffer[i++];
+                parsingLength = true;
+
+                // If terminator is semicolon, we have a full
+                // instruction.
+                if (terminator == ';') {
+
+                    // Advance past instruction without copying
+                    int start = instructionStart;
+                    instructionStart = i;
+                    parseStart = i;
+
+                    lastSupplementary = supplementary;
+                    supplementary = false;
+
+                    // Reuse entire buffer if nothing is unread.
+                    // The returned instruction remains intact
+                    // until the next call to fill().
+                    if (instructionStart == usedLength) {
+                        usedLength = 0;
+                        parseStart = 0;
+                        instructionStart = 0;
+                    }
+
+                    bufferView.limit(i).position(start);
+                    return bufferView;
+
+                }
+
+                // Handle invalid terminator characters
+                else if (terminator != ',')
+                    throw new GuacamoleServerException("Element terminator of instruction was not ';' nor ','");
+
+            }
+
+        }
+
+        // Continue here when more data is available
+        parseStart = i;
+        return null;
+
+    }
+
+    /**
+     * Rewrites the length prefixes of the given decoded instruction such that
+     * each counts UTF-16 code units rather than Unicode characters.
+     *
+     * @param instruction The decoded instruction to rewrite, whose length
+     *                    prefixes count Unicode characters.
+     * @return The rewritten instruction.
+     */
+    private static String toUTF16Lengths(CharBuffer instruction) {
+
+        StringBuilder rewritten = new StringBuilder(instruction.remaining() + 8);
+        int i = instruction.position();
+        int end = instruction.limit();
+
+        while (i < end) {
+
+            // Parse length prefix
+            int length = 0;
+            char c;
+            while ((c = instruction.get(i++)) != '.')
+                length = length * 10 + c - '0';
+
+            // Locate end of element, counting surrogate pairs once
+            int contentStart = i;
+            for (int j=0; j<length; j++) {
+                if (Character.isHighSurrogate(instruction.get(i++))
+                        && i < end && Character.isLowSurrogate(instruction.get(i)))
+                    i++;
+            }
+
+            // Append element and terminator with corrected length
+            rewritten.append(i - contentStart).append('.');
+            for (int j=contentStart; j<=i; j++)
+                rewritten.append(instruction.get(j));
+
+            i++;
+
+        }
+
+        return rewritten.toString();
+
+    }
+
+    /**
+     * Returns the next complete instruction within the received data,
+     * decoded to characters, if any. The length prefixes of the returned
+     * instruction count UTF-16 code units.
+     *
+     * @return The next complete instruction, or null if more data must be
+     *         received before another instruction is complete.
+     * @throws GuacamoleException If the received data is not valid Guacamole
+     *                            protocol data.
+     */
+    public CharBuffer nextBuffer() throws GuacamoleException {
+
+        // Locate next instruction, if any
+        ByteBuffer utf8 = nextUTF8();
+        if (utf8 == null)
+            return null;
+
+        // Grow decoding buffer if necessary (UTF-8 never decodes to more
+        // characters than bytes)
+        if (charBuffer.length < utf8.remaining()) {
+            charBuffer = new char[Math.max(utf8.remaining(), charBuffer.length*2)];
+            charBufferView = CharBuffer.wrap(charBuffer);
+        }
+
+        // Decode entire instruction
+        charBufferView.clear();
+        decoder.reset();
+        decoder.decode(utf8, charBufferView, true);
+        decoder.flush(charBufferView);
+        charBufferView.flip();
+
+        // Correct lengths if UTF-16 length differs
+        if (lastSupplementary)
+            return CharBuffer.wrap(toUTF16Lengths(charBufferView).toCharArray());
+
+        return charBufferView;
+
+    }
+
+}
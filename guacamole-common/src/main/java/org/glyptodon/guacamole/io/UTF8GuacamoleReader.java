@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.io;
+
+import java.nio.ByteBuffer;
+import org.glyptodon.guacamole.GuacamoleException;
+
+/**
+ * A GuacamoleReader which is able to provide each read instruction exactly as
+ * received, as UTF-8 bytes, without decoding that instruction to characters.
+ *
+ * @author Michael Jumper
+ */
+public interface UTF8GuacamoleReader extends GuacamoleReader {
+
+    /**
+     * Reads exactly one complete Guacamole instruction, returning a ByteBuffer
+     * whose remaining bytes are that instruction, encoded as UTF-8. The
+     * returned ByteBuffer is a view of the internal buffer of this reader, and
+     * is only valid until the next call to any read function of this reader.
+     * Callers which need the instruction data beyond that point must copy it.
+     *
+     * @return A ByteBuffer containing exactly one complete Guacamole
+     *         instruction encoded as UTF-8, or null if no more instructions
+     *         are available for reading.
+     * @throws GuacamoleException If an error occurs while reading from the
+     *                            stream.
+     */
+    public ByteBuffer readUTF8() throws GuacamoleException;
+
+}
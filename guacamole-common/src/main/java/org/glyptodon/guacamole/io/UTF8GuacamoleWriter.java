@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.io;
+
+import org.glyptodon.guacamole.GuacamoleException;
+
+/**
+ * A GuacamoleWriter which is able to accept instruction data which has
+ * already been encoded as UTF-8, writing that data without re-encoding.
+ *
+ * @author Michael Jumper
+ */
+public interface UTF8GuacamoleWriter extends GuacamoleWriter {
+
+    /**
+     * Writes a portion of the given array of bytes to the Guacamole
+     * instruction stream. The portion must contain only complete Guacamole
+     * instructions, encoded as UTF-8.
+     *
+     * @param chunk An array of bytes containing UTF-8 Guacamole instructions.
+     * @param off The start offset of the portion of the array to write.
+     * @param len The length of the portion of the array to write.
+     * @throws GuacamoleException If an error occurred while writing the
+     *                            portion of the array specified.
+     */
+    public void writeUTF8(byte[] chunk, int off, int len) throws GuacamoleException;
+
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.io;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import org.glyptodon.guacamole.GuacamoleException;
+
+/**
+ * Growable buffer of complete Guacamole instructions encoded as UTF-8,
+ * suitable for relaying the instruction stream over byte-oriented transports
+ * such as binary WebSocket messages. Instructions are copied directly from
+ * readers implementing UTF8GuacamoleReader, and encoded from characters
+ * otherwise. Either way, the length prefixes of buffered instructions count
+ * UTF-16 code units, as do those of instructions read as characters, such
+ * that clients may parse the decoded instructions identically.
+ *
+ * @author Michael Jumper
+ */
+public class UTF8InstructionBuffer {
+
+    /**
+     * The UTF-8 character set.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The buffered bytes.
+     */
+    private byte[] buffer;
+
+    /**
+     * The number of bytes currently buffered.
+     */
+    private int length = 0;
+
+    /**
+     * The pool providing the initial array of this buffer, or null if the
+     * array was not obtained from a pool.
+     */
+    private final ByteArrayPool pool;
+
+    /**
+     * Creates a new, empty UTF8InstructionBuffer with the given initial
+     * capacity. The buffer grows as needed.
+     *
+     * @param capacity The initial capacity of the buffer, in bytes.
+     */
+    public UTF8InstructionBuffer(int capacity) {
+        buffer = new byte[capacity];
+        pool = null;
+    }
+
+    /**
+     * Creates a new, empty UTF8InstructionBuffer whose initial array is
+     * obtained from the given pool. The buffer grows as needed. Once the
+     * buffer is no longer needed, release() must be called to return the
+     * array to the pool.
+     *
+     * @param pool The pool to obtain the initial array from.
+     */
+    public UTF8InstructionBuffer(ByteArrayPool pool) {
+        this.buffer = pool.acquire();
+        this.pool = pool;
+    }
+
+    /**
+     * Ensures the buffer has room for at least the given number of
+     * additional bytes, growing the buffer if necessary.
+     *
+     * @param required The number of additional bytes required.
+     */
+    private void reserve(int required) {
+        if (required > buffer.length - length)
+            buffer = Arrays.copyOf(buffer, Math.max(length + required, buffer.length * 2));
+    }
+
+    /**
+     * Reads exactly one complete instruction from the given reader, appending
+     * it to this buffer as UTF-8.
+     *
+     * @param reader The reader to read an instruction from.
+     * @return true if an instruction was read, false if no more instructions
+     *         are available for reading.
+     * @throws GuacamoleException If an error occurs while reading from the
+     *                            given reader.
+     */
+    public boolean read(GuacamoleReader reader) throws GuacamoleException {
+
+        // Copy raw bytes if available
+        if (reader instanceof UTF8GuacamoleReader) {
+
+            ByteBuffer instruction = ((UTF8GuacamoleReader) reader).readUTF8();
+            if (instruction == null)
+                return false;
+
+            int start = length;
+            int remaining = instruction.remaining();
+            reserve(remaining);
+            instruction.get(buffer, length, remaining);
+            length += remaining;
+
+            // Correct lengths if UTF-16 length differs
+            if (hasSupplementary(start))
+                toUTF16Lengths(start);
+
+            return true;
+
+        }
+
+        // Otherwise, encode characters
+        char[] instruction = reader.read();
+        if (instruction == null)
+            return false;
+
+        append(instruction);
+        return true;
+
+    }
+
+    /**
+     * Returns whether the bytes buffered from the given offset onward contain
+     * any characters outside the Basic Multilingual Plane, which occupy four
+     * bytes as UTF-8 and two code units as UTF-16.
+     *
+     * @param start The offset of the first byte to check.
+     * @return true if any supplementary characters are present, false
+     *         otherwise.
+     */
+    private boolean hasSupplementary(int start) {
+
+        for (int i=start; i<length; i++) {
+            if ((buffer[i] & 0xF8) == 0xF0)
+                return true;
+        }
+
+        return false;
+
+    }
+
+    /**
+     * Rewrites the length prefixes of the instruction buffered at the given
+     * offset such that each counts UTF-16 code units rather than Unicode
+     * characters. The instruction must be the last buffered, and must be
+     * valid.
+     *
+     * @param start The offset of the instruction to rewrite.
+     */
+    private void toUTF16Lengths(int start) {
+
+        byte[] instruction = Arrays.copyOfRange(buffer, start, length);
+
+        // Each corrected length prefix gains at most one digit
+        length = start;
+        reserve(instruction.length * 2);
+
+        int i = 0;
+        while (i < instruction.length) {
+
+            // Parse length prefix
+            int count = 0;
+            byte b;
+            while ((b = instruction[i++]) != '.')
+                count = count * 10 + b - '0';
+
+            // Locate end of element, counting four-byte characters twice
+            int contentStart = i;
+            int units = count;
+            for (int j=0; j<count; j++) {
+
+                int lead = instruction[i] & 0xFF;
+                if (lead >= 0xF0) {
+                    i += 4;
+                    units++;
+                }
+                else if (lead >= 0xE0)
+                    i += 3;
+                else if (lead >= 0xC0)
+                    i += 2;
+                else
+                    i++;
+
+            }
+
+            // Append corrected length prefix
+            String prefix = Integer.toString(units);
+            for (int j=0; j<prefix.length(); j++)
+                buffer[length++] = (byte) prefix.charAt(j);
+            buffer[length++] = '.';
+
+            // Append element and terminator
+            int elementLength = i + 1 - contentStart;
+            System.arraycopy(instruction, contentStart, buffer, length, elementLength);
+            length += elementLength;
+
+            i++;
+
+        }
+
+    }
+
+    /**
+     * Appends the given complete instruction to this buffer as UTF-8.
+     *
+     * @param instruction The characters of the instruction to append.
+     */
+    public void append(char[] instruction) {
+        reserve(instruction.length * UTF8Encoder.MAX_BYTES_PER_CHAR);
+        length = UTF8Encoder.encode(instruction, 0, instruction.length, buffer, length);
+    }
+
+    /**
+     * Returns the number of bytes currently buffered.
+     *
+     * @return The number of bytes currently buffered.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Returns the internal array of this buffer. Only the first length()
+     * bytes are valid, and only until this buffer is next modified.
+     *
+     * @return The internal array of this buffer.
+     */
+    public byte[] getArray() {
+        return buffer;
+    }
+
+    /**
+     * Returns a ByteBuffer wrapping the currently-buffered bytes. The
+     * returned ByteBuffer shares the internal array of this buffer, and is
+     * only valid until this buffer is next modified.
+     *
+     * @return A ByteBuffer wrapping the currently-buffered bytes.
+     */
+    public ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(buffer, 0, length);
+    }
+
+    /**
+     * Removes all buffered bytes, retaining the current capacity.
+     */
+    public void clear() {
+        length = 0;
+    }
+
+    /**
+     * Returns the array of this buffer to the pool it was obtained from, if
+     * any. Arrays which have since been replaced due to growth are simply
+     * left to be garbage collected. This buffer must not be used after
+     * release() has been called.
+     */
+    public void release() {
+
+        if (pool != null)
+            pool.release(buffer);
+
+        buffer = null;
+        length = 0;
+
+    }
+
+    /**
+     * Writes the given UTF-8 bytes, which must contain only complete
+     * Guacamole instructions, to the given writer. The bytes are written
+     * without decoding if the writer implements UTF8GuacamoleWriter, and are
+     * decoded to characters otherwise.
+     *
+     * @param writer The writer to write the instructions to.
+     * @param chunk An array of bytes containing UTF-8 Guacamole instructions.
+     * @param off The start offset of the portion of the array to write.
+     * @param len The length of the portion of the array to write.
+     * @throws GuacamoleException If an error occurs while writing to the
+     *                            given writer.
+     */
+    public static void write(GuacamoleWriter writer, byte[] chunk, int off,
+            int len) throws GuacamoleException {
+
+        if (writer instanceof UTF8GuacamoleWriter)
+            ((UTF8GuacamoleWriter) writer).writeUTF8(chunk, off, len);
+        else
+            writer.write(new String(chunk, off, len, UTF8).toCharArray());
+
+    }
+
+}
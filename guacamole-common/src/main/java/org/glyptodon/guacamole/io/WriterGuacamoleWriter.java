@@ -27,38 +27,171 @@ import java.io.IOException;
 import java.io.Writer;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.util.List;
 import org.glyptodon.guacamole.GuacamoleConnectionClosedException;
 import org.glyptodon.guacamole.GuacamoleException;
 import org.glyptodon.guacamole.GuacamoleServerException;
 import org.glyptodon.guacamole.GuacamoleUpstreamTimeoutException;
+import org.glyptodon.guacamole.net.GuacamoleTunnelStatistics;
 import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+import org.glyptodon.guacamole.protocol.GuacamoleInstructionView;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * A GuacamoleWriter which wraps a standard Java Writer, using that Writer as
  * the Guacamole instruction stream.
  *
+ * By default, each write is sent to the Writer and flushed immediately. If a
+ * flush threshold is given, written data is instead coalesced within an
+ * internal buffer, and is sent only when the buffer reaches that threshold,
+ * when flush() is called, or when the given flush delay has elapsed since
+ * data was first buffered, whichever happens first.
+ *
+ * Writes and sends are also counted within the default
+ * GuacamoleTunnelStatistics.
+ *
  * @author Michael Jumper
  */
-public class WriterGuacamoleWriter implements GuacamoleWriter {
+public class WriterGuacamoleWriter implements FlushableGuacamoleWriter {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(WriterGuacamoleWriter.class);
+
+    /**
+     * The minimum size of the internal buffer, in characters.
+     */
+    private static final int MIN_BUFFER_SIZE = 8192;
 
     /**
      * Wrapped Writer to be used for all output.
      */
     private Writer output;
 
+    /**
+     * The number of buffered characters at which buffered data is sent
+     * automatically. If zero, all data is sent immediately.
+     */
+    private final int flushThreshold;
+
+    /**
+     * The maximum number of milliseconds that data may remain buffered
+     * before being sent automatically. If zero, buffered data is sent only
+     * when the flush threshold is reached or flush() is called.
+     */
+    private final int flushDelay;
+
+    /**
+     * Buffer containing data which has been written but not yet sent.
+     */
+    private char[] buffer;
+
+    /**
+     * The number of characters currently within the buffer.
+     */
+    private int bufferedLength = 0;
+
+    /**
+     * Whether a scheduled flush is currently pending.
+     */
+    private boolean flushPending = false;
+
+    /**
+     * The error which occurred during the last scheduled flush, if any. This
+     * error will be rethrown by the next write or flush.
+     */
+    private GuacamoleException flushError = null;
+
+    /**
+     * The number of calls to write() or writeInstruction() which have been
+     * accepted by this GuacamoleWriter.
+     */
+    private long writeCount = 0;
+
+    /**
+     * The number of times data has been sent to the wrapped Writer.
+     */
+    private long flushCount = 0;
+
+    /**
+     * The statistics shared by all tunnels.
+     */
+    private final GuacamoleTunnelStatistics statistics =
+            GuacamoleTunnelStatistics.getDefault();
+
+    /**
+     * Task which flushes the buffer once the flush delay has elapsed.
+     */
+    private final Runnable scheduledFlush = new Runnable() {
+
+        @Override
+        public void run() {
+            synchronized (WriterGuacamoleWriter.this) {
+
+                flushPending = false;
+
+                try {
+                    flushBuffer();
+                }
+                catch (GuacamoleException e) {
+                    logger.debug("Scheduled flush of buffered instructions failed.", e);
+                    flushError = e;
+                }
+
+            }
+        }
+
+    };
+
     /**
      * Creates a new WriterGuacamoleWriter which will use the given Writer as
-     * the Guacamole instruction stream.
+     * the Guacamole instruction stream. All written data will be sent
+     * immediately.
      *
      * @param output The Writer to use as the Guacamole instruction stream.
      */
     public WriterGuacamoleWriter(Writer output) {
+        this(output, 0, 0);
+    }
+
+    /**
+     * Creates a new WriterGuacamoleWriter which will use the given Writer as
+     * the Guacamole instruction stream, coalescing written data until the
+     * given threshold is reached, the given delay has elapsed, or flush() is
+     * called.
+     *
+     * @param output The Writer to use as the Guacamole instruction stream.
+     * @param flushThreshold The number of buffered characters at which
+     *                       buffered data should be sent automatically, or
+     *                       zero to send all data immediately.
+     * @param flushDelay The maximum number of milliseconds that data may
+     *                   remain buffered, or zero if buffered data should be
+     *                   sent only when the threshold is reached or flush()
+     *                   is called.
+     */
+    public WriterGuacamoleWriter(Writer output, int flushThreshold,
+            int flushDelay) {
         this.output = output;
+        this.flushThreshold = flushThreshold;
+        this.flushDelay = flushDelay;
+        this.buffer = new char[Math.max(flushThreshold, MIN_BUFFER_SIZE)];
     }
 
-    @Override
-    public void write(char[] chunk, int off, int len) throws GuacamoleException {
+    /**
+     * Writes the given characters to the wrapped Writer and flushes, mapping
+     * any resulting error to the appropriate GuacamoleException.
+     *
+     * @param chunk An array of characters.
+     * @param off The start offset of the portion of the array to send.
+     * @param len The length of the portion of the array to send.
+     * @throws GuacamoleException If an error occurs while sending.
+     */
+    private void send(char[] chunk, int off, int len) throws GuacamoleException {
         try {
+            flushCount++;
+            statistics.flushed();
             output.write(chunk, off, len);
             output.flush();
         }
@@ -73,14 +206,188 @@ public class WriterGuacamoleWriter implements GuacamoleWriter {
         }
     }
 
+    /**
+     * Sends all buffered data, if any.
+     *
+     * @throws GuacamoleException If an error occurs while sending.
+     */
+    private void flushBuffer() throws GuacamoleException {
+
+        if (bufferedLength == 0)
+            return;
+
+        // Buffered data is discarded even on failure, as the stream cannot
+        // be recovered
+        int length = bufferedLength;
+        bufferedLength = 0;
+        send(buffer, 0, length);
+
+    }
+
+    /**
+     * Rethrows the error of the last failed scheduled flush, if any.
+     *
+     * @throws GuacamoleException If a scheduled flush has failed.
+     */
+    private void checkFlushError() throws GuacamoleException {
+        if (flushError != null)
+            throw flushError;
+    }
+
+    /**
+     * Sends the buffered data if the flush threshold has been reached,
+     * otherwise scheduling a flush for when the flush delay has elapsed.
+     *
+     * @throws GuacamoleException If an error occurs while sending.
+     */
+    private void buffered() throws GuacamoleException {
+
+        if (bufferedLength >= flushThreshold)
+            flushBuffer();
+
+        else if (flushDelay > 0 && !flushPending) {
+            flushPending = true;
+            FlushScheduler.schedule(scheduledFlush, flushDelay);
+        }
+
+    }
+
+    /**
+     * Returns the number of decimal digits required to represent the given
+     * non-negative integer.
+     *
+     * @param value The integer to measure.
+     * @return The number of decimal digits in the given integer.
+     */
+    private static int digits(int value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    /**
+     * Appends the given element, prefixed with its length and followed by
+     * the given terminator, to the buffer. The buffer must already have
+     * sufficient space.
+     *
+     * @param value The value of the element to append.
+     * @param terminator The character which should follow the element.
+     */
+    private void appendElement(String value, char terminator) {
+
+        // Write length in decimal, most significant digit first
+        int length = value.length();
+        int end = bufferedLength + digits(length);
+        for (int i = end - 1; i >= bufferedLength; i--) {
+            buffer[i] = (char) ('0' + length % 10);
+            length /= 10;
+        }
+
+        buffer[end] = '.';
+        value.getChars(0, value.length(), buffer, end + 1);
+
+        bufferedLength = end + 1 + value.length();
+        buffer[bufferedLength++] = terminator;
+
+    }
+
+    @Override
+    public synchronized void write(char[] chunk, int off, int len) throws GuacamoleException {
+
+        checkFlushError();
+        writeCount++;
+        statistics.written();
+
+        // Make room for chunk, if possible
+        if (len > buffer.length - bufferedLength)
+            flushBuffer();
+
+        // Send directly if the chunk alone would be flushed anyway
+        if (bufferedLength == 0 && len >= flushThreshold) {
+            send(chunk, off, len);
+            return;
+        }
+
+        System.arraycopy(chunk, off, buffer, bufferedLength, len);
+        bufferedLength += len;
+        buffered();
+
+    }
+
     @Override
     public void write(char[] chunk) throws GuacamoleException {
         write(chunk, 0, chunk.length);
     }
 
     @Override
-    public void writeInstruction(GuacamoleInstruction instruction) throws GuacamoleException {
-        write(instruction.toString().toCharArray());
+    public synchronized void writeInstruction(GuacamoleInstruction instruction) throws GuacamoleException {
+
+        // Views already contain the serialized instruction
+        if (instruction instanceof GuacamoleInstructionView) {
+            GuacamoleInstructionView view = (GuacamoleInstructionView) instruction;
+            write(view.getBuffer(), view.getOffset(), view.getLength());
+            return;
+        }
+
+        checkFlushError();
+        writeCount++;
+        statistics.written();
+
+        String opcode = instruction.getOpcode();
+        List<String> args = instruction.getArgs();
+
+        // Calculate serialized length of instruction
+        int length = digits(opcode.length()) + opcode.length() + 2;
+        for (String arg : args)
+            length += digits(arg.length()) + arg.length() + 2;
+
+        // Make room for instruction, growing buffer if necessary
+        if (length > buffer.length - bufferedLength) {
+            flushBuffer();
+            if (length > buffer.length)
+                buffer = new char[length];
+        }
+
+        // Serialize directly into buffer
+        int argCount = args.size();
+        appendElement(opcode, argCount == 0 ? ';' : ',');
+        for (int i = 0; i < argCount; i++)
+            appendElement(args.get(i), i == argCount - 1 ? ';' : ',');
+
+        buffered();
+
+    }
+
+    @Override
+    public synchronized void flush() throws GuacamoleException {
+        checkFlushError();
+        flushBuffer();
+    }
+
+    /**
+     * Returns the number of calls to write() or writeInstruction() which
+     * have been accepted by this GuacamoleWriter.
+     *
+     * @return The number of writes accepted so far.
+     */
+    public synchronized long getWriteCount() {
+        return writeCount;
+    }
+
+    /**
+     * Returns the number of times data has been sent to the wrapped Writer.
+     * Each send is a single write followed by a flush, and thus normally
+     * results in a single system call and at least one TCP segment when the
+     * Writer is backed by a socket. Comparing this value against
+     * getWriteCount() shows the effect of coalescing.
+     *
+     * @return The number of times data has been sent so far.
+     */
+    public synchronized long getFlushCount() {
+        return flushCount;
     }
 
 }
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.net;
+
+import java.util.concurrent.locks.LockSupport;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.protocol.ClientSyncTracker;
+
+/**
+ * Decides when the instructions buffered by the loop relaying data from a
+ * tunnel to its client should be sent, adapting to the round-trip time
+ * measured by the tunnel's ClientSyncTracker. Clients with low round-trip
+ * times receive partial frames after only a very short wait for more data,
+ * rather than as many tiny messages, while clients with high round-trip
+ * times receive larger messages. Completed frames are always sent as soon
+ * as no more data is immediately available. Until a round-trip time has
+ * been measured, data is sent in batches of at most DEFAULT_BATCH_SIZE
+ * bytes, without waiting.
+ *
+ * Each batch sent is also counted within the default
+ * GuacamoleTunnelStatistics.
+ *
+ * Only the single thread holding read access to the tunnel may use this
+ * object, though its metrics may be read from any thread.
+ *
+ * @author Michael Jumper
+ */
+public class FrameBatcher {
+
+    /**
+     * The batch size used until a round-trip time has been measured, and
+     * the smallest batch size ever used, in bytes or characters.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 8192;
+
+    /**
+     * The largest batch size ever used, in bytes or characters. This is
+     * kept well below the default maximum message size of common WebSocket
+     * implementations.
+     */
+    public static final int MAX_BATCH_SIZE = 32768;
+
+    /**
+     * The round-trip time which doubles the batch size, in nanoseconds.
+     */
+    private static final long BATCH_SCALE_RTT = 25000000L;
+
+    /**
+     * The shortest time a partial frame will wait for more data once a
+     * round-trip time has been measured, in nanoseconds.
+     */
+    private static final long MIN_FLUSH_DEADLINE = 1000000L;
+
+    /**
+     * The longest time a partial frame will wait for more data, in
+     * nanoseconds.
+     */
+    private static final long MAX_FLUSH_DEADLINE = 10000000L;
+
+    /**
+     * The interval between checks for more data while waiting, in
+     * nanoseconds.
+     */
+    private static final long POLL_INTERVAL = 200000L;
+
+    /**
+     * The prefix of every "sync" instruction.
+     */
+    private static final String SYNC_PREFIX = "4.sync,";
+
+    /**
+     * The tracker receiving all frames sent, and providing the measured
+     * round-trip time.
+     */
+    private final ClientSyncTracker tracker;
+
+    /**
+     * The number of bytes or characters which triggers sending.
+     */
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * The longest time a partial frame will wait for more data, in
+     * nanoseconds.
+     */
+    private volatile long flushDeadline = 0;
+
+    /**
+     * The timestamp of the last "sync" instruction buffered but not yet
+     * sent, or -1 if none.
+     */
+    private long pendingSync = -1;
+
+    /**
+     * Whether the instruction most recently buffered was a "sync".
+     */
+    private boolean frameComplete = false;
+
+    /**
+     * The value of System.nanoTime() when the first instruction of the
+     * current batch was buffered, or -1 if nothing is buffered.
+     */
+    private long batchStarted = -1;
+
+    /**
+     * The statistics shared by all tunnels.
+     */
+    private final GuacamoleTunnelStatistics statistics =
+            GuacamoleTunnelStatistics.getDefault();
+
+    /**
+     * Creates a new FrameBatcher which reports frames sent to the given
+     * tracker and adapts to the round-trip time it measures.
+     *
+     * @param tracker The tracker receiving all frames sent.
+     */
+    public FrameBatcher(ClientSyncTracker tracker) {
+        this.tracker = tracker;
+    }
+
+    /**
+     * Notes the given instruction, which has just been buffered for
+     * sending.
+     *
+     * @param instruction An array containing the instruction.
+     * @param offset The offset of the instruction within the array.
+     * @param length The length of the instruction, in characters.
+     */
+    public void buffered(char[] instruction, int offset, int length) {
+
+        if (batchStarted == -1)
+            batchStarted = System.nanoTime();
+
+        frameComplete = length > SYNC_PREFIX.length();
+        for (int i = 0; frameComplete && i < SYNC_PREFIX.length(); i++)
+            frameComplete = instruction[offset + i] == SYNC_PREFIX.charAt(i);
+
+        if (!frameComplete)
+            return;
+
+        // Parse timestamp, ignoring malformed instructions
+        long timestamp = 0;
+        for (int i = offset + SYNC_PREFIX.length(); i < offset + length; i++) {
+            char c = instruction[i];
+            if (c == '.')
+                timestamp = 0;
+            else if (c >= '0' && c <= '9')
+                timestamp = timestamp * 10 + (c - '0');
+            else
+                break;
+        }
+
+        pendingSync = timestamp;
+
+    }
+
+    /**
+     * Notes the given instruction, which has just been buffered for sending
+     * as UTF-8.
+     *
+     * @param instruction An array containing the UTF-8 instruction.
+     * @param offset The offset of the instruction within the array.
+     * @param length The length of the instruction, in bytes.
+     */
+    public void buffered(byte[] instruction, int offset, int length) {
+
+        if (batchStarted == -1)
+            batchStarted = System.nanoTime();
+
+        frameComplete = length > SYNC_PREFIX.length();
+        for (int i = 0; frameComplete && i < SYNC_PREFIX.length(); i++)
+            frameComplete = instruction[offset + i] == SYNC_PREFIX.charAt(i);
+
+        if (!frameComplete)
+            return;
+
+        // Parse timestamp, ignoring malformed instructions
+        long timestamp = 0;
+        for (int i = offset + SYNC_PREFIX.length(); i < offset + length; i++) {
+            byte b = instruction[i];
+            if (b == '.')
+                timestamp = 0;
+            else if (b >= '0' && b <= '9')
+                timestamp = timestamp * 10 + (b - '0');
+            else
+                break;
+        }
+
+        pendingSync = timestamp;
+
+    }
+
+    /**
+     * Returns whether the given amount of buffered data should now be sent.
+     * If the current frame is incomplete and no more data is immediately
+     * available, this waits up to the flush deadline for more data to
+     * arrive.
+     *
+     * @param reader The reader data is being relayed from.
+     * @param length The amount of data buffered, in bytes or characters.
+     * @return true if the buffered data should be sent now, false if more
+     *         data should be read first.
+     * @throws GuacamoleException If an error occurs while checking for
+     *                            more data.
+     */
+    public boolean shouldFlush(GuacamoleReader reader, int length)
+            throws GuacamoleException {
+
+        if (length >= batchSize)
+            return true;
+
+        if (reader.available())
+            return false;
+
+        // Complete frames need not wait
+        if (frameComplete)
+            return true;
+
+        // Wait briefly for the rest of a partial frame
+        long deadline = batchStarted + flushDeadline;
+        while (System.nanoTime() < deadline) {
+
+            LockSupport.parkNanos(POLL_INTERVAL);
+            if (reader.available())
+                return false;
+
+        }
+
+        return true;
+
+    }
+
+    /**
+     * Notes that all buffered data has been sent, reporting any frame sent
+     * to the tracker and adapting the batch size and flush deadline to the
+     * current round-trip time.
+     */
+    public void flushed() {
+
+        statistics.batchSent(pendingSync != -1);
+
+        if (pendingSync != -1) {
+            tracker.frameSent(pendingSync);
+            pendingSync = -1;
+        }
+
+        batchStarted = -1;
+
+        long rtt = tracker.getRoundTripTime();
+        if (rtt < 0)
+            return;
+
+        // Grow batches with round-trip time
+        batchSize = (int) Math.min(MAX_BATCH_SIZE,
+                DEFAULT_BATCH_SIZE + DEFAULT_BATCH_SIZE * rtt / BATCH_SCALE_RTT);
+
+        // Wait at most an eighth of the round trip for more data
+        flushDeadline = Math.max(MIN_FLUSH_DEADLINE,
+                Math.min(MAX_FLUSH_DEADLINE, rtt / 8));
+
+    }
+
+    /**
+     * Returns the amount of buffered data which currently triggers sending.
+     *
+     * @return The current batch size, in bytes or characters.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Returns the longest time a partial frame currently waits for more
+     * data before being sent.
+     *
+     * @return The current flush deadline, in nanoseconds.
+     */
+    public long getFlushDeadline() {
+        return flushDeadline;
+    }
+
+}
@@ -0,0 +1,792 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.net;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.glyptodon.guacamole.GuacamoleClientTimeoutException;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleServerBusyException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.display.AsyncDisplayState;
+import org.glyptodon.guacamole.display.DisplaySnapshot;
+import org.glyptodon.guacamole.io.FlushableGuacamoleWriter;
+import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.io.GuacamoleWriter;
+import org.glyptodon.guacamole.protocol.FilteredGuacamoleWriter;
+import org.glyptodon.guacamole.protocol.GuacamoleFilter;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+import org.glyptodon.guacamole.protocol.GuacamoleParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shares the instruction stream of a single GuacamoleSocket between its
+ * owner and any number of viewers. A single pump thread reads from the
+ * socket into a ring buffer of instructions, and the owner and each viewer
+ * read from that buffer through their own GuacamoleSocket, each at its own
+ * pace.
+ *
+ * If an AsyncDisplayState is provided, it is fed every instruction of the
+ * stream, and viewers begin with a snapshot of the current display rather
+ * than only the instructions which follow. A viewer which falls a full
+ * buffer behind is then resynchronized with a new snapshot, and is only
+ * dropped if no snapshot is available.
+ *
+ * The owner is never dropped: if the owner falls a full buffer behind, the
+ * pump waits, slowing the stream exactly as if the owner were reading from
+ * the socket directly. Viewers never slow the pump. A viewer which falls a
+ * full buffer behind is dropped, with further reads failing with a
+ * GuacamoleClientTimeoutException. Viewers receive the stream from the
+ * point they subscribe onward.
+ *
+ * Data written by the owner is passed through to the socket unchanged,
+ * while viewers may either not write at all or only send keyboard and mouse
+ * input, which is merged with that of the owner one complete instruction
+ * at a time.
+ *
+ * @author Michael Jumper
+ */
+public class GuacamoleBroadcast {
+
+    /**
+     * Logger for this class.
+     */
+    private final Logger logger = LoggerFactory.getLogger(GuacamoleBroadcast.class);
+
+    /**
+     * The default number of instructions buffered for viewers.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * Filter which allows only keyboard and mouse input, dropping all other
+     * instructions, such as those which acknowledge frames or streams,
+     * resize the display, or disconnect.
+     */
+    private static final GuacamoleFilter VIEWER_INPUT_FILTER = new GuacamoleFilter() {
+
+        @Override
+        public GuacamoleInstruction filter(GuacamoleInstruction instruction) {
+
+            String opcode = instruction.getOpcode();
+            if (opcode.equals("key") || opcode.equals("mouse"))
+                return instruction;
+
+            return null;
+
+        }
+
+    };
+
+    /**
+     * Writer which silently discards all data, for viewers which may not
+     * send input.
+     */
+    private static final GuacamoleWriter DISCARDING_WRITER = new GuacamoleWriter() {
+
+        @Override
+        public void write(char[] chunk, int off, int len) {
+        }
+
+        @Override
+        public void write(char[] chunk) {
+        }
+
+        @Override
+        public void writeInstruction(GuacamoleInstruction instruction) {
+        }
+
+    };
+
+    /**
+     * The socket whose instruction stream is shared.
+     */
+    private final GuacamoleSocket socket;
+
+    /**
+     * The display state fed every instruction of the stream, or null if
+     * viewers receive only the stream.
+     */
+    private final AsyncDisplayState display;
+
+    /**
+     * Ring buffer of all instructions most recently read from the socket.
+     * The instruction having sequence number N is stored at index
+     * N % ring.length. Access is guarded by the monitor of this object.
+     */
+    private final char[][] ring;
+
+    /**
+     * The sequence number of the next instruction to be read from the
+     * socket. Access is guarded by the monitor of this object.
+     */
+    private long head = 0;
+
+    /**
+     * Whether the pump has stopped, due to the end of the stream, an
+     * error, or this broadcast being closed. Access is guarded by the
+     * monitor of this object.
+     */
+    private boolean ended = false;
+
+    /**
+     * The error which stopped the pump, if any. Access is guarded by the
+     * monitor of this object.
+     */
+    private GuacamoleException error;
+
+    /**
+     * Writer through which all input is merged, one complete instruction at
+     * a time.
+     */
+    private final FlushableGuacamoleWriter mergedWriter = new FlushableGuacamoleWriter() {
+
+        @Override
+        public void write(char[] chunk, int off, int len) throws GuacamoleException {
+            synchronized (this) {
+                socket.getWriter().write(chunk, off, len);
+            }
+        }
+
+        @Override
+        public void write(char[] chunk) throws GuacamoleException {
+            write(chunk, 0, chunk.length);
+        }
+
+        @Override
+        public void writeInstruction(GuacamoleInstruction instruction)
+                throws GuacamoleException {
+            synchronized (this) {
+                socket.getWriter().writeInstruction(instruction);
+            }
+        }
+
+        @Override
+        public void flush() throws GuacamoleException {
+            GuacamoleWriter writer = socket.getWriter();
+            if (writer instanceof FlushableGuacamoleWriter)
+                ((FlushableGuacamoleWriter) writer).flush();
+        }
+
+    };
+
+    /**
+     * The socket of the owner of this broadcast.
+     */
+    private final Socket owner;
+
+    /**
+     * The number of viewers currently subscribed.
+     */
+    private final AtomicInteger viewerCount = new AtomicInteger();
+
+    /**
+     * The number of viewers dropped for falling too far behind.
+     */
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * GuacamoleReader which reads the shared instruction stream from its own
+     * position within the ring buffer.
+     */
+    private class Subscription implements GuacamoleReader {
+
+        /**
+         * Whether the pump must wait for this subscription rather than
+         * overwrite instructions it has not yet read.
+         */
+        private final boolean blocking;
+
+        /**
+         * The sequence number of the next instruction to read. Access is
+         * guarded by the monitor of the enclosing GuacamoleBroadcast.
+         */
+        private long position;
+
+        /**
+         * Whether this subscription has been closed. Access is guarded by
+         * the monitor of the enclosing GuacamoleBroadcast.
+         */
+        private boolean closed = false;
+
+        /**
+         * Whether this subscription has been dropped for falling too far
+         * behind. Access is guarded by the monitor of the enclosing
+         * GuacamoleBroadcast.
+         */
+        private boolean dropped = false;
+
+        /**
+         * Snapshot instructions to be read before continuing at the current
+         * position, if any. Access is guarded by the monitor of the
+         * enclosing GuacamoleBroadcast.
+         */
+        private Deque<char[]> pending = new ArrayDeque<char[]>();
+
+        /**
+         * Parser used by readInstruction().
+         */
+        private final GuacamoleParser parser = new GuacamoleParser();
+
+        /**
+         * Creates a new Subscription which begins reading at the current
+         * head of the shared instruction stream.
+         *
+         * @param blocking Whether the pump must wait for this subscription
+         *                 rather than overwrite instructions it has not yet
+         *                 read.
+         */
+        public Subscription(boolean blocking) {
+            this.blocking = blocking;
+            synchronized (GuacamoleBroadcast.this) {
+                position = head;
+            }
+        }
+
+        /**
+         * Returns whether this subscription has fallen so far behind that
+         * instructions it has not yet read have been overwritten. The
+         * monitor of the enclosing GuacamoleBroadcast must be held.
+         *
+         * @return true if this subscription has fallen too far behind,
+         *         false otherwise.
+         */
+        private boolean isOverrun() {
+            return head - position > ring.length;
+        }
+
+        /**
+         * Marks this subscription as dropped for falling too far behind, if
+         * not already dropped. The monitor of the enclosing
+         * GuacamoleBroadcast must be held.
+         */
+        private void drop() {
+
+            if (dropped)
+                return;
+
+            dropped = true;
+            droppedCount.incrementAndGet();
+            logger.debug("Viewer dropped after falling more than {} "
+                    + "instructions behind.", ring.length);
+
+        }
+
+        /**
+         * Replaces everything this subscription has not yet read with a
+         * snapshot of the current display, continuing from the point in the
+         * stream that the snapshot reflects. The snapshot is taken without
+         * holding the monitor of the enclosing GuacamoleBroadcast, as it may
+         * take some time.
+         *
+         * @return true if this subscription was resynchronized, false if no
+         *         snapshot is available or the snapshot is already too old.
+         */
+        public boolean resync() {
+
+            DisplaySnapshot snapshot = display.getSnapshot();
+            if (snapshot == null)
+                return false;
+
+            Deque<char[]> instructions = new ArrayDeque<char[]>();
+            for (GuacamoleInstruction instruction : snapshot.getInstructions())
+                instructions.add(instruction.toString().toCharArray());
+
+            synchronized (GuacamoleBroadcast.this) {
+
+                // The stream may have moved on while the snapshot was taken
+                if (head - snapshot.getPosition() > ring.length)
+                    return false;
+
+                pending = instructions;
+                position = snapshot.getPosition();
+                return true;
+
+            }
+
+        }
+
+        /**
+         * Returns whether this subscription can still be read.
+         *
+         * @return true if this subscription is open and has not fallen too
+         *         far behind, false otherwise.
+         */
+        public boolean isOpen() {
+            synchronized (GuacamoleBroadcast.this) {
+
+                if (closed || dropped)
+                    return false;
+
+                // Without a display state, overrun subscriptions are dropped
+                if (display == null && isOverrun()) {
+                    drop();
+                    return false;
+                }
+
+                return !ended || position < head || !pending.isEmpty();
+
+            }
+        }
+
+        /**
+         * Closes this subscription, waking any thread blocked reading from
+         * it or waiting for it to read.
+         */
+        public void close() {
+            synchronized (GuacamoleBroadcast.this) {
+                closed = true;
+                GuacamoleBroadcast.this.notifyAll();
+            }
+        }
+
+        @Override
+        public boolean available() {
+            synchronized (GuacamoleBroadcast.this) {
+                return position < head || !pending.isEmpty();
+            }
+        }
+
+        @Override
+        public char[] read() throws GuacamoleException {
+
+            for (;;) {
+
+                synchronized (GuacamoleBroadcast.this) {
+
+                    // Finish sending any snapshot first
+                    char[] snapshotInstruction = pending.poll();
+                    if (snapshotInstruction != null)
+                        return snapshotInstruction;
+
+                    // Wait for next instruction
+                    while (!closed && !ended && position == head) {
+                        try {
+                            GuacamoleBroadcast.this.wait();
+                        }
+                        catch (InterruptedException e) {
+                            throw new GuacamoleServerException("Interrupted while waiting for broadcast data.", e);
+                        }
+                    }
+
+                    if (closed)
+                        return null;
+
+                    if (dropped)
+                        throw new GuacamoleClientTimeoutException("Viewer fell too far behind the shared connection.");
+
+                    if (!isOverrun()) {
+
+                        // Report end of stream only once all data has been read
+                        if (position == head) {
+                            if (error != null)
+                                throw error;
+                            return null;
+                        }
+
+                        char[] instruction = ring[(int) (position++ % ring.length)];
+
+                        // Allow pump to continue if it was waiting for this reader
+                        if (blocking)
+                            GuacamoleBroadcast.this.notifyAll();
+
+                        return instruction;
+
+                    }
+
+                    // Drop subscriptions whose data has been overwritten,
+                    // unless they can be resynchronized
+                    if (display == null) {
+                        drop();
+                        throw new GuacamoleClientTimeoutException("Viewer fell too far behind the shared connection.");
+                    }
+
+                }
+
+                if (!resync()) {
+                    synchronized (GuacamoleBroadcast.this) {
+                        drop();
+                    }
+                    throw new GuacamoleClientTimeoutException("Viewer fell too far behind the shared connection.");
+                }
+
+                logger.debug("Viewer resynchronized after falling more than "
+                        + "{} instructions behind.", ring.length);
+
+            }
+
+        }
+
+        @Override
+        public GuacamoleInstruction readInstruction() throws GuacamoleException {
+
+            char[] instruction = read();
+            if (instruction == null)
+                return null;
+
+            // Every instruction buffered is complete
+            int offset = 0;
+            while (offset < instruction.length)
+                offset += parser.append(instruction, offset,
+                        instruction.length - offset);
+
+            return parser.next();
+
+        }
+
+    }
+
+    /**
+     * GuacamoleSocket through which the owner or a viewer accesses the
+     * shared instruction stream.
+     */
+    private class Socket implements GuacamoleSocket {
+
+        /**
+         * The subscription providing the data read from this socket.
+         */
+        private final Subscription subscription;
+
+        /**
+         * The writer receiving data written to this socket.
+         */
+        private final GuacamoleWriter writer;
+
+        /**
+         * Whether this is the socket of the owner, such that closing it
+         * closes the entire broadcast.
+         */
+        private final boolean isOwner;
+
+        /**
+         * Creates a new Socket which reads from a new subscription to the
+         * shared instruction stream.
+         *
+         * @param isOwner Whether this is the socket of the owner.
+         * @param writer The writer receiving data written to this socket.
+         */
+        public Socket(boolean isOwner, GuacamoleWriter writer) {
+            this.isOwner = isOwner;
+            this.subscription = new Subscription(isOwner);
+            this.writer = writer;
+        }
+
+        @Override
+        public GuacamoleReader getReader() {
+            return subscription;
+        }
+
+        @Override
+        public GuacamoleWriter getWriter() {
+            return writer;
+        }
+
+        @Override
+        public void close() throws GuacamoleException {
+
+            if (isOwner) {
+                GuacamoleBroadcast.this.close();
+                return;
+            }
+
+            // Viewers need only stop reading
+            synchronized (GuacamoleBroadcast.this) {
+                if (subscription.closed)
+                    return;
+                subscription.close();
+            }
+
+            viewerCount.decrementAndGet();
+
+        }
+
+        @Override
+        public boolean isOpen() {
+            return subscription.isOpen();
+        }
+
+    }
+
+    /**
+     * Creates a new GuacamoleBroadcast which shares the instruction stream
+     * of the given socket, buffering up to the given number of instructions
+     * for viewers, and maintaining the given display state such that
+     * viewers can begin with a snapshot. The stream is not read until
+     * start() is called.
+     *
+     * @param socket The socket whose instruction stream should be shared.
+     * @param capacity The number of instructions to buffer.
+     * @param display The display state to feed every instruction of the
+     *                stream, or null if viewers should receive only the
+     *                stream. The display state is closed along with this
+     *                broadcast.
+     */
+    public GuacamoleBroadcast(GuacamoleSocket socket, int capacity,
+            AsyncDisplayState display) {
+        this.socket = socket;
+        this.display = display;
+        this.ring = new char[capacity][];
+        this.owner = new Socket(true, new FilteredGuacamoleWriter(mergedWriter,
+                new GuacamoleFilter() {
+
+                    @Override
+                    public GuacamoleInstruction filter(GuacamoleInstruction instruction) {
+                        return instruction;
+                    }
+
+                }));
+    }
+
+    /**
+     * Creates a new GuacamoleBroadcast which shares the instruction stream
+     * of the given socket, buffering up to the given number of instructions
+     * for viewers. The stream is not read until start() is called.
+     *
+     * @param socket The socket whose instruction stream should be shared.
+     * @param capacity The number of instructions to buffer.
+     */
+    public GuacamoleBroadcast(GuacamoleSocket socket, int capacity) {
+        this(socket, capacity, null);
+    }
+
+    /**
+     * Creates a new GuacamoleBroadcast which shares the instruction stream
+     * of the given socket, buffering up to DEFAULT_CAPACITY instructions
+     * for viewers. The stream is not read until start() is called.
+     *
+     * @param socket The socket whose instruction stream should be shared.
+     */
+    public GuacamoleBroadcast(GuacamoleSocket socket) {
+        this(socket, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Starts the pump which reads the instruction stream of the shared
+     * socket into the ring buffer, until the stream ends or this broadcast
+     * is closed. The pump runs on the given executor on behalf of the given
+     * tunnel, counting toward the limit of that executor.
+     *
+     * @param tunnel The tunnel of the owner of this broadcast.
+     * @param executor The executor to run the pump on.
+     * @throws GuacamoleServerBusyException If the executor is already running
+     *                                      its maximum number of tunnels.
+     * @throws GuacamoleException If the pump cannot be started. Any reads
+     *                            from this broadcast will then fail with the
+     *                            same exception.
+     */
+    public void start(GuacamoleTunnel tunnel, GuacamoleTunnelExecutor executor)
+            throws GuacamoleException {
+
+        try {
+            executor.execute(tunnel, new Runnable() {
+
+                @Override
+                public void run() {
+                    pump();
+                }
+
+            });
+        }
+
+        // End the stream for the owner and all viewers if not started
+        catch (GuacamoleException e) {
+            synchronized (this) {
+                ended = true;
+                error = e;
+                notifyAll();
+            }
+            throw e;
+        }
+
+    }
+
+    /**
+     * Starts the pump which reads the instruction stream of the shared
+     * socket into the ring buffer on the default GuacamoleTunnelExecutor,
+     * until the stream ends or this broadcast is closed.
+     *
+     * @param tunnel The tunnel of the owner of this broadcast.
+     * @throws GuacamoleServerBusyException If the default executor is already
+     *                                      running its maximum number of
+     *                                      tunnels.
+     * @throws GuacamoleException If the pump cannot be started.
+     */
+    public void start(GuacamoleTunnel tunnel) throws GuacamoleException {
+        start(tunnel, GuacamoleTunnelExecutor.getDefault());
+    }
+
+    /**
+     * Reads the instruction stream of the shared socket into the ring
+     * buffer until the stream ends or this broadcast is closed.
+     */
+    private void pump() {
+
+        GuacamoleReader reader = socket.getReader();
+
+        try {
+
+            char[] instruction;
+            while ((instruction = reader.read()) != null) {
+
+                synchronized (this) {
+
+                    // Never overwrite data the owner has not yet read
+                    while (!ended && !owner.subscription.closed
+                            && head - owner.subscription.position >= ring.length)
+                        wait();
+
+                    if (ended)
+                        return;
+
+                    ring[(int) (head++ % ring.length)] = instruction;
+                    notifyAll();
+
+                    // Feed in stream order, such that snapshot positions
+                    // correspond to sequence numbers
+                    if (display != null)
+                        display.feed(instruction, 0, instruction.length);
+
+                }
+
+            }
+
+        }
+        catch (GuacamoleException e) {
+            synchronized (this) {
+                if (!ended)
+                    error = e;
+            }
+        }
+        catch (InterruptedException e) {
+            synchronized (this) {
+                error = new GuacamoleServerException("Broadcast interrupted.", e);
+            }
+        }
+        finally {
+            synchronized (this) {
+                ended = true;
+                notifyAll();
+            }
+        }
+
+    }
+
+    /**
+     * Returns the GuacamoleSocket of the owner of this broadcast. Reads from
+     * this socket never skip data, writes are passed through to the shared
+     * socket, and closing this socket closes the entire broadcast.
+     *
+     * @return The GuacamoleSocket of the owner of this broadcast.
+     */
+    public GuacamoleSocket getOwnerSocket() {
+        return owner;
+    }
+
+    /**
+     * Subscribes a new viewer to this broadcast, returning a GuacamoleSocket
+     * which reads the shared instruction stream from the current point
+     * onward, preceded by a snapshot of the current display if one is
+     * available. Closing the returned socket affects only the viewer.
+     *
+     * @param interactive Whether the viewer may send keyboard and mouse
+     *                    input. If false, all data written to the returned
+     *                    socket is discarded.
+     * @return A GuacamoleSocket for the new viewer.
+     */
+    public GuacamoleSocket subscribe(boolean interactive) {
+
+        GuacamoleWriter writer;
+        if (interactive)
+            writer = new FilteredGuacamoleWriter(mergedWriter, VIEWER_INPUT_FILTER);
+        else
+            writer = DISCARDING_WRITER;
+
+        // Begin with a snapshot only if the stream has already begun
+        Socket viewer = new Socket(false, writer);
+        if (display != null && viewer.subscription.position > 0)
+            viewer.subscription.resync();
+
+        viewerCount.incrementAndGet();
+        return viewer;
+
+    }
+
+    /**
+     * Returns the number of viewers currently subscribed, including viewers
+     * which have been dropped but not yet closed.
+     *
+     * @return The number of viewers currently subscribed.
+     */
+    public int getViewerCount() {
+        return viewerCount.get();
+    }
+
+    /**
+     * Returns the number of viewers which have been dropped for falling too
+     * far behind.
+     *
+     * @return The number of viewers dropped.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Returns whether this broadcast is still open.
+     *
+     * @return true if this broadcast has not been closed and its stream has
+     *         not ended, false otherwise.
+     */
+    public boolean isOpen() {
+        synchronized (this) {
+            return !ended && socket.isOpen();
+        }
+    }
+
+    /**
+     * Closes this broadcast and the shared socket. Each viewer and the
+     * owner will read the end of the stream once all data already buffered
+     * has been read.
+     *
+     * @throws GuacamoleException If an error occurs while closing the shared
+     *                            socket.
+     */
+    public void close() throws GuacamoleException {
+
+        synchronized (this) {
+            ended = true;
+            notifyAll();
+        }
+
+        if (display != null)
+            display.close();
+
+        socket.close();
+
+    }
+
+}
@@ -0,0 +1,464 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.net;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of idle GuacamoleSockets which have already been connected to the
+ * Guacamole proxy server, but have not yet begun the protocol handshake.
+ * Checking out a pooled socket avoids the cost of establishing the TCP (and
+ * possibly SSL) connection when a tunnel is created.
+ *
+ * The pool is refilled in the background whenever a socket is checked out,
+ * and periodically evicts any idle socket which has been idle for longer
+ * than the configured maximum, or which is no longer usable. As the
+ * Guacamole proxy will close connections on which no handshake begins within
+ * a short time, the maximum idle time should be well below that timeout.
+ *
+ * Because a closed connection cannot always be detected without attempting
+ * to use it, users of pooled sockets should be prepared to retry with a
+ * newly-created socket if the first exchange fails.
+ *
+ * @author Michael Jumper
+ */
+public class GuacamoleSocketPool {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(GuacamoleSocketPool.class);
+
+    /**
+     * The maximum number of milliseconds between maintenance runs.
+     */
+    private static final long MAX_MAINTENANCE_INTERVAL = 1000;
+
+    /**
+     * The factory used to create all sockets.
+     */
+    private final GuacamoleSocketFactory factory;
+
+    /**
+     * The number of idle sockets the pool should maintain.
+     */
+    private final int size;
+
+    /**
+     * The maximum number of milliseconds a socket may remain idle within the
+     * pool.
+     */
+    private final long maxIdle;
+
+    /**
+     * All idle sockets, ordered from oldest to newest.
+     */
+    private final LinkedList<IdleSocket> idle = new LinkedList<IdleSocket>();
+
+    /**
+     * Executor performing all background creation and eviction of sockets,
+     * or null if the pool maintains no idle sockets.
+     */
+    private final ScheduledExecutorService maintenance;
+
+    /**
+     * Whether this pool has been closed.
+     */
+    private boolean closed = false;
+
+    /**
+     * The number of requests satisfied by an idle socket.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * The number of requests which could not be satisfied by an idle socket.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * The number of idle sockets closed due to age or failed liveness
+     * checks.
+     */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * An idle socket, along with the time it was created.
+     */
+    private static class IdleSocket {
+
+        /**
+         * The idle socket.
+         */
+        private final GuacamoleSocket socket;
+
+        /**
+         * The time the socket was created, in milliseconds since the epoch.
+         */
+        private final long created = System.currentTimeMillis();
+
+        /**
+         * Creates a new IdleSocket wrapping the given socket.
+         *
+         * @param socket The socket which is idle.
+         */
+        public IdleSocket(GuacamoleSocket socket) {
+            this.socket = socket;
+        }
+
+    }
+
+    /**
+     * Task which evicts stale sockets and refills the pool.
+     */
+    private final Runnable maintain = new Runnable() {
+
+        @Override
+        public void run() {
+            evict();
+            refill();
+        }
+
+    };
+
+    /**
+     * Creates a new GuacamoleSocketPool which maintains the given number of
+     * idle sockets, created using the given factory. If the size is zero, no
+     * idle sockets are maintained, and every request is satisfied with a
+     * newly-created socket.
+     *
+     * @param factory The factory to use to create all sockets.
+     * @param size The number of idle sockets to maintain.
+     * @param maxIdle The maximum number of milliseconds a socket may remain
+     *                idle within the pool.
+     */
+    public GuacamoleSocketPool(GuacamoleSocketFactory factory, int size,
+            long maxIdle) {
+
+        this.factory = factory;
+        this.size = size;
+        this.maxIdle = maxIdle;
+
+        // Maintain pool only if it will contain anything
+        if (size > 0) {
+
+            maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "guacd-socket-pool");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+
+            });
+
+            long interval = Math.min(maxIdle / 2, MAX_MAINTENANCE_INTERVAL);
+            maintenance.scheduleWithFixedDelay(maintain, 0, Math.max(interval, 1),
+                    TimeUnit.MILLISECONDS);
+
+        }
+        else
+            maintenance = null;
+
+    }
+
+    /**
+     * Returns whether the given idle socket appears usable. Sockets which
+     * have been idle too long, which have closed, or which have received
+     * data before the handshake has begun are not usable. If the socket is
+     * a ProbeableGuacamoleSocket, it is also checked for closure by the
+     * remote end, which is otherwise not detected until the socket is used.
+     * As that check may block briefly, the socket must first be removed
+     * from the pool, and this function must not be called while holding
+     * the monitor of the pool's idle sockets.
+     *
+     * @param idleSocket The idle socket to check.
+     * @param now The current time, in milliseconds since the epoch.
+     * @return true if the socket appears usable, false otherwise.
+     */
+    private boolean isLive(IdleSocket idleSocket, long now) {
+
+        GuacamoleSocket socket = idleSocket.socket;
+        if (now - idleSocket.created >= maxIdle || !socket.isOpen())
+            return false;
+
+        try {
+
+            // Detect sockets closed by guacd while idle
+            if (socket instanceof ProbeableGuacamoleSocket
+                    && ((ProbeableGuacamoleSocket) socket).isPeerClosed())
+                return false;
+
+            // Nothing should be received prior to "select"
+            return !socket.getReader().available();
+
+        }
+        catch (GuacamoleException e) {
+            logger.debug("Liveness check of idle socket failed.", e);
+            return false;
+        }
+
+    }
+
+    /**
+     * Closes the given idle socket, counting it as evicted.
+     *
+     * @param idleSocket The idle socket to close.
+     */
+    private void discard(IdleSocket idleSocket) {
+
+        evictions.incrementAndGet();
+
+        try {
+            idleSocket.socket.close();
+        }
+        catch (GuacamoleException e) {
+            logger.debug("Unable to close idle socket.", e);
+        }
+
+    }
+
+    /**
+     * Closes and removes all idle sockets which are no longer usable.
+     */
+    private void evict() {
+
+        long now = System.currentTimeMillis();
+
+        for (;;) {
+
+            // Oldest sockets are first
+            IdleSocket idleSocket;
+            synchronized (idle) {
+                if (idle.isEmpty())
+                    return;
+                idleSocket = idle.removeFirst();
+            }
+
+            // Check without holding lock, returning live sockets to the pool
+            if (isLive(idleSocket, now)) {
+
+                synchronized (idle) {
+                    if (!closed) {
+                        idle.addFirst(idleSocket);
+                        return;
+                    }
+                }
+
+                // Do not return sockets after the pool has closed
+                discard(idleSocket);
+                return;
+
+            }
+
+            discard(idleSocket);
+
+        }
+
+    }
+
+    /**
+     * Creates new sockets until the pool contains the desired number of idle
+     * sockets. If a socket cannot be created, refilling stops until the next
+     * maintenance run.
+     */
+    private void refill() {
+
+        for (;;) {
+
+            synchronized (idle) {
+                if (closed || idle.size() >= size)
+                    return;
+            }
+
+            // Connect without holding lock
+            GuacamoleSocket socket;
+            try {
+                socket = factory.createSocket();
+            }
+            catch (GuacamoleException e) {
+                logger.debug("Unable to create idle socket.", e);
+                return;
+            }
+
+            synchronized (idle) {
+
+                // Do not add sockets after the pool has closed
+                if (closed) {
+                    discard(new IdleSocket(socket));
+                    return;
+                }
+
+                idle.addLast(new IdleSocket(socket));
+
+            }
+
+        }
+
+    }
+
+    /**
+     * Removes and returns an idle socket from the pool, if a usable socket
+     * is available. The pool is refilled in the background.
+     *
+     * @return An idle, connected socket, or null if no usable socket is
+     *         available.
+     */
+    public GuacamoleSocket poll() {
+
+        GuacamoleSocket socket = null;
+        long now = System.currentTimeMillis();
+
+        for (;;) {
+
+            // Newest sockets are least likely to be stale
+            IdleSocket idleSocket;
+            synchronized (idle) {
+                if (idle.isEmpty())
+                    break;
+                idleSocket = idle.removeLast();
+            }
+
+            // Check without holding lock, trying the next socket if dead
+            if (isLive(idleSocket, now)) {
+                socket = idleSocket.socket;
+                break;
+            }
+
+            discard(idleSocket);
+
+        }
+
+        if (socket != null)
+            hits.incrementAndGet();
+        else
+            misses.incrementAndGet();
+
+        // Replace the socket taken
+        if (maintenance != null && !maintenance.isShutdown())
+            maintenance.execute(maintain);
+
+        return socket;
+
+    }
+
+    /**
+     * Creates and returns a new socket, bypassing the pool entirely.
+     *
+     * @return A newly-connected socket.
+     * @throws GuacamoleException If an error occurs while connecting.
+     */
+    public GuacamoleSocket createSocket() throws GuacamoleException {
+        return factory.createSocket();
+    }
+
+    /**
+     * Returns an idle socket from the pool, if available, or a newly-created
+     * socket otherwise.
+     *
+     * @return A connected socket.
+     * @throws GuacamoleException If no idle socket is available and an error
+     *                            occurs while connecting.
+     */
+    public GuacamoleSocket acquire() throws GuacamoleException {
+
+        GuacamoleSocket socket = poll();
+        if (socket != null)
+            return socket;
+
+        return createSocket();
+
+    }
+
+    /**
+     * Returns the number of requests which were satisfied by an idle socket.
+     *
+     * @return The number of pool hits.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of requests which could not be satisfied by an idle
+     * socket.
+     *
+     * @return The number of pool misses.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of idle sockets which were closed because they had
+     * been idle too long or were no longer usable.
+     *
+     * @return The number of evicted sockets.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the number of idle sockets currently within the pool.
+     *
+     * @return The number of idle sockets.
+     */
+    public int getIdleCount() {
+        synchronized (idle) {
+            return idle.size();
+        }
+    }
+
+    /**
+     * Stops all background maintenance and closes all idle sockets.
+     */
+    public void close() {
+
+        if (maintenance != null)
+            maintenance.shutdownNow();
+
+        synchronized (idle) {
+            closed = true;
+            while (!idle.isEmpty()) {
+                try {
+                    idle.removeFirst().socket.close();
+                }
+                catch (GuacamoleException e) {
+                    logger.debug("Unable to close idle socket.", e);
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.net;
+
+import org.glyptodon.guacamole.io.GuacamoleReader;
+
+/**
+ * Observes or alters the instruction stream read from a GuacamoleTunnel,
+ * such as to record the stream, monitor it for server-side events, or drop
+ * updates a client does not need. Each tap is bound to a single tunnel
+ * exactly once, when read access is first acquired, and the resulting
+ * reader is reused for the lifetime of the tunnel. Readers returned by a
+ * tap may therefore keep state between reads.
+ *
+ * @author Michael Jumper
+ */
+public interface GuacamoleStreamTap {
+
+    /**
+     * Returns a GuacamoleReader which reads from the given reader on behalf
+     * of the given tunnel, observing or altering the instruction stream.
+     * If the tap cannot be bound, the given reader should be returned
+     * unchanged.
+     *
+     * @param tunnel The tunnel whose instruction stream is being read.
+     * @param reader The reader providing the instruction stream, which may
+     *               itself be provided by a previous tap.
+     * @return A GuacamoleReader which reads from the given reader.
+     */
+    GuacamoleReader tap(GuacamoleTunnel tunnel, GuacamoleReader reader);
+
+    /**
+     * Releases any resources allocated by this tap, such as when the tunnel
+     * it was bound to has been closed. This is invoked even if the tap was
+     * never bound, and may be invoked more than once.
+     */
+    void close();
+
+}
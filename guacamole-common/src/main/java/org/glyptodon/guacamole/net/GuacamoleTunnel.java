@@ -22,12 +22,23 @@
 
 package org.glyptodon.guacamole.net;
 
-
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.io.CompressionMonitor;
+import org.glyptodon.guacamole.io.FlushableGuacamoleWriter;
 import org.glyptodon.guacamole.io.GuacamoleReader;
 import org.glyptodon.guacamole.io.GuacamoleWriter;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+import org.glyptodon.guacamole.protocol.ClientSyncTracker;
+import org.glyptodon.guacamole.protocol.SyncTrackingGuacamoleWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Provides a unique identifier and synchronized access to the GuacamoleReader
@@ -37,6 +48,18 @@ import org.glyptodon.guacamole.io.GuacamoleWriter;
  */
 public class GuacamoleTunnel {
 
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(GuacamoleTunnel.class);
+
+    /**
+     * The opcode of instructions used internally by the tunnel itself,
+     * rather than by the Guacamole protocol. Clients must not handle these
+     * instructions as normal Guacamole instructions.
+     */
+    public static final String INTERNAL_DATA_OPCODE = "";
+
     /**
      * The UUID associated with this tunnel. Every tunnel must have a
      * corresponding UUID such that tunnel read/write requests can be
@@ -50,6 +73,26 @@ public class GuacamoleTunnel {
      */
     private GuacamoleSocket socket;
 
+    /**
+     * The taps bound to the instruction stream of this tunnel, in the order
+     * they are applied.
+     */
+    private final List<GuacamoleStreamTap> taps;
+
+    /**
+     * The reader of the instruction stream, with all taps bound, or null if
+     * read access has not yet been acquired. Access is guarded by the
+     * reader lock.
+     */
+    private GuacamoleReader reader;
+
+    /**
+     * The writer of the instruction stream, informing the sync tracker of
+     * each frame acknowledged by the client, or null if write access has
+     * not yet been acquired. Access is guarded by the writer lock.
+     */
+    private GuacamoleWriter writer;
+
     /**
      * Lock acquired when a read operation is in progress.
      */
@@ -60,15 +103,53 @@ public class GuacamoleTunnel {
      */
     private ReentrantLock writerLock;
 
+    /**
+     * The number of requests for read access which have been announced via
+     * requestReader() but not yet satisfied.
+     */
+    private final AtomicInteger readerRequests = new AtomicInteger();
+
+    /**
+     * Callbacks awaiting read access, to be invoked as read access is
+     * relinquished.
+     */
+    private final ConcurrentLinkedQueue<Runnable> readerCallbacks =
+            new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * Monitor tracking how well the data sent over this tunnel compresses,
+     * or null if compression has not yet been monitored.
+     */
+    private volatile CompressionMonitor compressionMonitor;
+
+    /**
+     * Tracker of the frames sent to and acknowledged by the client, or null
+     * if no frames have yet been tracked.
+     */
+    private volatile ClientSyncTracker syncTracker;
+
+    /**
+     * Batcher deciding when data relayed to the client should be sent, or
+     * null if no data has yet been batched.
+     */
+    private volatile FrameBatcher frameBatcher;
+
     /**
      * Creates a new GuacamoleTunnel which synchronizes access to the
-     * Guacamole instruction stream associated with the given GuacamoleSocket.
+     * Guacamole instruction stream associated with the given GuacamoleSocket,
+     * passing that stream through the given taps.
      *
      * @param socket The GuacamoleSocket to provide synchronized access for.
+     * @param taps The taps to bind to the instruction stream, in order. The
+     *             first tap reads directly from the socket, and each
+     *             subsequent tap reads from the tap before it.
      */
-    public GuacamoleTunnel(GuacamoleSocket socket) {
+    public GuacamoleTunnel(GuacamoleSocket socket,
+            List<? extends GuacamoleStreamTap> taps) {
 
         this.socket = socket;
+        this.taps = Collections.unmodifiableList(
+                new ArrayList<GuacamoleStreamTap>(taps));
         uuid = UUID.randomUUID();
 
         readerLock = new ReentrantLock();
@@ -76,25 +157,171 @@ public class GuacamoleTunnel {
 
     }
 
+    /**
+     * Creates a new GuacamoleTunnel which synchronizes access to the
+     * Guacamole instruction stream associated with the given GuacamoleSocket.
+     *
+     * @param socket The GuacamoleSocket to provide synchronized access for.
+     */
+    public GuacamoleTunnel(GuacamoleSocket socket) {
+        this(socket, Collections.<GuacamoleStreamTap>emptyList());
+    }
+
     /**
      * Acquires exclusive read access to the Guacamole instruction stream
-     * and returns a GuacamoleReader for reading from that stream.
+     * and returns a GuacamoleReader for reading from that stream. If read
+     * access was previously requested with requestReader(), one such request
+     * is considered satisfied. The taps of this tunnel are bound when read
+     * access is first acquired, and the same reader is returned thereafter.
      *
      * @return A GuacamoleReader for reading from the Guacamole instruction
      *         stream.
      */
     public GuacamoleReader acquireReader() {
+
         readerLock.lock();
-        return socket.getReader();
+        claimReaderRequest();
+
+        // Bind taps only once, such that their state persists across reads
+        if (reader == null) {
+            GuacamoleReader tapped = socket.getReader();
+            for (GuacamoleStreamTap tap : taps)
+                tapped = tap.tap(this, tapped);
+            reader = tapped;
+        }
+
+        return reader;
+
+    }
+
+    /**
+     * Acquires exclusive read access to the Guacamole instruction stream
+     * only if no other thread currently has read access, returning
+     * immediately in either case.
+     *
+     * @return A GuacamoleReader for reading from the Guacamole instruction
+     *         stream, or null if another thread has read access.
+     */
+    public GuacamoleReader tryAcquireReader() {
+
+        if (!readerLock.tryLock())
+            return null;
+
+        // Acquire through acquireReader() such that taps are bound and
+        // subclasses may decorate the reader. The lock is reentrant and
+        // already held, so this cannot block, and the extra hold is dropped
+        // once acquired.
+        try {
+            return acquireReader();
+        }
+        finally {
+            readerLock.unlock();
+        }
+
     }
 
     /**
      * Relinquishes exclusive read access to the Guacamole instruction
      * stream. This function should be called whenever a thread finishes using
-     * a GuacamoleTunnel's GuacamoleReader.
+     * a GuacamoleTunnel's GuacamoleReader. Any callbacks registered with
+     * awaitReader() are invoked once read access has been relinquished.
      */
     public void releaseReader() {
         readerLock.unlock();
+        if (!readerLock.isHeldByCurrentThread())
+            dispatchReaderCallbacks();
+    }
+
+    /**
+     * Announces that read access to the Guacamole instruction stream will
+     * soon be requested, such as when a new HTTP tunnel read request has
+     * been received. The current reader will see isReaderRequested() return
+     * true and should relinquish read access promptly. The request is
+     * satisfied by the next successful acquireReader() or
+     * tryAcquireReader().
+     */
+    public void requestReader() {
+        readerRequests.incrementAndGet();
+    }
+
+    /**
+     * Withdraws a request for read access previously announced with
+     * requestReader(), for readers which will no longer acquire read access.
+     */
+    public void cancelReaderRequest() {
+        claimReaderRequest();
+    }
+
+    /**
+     * Marks one outstanding request for read access, if any, as satisfied.
+     */
+    private void claimReaderRequest() {
+
+        int requests;
+        do {
+            requests = readerRequests.get();
+            if (requests == 0)
+                return;
+        } while (!readerRequests.compareAndSet(requests, requests - 1));
+
+    }
+
+    /**
+     * Returns whether another reader is waiting to take over read access to
+     * the Guacamole instruction stream, either having announced itself via
+     * requestReader() or by blocking within acquireReader(). Unlike
+     * hasQueuedReaderThreads(), this does not require the next reader to
+     * block a thread.
+     *
+     * @return true if another reader is waiting for read access, false
+     *         otherwise.
+     */
+    public boolean isReaderRequested() {
+        return readerRequests.get() > 0 || readerLock.hasQueuedThreads();
+    }
+
+    /**
+     * Registers a callback to be invoked when read access to the Guacamole
+     * instruction stream may be available, without blocking. If no thread
+     * currently has read access, the callback is invoked immediately.
+     * Otherwise, it is invoked by the thread which next calls
+     * releaseReader(), along with any other registered callbacks. The
+     * callback should attempt tryAcquireReader(), calling awaitReader() again
+     * if read access was taken by another reader in the meantime. Callbacks
+     * must not block, and should typically hand off the actual read to an
+     * executor.
+     *
+     * @param callback The callback to invoke when read access may be
+     *                 available.
+     */
+    public void awaitReader(Runnable callback) {
+
+        readerCallbacks.offer(callback);
+
+        // If nobody holds the lock, no release will dispatch the callback
+        if (!readerLock.isLocked())
+            dispatchReaderCallbacks();
+
+    }
+
+    /**
+     * Removes and invokes all callbacks currently registered with
+     * awaitReader(). Callbacks which fail to acquire read access and
+     * register themselves again are left for the next dispatch.
+     */
+    private void dispatchReaderCallbacks() {
+
+        int pending = readerCallbacks.size();
+        for (int i = 0; i < pending; i++) {
+
+            Runnable callback = readerCallbacks.poll();
+            if (callback == null)
+                break;
+
+            callback.run();
+
+        }
+
     }
 
     /**
@@ -116,17 +343,38 @@ public class GuacamoleTunnel {
      *         stream.
      */
     public GuacamoleWriter acquireWriter() {
+
         writerLock.lock();
-        return socket.getWriter();
+
+        // Wrap the socket writer only once, rather than for every write
+        if (writer == null)
+            writer = new SyncTrackingGuacamoleWriter(socket.getWriter(),
+                    getSyncTracker());
+
+        return writer;
+
     }
 
     /**
      * Relinquishes exclusive write access to the Guacamole instruction
-     * stream. This function should be called whenever a thread finishes using
-     * a GuacamoleTunnel's GuacamoleWriter.
+     * stream, first sending any data written which the underlying socket has
+     * held back for coalescing. This function should be called whenever a
+     * thread finishes using a GuacamoleTunnel's GuacamoleWriter.
      */
     public void releaseWriter() {
-        writerLock.unlock();
+
+        // Do not leave input from the client waiting for the flush delay
+        try {
+            if (writer instanceof FlushableGuacamoleWriter)
+                ((FlushableGuacamoleWriter) writer).flush();
+        }
+        catch (GuacamoleException e) {
+            logger.debug("Unable to send data written to tunnel.", e);
+        }
+        finally {
+            writerLock.unlock();
+        }
+
     }
 
     /**
@@ -149,6 +397,28 @@ public class GuacamoleTunnel {
         return uuid;
     }
 
+    /**
+     * Returns the internal instruction which informs the client of the UUID
+     * of this GuacamoleTunnel, such as to allow a client which loses its
+     * connection to request that this tunnel be resumed.
+     *
+     * @return The internal instruction announcing the UUID of this tunnel.
+     */
+    public String getUUIDInstruction() {
+        return new GuacamoleInstruction(INTERNAL_DATA_OPCODE, "uuid",
+                uuid.toString()).toString();
+    }
+
+    /**
+     * Returns the taps bound to the instruction stream of this
+     * GuacamoleTunnel, in the order they are applied.
+     *
+     * @return An unmodifiable list of the taps of this GuacamoleTunnel.
+     */
+    public List<GuacamoleStreamTap> getTaps() {
+        return taps;
+    }
+
     /**
      * Returns the GuacamoleSocket used by this GuacamoleTunnel for reading
      * and writing.
@@ -160,13 +430,109 @@ public class GuacamoleTunnel {
     }
 
     /**
-     * Release all resources allocated to this GuacamoleTunnel.
+     * Returns the monitor tracking how well the data sent over this
+     * GuacamoleTunnel compresses, which decides whether compression is
+     * currently worthwhile and exposes per-tunnel compression metrics.
+     *
+     * The monitor is created when first requested, as compression is not
+     * used by all tunnels.
+     *
+     * @return The CompressionMonitor of this GuacamoleTunnel.
+     */
+    public CompressionMonitor getCompressionMonitor() {
+
+        CompressionMonitor monitor = compressionMonitor;
+        if (monitor != null)
+            return monitor;
+
+        synchronized (this) {
+            if (compressionMonitor == null)
+                compressionMonitor = new CompressionMonitor();
+            return compressionMonitor;
+        }
+
+    }
+
+    /**
+     * Returns the tracker of the frames sent to and acknowledged by the
+     * client, which measures how far behind the client is and the
+     * round-trip time of each frame. Acknowledgements are observed within
+     * all data written through acquireWriter(), while frames sent must be
+     * reported by the code sending them, typically via getFrameBatcher().
+     *
+     * The tracker is created when first requested.
+     *
+     * @return The ClientSyncTracker of this GuacamoleTunnel.
+     */
+    public ClientSyncTracker getSyncTracker() {
+
+        ClientSyncTracker tracker = syncTracker;
+        if (tracker != null)
+            return tracker;
+
+        synchronized (this) {
+            if (syncTracker == null)
+                syncTracker = new ClientSyncTracker();
+            return syncTracker;
+        }
+
+    }
+
+    /**
+     * Returns the batcher which decides when data relayed from this
+     * GuacamoleTunnel to the client should be sent, adapting to the
+     * round-trip time measured by the ClientSyncTracker. Only the thread
+     * holding read access may use the batcher, which is created when first
+     * requested.
+     *
+     * @return The FrameBatcher of this GuacamoleTunnel.
+     */
+    public FrameBatcher getFrameBatcher() {
+
+        FrameBatcher batcher = frameBatcher;
+        if (batcher != null)
+            return batcher;
+
+        synchronized (this) {
+            if (frameBatcher == null)
+                frameBatcher = new FrameBatcher(getSyncTracker());
+            return frameBatcher;
+        }
+
+    }
+
+    /**
+     * Release all resources allocated to this GuacamoleTunnel, including
+     * those of its taps.
      *
      * @throws GuacamoleException if an error occurs while releasing
      *                            resources.
      */
     public void close() throws GuacamoleException {
-        socket.close();
+
+        // Release taps regardless of whether the socket closes cleanly
+        try {
+            socket.close();
+        }
+        finally {
+            for (GuacamoleStreamTap tap : taps)
+                tap.close();
+        }
+
+    }
+
+    /**
+     * Notifies this GuacamoleTunnel that the connection to its client has
+     * been lost unexpectedly, such as due to a network failure, rather than
+     * closed deliberately. By default, this simply closes the tunnel, but
+     * tunnels which can be resumed by a reconnecting client may instead
+     * remain open for some time.
+     *
+     * @throws GuacamoleException if an error occurs while releasing
+     *                            resources.
+     */
+    public void detach() throws GuacamoleException {
+        close();
     }
 
     /**
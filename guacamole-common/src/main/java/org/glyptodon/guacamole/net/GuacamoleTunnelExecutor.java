@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.net;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleServerBusyException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executor which runs the long-lived loops ("pumps") relaying data from each
+ * tunnel to its client. Each pump runs on a thread named after its tunnel
+ * for as long as it runs, and the total number of pumps may be limited, with
+ * further pumps rejected rather than queued. Pumps run on a cached pool of
+ * platform threads by default, or on virtual threads where supported.
+ *
+ * @author Michael Jumper
+ */
+public class GuacamoleTunnelExecutor {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(GuacamoleTunnelExecutor.class);
+
+    /**
+     * Value for the maximum number of tunnels which imposes no limit.
+     */
+    public static final int UNLIMITED = 0;
+
+    /**
+     * The prefix of the names of all threads running pumps.
+     */
+    private static final String THREAD_NAME_PREFIX = "guacamole-tunnel-";
+
+    /**
+     * The number of seconds an idle platform thread is kept for reuse.
+     */
+    private static final long KEEP_ALIVE = 60;
+
+    /**
+     * The executor used by tunnel implementations for which no executor is
+     * specified.
+     */
+    private static GuacamoleTunnelExecutor defaultExecutor;
+
+    /**
+     * The executor actually running all pumps.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Whether pumps run on virtual threads.
+     */
+    private final boolean virtual;
+
+    /**
+     * The maximum number of pumps which may be running or waiting to run at
+     * any one time, or UNLIMITED.
+     */
+    private final int maxTunnels;
+
+    /**
+     * The number of pumps which have been accepted and have not yet
+     * finished.
+     */
+    private final AtomicInteger admitted = new AtomicInteger();
+
+    /**
+     * The number of pumps which are currently running.
+     */
+    private final AtomicInteger active = new AtomicInteger();
+
+    /**
+     * The number of pumps rejected due to the maximum number of tunnels.
+     */
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * The number of pumps which have finished.
+     */
+    private final AtomicLong completed = new AtomicLong();
+
+    /**
+     * Creates a new GuacamoleTunnelExecutor.
+     *
+     * @param maxTunnels The maximum number of pumps which may be running at
+     *                   any one time, or UNLIMITED.
+     * @param virtualThreads Whether pumps should run on virtual threads. If
+     *                       virtual threads are not supported by the running
+     *                       JVM, platform threads are used instead.
+     */
+    public GuacamoleTunnelExecutor(int maxTunnels, boolean virtualThreads) {
+
+        this.maxTunnels = Math.max(maxTunnels, UNLIMITED);
+
+        ExecutorService virtualExecutor = null;
+        if (virtualThreads) {
+            virtualExecutor = createVirtualExecutor();
+            if (virtualExecutor == null)
+                logger.warn("Virtual threads are not supported by this JVM. "
+                          + "Tunnels will use platform threads.");
+        }
+
+        // Fall back to cached pool of named platform threads
+        if (virtualExecutor == null) {
+
+            final AtomicInteger threadNumber = new AtomicInteger();
+            executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                    KEEP_ALIVE, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, THREAD_NAME_PREFIX
+                            + "idle-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+
+            });
+
+            virtual = false;
+
+        }
+
+        else {
+            executor = virtualExecutor;
+            virtual = true;
+        }
+
+    }
+
+    /**
+     * Creates a new GuacamoleTunnelExecutor which runs an unlimited number of
+     * pumps on platform threads.
+     */
+    public GuacamoleTunnelExecutor() {
+        this(UNLIMITED, false);
+    }
+
+    /**
+     * Creates an executor which runs each task on a new virtual thread, if
+     * the running JVM supports virtual threads (Java 21 and later).
+     *
+     * @return A new virtual thread executor, or null if virtual threads are
+     *         not supported.
+     */
+    private static ExecutorService createVirtualExecutor() {
+
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        }
+        catch (NoSuchMethodException e) {
+            return null;
+        }
+        catch (Exception e) {
+            logger.debug("Unable to create virtual thread executor.", e);
+            return null;
+        }
+
+    }
+
+    /**
+     * Returns the executor used by tunnel implementations for which no
+     * executor is specified. If no default executor has been set, an
+     * executor running an unlimited number of pumps on platform threads is
+     * created.
+     *
+     * @return The default GuacamoleTunnelExecutor.
+     */
+    public static synchronized GuacamoleTunnelExecutor getDefault() {
+
+        if (defaultExecutor == null)
+            defaultExecutor = new GuacamoleTunnelExecutor();
+
+        return defaultExecutor;
+
+    }
+
+    /**
+     * Replaces the default executor. Pumps already running on the previous
+     * default executor are unaffected.
+     *
+     * @param executor The executor to use by default.
+     */
+    public static synchronized void setDefault(GuacamoleTunnelExecutor executor) {
+        defaultExecutor = executor;
+    }
+
+    /**
+     * Runs the given pump on a thread of this executor. The thread is named
+     * after the given tunnel for as long as the pump runs.
+     *
+     * @param tunnel The tunnel the pump relays data for.
+     * @param pump The pump to run.
+     * @throws GuacamoleServerBusyException If the maximum number of tunnels
+     *                                      are already running.
+     * @throws GuacamoleException If this executor has been shut down.
+     */
+    public void execute(final GuacamoleTunnel tunnel, final Runnable pump)
+            throws GuacamoleException {
+
+        // Enforce maximum number of tunnels
+        int count = admitted.incrementAndGet();
+        if (maxTunnels != UNLIMITED && count > maxTunnels) {
+            admitted.decrementAndGet();
+            rejected.incrementAndGet();
+            throw new GuacamoleServerBusyException("Too many active tunnels.");
+        }
+
+        try {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    // Name thread after tunnel while running
+                    Thread thread = Thread.currentThread();
+                    String name = thread.getName();
+                    thread.setName(THREAD_NAME_PREFIX + tunnel.getUUID());
+                    active.incrementAndGet();
+
+                    try {
+                        pump.run();
+                    }
+                    finally {
+                        active.decrementAndGet();
+                        admitted.decrementAndGet();
+                        completed.incrementAndGet();
+                        thread.setName(name);
+                    }
+
+                }
+
+            });
+        }
+        catch (RejectedExecutionException e) {
+            admitted.decrementAndGet();
+            throw new GuacamoleServerException("Tunnel executor has been shut down.", e);
+        }
+
+    }
+
+    /**
+     * Returns the maximum number of pumps which may be running at any one
+     * time.
+     *
+     * @return The maximum number of pumps, or UNLIMITED.
+     */
+    public int getMaxTunnels() {
+        return maxTunnels;
+    }
+
+    /**
+     * Returns whether pumps run on virtual threads.
+     *
+     * @return true if pumps run on virtual threads, false if pumps run on
+     *         platform threads.
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Returns the number of pumps which are currently running.
+     *
+     * @return The number of running pumps.
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * Returns the number of pumps which have been accepted but have not yet
+     * started running.
+     *
+     * @return The number of pumps waiting to run.
+     */
+    public int getQueuedCount() {
+        return Math.max(admitted.get() - active.get(), 0);
+    }
+
+    /**
+     * Returns the number of pumps rejected because the maximum number of
+     * tunnels were already running.
+     *
+     * @return The number of rejected pumps.
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Returns the number of pumps which have finished running.
+     *
+     * @return The number of finished pumps.
+     */
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    /**
+     * Stops accepting new pumps. Running pumps continue until their tunnels
+     * are closed.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+}
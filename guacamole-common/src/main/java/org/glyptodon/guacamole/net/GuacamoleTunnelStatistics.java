@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Totals describing the data relayed by all tunnels of this JVM, gathered
+ * from the objects involved in relaying that data, such that they may be
+ * published through a single interface. Each object tracking its own
+ * metrics, like WebSocketSendQueue, FrameBatcher, CompressionMonitor and
+ * OutputStreamGuacamoleWriter, also adds those metrics to the totals of the default instance. This class
+ * is threadsafe.
+ *
+ * @author Michael Jumper
+ */
+public class GuacamoleTunnelStatistics {
+
+    /**
+     * The statistics shared by all tunnels.
+     */
+    private static final GuacamoleTunnelStatistics defaultStatistics =
+            new GuacamoleTunnelStatistics();
+
+    /**
+     * The total size of all WebSocket messages which have been queued but
+     * not yet sent, in bytes.
+     */
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    /**
+     * The number of times a WebSocket send queue has blocked at its high
+     * watermark.
+     */
+    private final AtomicLong stallCount = new AtomicLong();
+
+    /**
+     * The total time WebSocket send queues have spent blocked, in
+     * nanoseconds.
+     */
+    private final AtomicLong stallTime = new AtomicLong();
+
+    /**
+     * The number of batches of instructions sent to clients.
+     */
+    private final AtomicLong batchCount = new AtomicLong();
+
+    /**
+     * The number of complete frames sent to clients.
+     */
+    private final AtomicLong frameCount = new AtomicLong();
+
+    /**
+     * The number of writes accepted by GuacamoleWriters.
+     */
+    private final AtomicLong writeCount = new AtomicLong();
+
+    /**
+     * The number of times GuacamoleWriters have sent data to the underlying
+     * stream.
+     */
+    private final AtomicLong flushCount = new AtomicLong();
+
+    /**
+     * The total number of bytes actually compressed.
+     */
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+
+    /**
+     * The total size of all compressed output, in bytes.
+     */
+    private final AtomicLong compressedBytes = new AtomicLong();
+
+    /**
+     * The total number of trial compressions performed.
+     */
+    private final AtomicLong sampleCount = new AtomicLong();
+
+    /**
+     * The total time spent compressing, including trial compressions, in
+     * nanoseconds.
+     */
+    private final AtomicLong compressionTime = new AtomicLong();
+
+    /**
+     * Returns the statistics shared by all tunnels.
+     *
+     * @return The default GuacamoleTunnelStatistics.
+     */
+    public static GuacamoleTunnelStatistics getDefault() {
+        return defaultStatistics;
+    }
+
+    /**
+     * Notes that the total size of queued WebSocket messages has changed.
+     *
+     * @param delta The number of bytes queued, or a negative number of bytes
+     *              sent or discarded.
+     */
+    public void queued(long delta) {
+        queuedBytes.addAndGet(delta);
+    }
+
+    /**
+     * Notes that a WebSocket send queue blocked at its high watermark.
+     *
+     * @param elapsed The time spent blocked, in nanoseconds.
+     */
+    public void stalled(long elapsed) {
+        stallCount.incrementAndGet();
+        stallTime.addAndGet(elapsed);
+    }
+
+    /**
+     * Notes that a batch of instructions was sent to a client.
+     *
+     * @param frameComplete Whether the batch completed a frame.
+     */
+    public void batchSent(boolean frameComplete) {
+        batchCount.incrementAndGet();
+        if (frameComplete)
+            frameCount.incrementAndGet();
+    }
+
+    /**
+     * Notes that a GuacamoleWriter accepted a write.
+     */
+    public void written() {
+        writeCount.incrementAndGet();
+    }
+
+    /**
+     * Notes that a GuacamoleWriter sent data to the underlying stream.
+     */
+    public void flushed() {
+        flushCount.incrementAndGet();
+    }
+
+    /**
+     * Notes that data was compressed.
+     *
+     * @param uncompressed The number of bytes compressed.
+     * @param compressed The size of the resulting compressed output, in
+     *                   bytes.
+     * @param elapsed The time spent compressing, in nanoseconds.
+     */
+    public void compressed(long uncompressed, long compressed, long elapsed) {
+        uncompressedBytes.addAndGet(uncompressed);
+        compressedBytes.addAndGet(compressed);
+        compressionTime.addAndGet(elapsed);
+    }
+
+    /**
+     * Notes that a trial compression was performed.
+     *
+     * @param elapsed The time spent compressing, in nanoseconds.
+     */
+    public void sampled(long elapsed) {
+        sampleCount.incrementAndGet();
+        compressionTime.addAndGet(elapsed);
+    }
+
+    /**
+     * Returns the total size of all WebSocket messages which have been
+     * queued but not yet sent.
+     *
+     * @return The total size of all unsent messages, in bytes.
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * Returns the number of times a WebSocket send queue has blocked at its
+     * high watermark.
+     *
+     * @return The number of times a send queue has blocked.
+     */
+    public long getStallCount() {
+        return stallCount.get();
+    }
+
+    /**
+     * Returns the total time WebSocket send queues have spent blocked at
+     * their high watermarks.
+     *
+     * @return The total time spent blocked, in nanoseconds.
+     */
+    public long getStallTime() {
+        return stallTime.get();
+    }
+
+    /**
+     * Returns the number of batches of instructions sent to clients.
+     *
+     * @return The number of batches sent.
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * Returns the number of complete frames sent to clients.
+     *
+     * @return The number of complete frames sent.
+     */
+    public long getFrameCount() {
+        return frameCount.get();
+    }
+
+    /**
+     * Returns the number of writes accepted by GuacamoleWriters.
+     *
+     * @return The number of writes accepted.
+     */
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+
+    /**
+     * Returns the number of times GuacamoleWriters have sent data to the
+     * underlying stream. Comparing this value against getWriteCount() shows
+     * the effect of coalescing.
+     *
+     * @return The number of times data has been sent.
+     */
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    /**
+     * Returns the total number of bytes actually compressed, excluding
+     * trial compressions.
+     *
+     * @return The total number of bytes compressed.
+     */
+    public long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
+    /**
+     * Returns the total size of all compressed output, excluding trial
+     * compressions.
+     *
+     * @return The total size of all compressed output, in bytes.
+     */
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    /**
+     * Returns the total number of trial compressions performed.
+     *
+     * @return The number of trial compressions performed.
+     */
+    public long getSampleCount() {
+        return sampleCount.get();
+    }
+
+    /**
+     * Returns the total time spent compressing, including trial
+     * compressions.
+     *
+     * @return The total time spent compressing, in nanoseconds.
+     */
+    public long getCompressionTime() {
+        return compressionTime.get();
+    }
+
+}
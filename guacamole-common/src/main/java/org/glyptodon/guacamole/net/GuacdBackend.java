@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.net;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single instance of the Guacamole proxy (guacd), along with its pool of
+ * idle sockets, its current health, and the number of tunnels currently
+ * using it.
+ *
+ * @author Michael Jumper
+ */
+public class GuacdBackend {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(GuacdBackend.class);
+
+    /**
+     * The hostname of guacd.
+     */
+    private final String hostname;
+
+    /**
+     * The port guacd is listening on.
+     */
+    private final int port;
+
+    /**
+     * Whether guacd requires SSL/TLS.
+     */
+    private final boolean ssl;
+
+    /**
+     * The relative capacity of this backend compared to other backends.
+     */
+    private final int weight;
+
+    /**
+     * The pool of sockets to guacd.
+     */
+    private final GuacamoleSocketPool pool;
+
+    /**
+     * The number of tunnels currently using this backend. This counter may
+     * be shared with a previous GuacdBackend describing the same guacd,
+     * such that tunnels established through either are counted.
+     */
+    private volatile AtomicInteger activeTunnels = new AtomicInteger();
+
+    /**
+     * The time a socket to guacd was last successfully connected, in
+     * milliseconds since the epoch, or zero if never.
+     */
+    private volatile long lastConnected = 0;
+
+    /**
+     * Whether this backend passed its most recent health check.
+     */
+    private volatile boolean healthy = true;
+
+    /**
+     * Creates a new GuacdBackend describing the guacd instance at the given
+     * hostname and port.
+     *
+     * @param hostname The hostname of guacd.
+     * @param port The port guacd is listening on.
+     * @param ssl Whether guacd requires SSL/TLS.
+     * @param weight The relative capacity of this backend compared to other
+     *               backends. Backends with twice the weight will be given
+     *               twice as many tunnels.
+     * @param poolSize The number of idle sockets to keep connected to guacd.
+     * @param maxIdle The maximum number of milliseconds an idle socket may be
+     *                kept.
+     */
+    public GuacdBackend(String hostname, int port, boolean ssl, int weight,
+            int poolSize, long maxIdle) {
+
+        this.hostname = hostname;
+        this.port = port;
+        this.ssl = ssl;
+        this.weight = Math.max(weight, 1);
+
+        pool = new GuacamoleSocketPool(new GuacamoleSocketFactory() {
+
+            @Override
+            public GuacamoleSocket createSocket() throws GuacamoleException {
+                return GuacdBackend.this.createSocket();
+            }
+
+        }, poolSize, maxIdle);
+
+    }
+
+    /**
+     * Creates a new socket connected to guacd.
+     *
+     * @return A newly-connected socket.
+     * @throws GuacamoleException If guacd cannot be reached.
+     */
+    private GuacamoleSocket createSocket() throws GuacamoleException {
+
+        GuacamoleSocket socket;
+
+        // If guacd requires SSL, use it
+        if (ssl)
+            socket = new SSLGuacamoleSocket(hostname, port);
+        else
+            socket = new InetGuacamoleSocket(hostname, port);
+
+        lastConnected = System.currentTimeMillis();
+        return socket;
+
+    }
+
+    /**
+     * Returns the hostname of guacd.
+     *
+     * @return The hostname of guacd.
+     */
+    public String getHostname() {
+        return hostname;
+    }
+
+    /**
+     * Returns the port guacd is listening on.
+     *
+     * @return The port guacd is listening on.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Returns the relative capacity of this backend.
+     *
+     * @return The weight of this backend.
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Returns the pool of sockets to guacd.
+     *
+     * @return The pool of sockets to guacd.
+     */
+    public GuacamoleSocketPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Returns the number of tunnels currently using this backend.
+     *
+     * @return The number of active tunnels.
+     */
+    public int getActiveTunnels() {
+        return activeTunnels.get();
+    }
+
+    /**
+     * Continues counting the tunnels of the given backend, which describes
+     * the same guacd as this backend, such that tunnels established through
+     * either backend are counted by both. This must be called before this
+     * backend is used.
+     *
+     * @param previous The backend whose tunnels should be counted.
+     */
+    void shareTunnels(GuacdBackend previous) {
+        activeTunnels = previous.activeTunnels;
+    }
+
+    /**
+     * Records that a tunnel has begun using this backend.
+     */
+    void tunnelOpened() {
+        activeTunnels.incrementAndGet();
+    }
+
+    /**
+     * Records that a tunnel has stopped using this backend.
+     */
+    void tunnelClosed() {
+        activeTunnels.decrementAndGet();
+    }
+
+    /**
+     * Returns whether this backend passed its most recent health check.
+     *
+     * @return true if this backend is healthy, false otherwise.
+     */
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * Performs a periodic health check of this backend. If this backend is
+     * healthy and a socket has been connected to guacd within the given
+     * interval, for a tunnel or for the pool of idle sockets, guacd is known
+     * to be reachable and no further connection is made. Otherwise, this
+     * backend is probed.
+     *
+     * @param interval The number of milliseconds between health checks.
+     * @return true if guacd could be reached, false otherwise.
+     */
+    boolean check(long interval) {
+
+        if (healthy && System.currentTimeMillis() - lastConnected < interval)
+            return true;
+
+        return probe();
+
+    }
+
+    /**
+     * Checks whether guacd can currently be reached, updating the health of
+     * this backend accordingly. The check only connects to guacd and closes
+     * the connection before the protocol handshake begins, which guacd will
+     * log as a failed connection.
+     *
+     * @return true if guacd could be reached, false otherwise.
+     */
+    public boolean probe() {
+
+        boolean reachable;
+        try {
+            createSocket().close();
+            reachable = true;
+        }
+        catch (GuacamoleException e) {
+            logger.debug("Health check of guacd at {} failed.", this, e);
+            reachable = false;
+        }
+
+        // Log only changes in health
+        if (reachable != healthy) {
+            if (reachable)
+                logger.info("guacd at {} is reachable again.", this);
+            else
+                logger.warn("guacd at {} is unreachable.", this);
+        }
+
+        healthy = reachable;
+        return reachable;
+
+    }
+
+    /**
+     * Stops all background maintenance of this backend and closes all idle
+     * sockets.
+     */
+    public void close() {
+        pool.close();
+    }
+
+    @Override
+    public String toString() {
+        return hostname + ":" + port;
+    }
+
+}
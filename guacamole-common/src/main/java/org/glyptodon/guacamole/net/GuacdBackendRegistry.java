@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.net;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.io.GuacamoleWriter;
+import org.glyptodon.guacamole.protocol.ConfiguredGuacamoleSocket;
+import org.glyptodon.guacamole.protocol.GuacamoleClientInformation;
+import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A set of guacd instances among which new connections are distributed.
+ * Each new connection is routed to the healthy backend with the fewest
+ * active tunnels relative to its weight, and the health of every backend is
+ * checked periodically in the background. If a backend cannot be reached
+ * while connecting, it is marked unhealthy and the next backend is tried.
+ *
+ * Health checks connect to guacd without beginning the protocol handshake,
+ * as beginning the handshake would needlessly start a client process
+ * within guacd. guacd logs each such connection as having failed. To limit
+ * this, no health check connection is made to a healthy backend to which a
+ * socket has been connected within the last interval, as when idle sockets
+ * are pooled or tunnels are being established.
+ *
+ * @author Michael Jumper
+ */
+public class GuacdBackendRegistry {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(GuacdBackendRegistry.class);
+
+    /**
+     * All backends within this registry.
+     */
+    private final List<GuacdBackend> backends;
+
+    /**
+     * Executor performing periodic health checks, or null if health checks
+     * are disabled.
+     */
+    private final ScheduledExecutorService prober;
+
+    /**
+     * The index of the backend which should be considered first when
+     * selecting among equally-loaded backends, modulo the number of
+     * backends. This is advanced on every selection such that ties are
+     * broken round-robin.
+     */
+    private final AtomicInteger nextBackend = new AtomicInteger();
+
+    /**
+     * GuacamoleSocket which records the end of its tunnel with its backend
+     * when closed.
+     */
+    private static class BackendGuacamoleSocket implements GuacamoleSocket {
+
+        /**
+         * The wrapped socket.
+         */
+        private final GuacamoleSocket socket;
+
+        /**
+         * The backend the wrapped socket is connected to.
+         */
+        private final GuacdBackend backend;
+
+        /**
+         * Whether the end of the tunnel has been recorded.
+         */
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        /**
+         * Creates a new BackendGuacamoleSocket which wraps the given socket,
+         * connected to the given backend.
+         *
+         * @param socket The socket to wrap.
+         * @param backend The backend the socket is connected to.
+         */
+        public BackendGuacamoleSocket(GuacamoleSocket socket,
+                GuacdBackend backend) {
+            this.socket = socket;
+            this.backend = backend;
+        }
+
+        @Override
+        public GuacamoleReader getReader() {
+            return socket.getReader();
+        }
+
+        @Override
+        public GuacamoleWriter getWriter() {
+            return socket.getWriter();
+        }
+
+        @Override
+        public void close() throws GuacamoleException {
+            try {
+                socket.close();
+            }
+            finally {
+                if (closed.compareAndSet(false, true))
+                    backend.tunnelClosed();
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return socket.isOpen();
+        }
+
+    }
+
+    /**
+     * Creates a new GuacdBackendRegistry which distributes connections among
+     * the given backends, checking the health of each backend at the given
+     * interval.
+     *
+     * @param backends The backends to distribute connections among.
+     * @param probeInterval The number of milliseconds between health checks,
+     *                      or zero to disable health checks.
+     */
+    public GuacdBackendRegistry(List<GuacdBackend> backends,
+            final long probeInterval) {
+
+        this.backends = Collections.unmodifiableList(new ArrayList<GuacdBackend>(backends));
+
+        // Probe only if requested
+        if (probeInterval > 0) {
+
+            prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "guacd-health-check");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+
+            });
+
+            prober.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (GuacdBackend backend : GuacdBackendRegistry.this.backends)
+                        backend.check(probeInterval);
+                }
+
+            }, probeInterval, probeInterval, TimeUnit.MILLISECONDS);
+
+        }
+        else
+            prober = null;
+
+    }
+
+    /**
+     * Continues counting the active tunnels of each backend of the given
+     * registry within the backend of this registry having the same hostname
+     * and port, such that tunnels established through the given registry
+     * still count toward the load of their guacd. This is intended for
+     * replacing a registry when the guacd configuration changes, and must be
+     * called before this registry is used.
+     *
+     * @param previous The registry being replaced.
+     */
+    public void shareTunnels(GuacdBackendRegistry previous) {
+
+        for (GuacdBackend backend : backends) {
+            for (GuacdBackend previousBackend : previous.getBackends()) {
+
+                if (backend.getPort() == previousBackend.getPort()
+                        && backend.getHostname().equals(previousBackend.getHostname())) {
+                    backend.shareTunnels(previousBackend);
+                    break;
+                }
+
+            }
+        }
+
+    }
+
+    /**
+     * Returns all backends within this registry.
+     *
+     * @return An unmodifiable list of all backends.
+     */
+    public List<GuacdBackend> getBackends() {
+        return backends;
+    }
+
+    /**
+     * Returns whether the first backend is less loaded than the second,
+     * relative to their weights.
+     *
+     * @param first The first backend to compare.
+     * @param second The second backend to compare.
+     * @return true if the first backend is less loaded than the second,
+     *         false otherwise.
+     */
+    private static boolean isLessLoaded(GuacdBackend first, GuacdBackend second) {
+        return (long) first.getActiveTunnels() * second.getWeight()
+             < (long) second.getActiveTunnels() * first.getWeight();
+    }
+
+    /**
+     * Returns the least-loaded backend which is not within the given list
+     * of excluded backends, preferring healthy backends. Unhealthy backends
+     * are chosen only if no healthy backend remains.
+     *
+     * @param excluded The backends which must not be returned.
+     * @return The least-loaded backend, or null if all backends are
+     *         excluded.
+     */
+    public GuacdBackend select(List<GuacdBackend> excluded) {
+
+        GuacdBackend selected = null;
+
+        int count = backends.size();
+        int start = nextBackend.getAndIncrement() & Integer.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+
+            GuacdBackend backend = backends.get((start + i) % count);
+            if (excluded.contains(backend))
+                continue;
+
+            // Healthy backends always win over unhealthy backends
+            if (selected == null
+                    || (backend.isHealthy() && !selected.isHealthy())
+                    || (backend.isHealthy() == selected.isHealthy()
+                        && isLessLoaded(backend, selected)))
+                selected = backend;
+
+        }
+
+        return selected;
+
+    }
+
+    /**
+     * Connects to the least-loaded backend, completing the protocol
+     * handshake using the given configuration and client information. If a
+     * backend cannot be reached, it is marked unhealthy and the next backend
+     * is tried. The returned socket counts toward the active tunnels of its
+     * backend until closed.
+     *
+     * @param config The GuacamoleConfiguration to use to complete the
+     *               protocol handshake.
+     * @param info The GuacamoleClientInformation to use to complete the
+     *             protocol handshake.
+     * @return A configured socket connected to one of the backends.
+     * @throws GuacamoleException If no backend can be reached, or if the
+     *                            handshake fails.
+     */
+    public GuacamoleSocket connect(GuacamoleConfiguration config,
+            GuacamoleClientInformation info) throws GuacamoleException {
+
+        List<GuacdBackend> tried = new ArrayList<GuacdBackend>(backends.size());
+        GuacamoleException lastError = null;
+
+        GuacdBackend backend;
+        while ((backend = select(tried)) != null) {
+
+            tried.add(backend);
+            backend.tunnelOpened();
+
+            try {
+                GuacamoleSocket socket = new ConfiguredGuacamoleSocket(backend.getPool(), config, info);
+                return new BackendGuacamoleSocket(socket, backend);
+            }
+            catch (GuacamoleException e) {
+
+                backend.tunnelClosed();
+
+                // Fail if the error is not due to the backend itself
+                if (backend.probe())
+                    throw e;
+
+                logger.debug("Unable to connect to guacd at {}. Trying next backend.", backend, e);
+                lastError = e;
+
+            }
+
+        }
+
+        // All backends were unreachable
+        if (lastError != null)
+            throw lastError;
+
+        throw new GuacamoleServerException("No guacd backends are defined.");
+
+    }
+
+    /**
+     * Stops all health checks and closes all idle sockets of all backends.
+     */
+    public void close() {
+
+        if (prober != null)
+            prober.shutdownNow();
+
+        for (GuacdBackend backend : backends)
+            backend.close();
+
+    }
+
+}
@@ -24,16 +24,14 @@ package org.glyptodon.guacamole.net;
 
 
 import org.glyptodon.guacamole.io.GuacamoleReader;
-import org.glyptodon.guacamole.io.ReaderGuacamoleReader;
-import org.glyptodon.guacamole.io.WriterGuacamoleWriter;
+import org.glyptodon.guacamole.io.InputStreamGuacamoleReader;
+import org.glyptodon.guacamole.io.OutputStreamGuacamoleWriter;
 import org.glyptodon.guacamole.io.GuacamoleWriter;
 import java.io.IOException;
+import java.io.PushbackInputStream;
 import java.net.InetAddress;
 import java.net.Socket;
 
-import java.io.InputStreamReader;
-
-import java.io.OutputStreamWriter;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
@@ -49,7 +47,7 @@ import org.slf4j.LoggerFactory;
  *
  * @author Michael Jumper
  */
-public class InetGuacamoleSocket implements GuacamoleSocket {
+public class InetGuacamoleSocket implements ProbeableGuacamoleSocket {
 
     /**
      * Logger for this class.
@@ -72,12 +70,36 @@ public class InetGuacamoleSocket implements GuacamoleSocket {
      */
     private static final int SOCKET_TIMEOUT = 15000;
 
+    /**
+     * The number of milliseconds to wait for the end of the stream when
+     * checking whether the remote end has closed the connection.
+     */
+    private static final int PROBE_TIMEOUT = 1;
+
+    /**
+     * The number of bytes written to guacd which are sent immediately,
+     * rather than coalesced with subsequent writes.
+     */
+    private static final int FLUSH_THRESHOLD = 8192;
+
+    /**
+     * The maximum number of milliseconds that data written to guacd may be
+     * held for coalescing with subsequent writes, if not flushed explicitly.
+     */
+    private static final int FLUSH_DELAY = 5;
+
     /**
      * The TCP socket that the GuacamoleReader and GuacamoleWriter exposed
      * by this class should affect.
      */
     private Socket sock;
 
+    /**
+     * The stream read by the GuacamoleReader of this socket, allowing a byte
+     * read while checking for closure to be returned to the stream.
+     */
+    private PushbackInputStream input;
+
     /**
      * Creates a new InetGuacamoleSocket which reads and writes instructions
      * to the Guacamole instruction stream of the Guacamole proxy server
@@ -108,8 +130,10 @@ public class InetGuacamoleSocket implements GuacamoleSocket {
             sock.setSoTimeout(SOCKET_TIMEOUT);
 
             // On successful connect, retrieve I/O streams
-            reader = new ReaderGuacamoleReader(new InputStreamReader(sock.getInputStream(),   "UTF-8"));
-            writer = new WriterGuacamoleWriter(new OutputStreamWriter(sock.getOutputStream(), "UTF-8"));
+            input = new PushbackInputStream(sock.getInputStream());
+            reader = new InputStreamGuacamoleReader(input);
+            writer = new OutputStreamGuacamoleWriter(sock.getOutputStream(),
+                    FLUSH_THRESHOLD, FLUSH_DELAY);
 
         }
         catch (SocketTimeoutException e) {
@@ -147,4 +171,42 @@ public class InetGuacamoleSocket implements GuacamoleSocket {
         return !sock.isClosed();
     }
 
+    @Override
+    public boolean isPeerClosed() throws GuacamoleException {
+
+        try {
+
+            // Pending data means the stream has not yet ended
+            if (input.available() > 0)
+                return false;
+
+            sock.setSoTimeout(PROBE_TIMEOUT);
+            try {
+
+                int value = input.read();
+                if (value == -1)
+                    return true;
+
+                // Leave data for the GuacamoleReader
+                input.unread(value);
+                return false;
+
+            }
+
+            // Nothing received, but the connection remains open
+            catch (SocketTimeoutException e) {
+                return false;
+            }
+
+            finally {
+                sock.setSoTimeout(SOCKET_TIMEOUT);
+            }
+
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException(e);
+        }
+
+    }
+
 }
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.net;
+
+import org.glyptodon.guacamole.GuacamoleException;
+
+/**
+ * A GuacamoleSocket which can determine, without blocking, whether the
+ * remote end has closed the connection. Such a closure cannot be detected
+ * through isOpen(), which only reflects whether the local end has been
+ * closed, nor through the GuacamoleReader, which reports no data as
+ * available either way.
+ *
+ * @author Michael Jumper
+ */
+public interface ProbeableGuacamoleSocket extends GuacamoleSocket {
+
+    /**
+     * Returns whether the remote end of this socket has closed the
+     * connection. This check waits only briefly for the end of the stream,
+     * and any data received is left unread. As this check reads from the
+     * underlying connection, it must not be performed while another thread
+     * is reading from this socket.
+     *
+     * @return true if the remote end has closed the connection, false
+     *         otherwise.
+     * @throws GuacamoleException If an error occurs while checking the
+     *                            connection.
+     */
+    public boolean isPeerClosed() throws GuacamoleException;
+
+}
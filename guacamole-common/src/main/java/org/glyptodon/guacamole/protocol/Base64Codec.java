@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.protocol;
+
+/**
+ * Encoder and decoder of the base64 data carried within Guacamole
+ * instructions, such as the image data of "png" instructions. Only the
+ * standard base64 alphabet is supported.
+ *
+ * @author Michael Jumper
+ */
+public class Base64Codec {
+
+    /**
+     * The base64 alphabet, in order of value.
+     */
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .toCharArray();
+
+    /**
+     * The character used to pad encoded data to a multiple of four
+     * characters.
+     */
+    private static final char PADDING = '=';
+
+    /**
+     * This class is a utility class and should not be instantiated.
+     */
+    private Base64Codec() {}
+
+    /**
+     * Encodes the given bytes as padded base64.
+     *
+     * @param data The bytes to encode.
+     * @return The base64 encoding of the given bytes.
+     */
+    public static String encode(byte[] data) {
+
+        StringBuilder encoded = new StringBuilder((data.length + 2) / 3 * 4);
+
+        for (int i = 0; i < data.length; i += 3) {
+
+            // Pack up to three bytes into 24 bits
+            int remaining = Math.min(3, data.length - i);
+            int bits = (data[i] & 0xFF) << 16;
+            if (remaining > 1) bits |= (data[i + 1] & 0xFF) << 8;
+            if (remaining > 2) bits |= (data[i + 2] & 0xFF);
+
+            encoded.append(ALPHABET[(bits >> 18) & 0x3F]);
+            encoded.append(ALPHABET[(bits >> 12) & 0x3F]);
+            encoded.append(remaining > 1 ? ALPHABET[(bits >> 6) & 0x3F] : PADDING);
+            encoded.append(remaining > 2 ? ALPHABET[bits & 0x3F] : PADDING);
+
+        }
+
+        return encoded.toString();
+
+    }
+
+    /**
+     * Decodes the given base64 data, which may be padded.
+     *
+     * @param data The base64 data to decode.
+     * @return The decoded bytes.
+     * @throws IllegalArgumentException If the data is not valid base64.
+     */
+    public static byte[] decode(CharSequence data) {
+
+        // Ignore padding
+        int length = data.length();
+        while (length > 0 && data.charAt(length - 1) == PADDING)
+            length--;
+
+        return decode(data, length);
+
+    }
+
+    /**
+     * Decodes the given number of leading characters of the given base64
+     * data. Any bits beyond the last complete byte are ignored.
+     *
+     * @param data The base64 data to decode.
+     * @param length The number of characters to decode, excluding padding.
+     * @return The decoded bytes.
+     * @throws IllegalArgumentException If the data is not valid base64.
+     */
+    public static byte[] decode(CharSequence data, int length) {
+
+        byte[] decoded = new byte[length * 6 / 8];
+        int position = 0;
+        int bits = 0;
+        int bitCount = 0;
+
+        for (int i = 0; i < length; i++) {
+
+            bits = (bits << 6) | valueOf(data.charAt(i));
+            bitCount += 6;
+
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                decoded[position++] = (byte) (bits >> bitCount);
+            }
+
+        }
+
+        return decoded;
+
+    }
+
+    /**
+     * Returns the value of the given base64 character.
+     *
+     * @param c The character to decode.
+     * @return The six-bit value of the given character.
+     * @throws IllegalArgumentException If the character is not part of the
+     *                                  base64 alphabet.
+     */
+    private static int valueOf(char c) {
+
+        if (c >= 'A' && c <= 'Z') return c - 'A';
+        if (c >= 'a' && c <= 'z') return c - 'a' + 26;
+        if (c >= '0' && c <= '9') return c - '0' + 52;
+        if (c == '+')             return 62;
+        if (c == '/')             return 63;
+
+        throw new IllegalArgumentException("Invalid base64 character: " + c);
+
+    }
+
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.protocol;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks how many frames a client has fallen behind, and the round-trip
+ * time of each frame, by pairing the "sync" instructions sent to the client
+ * with the "sync" instructions the client sends back once each frame has
+ * been displayed. Frames sent are recorded by the code sending them, while
+ * acknowledgements are found within the data written by the client, which
+ * is observed by a SyncTrackingGuacamoleWriter. As the client's data may be
+ * split across writes at any point, even within an instruction, that data
+ * is scanned incrementally rather than parsed. This class is threadsafe.
+ *
+ * @author Michael Jumper
+ */
+public class ClientSyncTracker {
+
+    /**
+     * The maximum number of unacknowledged frames tracked. Clients which
+     * never acknowledge frames would otherwise cause unbounded growth.
+     */
+    private static final int MAX_TRACKED_FRAMES = 1024;
+
+    /**
+     * The maximum number of characters of an element retained while
+     * scanning. No element of interest is longer than this.
+     */
+    private static final int MAX_ELEMENT_LENGTH = 32;
+
+    /**
+     * The weight given to each new round-trip time measurement within the
+     * smoothed round-trip time.
+     */
+    private static final double RTT_WEIGHT = 0.125;
+
+    /**
+     * A frame which has been sent to the client.
+     */
+    private static class Frame {
+
+        /**
+         * The timestamp of the "sync" instruction ending the frame.
+         */
+        private final long timestamp;
+
+        /**
+         * The value of System.nanoTime() when the frame was last reported
+         * as sent.
+         */
+        private volatile long sent = System.nanoTime();
+
+        /**
+         * Creates a new Frame for the "sync" instruction having the given
+         * timestamp, sent now.
+         *
+         * @param timestamp The timestamp of the "sync" instruction.
+         */
+        public Frame(long timestamp) {
+            this.timestamp = timestamp;
+        }
+
+    }
+
+    /**
+     * All frames sent but not yet acknowledged, oldest first.
+     */
+    private final ConcurrentLinkedQueue<Frame> unacknowledged =
+            new ConcurrentLinkedQueue<Frame>();
+
+    /**
+     * The frame most recently sent, or null if no frame has been sent.
+     */
+    private volatile Frame newest = null;
+
+    /**
+     * The smoothed round-trip time, in nanoseconds, or -1 if no round-trip
+     * time has yet been measured.
+     */
+    private volatile long roundTripTime = -1;
+
+    /**
+     * The number of timestamps within the unacknowledged queue. This is
+     * tracked separately, as the size of a ConcurrentLinkedQueue is not a
+     * constant-time operation.
+     */
+    private final AtomicInteger framesBehind = new AtomicInteger();
+
+    /**
+     * The timestamp of the last frame acknowledged by the client, or -1 if
+     * no frame has yet been acknowledged.
+     */
+    private volatile long lastAcknowledged = -1;
+
+    /**
+     * Whether the scanner is within the value of an element, as opposed to
+     * the length prefix of an element.
+     */
+    private boolean inValue = false;
+
+    /**
+     * The length of the element being scanned, as parsed so far from its
+     * prefix, or the number of code points of its value still to be
+     * scanned.
+     */
+    private int remaining = 0;
+
+    /**
+     * The index of the element being scanned within the current
+     * instruction, where the opcode is element 0.
+     */
+    private int elementIndex = 0;
+
+    /**
+     * Whether the opcode of the instruction being scanned is "sync".
+     */
+    private boolean syncInstruction = false;
+
+    /**
+     * The retained characters of the element being scanned.
+     */
+    private final StringBuilder element = new StringBuilder(MAX_ELEMENT_LENGTH);
+
+    /**
+     * Records that the frame ending with a "sync" instruction having the
+     * given timestamp has been sent to the client. A frame may be reported
+     * more than once, for example both as it is read and as it is actually
+     * sent, in which case its round-trip time is measured from the most
+     * recent report. Frames must be reported in order by a single thread.
+     *
+     * @param timestamp The timestamp of the "sync" instruction sent.
+     */
+    public void frameSent(long timestamp) {
+
+        // Update send time of frames reported again
+        Frame last = newest;
+        if (last != null && timestamp <= last.timestamp) {
+            if (timestamp == last.timestamp)
+                last.sent = System.nanoTime();
+            return;
+        }
+
+        if (framesBehind.get() >= MAX_TRACKED_FRAMES)
+            return;
+
+        Frame frame = new Frame(timestamp);
+        newest = frame;
+        unacknowledged.add(frame);
+        framesBehind.incrementAndGet();
+
+    }
+
+    /**
+     * Records that the client has displayed all frames up to and including
+     * the frame ending with a "sync" instruction having the given timestamp,
+     * measuring the round-trip time of that frame.
+     *
+     * @param timestamp The timestamp acknowledged by the client.
+     */
+    public synchronized void frameAcknowledged(long timestamp) {
+
+        lastAcknowledged = timestamp;
+
+        // Forget all frames up to and including the acknowledged frame
+        Frame acknowledged = null;
+        Frame oldest;
+        while ((oldest = unacknowledged.peek()) != null && oldest.timestamp <= timestamp) {
+            if (unacknowledged.remove(oldest)) {
+                framesBehind.decrementAndGet();
+                acknowledged = oldest;
+            }
+        }
+
+        // Measure round trip of the acknowledged frame
+        if (acknowledged != null && acknowledged.timestamp == timestamp) {
+
+            long measured = System.nanoTime() - acknowledged.sent;
+            if (roundTripTime < 0)
+                roundTripTime = measured;
+            else
+                roundTripTime += (long) (RTT_WEIGHT * (measured - roundTripTime));
+
+        }
+
+    }
+
+    /**
+     * Returns the smoothed round-trip time of frames sent to the client,
+     * from the time each frame is sent to the time the client acknowledges
+     * having displayed it.
+     *
+     * @return The smoothed round-trip time, in nanoseconds, or -1 if no
+     *         round-trip time has yet been measured.
+     */
+    public long getRoundTripTime() {
+        return roundTripTime;
+    }
+
+    /**
+     * Returns the number of frames sent to the client which the client has
+     * not yet acknowledged.
+     *
+     * @return The number of frames the client is behind.
+     */
+    public int getFramesBehind() {
+        return framesBehind.get();
+    }
+
+    /**
+     * Returns the timestamp of the last frame acknowledged by the client.
+     *
+     * @return The timestamp of the last frame acknowledged, or -1 if no
+     *         frame has yet been acknowledged.
+     */
+    public long getLastAcknowledged() {
+        return lastAcknowledged;
+    }
+
+    /**
+     * Observes the given complete instruction sent by the client.
+     *
+     * @param instruction The instruction sent by the client.
+     */
+    public void observe(GuacamoleInstruction instruction) {
+
+        if (instruction.getOpcode().equals("sync")
+                && !instruction.getArgs().isEmpty())
+            acknowledge(instruction.getArgs().get(0));
+
+    }
+
+    /**
+     * Observes the given characters of the client's instruction stream.
+     *
+     * @param chunk An array of characters written by the client.
+     * @param off The offset of the first character to observe.
+     * @param len The number of characters to observe.
+     */
+    public synchronized void observe(char[] chunk, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            char c = chunk[i];
+            scan(c, Character.isLowSurrogate(c));
+        }
+    }
+
+    /**
+     * Observes the given UTF-8 bytes of the client's instruction stream.
+     *
+     * @param chunk An array of UTF-8 bytes written by the client.
+     * @param off The offset of the first byte to observe.
+     * @param len The number of bytes to observe.
+     */
+    public synchronized void observeUTF8(byte[] chunk, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            byte b = chunk[i];
+            scan(b & 0xFF, (b & 0xC0) == 0x80);
+        }
+    }
+
+    /**
+     * Advances the scanner by a single character or byte of the client's
+     * instruction stream. Element lengths are in code points, thus
+     * characters which continue a code point, such as low surrogates or
+     * UTF-8 continuation bytes, do not count toward the length. The monitor
+     * of this object must be held.
+     *
+     * @param c The character or byte.
+     * @param continuation Whether the character or byte continues the
+     *                     previous code point.
+     */
+    private void scan(int c, boolean continuation) {
+
+        // Consume the value of the current element
+        if (inValue) {
+
+            if (continuation || remaining > 0) {
+
+                if (!continuation)
+                    remaining--;
+
+                if (element.length() < MAX_ELEMENT_LENGTH)
+                    element.append((char) c);
+
+                return;
+
+            }
+
+            // Element complete
+            inValue = false;
+            if (elementIndex == 0)
+                syncInstruction = element.toString().equals("sync");
+            else if (elementIndex == 1 && syncInstruction)
+                acknowledge(element.toString());
+
+            // Next element, or end of instruction
+            elementIndex++;
+            if (c == ';') {
+                elementIndex = 0;
+                syncInstruction = false;
+            }
+
+            return;
+
+        }
+
+        // Parse length prefix until the value begins
+        if (c >= '0' && c <= '9')
+            remaining = remaining * 10 + (c - '0');
+        else if (c == '.') {
+            inValue = true;
+            element.setLength(0);
+        }
+
+    }
+
+    /**
+     * Records an acknowledgement of the frame having the given timestamp,
+     * ignoring the acknowledgement if the timestamp is malformed.
+     *
+     * @param timestamp The timestamp acknowledged by the client, as sent.
+     */
+    private void acknowledge(String timestamp) {
+
+        try {
+            frameAcknowledged(Long.parseLong(timestamp));
+        }
+
+        // Ignore malformed timestamps
+        catch (NumberFormatException e) {
+            // Nothing to acknowledge
+        }
+
+    }
+
+}
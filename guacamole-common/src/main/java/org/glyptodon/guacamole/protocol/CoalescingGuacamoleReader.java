@@ -0,0 +1,588 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.protocol;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.io.BufferedGuacamoleReader;
+import org.glyptodon.guacamole.io.GuacamoleReader;
+
+/**
+ * GuacamoleReader which drops updates that a lagging client would never
+ * get to see. Every "sync" instruction read is reported to a
+ * ClientSyncTracker. While the client is more than a given number of frames
+ * behind, each frame is read in full before any of it is returned, and
+ * within that frame:
+ *
+ * - all but the last "cursor" instruction are dropped,
+ * - all but the last "move" instruction of each layer are dropped, and
+ * - any "png" instruction which replaces (channel mask SRC) part of a layer
+ *   is dropped if a later "png" instruction in the same frame replaces an
+ *   area of the same layer containing it, and nothing between the two
+ *   reads from or changes the state of that layer.
+ *
+ * Instructions are never reordered, and no instruction relating to streams
+ * is ever dropped. While the client keeps up, instructions pass through
+ * untouched.
+ *
+ * @author Michael Jumper
+ */
+public class CoalescingGuacamoleReader implements BufferedGuacamoleReader {
+
+    /**
+     * The maximum number of characters of a single frame which will be
+     * buffered for coalescing. Larger frames are coalesced in parts.
+     */
+    private static final int MAX_BUFFERED_LENGTH = 1048576;
+
+    /**
+     * The channel mask of a "png" instruction which replaces the contents
+     * of the destination (SRC), in decimal as sent.
+     */
+    private static final String SRC_MASK = "12";
+
+    /**
+     * Opcodes of instructions which change the state of the layer given as
+     * their first argument in a way that affects how later images are drawn.
+     */
+    private static final Set<String> LAYER_STATE_OPCODES = new HashSet<String>(
+            Arrays.asList("size", "clip", "transform", "identity", "push",
+                    "pop", "reset", "set"));
+
+    /**
+     * The roles an instruction may have with respect to coalescing.
+     */
+    private enum Role {
+
+        /**
+         * Not relevant to coalescing.
+         */
+        OTHER,
+
+        /**
+         * A "cursor" instruction, which reads from its source layer.
+         */
+        CURSOR,
+
+        /**
+         * A "move" instruction.
+         */
+        MOVE,
+
+        /**
+         * A "png" instruction replacing a known area of its layer.
+         */
+        IMAGE,
+
+        /**
+         * An instruction which reads from a source layer.
+         */
+        READ,
+
+        /**
+         * An instruction which changes the state of a layer.
+         */
+        STATE,
+
+        /**
+         * A "dispose" instruction.
+         */
+        DISPOSE
+
+    }
+
+    /**
+     * A buffered instruction, along with the details relevant to
+     * coalescing.
+     */
+    private static class Entry {
+
+        /**
+         * The full instruction data.
+         */
+        private final char[] data;
+
+        /**
+         * The role of the instruction.
+         */
+        private Role role = Role.OTHER;
+
+        /**
+         * The layer affected by the instruction.
+         */
+        private int layer;
+
+        /**
+         * The layer read by the instruction, if it is a READ or CURSOR.
+         */
+        private int source;
+
+        /**
+         * The area replaced by the instruction, if it is an IMAGE.
+         */
+        private int x, y, width, height;
+
+        /**
+         * Whether the instruction has been dropped.
+         */
+        private boolean dropped = false;
+
+        /**
+         * Creates a new Entry containing a copy of the given instruction.
+         *
+         * @param view The instruction to copy.
+         */
+        public Entry(GuacamoleInstructionView view) {
+            int offset = view.getOffset();
+            data = Arrays.copyOfRange(view.getBuffer(), offset, offset + view.getLength());
+        }
+
+        /**
+         * Returns whether the area replaced by this IMAGE contains the area
+         * replaced by the given IMAGE.
+         *
+         * @param image The IMAGE to test.
+         * @return true if this image entirely replaces the given image,
+         *         false otherwise.
+         */
+        public boolean contains(Entry image) {
+            return x <= image.x && y <= image.y
+                && x + width  >= image.x + image.width
+                && y + height >= image.y + image.height;
+        }
+
+    }
+
+    /**
+     * The underlying GuacamoleReader.
+     */
+    private final GuacamoleReader reader;
+
+    /**
+     * The tracker to report sent frames to, and which determines whether
+     * the client is lagging.
+     */
+    private final ClientSyncTracker tracker;
+
+    /**
+     * The number of unacknowledged frames beyond which updates are
+     * coalesced.
+     */
+    private final int maxFramesBehind;
+
+    /**
+     * The remaining instructions of the frame most recently coalesced.
+     */
+    private final List<Entry> frame = new ArrayList<Entry>();
+
+    /**
+     * The index of the next instruction within the frame to return.
+     */
+    private int frameIndex = 0;
+
+    /**
+     * Whether the underlying reader reached the end of the stream while a
+     * frame was being buffered.
+     */
+    private boolean endOfStream = false;
+
+    /**
+     * The number of instructions dropped by this reader.
+     */
+    private long droppedCount = 0;
+
+    /**
+     * Reusable view of buffered instructions, and of instructions read from
+     * an underlying reader which cannot provide views itself.
+     */
+    private final GuacamoleInstructionView instructionView = new GuacamoleInstructionView();
+
+    /**
+     * Reusable view of the buffer containing the current instruction.
+     */
+    private CharBuffer bufferView;
+
+    /**
+     * Creates a new CoalescingGuacamoleReader which reads from the given
+     * reader, dropping superseded updates while the client is more than the
+     * given number of frames behind.
+     *
+     * @param reader The GuacamoleReader to read from.
+     * @param tracker The tracker which determines how many frames the client
+     *                is behind.
+     * @param maxFramesBehind The number of unacknowledged frames beyond which
+     *                        updates are coalesced.
+     */
+    public CoalescingGuacamoleReader(GuacamoleReader reader,
+            ClientSyncTracker tracker, int maxFramesBehind) {
+        this.reader = reader;
+        this.tracker = tracker;
+        this.maxFramesBehind = maxFramesBehind;
+    }
+
+    /**
+     * Returns the number of instructions this reader has dropped.
+     *
+     * @return The number of instructions dropped.
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    @Override
+    public boolean available() throws GuacamoleException {
+        return frameIndex < frame.size() || reader.available();
+    }
+
+    /**
+     * Reads a single instruction from the underlying reader, reporting the
+     * frame to the tracker if the instruction is a "sync".
+     *
+     * @return A view of the next instruction, which is valid only until the
+     *         next read, or null if the end of the stream has been reached.
+     * @throws GuacamoleException If an error occurs while reading.
+     */
+    private GuacamoleInstructionView readUncoalescedView()
+            throws GuacamoleException {
+
+        GuacamoleInstructionView view;
+
+        // Use view directly from underlying reader, if supported
+        if (reader instanceof BufferedGuacamoleReader)
+            view = ((BufferedGuacamoleReader) reader).readInstructionView();
+
+        // Otherwise, view serialized form of fully-parsed instruction
+        else {
+
+            GuacamoleInstruction instruction = reader.readInstruction();
+            if (instruction == null)
+                return null;
+
+            char[] data = instruction.toString().toCharArray();
+            instructionView.reset(data, 0, data.length);
+            view = instructionView;
+
+        }
+
+        // Report each frame sent
+        if (view != null && view.isOpcode("sync") && view.getArgCount() >= 1) {
+            try {
+                tracker.frameSent(Long.parseLong(view.getArg(0)));
+            }
+            catch (NumberFormatException e) {
+                // Ignore malformed timestamps
+            }
+        }
+
+        return view;
+
+    }
+
+    /**
+     * Creates an Entry for the given instruction, determining its role.
+     *
+     * @param view The instruction to buffer.
+     * @return A new Entry containing a copy of the given instruction.
+     */
+    private Entry buffer(GuacamoleInstructionView view) {
+
+        Entry entry = new Entry(view);
+        String opcode = view.getOpcode();
+        int argCount = view.getArgCount();
+
+        try {
+
+            // cursor,x,y,srclayer,srcx,srcy,w,h
+            if (opcode.equals("cursor") && argCount >= 3) {
+                entry.source = Integer.parseInt(view.getArg(2));
+                entry.role = Role.CURSOR;
+            }
+
+            // move,layer,parent,x,y,z
+            else if (opcode.equals("move") && argCount >= 1) {
+                entry.layer = Integer.parseInt(view.getArg(0));
+                entry.role = Role.MOVE;
+            }
+
+            // png,mask,layer,x,y,data (images replacing their area only)
+            else if (opcode.equals("png") && argCount >= 5
+                    && view.argEquals(0, SRC_MASK)) {
+
+                PNGHeader header = PNGHeader.read(view.getArgSequence(4));
+                if (header != null) {
+                    entry.layer  = Integer.parseInt(view.getArg(1));
+                    entry.x      = Integer.parseInt(view.getArg(2));
+                    entry.y      = Integer.parseInt(view.getArg(3));
+                    entry.width  = header.getWidth();
+                    entry.height = header.getHeight();
+                    entry.role   = Role.IMAGE;
+                }
+
+            }
+
+            // copy,srclayer,... and transfer,srclayer,...
+            else if ((opcode.equals("copy") || opcode.equals("transfer"))
+                    && argCount >= 1) {
+                entry.source = Integer.parseInt(view.getArg(0));
+                entry.role = Role.READ;
+            }
+
+            // lfill,mask,layer,srclayer
+            else if (opcode.equals("lfill") && argCount >= 3) {
+                entry.source = Integer.parseInt(view.getArg(2));
+                entry.role = Role.READ;
+            }
+
+            // lstroke,mask,layer,cap,join,thickness,srclayer
+            else if (opcode.equals("lstroke") && argCount >= 6) {
+                entry.source = Integer.parseInt(view.getArg(5));
+                entry.role = Role.READ;
+            }
+
+            // dispose,layer
+            else if (opcode.equals("dispose") && argCount >= 1) {
+                entry.layer = Integer.parseInt(view.getArg(0));
+                entry.role = Role.DISPOSE;
+            }
+
+            // size,layer,... clip,layer ... etc.
+            else if (LAYER_STATE_OPCODES.contains(opcode) && argCount >= 1) {
+                entry.layer = Integer.parseInt(view.getArg(0));
+                entry.role = Role.STATE;
+            }
+
+        }
+
+        // Never drop malformed instructions
+        catch (NumberFormatException e) {
+            entry.role = Role.OTHER;
+        }
+
+        return entry;
+
+    }
+
+    /**
+     * Marks all superseded instructions within the buffered frame as
+     * dropped, walking the frame backwards such that each instruction is
+     * compared only against the instructions which follow it.
+     */
+    private void coalesce() {
+
+        boolean cursorAhead = false;
+        Set<Integer> movedAhead = new HashSet<Integer>();
+        Map<Integer, List<Entry>> imagesAhead = new HashMap<Integer, List<Entry>>();
+
+        for (int i = frame.size() - 1; i >= 0; i--) {
+
+            Entry entry = frame.get(i);
+            switch (entry.role) {
+
+                // Only the last cursor is visible
+                case CURSOR:
+                    if (cursorAhead)
+                        entry.dropped = true;
+                    else {
+                        cursorAhead = true;
+                        imagesAhead.remove(entry.source);
+                    }
+                    break;
+
+                // Only the last position of each layer is visible
+                case MOVE:
+                    if (!movedAhead.add(entry.layer))
+                        entry.dropped = true;
+                    break;
+
+                // Drop images replaced in their entirety by later images
+                case IMAGE:
+
+                    List<Entry> images = imagesAhead.get(entry.layer);
+                    if (images == null) {
+                        images = new ArrayList<Entry>();
+                        imagesAhead.put(entry.layer, images);
+                    }
+
+                    for (Entry later : images) {
+                        if (later.contains(entry)) {
+                            entry.dropped = true;
+                            break;
+                        }
+                    }
+
+                    if (!entry.dropped)
+                        images.add(entry);
+
+                    break;
+
+                // Earlier images must be kept if their layer is read
+                case READ:
+                    imagesAhead.remove(entry.source);
+                    break;
+
+                // ... or if the state of their layer changes
+                case STATE:
+                    imagesAhead.remove(entry.layer);
+                    break;
+
+                // Disposal may also affect layers beneath the disposed layer
+                case DISPOSE:
+                    imagesAhead.remove(entry.layer);
+                    movedAhead.clear();
+                    break;
+
+            }
+
+        }
+
+        // Remove dropped instructions
+        int kept = 0;
+        for (Entry entry : frame) {
+            if (!entry.dropped)
+                frame.set(kept++, entry);
+        }
+
+        droppedCount += frame.size() - kept;
+        frame.subList(kept, frame.size()).clear();
+
+    }
+
+    /**
+     * Buffers the remainder of the current frame, starting with the given
+     * instruction, and coalesces the buffered instructions.
+     *
+     * @param first The first instruction of the frame to buffer.
+     * @throws GuacamoleException If an error occurs while reading.
+     */
+    private void bufferFrame(GuacamoleInstructionView first)
+            throws GuacamoleException {
+
+        Entry entry = buffer(first);
+        frame.add(entry);
+        int length = entry.data.length;
+
+        // Read through end of frame, unless the frame is very large
+        while (length < MAX_BUFFERED_LENGTH) {
+
+            GuacamoleInstructionView view = readUncoalescedView();
+            if (view == null) {
+                endOfStream = true;
+                break;
+            }
+
+            entry = buffer(view);
+            frame.add(entry);
+            length += entry.data.length;
+
+            if (view.isOpcode("sync"))
+                break;
+
+        }
+
+        coalesce();
+
+    }
+
+    @Override
+    public GuacamoleInstructionView readInstructionView() throws GuacamoleException {
+
+        // Return remaining instructions of coalesced frame, if any
+        if (frameIndex < frame.size()) {
+            char[] data = frame.get(frameIndex++).data;
+            instructionView.reset(data, 0, data.length);
+            return instructionView;
+        }
+
+        // Release coalesced frame once fully read
+        frame.clear();
+        frameIndex = 0;
+
+        if (endOfStream)
+            return null;
+
+        GuacamoleInstructionView view = readUncoalescedView();
+        if (view == null)
+            return null;
+
+        // Pass instructions through while the client is keeping up
+        if (view.isOpcode("sync")
+                || tracker.getFramesBehind() <= maxFramesBehind)
+            return view;
+
+        // Otherwise, coalesce the remainder of the frame
+        bufferFrame(view);
+        return readInstructionView();
+
+    }
+
+    @Override
+    public CharBuffer readBuffer() throws GuacamoleException {
+
+        GuacamoleInstructionView view = readInstructionView();
+        if (view == null)
+            return null;
+
+        // Wrap new buffer only if necessary
+        char[] data = view.getBuffer();
+        if (bufferView == null || bufferView.array() != data)
+            bufferView = CharBuffer.wrap(data);
+
+        bufferView.limit(view.getOffset() + view.getLength()).position(view.getOffset());
+        return bufferView;
+
+    }
+
+    @Override
+    public char[] read() throws GuacamoleException {
+
+        CharBuffer instructionBuffer = readBuffer();
+        if (instructionBuffer == null)
+            return null;
+
+        // Copy instruction data
+        char[] instruction = new char[instructionBuffer.remaining()];
+        instructionBuffer.get(instruction);
+
+        return instruction;
+
+    }
+
+    @Override
+    public GuacamoleInstruction readInstruction() throws GuacamoleException {
+
+        GuacamoleInstructionView view = readInstructionView();
+        if (view == null)
+            return null;
+
+        return view.toInstruction();
+
+    }
+
+}
@@ -26,9 +26,13 @@ package org.glyptodon.guacamole.protocol;
 import java.util.List;
 import org.glyptodon.guacamole.GuacamoleException;
 import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.io.FlushableGuacamoleWriter;
 import org.glyptodon.guacamole.io.GuacamoleReader;
 import org.glyptodon.guacamole.io.GuacamoleWriter;
 import org.glyptodon.guacamole.net.GuacamoleSocket;
+import org.glyptodon.guacamole.net.GuacamoleSocketPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * A GuacamoleSocket which pre-configures the connection based on a given
@@ -44,6 +48,11 @@ import org.glyptodon.guacamole.net.GuacamoleSocket;
  */
 public class ConfiguredGuacamoleSocket implements GuacamoleSocket {
 
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(ConfiguredGuacamoleSocket.class);
+
     /**
      * The wrapped socket.
      */
@@ -60,7 +69,36 @@ public class ConfiguredGuacamoleSocket implements GuacamoleSocket {
      * by the "ready" instruction received from the Guacamole proxy.
      */
     private String id;
-    
+
+    /**
+     * The number of nanoseconds between sending "select" and receiving
+     * "args".
+     */
+    private long argsWaitTime;
+
+    /**
+     * The number of nanoseconds between receiving "args" and receiving
+     * "ready".
+     */
+    private long readyWaitTime;
+
+    /**
+     * The value of System.nanoTime() when "args" was received.
+     */
+    private long argsReceived;
+
+    /**
+     * Sends any data buffered by the given writer, if the writer supports
+     * explicit flushing.
+     *
+     * @param writer The writer to flush.
+     * @throws GuacamoleException If an error occurs while flushing.
+     */
+    private static void flush(GuacamoleWriter writer) throws GuacamoleException {
+        if (writer instanceof FlushableGuacamoleWriter)
+            ((FlushableGuacamoleWriter) writer).flush();
+    }
+
     /**
      * Waits for the instruction having the given opcode, returning that
      * instruction once it has been read. If the instruction is never read,
@@ -125,9 +163,82 @@ public class ConfiguredGuacamoleSocket implements GuacamoleSocket {
         this.socket = socket;
         this.config = config;
 
-        // Get reader and writer
-        GuacamoleReader reader = socket.getReader();
-        GuacamoleWriter writer = socket.getWriter();
+        // Select protocol, then complete handshake
+        completeHandshake(select(socket, config), info);
+
+    }
+
+    /**
+     * Creates a new ConfiguredGuacamoleSocket which uses the given
+     * GuacamoleConfiguration and GuacamoleClientInformation to complete the
+     * initial protocol handshake over a GuacamoleSocket taken from the given
+     * pool. If the pool has no idle socket, or the idle socket turns out to
+     * be unusable, a newly-created socket is used instead.
+     *
+     * @param pool The GuacamoleSocketPool to take the GuacamoleSocket from.
+     * @param config The GuacamoleConfiguration to use to complete the initial
+     *               protocol handshake.
+     * @param info The GuacamoleClientInformation to use to complete the initial
+     *             protocol handshake.
+     * @throws GuacamoleException If an error occurs while connecting or
+     *                            completing the initial protocol handshake.
+     */
+    public ConfiguredGuacamoleSocket(GuacamoleSocketPool pool,
+            GuacamoleConfiguration config,
+            GuacamoleClientInformation info) throws GuacamoleException {
+
+        this.config = config;
+
+        GuacamoleInstruction args = null;
+
+        // Attempt to use idle socket, if any
+        GuacamoleSocket pooled = pool.poll();
+        if (pooled != null) {
+
+            try {
+                args = select(pooled, config);
+                socket = pooled;
+            }
+
+            // Pooled socket may have been closed by guacd while idle
+            catch (GuacamoleException e) {
+
+                logger.debug("Pooled socket to guacd unusable. Connecting new socket.", e);
+
+                try {
+                    pooled.close();
+                }
+                catch (GuacamoleException closeError) {
+                    logger.debug("Unable to close unusable pooled socket.", closeError);
+                }
+
+            }
+
+        }
+
+        // Fall back to new socket
+        if (socket == null) {
+            socket = pool.createSocket();
+            args = select(socket, config);
+        }
+
+        completeHandshake(args, info);
+
+    }
+
+    /**
+     * Sends the "select" instruction for the given configuration over the
+     * given socket, returning the "args" instruction sent in response.
+     *
+     * @param socket The GuacamoleSocket to perform the selection over.
+     * @param config The GuacamoleConfiguration describing the protocol or
+     *               connection to select.
+     * @return The "args" instruction received in response.
+     * @throws GuacamoleException If an error occurs while sending "select" or
+     *                            receiving "args".
+     */
+    private GuacamoleInstruction select(GuacamoleSocket socket,
+            GuacamoleConfiguration config) throws GuacamoleException {
 
         // Get protocol / connection ID
         String select_arg = config.getConnectionID();
@@ -135,10 +246,36 @@ public class ConfiguredGuacamoleSocket implements GuacamoleSocket {
             select_arg = config.getProtocol();
 
         // Send requested protocol or connection ID
+        GuacamoleWriter writer = socket.getWriter();
+        long selectSent = System.nanoTime();
         writer.writeInstruction(new GuacamoleInstruction("select", select_arg));
+        flush(writer);
 
         // Wait for server args
-        GuacamoleInstruction args = expect(reader, "args");
+        GuacamoleInstruction args = expect(socket.getReader(), "args");
+        argsReceived = System.nanoTime();
+        argsWaitTime = argsReceived - selectSent;
+
+        return args;
+
+    }
+
+    /**
+     * Completes the protocol handshake over the wrapped socket, responding to
+     * the given "args" instruction and waiting for "ready".
+     *
+     * @param args The "args" instruction received in response to "select".
+     * @param info The GuacamoleClientInformation to use to complete the
+     *             handshake.
+     * @throws GuacamoleException If an error occurs while completing the
+     *                            handshake.
+     */
+    private void completeHandshake(GuacamoleInstruction args,
+            GuacamoleClientInformation info) throws GuacamoleException {
+
+        // Get reader and writer
+        GuacamoleReader reader = socket.getReader();
+        GuacamoleWriter writer = socket.getWriter();
 
         // Build args list off provided names and config
         List<String> arg_names = args.getArgs();
@@ -159,8 +296,11 @@ public class ConfiguredGuacamoleSocket implements GuacamoleSocket {
 
         }
 
+        // Build remainder of handshake such that it is sent in one write
+        StringBuilder handshake = new StringBuilder();
+
         // Send size
-        writer.writeInstruction(
+        handshake.append(
             new GuacamoleInstruction(
                 "size",
                 Integer.toString(info.getOptimalScreenWidth()),
@@ -170,21 +310,25 @@ public class ConfiguredGuacamoleSocket implements GuacamoleSocket {
         );
 
         // Send supported audio formats
-        writer.writeInstruction(
+        handshake.append(
                 new GuacamoleInstruction(
                     "audio",
                     info.getAudioMimetypes().toArray(new String[0])
                 ));
 
         // Send supported video formats
-        writer.writeInstruction(
+        handshake.append(
                 new GuacamoleInstruction(
                     "video",
                     info.getVideoMimetypes().toArray(new String[0])
                 ));
 
         // Send args
-        writer.writeInstruction(new GuacamoleInstruction("connect", arg_values));
+        handshake.append(new GuacamoleInstruction("connect", arg_values));
+
+        // Send entire handshake at once
+        writer.write(handshake.toString().toCharArray());
+        flush(writer);
 
         // Wait for ready, store ID
         GuacamoleInstruction ready = expect(reader, "ready");
@@ -195,6 +339,10 @@ public class ConfiguredGuacamoleSocket implements GuacamoleSocket {
 
         id = ready.getArgs().get(0);
 
+        readyWaitTime = System.nanoTime() - argsReceived;
+        logger.debug("Handshake for connection \"{}\" completed. select->args: {} ms, args->ready: {} ms.",
+                id, argsWaitTime / 1000000.0, readyWaitTime / 1000000.0);
+
     }
 
     /**
@@ -219,6 +367,27 @@ public class ConfiguredGuacamoleSocket implements GuacamoleSocket {
         return id;
     }
 
+    /**
+     * Returns the number of nanoseconds that elapsed between sending the
+     * "select" instruction and receiving "args" from the Guacamole proxy.
+     *
+     * @return The time spent waiting for "args", in nanoseconds.
+     */
+    public long getArgsWaitTime() {
+        return argsWaitTime;
+    }
+
+    /**
+     * Returns the number of nanoseconds that elapsed between receiving the
+     * "args" instruction and receiving "ready" from the Guacamole proxy,
+     * including the time taken to send the remainder of the handshake.
+     *
+     * @return The time spent waiting for "ready", in nanoseconds.
+     */
+    public long getReadyWaitTime() {
+        return readyWaitTime;
+    }
+
     @Override
     public GuacamoleWriter getWriter() {
         return socket.getWriter();
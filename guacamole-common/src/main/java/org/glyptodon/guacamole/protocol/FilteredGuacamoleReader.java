@@ -22,7 +22,9 @@
 
 package org.glyptodon.guacamole.protocol;
 
+import java.nio.CharBuffer;
 import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.io.BufferedGuacamoleReader;
 import org.glyptodon.guacamole.io.GuacamoleReader;
 
 /**
@@ -30,9 +32,14 @@ import org.glyptodon.guacamole.io.GuacamoleReader;
  * read instructions. Instructions may also be dropped or denied by the the
  * filter.
  *
+ * If the wrapped GuacamoleReader is a BufferedGuacamoleReader, instructions
+ * are passed to the filter as GuacamoleInstructionViews when read via read(),
+ * readBuffer(), or readInstructionView(), and instructions which the filter
+ * allows through unchanged are never copied or re-serialized.
+ *
  * @author Michael Jumper
  */
-public class FilteredGuacamoleReader implements GuacamoleReader {
+public class FilteredGuacamoleReader implements BufferedGuacamoleReader {
 
     /**
      * The wrapped GuacamoleReader.
@@ -44,6 +51,19 @@ public class FilteredGuacamoleReader implements GuacamoleReader {
      */
     private final GuacamoleFilter filter;
 
+    /**
+     * Reusable view of instructions which did not originate from a view
+     * provided by the wrapped reader, such as instructions replaced by the
+     * filter.
+     */
+    private final GuacamoleInstructionView instructionView = new GuacamoleInstructionView();
+
+    /**
+     * Reusable CharBuffer returned by readBuffer(), recreated only when the
+     * buffer backing the returned instruction changes.
+     */
+    private CharBuffer bufferView;
+
     /**
      * Wraps the given GuacamoleReader, applying the given filter to all read
      * instructions. Future reads will return only instructions which pass
@@ -63,14 +83,94 @@ public class FilteredGuacamoleReader implements GuacamoleReader {
         return reader.available();
     }
 
+    /**
+     * Reads the next unfiltered instruction from the wrapped reader as a
+     * GuacamoleInstructionView, using the view provided by the wrapped reader
+     * if possible.
+     *
+     * @return A view of the next unfiltered instruction, or null if no more
+     *         instructions are available for reading.
+     * @throws GuacamoleException If an error occurs while reading from the
+     *                            wrapped reader.
+     */
+    private GuacamoleInstructionView readUnfilteredView()
+            throws GuacamoleException {
+
+        // Use view directly from wrapped reader, if supported
+        if (reader instanceof BufferedGuacamoleReader)
+            return ((BufferedGuacamoleReader) reader).readInstructionView();
+
+        // Otherwise, view serialized form of fully-parsed instruction
+        GuacamoleInstruction instruction = reader.readInstruction();
+        if (instruction == null)
+            return null;
+
+        char[] data = instruction.toString().toCharArray();
+        instructionView.reset(data, 0, data.length);
+        return instructionView;
+
+    }
+
+    @Override
+    public GuacamoleInstructionView readInstructionView() throws GuacamoleException {
+
+        // Read and filter instructions until no instructions are dropped
+        for (;;) {
+
+            // Read next instruction
+            GuacamoleInstructionView unfilteredInstruction = readUnfilteredView();
+            if (unfilteredInstruction == null)
+                return null;
+
+            // Apply filter
+            GuacamoleInstruction filteredInstruction = filter.filter(unfilteredInstruction);
+
+            // Skip dropped instructions
+            if (filteredInstruction == null)
+                continue;
+
+            // Pass through unchanged instructions as-is
+            if (filteredInstruction == unfilteredInstruction)
+                return unfilteredInstruction;
+
+            // View replacement instructions in serialized form
+            char[] data = filteredInstruction.toString().toCharArray();
+            instructionView.reset(data, 0, data.length);
+            return instructionView;
+
+        }
+
+    }
+
+    @Override
+    public CharBuffer readBuffer() throws GuacamoleException {
+
+        GuacamoleInstructionView view = readInstructionView();
+        if (view == null)
+            return null;
+
+        // Wrap new buffer only if necessary
+        char[] data = view.getBuffer();
+        if (bufferView == null || bufferView.array() != data)
+            bufferView = CharBuffer.wrap(data);
+
+        bufferView.limit(view.getOffset() + view.getLength()).position(view.getOffset());
+        return bufferView;
+
+    }
+
     @Override
     public char[] read() throws GuacamoleException {
 
-        GuacamoleInstruction filteredInstruction = readInstruction();
-        if (filteredInstruction == null)
+        CharBuffer filteredBuffer = readBuffer();
+        if (filteredBuffer == null)
             return null;
 
-        return filteredInstruction.toString().toCharArray();
+        // Copy instruction data
+        char[] filteredInstruction = new char[filteredBuffer.remaining()];
+        filteredBuffer.get(filteredInstruction);
+
+        return filteredInstruction;
         
     }
 
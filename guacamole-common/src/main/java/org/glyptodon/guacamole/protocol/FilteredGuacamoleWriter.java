@@ -23,17 +23,20 @@
 package org.glyptodon.guacamole.protocol;
 
 import org.glyptodon.guacamole.GuacamoleException;
-import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.io.FlushableGuacamoleWriter;
 import org.glyptodon.guacamole.io.GuacamoleWriter;
 
 /**
  * GuacamoleWriter which applies a given GuacamoleFilter to observe or alter
  * all written instructions. Instructions may also be dropped or denied by
- * the filter.
+ * the filter. Instructions may be split across calls to write(), in which
+ * case the incomplete remainder is held until the rest of the instruction
+ * is written. Calls to flush() are passed through to the wrapped
+ * GuacamoleWriter if it supports explicit flushing.
  *
  * @author Michael Jumper
  */
-public class FilteredGuacamoleWriter implements GuacamoleWriter {
+public class FilteredGuacamoleWriter implements FlushableGuacamoleWriter {
 
     /**
      * The wrapped GuacamoleWriter.
@@ -50,6 +53,12 @@ public class FilteredGuacamoleWriter implements GuacamoleWriter {
      * passed on to the filter.
      */
     private final GuacamoleParser parser = new GuacamoleParser();
+
+    /**
+     * Data written which the parser could not yet accept, being part of an
+     * element whose content has not been completely written.
+     */
+    private char[] pending = new char[0];
     
     /**
      * Wraps the given GuacamoleWriter, applying the given filter to all written 
@@ -68,6 +77,17 @@ public class FilteredGuacamoleWriter implements GuacamoleWriter {
     @Override
     public void write(char[] chunk, int offset, int length) throws GuacamoleException {
 
+        // Resume any incomplete element from the previous write
+        if (pending.length > 0) {
+            char[] joined = new char[pending.length + length];
+            System.arraycopy(pending, 0, joined, 0, pending.length);
+            System.arraycopy(chunk, offset, joined, pending.length, length);
+            chunk = joined;
+            offset = 0;
+            length = joined.length;
+            pending = new char[0];
+        }
+
         // Write all data in chunk
         while (length > 0) {
 
@@ -78,9 +98,13 @@ public class FilteredGuacamoleWriter implements GuacamoleWriter {
                 length -= parsed;
             }
 
-            // If no instruction is available, it must be incomplete
-            if (!parser.hasNext())
-                throw new GuacamoleServerException("Filtered write() contained an incomplete instruction.");
+            // If no instruction is available, hold remainder until the rest
+            // of the instruction is written
+            if (!parser.hasNext()) {
+                pending = new char[length];
+                System.arraycopy(chunk, offset, pending, 0, length);
+                return;
+            }
 
             // Write single instruction through filter
             writeInstruction(parser.next());
@@ -104,4 +128,10 @@ public class FilteredGuacamoleWriter implements GuacamoleWriter {
 
     }
 
+    @Override
+    public void flush() throws GuacamoleException {
+        if (writer instanceof FlushableGuacamoleWriter)
+            ((FlushableGuacamoleWriter) writer).flush();
+    }
+
 }
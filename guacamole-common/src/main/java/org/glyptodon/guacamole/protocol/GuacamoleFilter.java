@@ -38,6 +38,10 @@ public interface GuacamoleFilter {
      * instruction, a modified version of the original, or null, depending
      * on the implementation.
      *
+     * The given instruction may be a reusable GuacamoleInstructionView, which
+     * is only valid for the duration of this call. Implementations which need
+     * to retain the instruction must retain a copy.
+     *
      * @param instruction The instruction to filter.
      * @return The original instruction, if the instruction is to be allowed,
      *         a modified version of the instruction, if the instruction is
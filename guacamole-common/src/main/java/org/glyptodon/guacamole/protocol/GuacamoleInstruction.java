@@ -45,6 +45,21 @@ public class GuacamoleInstruction {
      */
     private List<String> args;
 
+    /**
+     * The form of this instruction as originally received over the Guacamole
+     * protocol, if known. If null, the protocol form of this instruction is
+     * rebuilt from the opcode and arguments when needed.
+     */
+    private String rawString;
+
+    /**
+     * Creates a new GuacamoleInstruction having no opcode or arguments. This
+     * constructor is intended only for subclasses which override
+     * getOpcode(), getArgs(), and toString() to provide their own contents.
+     */
+    protected GuacamoleInstruction() {
+    }
+
     /**
      * Creates a new GuacamoleInstruction having the given Operation and
      * list of arguments values.
@@ -72,6 +87,22 @@ public class GuacamoleInstruction {
         this.args = Collections.unmodifiableList(args);
     }
 
+    /**
+     * Creates a new GuacamoleInstruction having the given opcode and
+     * arguments, which was received over the Guacamole protocol in the given
+     * form. The given form will be returned by toString() rather than
+     * rebuilding the instruction from its opcode and arguments.
+     *
+     * @param opcode The opcode of the instruction to create.
+     * @param args The argument values to provide in the new instruction.
+     * @param rawString The form of the instruction as received over the
+     *                  Guacamole protocol.
+     */
+    GuacamoleInstruction(String opcode, String[] args, String rawString) {
+        this(opcode, args);
+        this.rawString = rawString;
+    }
+
     /**
      * Returns the opcode associated with this GuacamoleInstruction.
      * @return The opcode associated with this GuacamoleInstruction.
@@ -102,6 +133,10 @@ public class GuacamoleInstruction {
     @Override
     public String toString() {
 
+        // Use original form, if known
+        if (rawString != null)
+            return rawString;
+
         StringBuilder buff = new StringBuilder();
 
         // Write opcode
@@ -0,0 +1,435 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.protocol;
+
+import java.nio.CharBuffer;
+import java.util.AbstractList;
+import java.util.List;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+
+/**
+ * A reusable, mutable GuacamoleInstruction which refers directly to the
+ * characters of an instruction within an existing buffer. Only the locations
+ * of each element are recorded when the view is reset. The opcode and
+ * arguments are converted to Strings only when requested, and opcodes which
+ * have been seen before are not converted again.
+ *
+ * As the underlying buffer and the view itself are reused, a view is only
+ * valid until it is next reset. Code which needs to retain an instruction
+ * must call toInstruction() to obtain an independent copy.
+ *
+ * @author Michael Jumper
+ */
+public class GuacamoleInstructionView extends GuacamoleInstruction {
+
+    /**
+     * The number of distinct opcodes to remember, such that repeated
+     * instructions having the same opcode need not allocate a new String.
+     * This must be a power of two.
+     */
+    private static final int OPCODE_CACHE_SIZE = 64;
+
+    /**
+     * The buffer containing the instruction.
+     */
+    private char[] buffer;
+
+    /**
+     * The offset of the first character of the instruction within the buffer.
+     */
+    private int offset;
+
+    /**
+     * The length of the instruction, in characters, including the final
+     * semicolon.
+     */
+    private int length;
+
+    /**
+     * The number of elements in the instruction, including the opcode.
+     */
+    private int elementCount;
+
+    /**
+     * The offset of the content of each element within the buffer.
+     */
+    private int[] elementOffsets = new int[GuacamoleParser.INSTRUCTION_MAX_ELEMENTS];
+
+    /**
+     * The length of the content of each element, in characters.
+     */
+    private int[] elementLengths = new int[GuacamoleParser.INSTRUCTION_MAX_ELEMENTS];
+
+    /**
+     * Previously-converted opcodes, indexed by the hash of their characters.
+     */
+    private final String[] opcodeCache = new String[OPCODE_CACHE_SIZE];
+
+    /**
+     * The opcode of the current instruction, if it has been converted to a
+     * String.
+     */
+    private String opcode;
+
+    /**
+     * The arguments of the current instruction, if any have been converted
+     * to Strings. Each argument is converted only when first requested.
+     */
+    private String[] args = new String[GuacamoleParser.INSTRUCTION_MAX_ELEMENTS - 1];
+
+    /**
+     * Read-only List view of the arguments of the current instruction.
+     */
+    private final List<String> argList = new AbstractList<String>() {
+
+        @Override
+        public String get(int index) {
+            return getArg(index);
+        }
+
+        @Override
+        public int size() {
+            return getArgCount();
+        }
+
+    };
+
+    /**
+     * Creates a new GuacamoleInstructionView which does not yet refer to any
+     * instruction. The view must be reset before use.
+     */
+    public GuacamoleInstructionView() {
+    }
+
+    /**
+     * Points this view at the complete instruction contained within the given
+     * portion of the given buffer. The buffer is not copied, and must not be
+     * modified while this view is in use.
+     *
+     * @param buffer The buffer containing the instruction.
+     * @param offset The offset of the first character of the instruction.
+     * @param length The length of the instruction, including the final
+     *               semicolon.
+     * @throws GuacamoleException If the given data is not exactly one
+     *                            complete instruction.
+     */
+    public void reset(char[] buffer, int offset, int length)
+            throws GuacamoleException {
+
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        this.elementCount = 0;
+        this.opcode = null;
+
+        int end = offset + length;
+        int i = offset;
+
+        // Record the location of each element
+        while (i < end) {
+
+            // Parse length prefix
+            int elementLength = 0;
+            char c;
+            while (i < end && (c = buffer[i++]) != '.') {
+                if (c < '0' || c > '9')
+                    throw new GuacamoleServerException("Non-numeric character in element length.");
+                elementLength = elementLength * 10 + c - '0';
+            }
+
+            // Element and terminator must be within instruction
+            if (i + elementLength >= end)
+                throw new GuacamoleServerException("Instruction is incomplete.");
+
+            // Grow element storage if necessary
+            if (elementCount == elementOffsets.length) {
+                int[] biggerOffsets = new int[elementCount * 2];
+                int[] biggerLengths = new int[elementCount * 2];
+                System.arraycopy(elementOffsets, 0, biggerOffsets, 0, elementCount);
+                System.arraycopy(elementLengths, 0, biggerLengths, 0, elementCount);
+                elementOffsets = biggerOffsets;
+                elementLengths = biggerLengths;
+                args = new String[elementCount * 2 - 1];
+            }
+
+            // Forget any argument converted for a previous instruction
+            if (elementCount > 0)
+                args[elementCount - 1] = null;
+
+            elementOffsets[elementCount] = i;
+            elementLengths[elementCount] = elementLength;
+            elementCount++;
+
+            // Read terminator
+            i += elementLength;
+            char terminator = buffer[i++];
+
+            // Semicolon must end the instruction
+            if (terminator == ';') {
+                if (i != end)
+                    throw new GuacamoleServerException("Data follows end of instruction.");
+                return;
+            }
+
+            // Otherwise, must be a comma
+            else if (terminator != ',')
+                throw new GuacamoleServerException("Element terminator of instruction was not ';' nor ','");
+
+        }
+
+        throw new GuacamoleServerException("Instruction is incomplete.");
+
+    }
+
+    /**
+     * Points this view at the complete instruction contained within the
+     * remaining characters of the given CharBuffer, which must be backed by
+     * an accessible array.
+     *
+     * @param instruction A CharBuffer whose remaining characters are exactly
+     *                    one complete instruction.
+     * @throws GuacamoleException If the given data is not exactly one
+     *                            complete instruction.
+     */
+    public void reset(CharBuffer instruction) throws GuacamoleException {
+        reset(instruction.array(),
+                instruction.arrayOffset() + instruction.position(),
+                instruction.remaining());
+    }
+
+    /**
+     * Returns whether the content of the given element is equal to the given
+     * String, without converting that element to a String.
+     *
+     * @param element The index of the element, where 0 is the opcode.
+     * @param value The String to compare against.
+     * @return true if the element is equal to the given String, false
+     *         otherwise.
+     */
+    private boolean elementEquals(int element, String value) {
+
+        int elementLength = elementLengths[element];
+        if (elementLength != value.length())
+            return false;
+
+        int elementOffset = elementOffsets[element];
+        for (int i=0; i<elementLength; i++) {
+            if (buffer[elementOffset + i] != value.charAt(i))
+                return false;
+        }
+
+        return true;
+
+    }
+
+    /**
+     * Returns whether the opcode of this instruction is equal to the given
+     * opcode. Unlike getOpcode(), this never allocates.
+     *
+     * @param opcode The opcode to compare against.
+     * @return true if the opcode of this instruction is the given opcode,
+     *         false otherwise.
+     */
+    public boolean isOpcode(String opcode) {
+        return elementEquals(0, opcode);
+    }
+
+    @Override
+    public String getOpcode() {
+
+        // Use previously-determined opcode, if any
+        if (opcode != null)
+            return opcode;
+
+        int opcodeOffset = elementOffsets[0];
+        int opcodeLength = elementLengths[0];
+
+        // Locate cached opcode by hash of characters
+        int hash = 0;
+        for (int i=0; i<opcodeLength; i++)
+            hash = 31 * hash + buffer[opcodeOffset + i];
+
+        int index = (hash ^ (hash >>> 16)) & (OPCODE_CACHE_SIZE - 1);
+
+        // Convert and cache opcode only if not already cached
+        String cached = opcodeCache[index];
+        if (cached == null || !elementEquals(0, cached)) {
+            cached = new String(buffer, opcodeOffset, opcodeLength);
+            opcodeCache[index] = cached;
+        }
+
+        opcode = cached;
+        return opcode;
+
+    }
+
+    /**
+     * Returns the number of arguments of this instruction, not including the
+     * opcode.
+     *
+     * @return The number of arguments of this instruction.
+     */
+    public int getArgCount() {
+        return elementCount - 1;
+    }
+
+    /**
+     * Returns whether the argument at the given index is equal to the given
+     * String, without converting that argument to a String.
+     *
+     * @param index The index of the argument, where 0 is the first argument
+     *              following the opcode.
+     * @param value The String to compare against.
+     * @return true if the argument is equal to the given String, false
+     *         otherwise.
+     * @throws IndexOutOfBoundsException If no such argument exists.
+     */
+    public boolean argEquals(int index, String value) {
+
+        if (index < 0 || index >= getArgCount())
+            throw new IndexOutOfBoundsException("No argument at index " + index + ".");
+
+        return elementEquals(index + 1, value);
+
+    }
+
+    /**
+     * Returns the argument at the given index as a CharSequence which refers
+     * directly to the underlying buffer. Like this view, the returned
+     * CharSequence is only valid until this view is next reset.
+     *
+     * @param index The index of the argument, where 0 is the first argument
+     *              following the opcode.
+     * @return The argument at the given index.
+     * @throws IndexOutOfBoundsException If no such argument exists.
+     */
+    public CharSequence getArgSequence(int index) {
+
+        if (index < 0 || index >= getArgCount())
+            throw new IndexOutOfBoundsException("No argument at index " + index + ".");
+
+        return CharBuffer.wrap(buffer, elementOffsets[index + 1],
+                elementLengths[index + 1]);
+
+    }
+
+    /**
+     * Returns the argument at the given index, converting that argument to a
+     * String if it has not already been converted.
+     *
+     * @param index The index of the argument, where 0 is the first argument
+     *              following the opcode.
+     * @return The argument at the given index.
+     * @throws IndexOutOfBoundsException If no such argument exists.
+     */
+    public String getArg(int index) {
+
+        if (index < 0 || index >= getArgCount())
+            throw new IndexOutOfBoundsException("No argument at index " + index + ".");
+
+        // Convert argument only once
+        String arg = args[index];
+        if (arg == null) {
+            arg = new String(buffer, elementOffsets[index + 1],
+                    elementLengths[index + 1]);
+            args[index] = arg;
+        }
+
+        return arg;
+
+    }
+
+    /**
+     * Returns a read-only List of all arguments of this instruction. Each
+     * argument is converted to a String only when retrieved from the List.
+     * Like this view, the returned List reflects whichever instruction this
+     * view currently refers to.
+     *
+     * @return A read-only List of all arguments of this instruction.
+     */
+    @Override
+    public List<String> getArgs() {
+        return argList;
+    }
+
+    /**
+     * Returns the buffer containing the instruction this view refers to.
+     *
+     * @return The buffer containing the instruction.
+     */
+    public char[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Returns the offset of the first character of the instruction within the
+     * buffer returned by getBuffer().
+     *
+     * @return The offset of the first character of the instruction.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns the length of the instruction, in characters, including the
+     * final semicolon.
+     *
+     * @return The length of the instruction.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns an independent, immutable copy of the instruction this view
+     * currently refers to. The copy remains valid after this view is reset,
+     * and retains the original form of the instruction for toString().
+     *
+     * @return A new GuacamoleInstruction having the same opcode and arguments
+     *         as this view.
+     */
+    public GuacamoleInstruction toInstruction() {
+
+        String[] values = new String[getArgCount()];
+        for (int i=0; i<values.length; i++)
+            values[i] = getArg(i);
+
+        return new GuacamoleInstruction(getOpcode(), values, toString());
+
+    }
+
+    /**
+     * Returns the instruction this view refers to exactly as it appears
+     * within the underlying buffer.
+     *
+     * @return The instruction this view refers to, in the form it would be
+     *         sent over the Guacamole protocol.
+     */
+    @Override
+    public String toString() {
+        return new String(buffer, offset, length);
+    }
+
+}
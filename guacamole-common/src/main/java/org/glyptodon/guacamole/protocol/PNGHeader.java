@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.protocol;
+
+/**
+ * The dimensions of a PNG image, as read from the header of the
+ * base64-encoded image data sent within a "png" instruction. Only the start
+ * of the data is decoded, so reading the dimensions of even large images is
+ * cheap.
+ *
+ * @author Michael Jumper
+ */
+public class PNGHeader {
+
+    /**
+     * The number of base64 characters which must be decoded to read the
+     * dimensions of a PNG image from its header.
+     */
+    private static final int BASE64_LENGTH = 32;
+
+    /**
+     * The first eight bytes of every PNG image.
+     */
+    private static final byte[] SIGNATURE = {
+        (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'
+    };
+
+    /**
+     * The width of the image, in pixels.
+     */
+    private final int width;
+
+    /**
+     * The height of the image, in pixels.
+     */
+    private final int height;
+
+    /**
+     * Creates a new PNGHeader describing an image having the given
+     * dimensions.
+     *
+     * @param width The width of the image, in pixels.
+     * @param height The height of the image, in pixels.
+     */
+    private PNGHeader(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Reads the header of the given base64-encoded PNG image.
+     *
+     * @param data The base64-encoded PNG image.
+     * @return The header of the given image, or null if the data is not a
+     *         base64-encoded PNG image.
+     */
+    public static PNGHeader read(CharSequence data) {
+
+        if (data.length() < BASE64_LENGTH)
+            return null;
+
+        // Decode start of PNG header
+        byte[] header;
+        try {
+            header = Base64Codec.decode(data, BASE64_LENGTH);
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        // Verify signature
+        for (int i = 0; i < SIGNATURE.length; i++) {
+            if (header[i] != SIGNATURE[i])
+                return null;
+        }
+
+        // Width and height are the first fields of the IHDR chunk
+        return new PNGHeader(readInt(header, 16), readInt(header, 20));
+
+    }
+
+    /**
+     * Returns the width of the image.
+     *
+     * @return The width of the image, in pixels.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the image.
+     *
+     * @return The height of the image, in pixels.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Reads a big-endian 32-bit integer from the given array.
+     *
+     * @param data The array to read from.
+     * @param offset The offset of the first byte of the integer.
+     * @return The integer read.
+     */
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset]     & 0xFF) << 24)
+             | ((data[offset + 1] & 0xFF) << 16)
+             | ((data[offset + 2] & 0xFF) << 8)
+             |  (data[offset + 3] & 0xFF);
+    }
+
+}
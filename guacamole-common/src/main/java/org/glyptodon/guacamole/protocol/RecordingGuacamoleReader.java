@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.io.BufferedGuacamoleReader;
+import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.io.UTF8GuacamoleReader;
+import org.glyptodon.guacamole.recording.SessionRecorder;
+
+/**
+ * GuacamoleReader which passes a copy of every instruction read to a
+ * SessionRecorder. Instructions are read from the wrapped GuacamoleReader
+ * using whichever of read(), readBuffer(), readInstructionView() or
+ * readUTF8() is called, such that wrapping a reader with recording does not
+ * change how its data is copied or decoded. The cost of recording within the
+ * reading thread is limited to copying each instruction into the recorder's
+ * queue.
+ *
+ * @author Michael Jumper
+ */
+public class RecordingGuacamoleReader implements UTF8GuacamoleReader,
+        BufferedGuacamoleReader {
+
+    /**
+     * The UTF-8 character set.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The wrapped GuacamoleReader.
+     */
+    private final GuacamoleReader reader;
+
+    /**
+     * The recorder receiving a copy of each instruction read.
+     */
+    private final SessionRecorder recorder;
+
+    /**
+     * Reusable view of instructions which did not originate from a view
+     * provided by the wrapped reader.
+     */
+    private final GuacamoleInstructionView instructionView = new GuacamoleInstructionView();
+
+    /**
+     * Wraps the given GuacamoleReader, recording all read instructions using
+     * the given recorder.
+     *
+     * @param reader The GuacamoleReader to wrap.
+     * @param recorder The recorder which should receive a copy of each
+     *                 instruction read.
+     */
+    public RecordingGuacamoleReader(GuacamoleReader reader,
+            SessionRecorder recorder) {
+        this.reader = reader;
+        this.recorder = recorder;
+    }
+
+    @Override
+    public boolean available() throws GuacamoleException {
+        return reader.available();
+    }
+
+    @Override
+    public ByteBuffer readUTF8() throws GuacamoleException {
+
+        // Record raw UTF-8 if supported by wrapped reader
+        if (reader instanceof UTF8GuacamoleReader) {
+
+            ByteBuffer instruction = ((UTF8GuacamoleReader) reader).readUTF8();
+            if (instruction != null)
+                recorder.record(instruction);
+
+            return instruction;
+
+        }
+
+        // Otherwise, encode recorded characters
+        char[] instruction = read();
+        if (instruction == null)
+            return null;
+
+        return UTF8.encode(CharBuffer.wrap(instruction));
+
+    }
+
+    @Override
+    public CharBuffer readBuffer() throws GuacamoleException {
+
+        // Record buffer directly if supported by wrapped reader
+        if (reader instanceof BufferedGuacamoleReader) {
+
+            CharBuffer instruction = ((BufferedGuacamoleReader) reader).readBuffer();
+            if (instruction != null)
+                recorder.record(instruction);
+
+            return instruction;
+
+        }
+
+        // Otherwise, wrap recorded characters
+        char[] instruction = read();
+        if (instruction == null)
+            return null;
+
+        return CharBuffer.wrap(instruction);
+
+    }
+
+    @Override
+    public GuacamoleInstructionView readInstructionView() throws GuacamoleException {
+
+        // Record viewed instruction directly if supported by wrapped reader
+        if (reader instanceof BufferedGuacamoleReader) {
+
+            GuacamoleInstructionView instruction = ((BufferedGuacamoleReader) reader).readInstructionView();
+            if (instruction != null)
+                recorder.record(instruction.getBuffer(),
+                        instruction.getOffset(), instruction.getLength());
+
+            return instruction;
+
+        }
+
+        // Otherwise, view recorded characters
+        char[] instruction = read();
+        if (instruction == null)
+            return null;
+
+        instructionView.reset(instruction, 0, instruction.length);
+        return instructionView;
+
+    }
+
+    @Override
+    public char[] read() throws GuacamoleException {
+
+        char[] instruction = reader.read();
+        if (instruction != null)
+            recorder.record(instruction, 0, instruction.length);
+
+        return instruction;
+
+    }
+
+    @Override
+    public GuacamoleInstruction readInstruction() throws GuacamoleException {
+
+        GuacamoleInstruction instruction = reader.readInstruction();
+        if (instruction != null) {
+            char[] data = instruction.toString().toCharArray();
+            recorder.record(data, 0, data.length);
+        }
+
+        return instruction;
+
+    }
+
+}
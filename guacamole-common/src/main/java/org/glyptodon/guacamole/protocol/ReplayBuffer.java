@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.protocol;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Bounded buffer of all instructions sent to a client since the last frame
+ * the client acknowledged, such that a client which reconnects after losing
+ * its connection can be sent everything it may have missed. Instructions
+ * are discarded as soon as the client acknowledges a later frame.
+ *
+ * If the unacknowledged instructions would exceed the maximum length of the
+ * buffer, all buffered instructions are discarded and the buffer is marked
+ * incomplete, becoming complete again once the client acknowledges a frame
+ * sent after that point. Only a complete buffer can be replayed.
+ *
+ * @author Michael Jumper
+ */
+public class ReplayBuffer {
+
+    /**
+     * The default maximum length of the buffer, in characters.
+     */
+    public static final int DEFAULT_MAX_LENGTH = 1048576;
+
+    /**
+     * The prefix of every "sync" instruction.
+     */
+    private static final String SYNC_PREFIX = "4.sync,";
+
+    /**
+     * The maximum total length of all buffered instructions, in characters.
+     */
+    private final int maxLength;
+
+    /**
+     * All instructions sent but not yet acknowledged, in order.
+     */
+    private final Deque<char[]> instructions = new ArrayDeque<char[]>();
+
+    /**
+     * The timestamp of each buffered "sync" instruction, paired with the
+     * sequence number of the instruction following it, in order.
+     */
+    private final Deque<long[]> syncs = new ArrayDeque<long[]>();
+
+    /**
+     * The sequence number of the first buffered instruction.
+     */
+    private long firstSequence = 0;
+
+    /**
+     * The sequence number of the next instruction to be buffered.
+     */
+    private long nextSequence = 0;
+
+    /**
+     * The total length of all buffered instructions, in characters.
+     */
+    private long length = 0;
+
+    /**
+     * Whether the buffer contains every unacknowledged instruction.
+     */
+    private boolean complete = true;
+
+    /**
+     * Instructions remaining to be replayed, or null if not replaying.
+     */
+    private Deque<char[]> replay;
+
+    /**
+     * Whether replay should begin the next time an instruction is polled
+     * with pollReplay(long).
+     */
+    private boolean replayRequested = false;
+
+    /**
+     * Creates a new ReplayBuffer which buffers at most the given number of
+     * characters.
+     *
+     * @param maxLength The maximum total length of all buffered
+     *                  instructions, in characters.
+     */
+    public ReplayBuffer(int maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Creates a new ReplayBuffer which buffers at most DEFAULT_MAX_LENGTH
+     * characters.
+     */
+    public ReplayBuffer() {
+        this(DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * Returns the timestamp of the given instruction if it is a "sync"
+     * instruction.
+     *
+     * @param instruction The instruction to test.
+     * @return The timestamp of the given "sync" instruction, or -1 if the
+     *         instruction is not a "sync".
+     */
+    private static long getSyncTimestamp(char[] instruction) {
+
+        if (instruction.length <= SYNC_PREFIX.length())
+            return -1;
+
+        for (int i = 0; i < SYNC_PREFIX.length(); i++) {
+            if (instruction[i] != SYNC_PREFIX.charAt(i))
+                return -1;
+        }
+
+        // Parse timestamp following its length prefix
+        long timestamp = 0;
+        for (int i = SYNC_PREFIX.length(); i < instruction.length; i++) {
+            char c = instruction[i];
+            if (c == '.')
+                timestamp = 0;
+            else if (c >= '0' && c <= '9')
+                timestamp = timestamp * 10 + (c - '0');
+            else
+                break;
+        }
+
+        return timestamp;
+
+    }
+
+    /**
+     * Discards all instructions up to and including the last "sync"
+     * instruction acknowledged by the client.
+     *
+     * @param lastAcknowledged The timestamp of the last frame acknowledged
+     *                         by the client, or -1 if none.
+     */
+    private void trim(long lastAcknowledged) {
+
+        while (!syncs.isEmpty() && syncs.peekFirst()[0] <= lastAcknowledged) {
+
+            long end = syncs.pollFirst()[1];
+            while (firstSequence < end) {
+                length -= instructions.pollFirst().length;
+                firstSequence++;
+            }
+
+            // Nothing preceding an acknowledged frame can have been missed
+            complete = true;
+
+        }
+
+    }
+
+    /**
+     * Adds a copy of the given instruction, which has just been sent to the
+     * client, discarding any instructions which the client has since
+     * acknowledged.
+     *
+     * @param instruction An array containing the instruction.
+     * @param offset The offset of the instruction within the array.
+     * @param len The length of the instruction, in characters.
+     * @param lastAcknowledged The timestamp of the last frame acknowledged
+     *                         by the client, or -1 if none.
+     */
+    public synchronized void add(char[] instruction, int offset, int len,
+            long lastAcknowledged) {
+
+        trim(lastAcknowledged);
+
+        char[] copy = new char[len];
+        System.arraycopy(instruction, offset, copy, 0, len);
+
+        instructions.addLast(copy);
+        nextSequence++;
+        length += len;
+
+        long timestamp = getSyncTimestamp(copy);
+        if (timestamp != -1)
+            syncs.addLast(new long[] { timestamp, nextSequence });
+
+        // Give up on unacknowledged data if it has grown too large
+        if (length > maxLength) {
+            instructions.clear();
+            syncs.clear();
+            firstSequence = nextSequence;
+            length = 0;
+            complete = false;
+        }
+
+    }
+
+    /**
+     * Returns whether this buffer contains every instruction the client may
+     * not yet have received, and thus can be replayed.
+     *
+     * @return true if this buffer is complete, false otherwise.
+     */
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Returns the total length of all buffered instructions.
+     *
+     * @return The total length of all buffered instructions, in characters.
+     */
+    public synchronized long getLength() {
+        return length;
+    }
+
+    /**
+     * Begins replaying all instructions which the client has not
+     * acknowledged, such that they are returned by pollReplay() in order.
+     * Instructions remain buffered until acknowledged.
+     *
+     * @param lastAcknowledged The timestamp of the last frame acknowledged
+     *                         by the client, or -1 if none.
+     */
+    public synchronized void beginReplay(long lastAcknowledged) {
+        trim(lastAcknowledged);
+        replay = new ArrayDeque<char[]>(instructions);
+    }
+
+    /**
+     * Requests that replay begin when the next instruction is polled with
+     * pollReplay(long), rather than immediately. Unlike beginReplay(), this
+     * includes any instructions added by a reader which is still finishing
+     * a read on behalf of a client which has since gone, as the replay only
+     * begins once the reader of the returning client polls.
+     */
+    public synchronized void requestReplay() {
+        replayRequested = true;
+    }
+
+    /**
+     * Returns whether instructions remain to be replayed.
+     *
+     * @return true if instructions remain to be replayed, false otherwise.
+     */
+    public synchronized boolean hasReplay() {
+        return replayRequested || (replay != null && !replay.isEmpty());
+    }
+
+    /**
+     * Removes and returns the next instruction to be replayed.
+     *
+     * @return The next instruction to be replayed, or null if no
+     *         instructions remain to be replayed.
+     */
+    public synchronized char[] pollReplay() {
+
+        if (replay == null)
+            return null;
+
+        char[] instruction = replay.pollFirst();
+        if (instruction == null)
+            replay = null;
+
+        return instruction;
+
+    }
+
+    /**
+     * Begins replay if requested with requestReplay(), and then removes and
+     * returns the next instruction to be replayed.
+     *
+     * @param lastAcknowledged The timestamp of the last frame acknowledged
+     *                         by the client, or -1 if none.
+     * @return The next instruction to be replayed, or null if no
+     *         instructions remain to be replayed.
+     */
+    public synchronized char[] pollReplay(long lastAcknowledged) {
+
+        if (replayRequested) {
+            replayRequested = false;
+            beginReplay(lastAcknowledged);
+        }
+
+        return pollReplay();
+
+    }
+
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.io.BufferedGuacamoleReader;
+import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.io.UTF8GuacamoleReader;
+
+/**
+ * GuacamoleReader which first returns any instructions being replayed from
+ * a ReplayBuffer, and then passes a copy of every instruction read from the
+ * wrapped GuacamoleReader to that buffer. As with RecordingGuacamoleReader,
+ * instructions are read from the wrapped reader using whichever of read(),
+ * readBuffer(), readInstructionView() or readUTF8() is called.
+ *
+ * @author Michael Jumper
+ */
+public class ReplayGuacamoleReader implements UTF8GuacamoleReader,
+        BufferedGuacamoleReader {
+
+    /**
+     * The UTF-8 character set.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The wrapped GuacamoleReader.
+     */
+    private final GuacamoleReader reader;
+
+    /**
+     * The buffer receiving a copy of each instruction read.
+     */
+    private final ReplayBuffer buffer;
+
+    /**
+     * The tracker of the frames acknowledged by the client.
+     */
+    private final ClientSyncTracker tracker;
+
+    /**
+     * Reusable view of replayed instructions and instructions which did not
+     * originate from a view provided by the wrapped reader.
+     */
+    private final GuacamoleInstructionView instructionView = new GuacamoleInstructionView();
+
+    /**
+     * Parser used by readInstruction() for replayed instructions.
+     */
+    private final GuacamoleParser parser = new GuacamoleParser();
+
+    /**
+     * Wraps the given GuacamoleReader, replaying instructions from and
+     * adding all read instructions to the given buffer.
+     *
+     * @param reader The GuacamoleReader to wrap.
+     * @param buffer The buffer to replay instructions from and to receive a
+     *               copy of each instruction read.
+     * @param tracker The tracker of the frames acknowledged by the client,
+     *                used to discard acknowledged instructions.
+     */
+    public ReplayGuacamoleReader(GuacamoleReader reader, ReplayBuffer buffer,
+            ClientSyncTracker tracker) {
+        this.reader = reader;
+        this.buffer = buffer;
+        this.tracker = tracker;
+    }
+
+    @Override
+    public boolean available() throws GuacamoleException {
+        return buffer.hasReplay() || reader.available();
+    }
+
+    @Override
+    public ByteBuffer readUTF8() throws GuacamoleException {
+
+        // Replay before reading more
+        char[] replayed = buffer.pollReplay(tracker.getLastAcknowledged());
+        if (replayed != null)
+            return UTF8.encode(CharBuffer.wrap(replayed));
+
+        // Buffer decoded copy of raw UTF-8 if supported by wrapped reader
+        if (reader instanceof UTF8GuacamoleReader) {
+
+            ByteBuffer instruction = ((UTF8GuacamoleReader) reader).readUTF8();
+            if (instruction != null) {
+                CharBuffer decoded = UTF8.decode(instruction.duplicate());
+                buffer.add(decoded.array(), decoded.arrayOffset() + decoded.position(),
+                        decoded.remaining(), tracker.getLastAcknowledged());
+            }
+
+            return instruction;
+
+        }
+
+        // Otherwise, encode buffered characters
+        char[] instruction = read();
+        if (instruction == null)
+            return null;
+
+        return UTF8.encode(CharBuffer.wrap(instruction));
+
+    }
+
+    @Override
+    public CharBuffer readBuffer() throws GuacamoleException {
+
+        // Replay before reading more
+        char[] replayed = buffer.pollReplay(tracker.getLastAcknowledged());
+        if (replayed != null)
+            return CharBuffer.wrap(replayed);
+
+        // Buffer directly if supported by wrapped reader
+        if (reader instanceof BufferedGuacamoleReader) {
+
+            CharBuffer instruction = ((BufferedGuacamoleReader) reader).readBuffer();
+            if (instruction != null)
+                buffer.add(instruction.array(),
+                        instruction.arrayOffset() + instruction.position(),
+                        instruction.remaining(), tracker.getLastAcknowledged());
+
+            return instruction;
+
+        }
+
+        // Otherwise, wrap buffered characters
+        char[] instruction = read();
+        if (instruction == null)
+            return null;
+
+        return CharBuffer.wrap(instruction);
+
+    }
+
+    @Override
+    public GuacamoleInstructionView readInstructionView() throws GuacamoleException {
+
+        // Replay before reading more
+        char[] replayed = buffer.pollReplay(tracker.getLastAcknowledged());
+        if (replayed != null) {
+            instructionView.reset(replayed, 0, replayed.length);
+            return instructionView;
+        }
+
+        // Buffer viewed instruction directly if supported by wrapped reader
+        if (reader instanceof BufferedGuacamoleReader) {
+
+            GuacamoleInstructionView instruction = ((BufferedGuacamoleReader) reader).readInstructionView();
+            if (instruction != null)
+                buffer.add(instruction.getBuffer(), instruction.getOffset(),
+                        instruction.getLength(), tracker.getLastAcknowledged());
+
+            return instruction;
+
+        }
+
+        // Otherwise, view buffered characters
+        char[] instruction = read();
+        if (instruction == null)
+            return null;
+
+        instructionView.reset(instruction, 0, instruction.length);
+        return instructionView;
+
+    }
+
+    @Override
+    public char[] read() throws GuacamoleException {
+
+        // Replay before reading more
+        char[] replayed = buffer.pollReplay(tracker.getLastAcknowledged());
+        if (replayed != null)
+            return replayed;
+
+        char[] instruction = reader.read();
+        if (instruction != null)
+            buffer.add(instruction, 0, instruction.length,
+                    tracker.getLastAcknowledged());
+
+        return instruction;
+
+    }
+
+    @Override
+    public GuacamoleInstruction readInstruction() throws GuacamoleException {
+
+        // Replay before reading more
+        char[] replayed = buffer.pollReplay(tracker.getLastAcknowledged());
+        if (replayed != null) {
+
+            // Every buffered instruction is complete
+            int offset = 0;
+            while (offset < replayed.length)
+                offset += parser.append(replayed, offset, replayed.length - offset);
+
+            return parser.next();
+
+        }
+
+        GuacamoleInstruction instruction = reader.readInstruction();
+        if (instruction != null) {
+            char[] data = instruction.toString().toCharArray();
+            buffer.add(data, 0, data.length, tracker.getLastAcknowledged());
+        }
+
+        return instruction;
+
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.protocol;
+
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.io.FlushableGuacamoleWriter;
+import org.glyptodon.guacamole.io.GuacamoleWriter;
+import org.glyptodon.guacamole.io.UTF8GuacamoleWriter;
+import org.glyptodon.guacamole.io.UTF8InstructionBuffer;
+
+/**
+ * GuacamoleWriter which passes all data written by the client through to
+ * another GuacamoleWriter unchanged, while informing a ClientSyncTracker of
+ * each frame the client acknowledges. Unlike a FilteredGuacamoleWriter,
+ * data need not be split on instruction boundaries.
+ *
+ * @author Michael Jumper
+ */
+public class SyncTrackingGuacamoleWriter
+        implements UTF8GuacamoleWriter, FlushableGuacamoleWriter {
+
+    /**
+     * The wrapped GuacamoleWriter.
+     */
+    private final GuacamoleWriter writer;
+
+    /**
+     * The tracker to inform of acknowledged frames.
+     */
+    private final ClientSyncTracker tracker;
+
+    /**
+     * Wraps the given GuacamoleWriter, informing the given ClientSyncTracker
+     * of all frames acknowledged within the data written.
+     *
+     * @param writer The GuacamoleWriter to wrap.
+     * @param tracker The tracker to inform of acknowledged frames.
+     */
+    public SyncTrackingGuacamoleWriter(GuacamoleWriter writer,
+            ClientSyncTracker tracker) {
+        this.writer = writer;
+        this.tracker = tracker;
+    }
+
+    @Override
+    public void write(char[] chunk, int off, int len) throws GuacamoleException {
+        tracker.observe(chunk, off, len);
+        writer.write(chunk, off, len);
+    }
+
+    @Override
+    public void write(char[] chunk) throws GuacamoleException {
+        write(chunk, 0, chunk.length);
+    }
+
+    @Override
+    public void writeUTF8(byte[] chunk, int off, int len) throws GuacamoleException {
+        tracker.observeUTF8(chunk, off, len);
+        UTF8InstructionBuffer.write(writer, chunk, off, len);
+    }
+
+    @Override
+    public void writeInstruction(GuacamoleInstruction instruction) throws GuacamoleException {
+        tracker.observe(instruction);
+        writer.writeInstruction(instruction);
+    }
+
+    @Override
+    public void flush() throws GuacamoleException {
+        if (writer instanceof FlushableGuacamoleWriter)
+            ((FlushableGuacamoleWriter) writer).flush();
+    }
+
+}
@@ -0,0 +1,480 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.recording;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Index of a recorded instruction stream, mapping the timestamp of each
+ * "sync" instruction to the byte offset of the instruction following it, and
+ * providing periodic keyframe checkpoints from which playback can begin
+ * without replaying everything before. Indexes are written by
+ * RecordingIndexer, either while recording or as an offline pass, and are
+ * searched in logarithmic time.
+ *
+ * @author Michael Jumper
+ */
+public class RecordingIndex {
+
+    /**
+     * The value of the first four bytes of every index.
+     */
+    static final int MAGIC = 0x47494458;
+
+    /**
+     * The version of the index format.
+     */
+    static final int VERSION = 1;
+
+    /**
+     * Type of the index record describing a "sync" instruction.
+     */
+    static final byte SYNC_RECORD = 1;
+
+    /**
+     * Type of the index record describing a keyframe checkpoint.
+     */
+    static final byte CHECKPOINT_RECORD = 2;
+
+    /**
+     * The state of a single layer at a checkpoint.
+     */
+    public static class LayerState {
+
+        /**
+         * The index of the layer.
+         */
+        private final int layer;
+
+        /**
+         * The width of the layer, in pixels.
+         */
+        private final int width;
+
+        /**
+         * The height of the layer, in pixels.
+         */
+        private final int height;
+
+        /**
+         * The byte offset of the last "png" instruction covering the whole
+         * layer, or -1 if there is no such instruction.
+         */
+        private final long pngOffset;
+
+        /**
+         * The length of the last "png" instruction covering the whole
+         * layer, in bytes.
+         */
+        private final int pngLength;
+
+        /**
+         * Creates a new LayerState describing the given layer.
+         *
+         * @param layer The index of the layer.
+         * @param width The width of the layer, in pixels.
+         * @param height The height of the layer, in pixels.
+         * @param pngOffset The byte offset of the last "png" instruction
+         *                  covering the whole layer, or -1 if none.
+         * @param pngLength The length of that "png" instruction, in bytes.
+         */
+        public LayerState(int layer, int width, int height, long pngOffset,
+                int pngLength) {
+            this.layer = layer;
+            this.width = width;
+            this.height = height;
+            this.pngOffset = pngOffset;
+            this.pngLength = pngLength;
+        }
+
+        /**
+         * Returns the index of the layer.
+         *
+         * @return The index of the layer.
+         */
+        public int getLayer() {
+            return layer;
+        }
+
+        /**
+         * Returns the width of the layer.
+         *
+         * @return The width of the layer, in pixels.
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * Returns the height of the layer.
+         *
+         * @return The height of the layer, in pixels.
+         */
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * Returns the byte offset of the last "png" instruction which drew
+         * over the whole layer.
+         *
+         * @return The byte offset of the instruction, or -1 if there is no
+         *         such instruction.
+         */
+        public long getPNGOffset() {
+            return pngOffset;
+        }
+
+        /**
+         * Returns the length of the last "png" instruction which drew over
+         * the whole layer.
+         *
+         * @return The length of the instruction, in bytes.
+         */
+        public int getPNGLength() {
+            return pngLength;
+        }
+
+    }
+
+    /**
+     * A keyframe checkpoint, describing enough of the display state at a
+     * "sync" boundary to begin playback there.
+     */
+    public static class Checkpoint {
+
+        /**
+         * The timestamp of the "sync" instruction at this checkpoint.
+         */
+        private final long timestamp;
+
+        /**
+         * The byte offset of the instruction following the "sync"
+         * instruction at this checkpoint.
+         */
+        private final long offset;
+
+        /**
+         * The state of each layer at this checkpoint.
+         */
+        private final List<LayerState> layers;
+
+        /**
+         * Creates a new Checkpoint at the given position.
+         *
+         * @param timestamp The timestamp of the "sync" instruction at this
+         *                  checkpoint.
+         * @param offset The byte offset of the instruction following that
+         *               "sync" instruction.
+         * @param layers The state of each layer at this checkpoint.
+         */
+        public Checkpoint(long timestamp, long offset, List<LayerState> layers) {
+            this.timestamp = timestamp;
+            this.offset = offset;
+            this.layers = Collections.unmodifiableList(layers);
+        }
+
+        /**
+         * Returns the timestamp of the "sync" instruction at this
+         * checkpoint.
+         *
+         * @return The timestamp of this checkpoint.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Returns the byte offset at which playback resumes from this
+         * checkpoint.
+         *
+         * @return The byte offset of the instruction following the "sync"
+         *         instruction at this checkpoint.
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Returns the state of each layer at this checkpoint, ordered by
+         * layer index.
+         *
+         * @return An unmodifiable list of the state of each layer.
+         */
+        public List<LayerState> getLayers() {
+            return layers;
+        }
+
+    }
+
+    /**
+     * The timestamps of all "sync" instructions, in recorded order.
+     */
+    private final long[] syncTimestamps;
+
+    /**
+     * The byte offset of the instruction following each "sync" instruction.
+     */
+    private final long[] syncOffsets;
+
+    /**
+     * The timestamps of all checkpoints, in recorded order.
+     */
+    private final long[] checkpointTimestamps;
+
+    /**
+     * All checkpoints, in recorded order.
+     */
+    private final List<Checkpoint> checkpoints;
+
+    /**
+     * Creates a new RecordingIndex from the given sync points and
+     * checkpoints.
+     *
+     * @param syncTimestamps The timestamps of all "sync" instructions.
+     * @param syncOffsets The byte offset following each "sync" instruction.
+     * @param checkpoints All checkpoints, in recorded order.
+     */
+    RecordingIndex(long[] syncTimestamps, long[] syncOffsets,
+            List<Checkpoint> checkpoints) {
+
+        this.syncTimestamps = syncTimestamps;
+        this.syncOffsets = syncOffsets;
+        this.checkpoints = checkpoints;
+
+        checkpointTimestamps = new long[checkpoints.size()];
+        for (int i = 0; i < checkpointTimestamps.length; i++)
+            checkpointTimestamps[i] = checkpoints.get(i).getTimestamp();
+
+    }
+
+    /**
+     * Reads the index stored within the given file. A truncated final
+     * record, as may be left by a recording still in progress, is ignored.
+     *
+     * @param file The file containing the index.
+     * @return The index stored within the given file.
+     * @throws IOException If the file cannot be read or is not an index.
+     */
+    public static RecordingIndex read(File file) throws IOException {
+
+        InputStream input = new FileInputStream(file);
+        try {
+            return read(input);
+        }
+        finally {
+            input.close();
+        }
+
+    }
+
+    /**
+     * Reads the index provided by the given InputStream. A truncated final
+     * record is ignored. The InputStream is not closed.
+     *
+     * @param input The InputStream providing the index.
+     * @return The index provided by the given InputStream.
+     * @throws IOException If the index cannot be read or is invalid.
+     */
+    public static RecordingIndex read(InputStream input) throws IOException {
+
+        DataInputStream data = new DataInputStream(new BufferedInputStream(input));
+
+        if (data.readInt() != MAGIC)
+            throw new IOException("Not a recording index.");
+
+        int version = data.readInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported recording index version: " + version);
+
+        long[] timestamps = new long[64];
+        long[] offsets = new long[64];
+        int syncCount = 0;
+
+        List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+
+        try {
+            for (;;) {
+
+                byte type = data.readByte();
+
+                // Sync point
+                if (type == SYNC_RECORD) {
+
+                    long timestamp = data.readLong();
+                    long offset = data.readLong();
+
+                    if (syncCount == timestamps.length) {
+                        timestamps = Arrays.copyOf(timestamps, syncCount * 2);
+                        offsets = Arrays.copyOf(offsets, syncCount * 2);
+                    }
+
+                    timestamps[syncCount] = timestamp;
+                    offsets[syncCount] = offset;
+                    syncCount++;
+
+                }
+
+                // Checkpoint
+                else if (type == CHECKPOINT_RECORD) {
+
+                    long timestamp = data.readLong();
+                    long offset = data.readLong();
+
+                    int layerCount = data.readInt();
+                    List<LayerState> layers = new ArrayList<LayerState>(layerCount);
+                    for (int i = 0; i < layerCount; i++)
+                        layers.add(new LayerState(data.readInt(), data.readInt(),
+                                data.readInt(), data.readLong(), data.readInt()));
+
+                    checkpoints.add(new Checkpoint(timestamp, offset, layers));
+
+                }
+
+                else
+                    throw new IOException("Invalid recording index record type: " + type);
+
+            }
+        }
+
+        // Stop at end of index, including any partially-written record
+        catch (EOFException e) {
+            return new RecordingIndex(
+                    Arrays.copyOf(timestamps, syncCount),
+                    Arrays.copyOf(offsets, syncCount),
+                    checkpoints);
+        }
+
+    }
+
+    /**
+     * Returns the index of the last element of the given sorted array which
+     * is less than or equal to the given value.
+     *
+     * @param values A sorted array of values.
+     * @param value The value to search for.
+     * @return The index of the last element less than or equal to the given
+     *         value, or -1 if all elements are greater.
+     */
+    private static int floor(long[] values, long value) {
+
+        int low = 0;
+        int high = values.length - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] <= value)
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+
+        return high;
+
+    }
+
+    /**
+     * Returns the number of "sync" instructions within the recording.
+     *
+     * @return The number of "sync" instructions indexed.
+     */
+    public int getSyncCount() {
+        return syncTimestamps.length;
+    }
+
+    /**
+     * Returns the timestamp of the first "sync" instruction.
+     *
+     * @return The timestamp of the first "sync" instruction, or 0 if the
+     *         recording contains none.
+     */
+    public long getStartTime() {
+        return syncTimestamps.length == 0 ? 0 : syncTimestamps[0];
+    }
+
+    /**
+     * Returns the timestamp of the last "sync" instruction.
+     *
+     * @return The timestamp of the last "sync" instruction, or 0 if the
+     *         recording contains none.
+     */
+    public long getEndTime() {
+        return syncTimestamps.length == 0 ? 0 : syncTimestamps[syncTimestamps.length - 1];
+    }
+
+    /**
+     * Returns the byte offset of the instruction following the last "sync"
+     * instruction at or before the given timestamp.
+     *
+     * @param timestamp The timestamp to search for.
+     * @return The byte offset following the matching "sync" instruction, or
+     *         0 if the given timestamp precedes all "sync" instructions.
+     */
+    public long getOffset(long timestamp) {
+
+        int index = floor(syncTimestamps, timestamp);
+        if (index < 0)
+            return 0;
+
+        return syncOffsets[index];
+
+    }
+
+    /**
+     * Returns the last checkpoint at or before the given timestamp.
+     *
+     * @param timestamp The timestamp to search for.
+     * @return The last checkpoint at or before the given timestamp, or null
+     *         if the given timestamp precedes all checkpoints.
+     */
+    public Checkpoint getCheckpoint(long timestamp) {
+
+        int index = floor(checkpointTimestamps, timestamp);
+        if (index < 0)
+            return null;
+
+        return checkpoints.get(index);
+
+    }
+
+    /**
+     * Returns all checkpoints, in recorded order.
+     *
+     * @return An unmodifiable list of all checkpoints.
+     */
+    public List<Checkpoint> getCheckpoints() {
+        return Collections.unmodifiableList(checkpoints);
+    }
+
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.recording;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+import org.glyptodon.guacamole.protocol.GuacamoleParser;
+import org.glyptodon.guacamole.protocol.PNGHeader;
+
+/**
+ * Builds a RecordingIndex for a recorded instruction stream, writing each
+ * index record as the corresponding instruction is seen. The byte offset of
+ * the instruction following every "sync" instruction is indexed, and a
+ * keyframe checkpoint describing the size of each layer and the last "png"
+ * instruction to cover each layer entirely is written at the first "sync"
+ * and at the first "sync" after each checkpoint interval has elapsed.
+ *
+ * Instructions may be provided as they are recorded, such as by a
+ * SessionRecorder, or an entire recording may be indexed at once with
+ * index(). This class is not threadsafe.
+ *
+ * @author Michael Jumper
+ */
+public class RecordingIndexer {
+
+    /**
+     * The default number of milliseconds of recording between checkpoints.
+     */
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 10000;
+
+    /**
+     * The current state of a layer.
+     */
+    private static class Layer {
+
+        /**
+         * The width of the layer, in pixels.
+         */
+        int width;
+
+        /**
+         * The height of the layer, in pixels.
+         */
+        int height;
+
+        /**
+         * The byte offset of the last "png" instruction covering the whole
+         * layer, or -1 if none.
+         */
+        long pngOffset = -1;
+
+        /**
+         * The length of the last "png" instruction covering the whole
+         * layer, in bytes.
+         */
+        int pngLength;
+
+    }
+
+    /**
+     * The stream receiving index records.
+     */
+    private final DataOutputStream output;
+
+    /**
+     * The number of milliseconds of recording between checkpoints.
+     */
+    private final int checkpointInterval;
+
+    /**
+     * The current state of all layers, by layer index.
+     */
+    private final SortedMap<Integer, Layer> layers = new TreeMap<Integer, Layer>();
+
+    /**
+     * Parser for instructions provided as characters.
+     */
+    private final GuacamoleParser parser = new GuacamoleParser();
+
+    /**
+     * The timestamp of the last checkpoint written, if any.
+     */
+    private long lastCheckpoint;
+
+    /**
+     * Whether any checkpoint has been written.
+     */
+    private boolean checkpointWritten = false;
+
+    /**
+     * Creates a new RecordingIndexer which writes index records to the given
+     * OutputStream, writing checkpoints at the given interval.
+     *
+     * @param output The OutputStream to write index records to.
+     * @param checkpointInterval The number of milliseconds of recording
+     *                           between checkpoints.
+     * @throws IOException If the index header cannot be written.
+     */
+    public RecordingIndexer(OutputStream output, int checkpointInterval)
+            throws IOException {
+
+        this.output = new DataOutputStream(new BufferedOutputStream(output));
+        this.checkpointInterval = checkpointInterval;
+
+        this.output.writeInt(RecordingIndex.MAGIC);
+        this.output.writeInt(RecordingIndex.VERSION);
+
+    }
+
+    /**
+     * Indexes the given instruction, which was recorded at the given byte
+     * offset.
+     *
+     * @param offset The byte offset of the instruction within the recording.
+     * @param length The length of the instruction, in bytes.
+     * @param instruction The instruction to index.
+     * @throws IOException If an index record cannot be written.
+     */
+    public void instruction(long offset, int length,
+            GuacamoleInstruction instruction) throws IOException {
+
+        String opcode = instruction.getOpcode();
+        List<String> args = instruction.getArgs();
+
+        try {
+
+            // Index sync points, checkpointing as necessary
+            if (opcode.equals("sync") && args.size() >= 1)
+                sync(Long.parseLong(args.get(0)), offset + length);
+
+            // Track layer sizes
+            else if (opcode.equals("size") && args.size() >= 3) {
+                Layer layer = getLayer(Integer.parseInt(args.get(0)));
+                layer.width = Integer.parseInt(args.get(1));
+                layer.height = Integer.parseInt(args.get(2));
+            }
+
+            // Track the last image to cover each layer
+            else if (opcode.equals("png") && args.size() >= 5)
+                png(Integer.parseInt(args.get(1)), Integer.parseInt(args.get(2)),
+                        Integer.parseInt(args.get(3)), args.get(4), offset, length);
+
+            // Forget disposed layers
+            else if (opcode.equals("dispose") && args.size() >= 1)
+                layers.remove(Integer.parseInt(args.get(0)));
+
+        }
+
+        // Ignore malformed instructions
+        catch (NumberFormatException e) {
+            // Nothing to index
+        }
+
+    }
+
+    /**
+     * Parses and indexes the given complete instruction, which was recorded
+     * at the given byte offset.
+     *
+     * @param offset The byte offset of the instruction within the recording.
+     * @param length The length of the instruction, in bytes.
+     * @param chunk An array containing the characters of the instruction.
+     * @param off The offset of the first character of the instruction.
+     * @param len The number of characters in the instruction.
+     * @throws GuacamoleException If the instruction cannot be parsed.
+     * @throws IOException If an index record cannot be written.
+     */
+    public void instruction(long offset, int length, char[] chunk, int off,
+            int len) throws GuacamoleException, IOException {
+
+        while (len > 0) {
+
+            int parsed = parser.append(chunk, off, len);
+            if (parsed == 0 && !parser.hasNext())
+                throw new GuacamoleServerException("Incomplete instruction.");
+
+            off += parsed;
+            len -= parsed;
+
+        }
+
+        if (!parser.hasNext())
+            throw new GuacamoleServerException("Incomplete instruction.");
+
+        instruction(offset, length, parser.next());
+
+    }
+
+    /**
+     * Returns the state of the layer having the given index, creating that
+     * state if necessary.
+     *
+     * @param index The index of the layer.
+     * @return The state of the layer having the given index.
+     */
+    private Layer getLayer(int index) {
+
+        Layer layer = layers.get(index);
+        if (layer == null) {
+            layer = new Layer();
+            layers.put(index, layer);
+        }
+
+        return layer;
+
+    }
+
+    /**
+     * Records the given "png" instruction as the last image covering the
+     * given layer, if it draws at the layer origin and its dimensions,
+     * read from the PNG header, cover the layer.
+     *
+     * @param index The index of the layer drawn to.
+     * @param x The X coordinate of the image.
+     * @param y The Y coordinate of the image.
+     * @param data The base64-encoded PNG image.
+     * @param offset The byte offset of the "png" instruction.
+     * @param length The length of the "png" instruction, in bytes.
+     */
+    private void png(int index, int x, int y, String data, long offset,
+            int length) {
+
+        if (x != 0 || y != 0)
+            return;
+
+        PNGHeader header = PNGHeader.read(data);
+        if (header == null)
+            return;
+
+        int width  = header.getWidth();
+        int height = header.getHeight();
+
+        Layer layer = getLayer(index);
+        if (width >= layer.width && height >= layer.height) {
+            layer.pngOffset = offset;
+            layer.pngLength = length;
+        }
+
+    }
+
+    /**
+     * Writes an index record for the given "sync" instruction, preceded by
+     * a checkpoint if one is due.
+     *
+     * @param timestamp The timestamp of the "sync" instruction.
+     * @param offset The byte offset of the instruction following the "sync"
+     *               instruction.
+     * @throws IOException If an index record cannot be written.
+     */
+    private void sync(long timestamp, long offset) throws IOException {
+
+        output.writeByte(RecordingIndex.SYNC_RECORD);
+        output.writeLong(timestamp);
+        output.writeLong(offset);
+
+        if (checkpointWritten && timestamp - lastCheckpoint < checkpointInterval)
+            return;
+
+        output.writeByte(RecordingIndex.CHECKPOINT_RECORD);
+        output.writeLong(timestamp);
+        output.writeLong(offset);
+
+        output.writeInt(layers.size());
+        for (Map.Entry<Integer, Layer> entry : layers.entrySet()) {
+            Layer layer = entry.getValue();
+            output.writeInt(entry.getKey());
+            output.writeInt(layer.width);
+            output.writeInt(layer.height);
+            output.writeLong(layer.pngOffset);
+            output.writeInt(layer.pngLength);
+        }
+
+        lastCheckpoint = timestamp;
+        checkpointWritten = true;
+
+    }
+
+    /**
+     * Writes all buffered index records to the underlying OutputStream.
+     *
+     * @throws IOException If the index records cannot be written.
+     */
+    public void flush() throws IOException {
+        output.flush();
+    }
+
+    /**
+     * Writes all buffered index records and closes the underlying
+     * OutputStream.
+     *
+     * @throws IOException If the index records cannot be written.
+     */
+    public void close() throws IOException {
+        output.close();
+    }
+
+    /**
+     * Returns the number of bytes required to encode the given characters as
+     * UTF-8.
+     *
+     * @param chars The characters to measure.
+     * @return The length of the given characters in UTF-8, in bytes.
+     */
+    static int utf8Length(CharSequence chars) {
+
+        int length = 0;
+        for (int i = 0; i < chars.length(); i++) {
+
+            char c = chars.charAt(i);
+            if (c < 0x80)
+                length += 1;
+            else if (c < 0x800)
+                length += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < chars.length()
+                    && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                length += 4;
+                i++;
+            }
+            else
+                length += 3;
+
+        }
+
+        return length;
+
+    }
+
+    /**
+     * Indexes an entire recording, writing the index to the given
+     * OutputStream. Neither stream is closed.
+     *
+     * @param recording The complete recorded instruction stream, as UTF-8.
+     * @param index The OutputStream to write the index to.
+     * @param checkpointInterval The number of milliseconds of recording
+     *                           between checkpoints.
+     * @throws IOException If the recording cannot be read or the index
+     *                     cannot be written.
+     * @throws GuacamoleException If the recording contains invalid
+     *                            instructions.
+     */
+    public static void index(InputStream recording, OutputStream index,
+            int checkpointInterval) throws IOException, GuacamoleException {
+
+        RecordingIndexer indexer = new RecordingIndexer(index, checkpointInterval);
+        GuacamoleParser parser = new GuacamoleParser();
+        Reader input = new InputStreamReader(recording, "UTF-8");
+
+        char[] buffer = new char[GuacamoleParser.INSTRUCTION_MAX_LENGTH * 2];
+        int start = 0;
+        int end = 0;
+        long offset = 0;
+
+        for (;;) {
+
+            // Parse all complete instructions within buffer
+            int parsed;
+            while ((parsed = parser.append(buffer, start, end - start)) != 0
+                    || parser.hasNext()) {
+
+                start += parsed;
+
+                if (parser.hasNext()) {
+                    GuacamoleInstruction instruction = parser.next();
+                    int length = utf8Length(instruction.toString());
+                    indexer.instruction(offset, length, instruction);
+                    offset += length;
+                }
+
+            }
+
+            // Make room for more data, growing only if necessary
+            if (start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            else if (end == buffer.length)
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+
+            int read = input.read(buffer, end, buffer.length - end);
+            if (read == -1)
+                break;
+
+            end += read;
+
+        }
+
+        indexer.flush();
+
+    }
+
+}
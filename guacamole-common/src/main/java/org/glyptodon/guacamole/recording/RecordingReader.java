@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.recording;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.SequenceInputStream;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Vector;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.io.ReaderGuacamoleReader;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+
+/**
+ * GuacamoleReader which reads a recording written by RecordingSegmentWriter
+ * starting from an arbitrary point in time. Using the recording's index, the
+ * last checkpoint at or before the requested time is located in logarithmic
+ * time. The reader first produces instructions restoring the size of each
+ * layer at that checkpoint, and then streams the recorded instructions
+ * starting at the earliest of the last "png" instructions to cover each
+ * layer. Instructions preceding the checkpoint are streamed only to rebuild
+ * the display, including any partial updates since each layer was last
+ * covered, and their "sync" instructions are omitted such that they are
+ * drawn at once. Playback reaches the requested time once the instructions
+ * between the checkpoint and that time have been handled.
+ *
+ * @author Michael Jumper
+ */
+public class RecordingReader implements GuacamoleReader {
+
+    /**
+     * All segment files of the recording, in order.
+     */
+    private final List<File> segments = new ArrayList<File>();
+
+    /**
+     * The byte offset of the start of each segment within the recording.
+     */
+    private final List<Long> segmentOffsets = new ArrayList<Long>();
+
+    /**
+     * The opcode and first delimiter of every "sync" instruction.
+     */
+    private static final String SYNC_PREFIX = "4.sync,";
+
+    /**
+     * Instructions restoring the checkpoint state, not yet read.
+     */
+    private final Queue<GuacamoleInstruction> restore =
+            new LinkedList<GuacamoleInstruction>();
+
+    /**
+     * The timestamp of the checkpoint from which this reader starts, or the
+     * start time of the recording if no checkpoint precedes the requested
+     * time.
+     */
+    private final long startTime;
+
+    /**
+     * Stream of recorded data following the checkpoint.
+     */
+    private final InputStream input;
+
+    /**
+     * Reader of the recorded instructions, starting with those rebuilding
+     * the display at the checkpoint.
+     */
+    private final GuacamoleReader reader;
+
+    /**
+     * The byte offset of the checkpoint within the recording. Recorded
+     * instructions before this offset are read without their "sync"
+     * instructions.
+     */
+    private final long checkpointOffset;
+
+    /**
+     * The byte offset of the next recorded instruction to be read, tracked
+     * only until the checkpoint is reached.
+     */
+    private long position;
+
+    /**
+     * Opens the recording having the given name at the given time.
+     *
+     * @param directory The directory containing the recording.
+     * @param name The name of the recording.
+     * @param index The index of the recording.
+     * @param timestamp The "sync" timestamp at which playback should begin.
+     * @throws IOException If the recording cannot be read.
+     * @throws GuacamoleException If an instruction referenced by the index
+     *                            cannot be parsed.
+     */
+    public RecordingReader(File directory, String name, RecordingIndex index,
+            long timestamp) throws IOException, GuacamoleException {
+
+        // Locate all segments
+        long segmentOffset = 0;
+        for (int i = 0;; i++) {
+
+            File segment = RecordingSegmentWriter.getSegmentFile(directory, name, i);
+            if (!segment.exists())
+                break;
+
+            segments.add(segment);
+            segmentOffsets.add(segmentOffset);
+            segmentOffset += segment.length();
+
+        }
+
+        // Restore state at checkpoint, if any
+        long offset = 0;
+        RecordingIndex.Checkpoint checkpoint = index.getCheckpoint(timestamp);
+        if (checkpoint != null) {
+
+            offset = checkpoint.getOffset();
+            for (RecordingIndex.LayerState layer : checkpoint.getLayers()) {
+
+                // Layers without size have no content to rebuild
+                if (layer.getWidth() == 0 && layer.getHeight() == 0)
+                    continue;
+
+                restore.add(new GuacamoleInstruction("size",
+                        Integer.toString(layer.getLayer()),
+                        Integer.toString(layer.getWidth()),
+                        Integer.toString(layer.getHeight())));
+
+                // Rebuild each layer from its last full image, or from the
+                // beginning if never entirely covered
+                offset = Math.min(offset, Math.max(layer.getPNGOffset(), 0));
+
+            }
+
+            checkpointOffset = checkpoint.getOffset();
+            startTime = checkpoint.getTimestamp();
+
+        }
+        else {
+            checkpointOffset = 0;
+            startTime = index.getStartTime();
+        }
+
+        position = offset;
+        input = open(offset);
+        reader = new ReaderGuacamoleReader(new InputStreamReader(input, "UTF-8"));
+
+    }
+
+    /**
+     * Returns the index of the segment containing the given byte offset.
+     *
+     * @param offset The byte offset within the recording.
+     * @return The index of the segment containing the given offset, or the
+     *         number of segments if the offset is beyond the recording.
+     */
+    private int getSegment(long offset) {
+
+        for (int i = 0; i < segments.size(); i++) {
+            if (offset < segmentOffsets.get(i) + segments.get(i).length())
+                return i;
+        }
+
+        return segments.size();
+
+    }
+
+    /**
+     * Opens a stream of all recorded data starting at the given byte offset.
+     *
+     * @param offset The byte offset at which the stream should begin.
+     * @return A stream of all recorded data starting at the given offset.
+     * @throws IOException If a segment cannot be opened.
+     */
+    private InputStream open(long offset) throws IOException {
+
+        Vector<InputStream> streams = new Vector<InputStream>();
+
+        try {
+            for (int i = getSegment(offset); i < segments.size(); i++) {
+
+                FileInputStream stream = new FileInputStream(segments.get(i));
+                streams.add(stream);
+
+                // Skip directly to offset within first segment
+                long segmentOffset = segmentOffsets.get(i);
+                if (offset > segmentOffset)
+                    stream.getChannel().position(offset - segmentOffset);
+
+            }
+        }
+        catch (IOException e) {
+            for (InputStream stream : streams)
+                stream.close();
+            throw e;
+        }
+
+        return new SequenceInputStream(streams.elements());
+
+    }
+
+    /**
+     * Returns the timestamp of the checkpoint at which this reader begins.
+     * Instructions up to the requested time follow those restoring the
+     * checkpoint.
+     *
+     * @return The timestamp at which the instructions read begin.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    @Override
+    public boolean available() throws GuacamoleException {
+        return !restore.isEmpty() || reader.available();
+    }
+
+    @Override
+    public char[] read() throws GuacamoleException {
+
+        GuacamoleInstruction restored = restore.poll();
+        if (restored != null)
+            return restored.toString().toCharArray();
+
+        for (;;) {
+
+            char[] instruction = reader.read();
+            if (instruction == null || position >= checkpointOffset)
+                return instruction;
+
+            // Omit frame boundaries preceding the checkpoint
+            position += RecordingIndexer.utf8Length(CharBuffer.wrap(instruction));
+            if (!new String(instruction, 0, Math.min(instruction.length,
+                    SYNC_PREFIX.length())).equals(SYNC_PREFIX))
+                return instruction;
+
+        }
+
+    }
+
+    @Override
+    public GuacamoleInstruction readInstruction() throws GuacamoleException {
+
+        GuacamoleInstruction restored = restore.poll();
+        if (restored != null)
+            return restored;
+
+        for (;;) {
+
+            GuacamoleInstruction instruction = reader.readInstruction();
+            if (instruction == null || position >= checkpointOffset)
+                return instruction;
+
+            // Omit frame boundaries preceding the checkpoint
+            position += RecordingIndexer.utf8Length(instruction.toString());
+            if (!instruction.getOpcode().equals("sync"))
+                return instruction;
+
+        }
+
+    }
+
+    /**
+     * Closes all segments of the recording.
+     *
+     * @throws IOException If an error occurs while closing the recording.
+     */
+    public void close() throws IOException {
+        input.close();
+    }
+
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.recording;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append-only storage for a session recording, writing data into a series
+ * of memory-mapped segment files. Each segment is mapped at a fixed size and
+ * filled sequentially. Once a write would not fit within the current
+ * segment, that segment is forced to disk, truncated to the data actually
+ * written, and a new segment is started. Segment files are named after the
+ * recording, followed by a period and the zero-based index of the segment.
+ * This class is not threadsafe.
+ *
+ * @author Michael Jumper
+ */
+public class RecordingSegmentWriter {
+
+    /**
+     * The default size of each segment, in bytes.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 16777216;
+
+    /**
+     * The directory in which segment files are created.
+     */
+    private final File directory;
+
+    /**
+     * The name of the recording, used as the prefix of each segment file.
+     */
+    private final String name;
+
+    /**
+     * The size of each segment, in bytes.
+     */
+    private final int segmentSize;
+
+    /**
+     * The index of the current segment, or -1 if no segment has yet been
+     * started.
+     */
+    private int segmentIndex = -1;
+
+    /**
+     * The file backing the current segment, or null if no segment is open.
+     */
+    private RandomAccessFile segmentFile;
+
+    /**
+     * The mapped contents of the current segment, or null if no segment is
+     * open.
+     */
+    private MappedByteBuffer segment;
+
+    /**
+     * The total number of bytes written across all segments.
+     */
+    private long bytesWritten = 0;
+
+    /**
+     * Creates a new RecordingSegmentWriter which writes segments of the
+     * given size to the given directory. No files are created until data is
+     * first written.
+     *
+     * @param directory The directory in which segment files are created.
+     * @param name The name of the recording, used as the prefix of each
+     *             segment file.
+     * @param segmentSize The size of each segment, in bytes.
+     */
+    public RecordingSegmentWriter(File directory, String name, int segmentSize) {
+        this.directory = directory;
+        this.name = name;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Returns the file which contains or will contain the segment having the
+     * given index within the recording having the given name.
+     *
+     * @param directory The directory containing the recording.
+     * @param name The name of the recording.
+     * @param index The zero-based index of the segment.
+     * @return The file for the segment having the given index.
+     */
+    public static File getSegmentFile(File directory, String name, int index) {
+        return new File(directory, name + "." + index);
+    }
+
+    /**
+     * Returns the file which contains or will contain the segment having the
+     * given index.
+     *
+     * @param index The zero-based index of the segment.
+     * @return The file for the segment having the given index.
+     */
+    public File getSegmentFile(int index) {
+        return getSegmentFile(directory, name, index);
+    }
+
+    /**
+     * Returns the number of segments started thus far.
+     *
+     * @return The number of segments started thus far.
+     */
+    public int getSegmentCount() {
+        return segmentIndex + 1;
+    }
+
+    /**
+     * Returns the total number of bytes written across all segments.
+     *
+     * @return The total number of bytes written.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Appends the remaining contents of the given buffer to the recording,
+     * starting a new segment if the data does not fit within the current
+     * segment. Data is never split across segments.
+     *
+     * @param data The data to append.
+     * @throws IOException If an error occurs while writing the data or
+     *                     starting a new segment.
+     */
+    public void write(ByteBuffer data) throws IOException {
+
+        int length = data.remaining();
+
+        // Start new segment if necessary
+        if (segment == null || segment.remaining() < length)
+            rotate(length);
+
+        segment.put(data);
+        bytesWritten += length;
+
+    }
+
+    /**
+     * Forces all data written to the current segment to disk.
+     */
+    public void sync() {
+        if (segment != null)
+            segment.force();
+    }
+
+    /**
+     * Closes the current segment, if any, and starts a new segment large
+     * enough to contain at least the given number of bytes.
+     *
+     * @param required The number of bytes which must fit within the new
+     *                 segment.
+     * @throws IOException If an error occurs while closing the current
+     *                     segment or creating the new segment.
+     */
+    private void rotate(int required) throws IOException {
+
+        closeSegment();
+
+        segmentIndex++;
+        segmentFile = new RandomAccessFile(getSegmentFile(segmentIndex), "rw");
+        segment = segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                0, Math.max(segmentSize, required));
+
+    }
+
+    /**
+     * Forces the current segment to disk, truncates its file to the data
+     * actually written, and closes that file.
+     *
+     * @throws IOException If an error occurs while closing the segment.
+     */
+    private void closeSegment() throws IOException {
+
+        if (segment == null)
+            return;
+
+        segment.force();
+        int length = segment.position();
+        segment = null;
+
+        try {
+            segmentFile.getChannel().truncate(length);
+        }
+        finally {
+            segmentFile.close();
+            segmentFile = null;
+        }
+
+    }
+
+    /**
+     * Forces all written data to disk and closes the current segment. No
+     * further data may be written.
+     *
+     * @throws IOException If an error occurs while closing the segment.
+     */
+    public void close() throws IOException {
+        closeSegment();
+    }
+
+}
@@ -0,0 +1,643 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.recording;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the instruction stream of a single tunnel without slowing that
+ * tunnel. Recorded instructions are copied into a lock-free queue, and are
+ * appended to a RecordingSegmentWriter by a background writer, which also
+ * forces written data to disk periodically. If the writer falls behind such
+ * that the queue would exceed its maximum size, instructions are dropped
+ * rather than blocking the tunnel. Once the writer catches up, a "degraded"
+ * instruction noting the number of instructions dropped is written in their
+ * place, and recording resumes.
+ *
+ * If a RecordingIndexer is provided, each instruction is also indexed as it
+ * is written, producing a RecordingIndex alongside the recording.
+ *
+ * All recorders share a single background writer thread by default. Each
+ * recorder must be closed once the tunnel being recorded is closed.
+ *
+ * @author Michael Jumper
+ */
+public class SessionRecorder {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(SessionRecorder.class);
+
+    /**
+     * The opcode of the instruction written in place of dropped
+     * instructions. Its sole argument is the number of instructions dropped.
+     */
+    public static final String DEGRADED_OPCODE = "degraded";
+
+    /**
+     * The default maximum number of bytes which may be queued for writing.
+     */
+    public static final int DEFAULT_MAX_QUEUED_BYTES = 4194304;
+
+    /**
+     * The default number of milliseconds between forcing written data to
+     * disk.
+     */
+    public static final int DEFAULT_SYNC_INTERVAL = 5000;
+
+    /**
+     * The UTF-8 character set.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The executor returned by getDefaultExecutor(), created when first
+     * needed.
+     */
+    private static ScheduledExecutorService defaultExecutor;
+
+    /**
+     * The storage receiving recorded instructions. This is only accessed by
+     * the writer executor.
+     */
+    private final RecordingSegmentWriter storage;
+
+    /**
+     * The indexer receiving each instruction written, or null if the
+     * recording is not being indexed. This is only accessed by the writer
+     * executor, and is set to null if indexing fails.
+     */
+    private RecordingIndexer indexer;
+
+    /**
+     * The maximum number of bytes which may be queued for writing.
+     */
+    private final int maxQueuedBytes;
+
+    /**
+     * The executor running the background writer.
+     */
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Recorded instructions not yet written, each either a ByteBuffer of
+     * UTF-8 or a CharBuffer.
+     */
+    private final ConcurrentLinkedQueue<Buffer> queue = new ConcurrentLinkedQueue<Buffer>();
+
+    /**
+     * The approximate number of bytes currently queued for writing.
+     */
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    /**
+     * Whether the background writer has been scheduled to drain the queue.
+     */
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    /**
+     * The number of instructions dropped since the last "degraded"
+     * instruction was written.
+     */
+    private final AtomicLong droppedInstructions = new AtomicLong();
+
+    /**
+     * The total number of instructions dropped.
+     */
+    private final AtomicLong totalDroppedInstructions = new AtomicLong();
+
+    /**
+     * Whether instructions are currently being dropped. Once degraded, all
+     * instructions are dropped until the writer has emptied the queue.
+     */
+    private volatile boolean degraded = false;
+
+    /**
+     * Whether this recorder has been closed.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Whether the storage has failed or been closed, and further
+     * instructions should be discarded. This is only accessed by the writer
+     * executor.
+     */
+    private boolean stopped = false;
+
+    /**
+     * The periodic task forcing written data to disk.
+     */
+    private final ScheduledFuture<?> syncTask;
+
+    /**
+     * Task which writes all queued instructions to storage.
+     */
+    private final Runnable drainTask = new Runnable() {
+
+        @Override
+        public void run() {
+
+            drainScheduled.set(false);
+            drain();
+
+            // Reschedule if instructions were queued after draining
+            if (!queue.isEmpty())
+                scheduleDrain();
+
+        }
+
+    };
+
+    /**
+     * Creates a new SessionRecorder which writes recorded instructions to
+     * the given storage and indexes them with the given indexer, using the
+     * given executor and forcing data to disk at the given interval.
+     *
+     * @param storage The storage to write recorded instructions to.
+     * @param indexer The indexer which should index recorded instructions as
+     *                they are written, or null if the recording should not
+     *                be indexed.
+     * @param maxQueuedBytes The maximum number of bytes which may be queued
+     *                       for writing before instructions are dropped.
+     * @param syncInterval The number of milliseconds between forcing
+     *                     written data to disk.
+     * @param executor The executor which should run the background writer.
+     *                 All tasks of a recorder must run sequentially, thus
+     *                 this executor should have a single thread.
+     */
+    public SessionRecorder(final RecordingSegmentWriter storage,
+            RecordingIndexer indexer, int maxQueuedBytes, int syncInterval,
+            ScheduledExecutorService executor) {
+
+        this.storage = storage;
+        this.indexer = indexer;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.executor = executor;
+
+        syncTask = executor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                if (!stopped) {
+                    storage.sync();
+                    flushIndex();
+                }
+            }
+
+        }, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+
+    }
+
+    /**
+     * Creates a new SessionRecorder which writes recorded instructions to
+     * the given storage using the given executor, forcing data to disk at
+     * the given interval. The recording is not indexed.
+     *
+     * @param storage The storage to write recorded instructions to.
+     * @param maxQueuedBytes The maximum number of bytes which may be queued
+     *                       for writing before instructions are dropped.
+     * @param syncInterval The number of milliseconds between forcing
+     *                     written data to disk.
+     * @param executor The executor which should run the background writer.
+     *                 All tasks of a recorder must run sequentially, thus
+     *                 this executor should have a single thread.
+     */
+    public SessionRecorder(RecordingSegmentWriter storage, int maxQueuedBytes,
+            int syncInterval, ScheduledExecutorService executor) {
+        this(storage, null, maxQueuedBytes, syncInterval, executor);
+    }
+
+    /**
+     * Creates a new SessionRecorder which writes recorded instructions to
+     * the given storage and indexes them with the given indexer, using the
+     * default executor, queue size, and sync interval.
+     *
+     * @param storage The storage to write recorded instructions to.
+     * @param indexer The indexer which should index recorded instructions as
+     *                they are written, or null if the recording should not
+     *                be indexed.
+     */
+    public SessionRecorder(RecordingSegmentWriter storage,
+            RecordingIndexer indexer) {
+        this(storage, indexer, DEFAULT_MAX_QUEUED_BYTES, DEFAULT_SYNC_INTERVAL,
+                getDefaultExecutor());
+    }
+
+    /**
+     * Creates a new SessionRecorder which writes recorded instructions to
+     * the given storage using the default executor, queue size, and sync
+     * interval.
+     *
+     * @param storage The storage to write recorded instructions to.
+     */
+    public SessionRecorder(RecordingSegmentWriter storage) {
+        this(storage, null);
+    }
+
+    /**
+     * Returns the executor shared by all recorders by default, creating it
+     * if necessary. The executor runs a single daemon thread.
+     *
+     * @return The default background writer executor.
+     */
+    public static synchronized ScheduledExecutorService getDefaultExecutor() {
+
+        if (defaultExecutor == null) {
+            defaultExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "guacamole-recording-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+
+            });
+        }
+
+        return defaultExecutor;
+
+    }
+
+    /**
+     * Records a copy of the given UTF-8 instruction data. The position of
+     * the given buffer is not modified.
+     *
+     * @param instruction The UTF-8 data of one or more complete
+     *                    instructions.
+     */
+    public void record(ByteBuffer instruction) {
+
+        int length = instruction.remaining();
+        if (!reserve(length))
+            return;
+
+        // Copy data, as the given buffer is likely to be reused
+        ByteBuffer copy = ByteBuffer.allocate(length);
+        copy.put(instruction.duplicate()).flip();
+        enqueue(copy);
+
+    }
+
+    /**
+     * Records a copy of the given instruction data.
+     *
+     * @param instruction An array containing the characters of one or more
+     *                    complete instructions.
+     * @param offset The offset of the first character to record.
+     * @param length The number of characters to record.
+     */
+    public void record(char[] instruction, int offset, int length) {
+
+        if (!reserve(length))
+            return;
+
+        // Copy data, as the given array is likely to be reused
+        char[] copy = new char[length];
+        System.arraycopy(instruction, offset, copy, 0, length);
+        enqueue(CharBuffer.wrap(copy));
+
+    }
+
+    /**
+     * Records a copy of the given instruction data. The position of the
+     * given buffer is not modified.
+     *
+     * @param instruction The characters of one or more complete
+     *                    instructions.
+     */
+    public void record(CharBuffer instruction) {
+
+        int length = instruction.remaining();
+        if (!reserve(length))
+            return;
+
+        // Copy data, as the given buffer is likely to be reused
+        char[] copy = new char[length];
+        instruction.duplicate().get(copy);
+        enqueue(CharBuffer.wrap(copy));
+
+    }
+
+    /**
+     * Reserves space within the queue for an instruction of the given size,
+     * dropping the instruction and entering the degraded state if the queue
+     * is full or the recorder is already degraded.
+     *
+     * @param size The approximate size of the instruction, in bytes.
+     * @return true if the instruction should be queued, false if it has been
+     *         dropped.
+     */
+    private boolean reserve(int size) {
+
+        if (closed)
+            return false;
+
+        // Drop instructions until the writer has caught up
+        if (degraded) {
+            drop();
+            return false;
+        }
+
+        // Begin dropping instructions if the queue is full
+        if (queuedBytes.addAndGet(size) > maxQueuedBytes) {
+            queuedBytes.addAndGet(-size);
+            degraded = true;
+            drop();
+            return false;
+        }
+
+        return true;
+
+    }
+
+    /**
+     * Counts an instruction as dropped.
+     */
+    private void drop() {
+        droppedInstructions.incrementAndGet();
+        totalDroppedInstructions.incrementAndGet();
+    }
+
+    /**
+     * Adds the given instruction data, for which space has already been
+     * reserved, to the queue, scheduling the background writer if needed.
+     *
+     * @param instruction The instruction data to queue.
+     */
+    private void enqueue(Buffer instruction) {
+        queue.offer(instruction);
+        scheduleDrain();
+    }
+
+    /**
+     * Schedules the background writer to drain the queue, unless already
+     * scheduled.
+     */
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true))
+            executor.execute(drainTask);
+    }
+
+    /**
+     * Writes all queued instructions to storage, followed by a "degraded"
+     * instruction if instructions were dropped and the queue is now empty.
+     * This function must only be invoked by the writer executor.
+     */
+    private void drain() {
+
+        Buffer instruction;
+        while ((instruction = queue.poll()) != null) {
+
+            int size = instruction.remaining();
+            queuedBytes.addAndGet(-size);
+
+            long offset = storage.getBytesWritten();
+
+            // Write characters as UTF-8
+            if (instruction instanceof CharBuffer) {
+                CharBuffer chars = (CharBuffer) instruction;
+                ByteBuffer data = UTF8.encode(chars.duplicate());
+                int length = data.remaining();
+                write(data);
+                index(offset, length, chars);
+            }
+
+            // Write UTF-8 directly
+            else {
+                ByteBuffer data = (ByteBuffer) instruction;
+                int length = data.remaining();
+                CharBuffer chars = indexer != null ? UTF8.decode(data.duplicate()) : null;
+                write(data);
+                index(offset, length, chars);
+            }
+
+        }
+
+        // Resume recording once caught up, noting what was dropped
+        if (degraded) {
+            degraded = false;
+            writeDegraded();
+        }
+
+    }
+
+    /**
+     * Passes the given instruction, which has just been written at the given
+     * byte offset, to the indexer, if any. Indexing stops if the indexer
+     * fails.
+     *
+     * @param offset The byte offset at which the instruction was written.
+     * @param length The length of the instruction, in bytes.
+     * @param instruction The characters of the instruction.
+     */
+    private void index(long offset, int length, CharBuffer instruction) {
+
+        if (indexer == null || stopped)
+            return;
+
+        try {
+            indexer.instruction(offset, length, instruction.array(),
+                    instruction.arrayOffset() + instruction.position(),
+                    instruction.remaining());
+        }
+        catch (GuacamoleException e) {
+            logger.warn("Session recording could not be indexed: {}", e.getMessage());
+            logger.debug("Unable to parse recorded instruction.", e);
+            closeIndex();
+        }
+        catch (IOException e) {
+            logger.warn("Session recording could not be indexed: {}", e.getMessage());
+            logger.debug("Unable to write recording index.", e);
+            closeIndex();
+        }
+
+    }
+
+    /**
+     * Writes any buffered index records, stopping indexing if the index
+     * cannot be written.
+     */
+    private void flushIndex() {
+
+        if (indexer == null)
+            return;
+
+        try {
+            indexer.flush();
+        }
+        catch (IOException e) {
+            logger.warn("Session recording could not be indexed: {}", e.getMessage());
+            logger.debug("Unable to write recording index.", e);
+            closeIndex();
+        }
+
+    }
+
+    /**
+     * Closes the indexer, if any, such that no further instructions are
+     * indexed.
+     */
+    private void closeIndex() {
+
+        if (indexer == null)
+            return;
+
+        try {
+            indexer.close();
+        }
+        catch (IOException e) {
+            logger.debug("Unable to close recording index.", e);
+        }
+
+        indexer = null;
+
+    }
+
+    /**
+     * Writes a "degraded" instruction noting the number of instructions
+     * dropped since the last such instruction, if any were dropped.
+     */
+    private void writeDegraded() {
+
+        long dropped = droppedInstructions.getAndSet(0);
+        if (dropped == 0)
+            return;
+
+        String marker = new GuacamoleInstruction(DEGRADED_OPCODE,
+                Long.toString(dropped)).toString();
+
+        write(ByteBuffer.wrap(marker.getBytes(UTF8)));
+
+    }
+
+    /**
+     * Writes the given data to storage, discarding all further data if the
+     * storage fails.
+     *
+     * @param data The data to write.
+     */
+    private void write(ByteBuffer data) {
+
+        if (stopped)
+            return;
+
+        try {
+            storage.write(data);
+        }
+        catch (IOException e) {
+            logger.warn("Session recording failed: {}", e.getMessage());
+            logger.debug("Unable to write session recording.", e);
+            stopped = true;
+        }
+
+    }
+
+    /**
+     * Returns the approximate number of bytes currently queued for writing.
+     *
+     * @return The approximate number of bytes queued for writing.
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * Returns whether instructions are currently being dropped because the
+     * background writer has fallen behind.
+     *
+     * @return true if instructions are being dropped, false otherwise.
+     */
+    public boolean isDegraded() {
+        return degraded;
+    }
+
+    /**
+     * Returns the total number of instructions dropped because the
+     * background writer had fallen behind.
+     *
+     * @return The total number of instructions dropped.
+     */
+    public long getDroppedCount() {
+        return totalDroppedInstructions.get();
+    }
+
+    /**
+     * Stops recording. Instructions already queued are written and the
+     * storage is closed by the background writer. Instructions recorded
+     * after this function is called are ignored.
+     */
+    public void close() {
+
+        if (closed)
+            return;
+
+        closed = true;
+        syncTask.cancel(false);
+
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                drain();
+
+                // Note any drops which occurred while closing
+                writeDegraded();
+
+                closeIndex();
+
+                stopped = true;
+                try {
+                    storage.close();
+                }
+                catch (IOException e) {
+                    logger.warn("Unable to close session recording: {}", e.getMessage());
+                    logger.debug("Error closing session recording.", e);
+                }
+
+            }
+
+        });
+
+    }
+
+}
@@ -0,0 +1,606 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import org.glyptodon.guacamole.GuacamoleConnectionClosedException;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleResourceNotFoundException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.io.GuacamoleWriter;
+import org.glyptodon.guacamole.io.UTF8InstructionBuffer;
+import org.glyptodon.guacamole.net.GuacamoleTunnel;
+import org.glyptodon.guacamole.net.GuacamoleTunnelExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A GuacamoleHTTPTunnelServlet which services read and write requests using
+ * Servlet 3.1 asynchronous I/O. Rather than holding a container thread for
+ * the duration of each long-polling read, the read is handed to a
+ * GuacamoleTunnelExecutor and data is written to the response only when the
+ * container reports the output stream as ready. Write requests are received
+ * through a ReadListener and passed to the tunnel once the request body has
+ * been read in full. A read request which arrives while another is still
+ * streaming asks that request to end via GuacamoleTunnel.requestReader(), and
+ * waits for read access through GuacamoleTunnel.awaitReader() rather than by
+ * blocking a thread. The HTTP tunnel protocol itself is unchanged, and this
+ * servlet may be used in place of GuacamoleHTTPTunnelServlet without any
+ * change to the JavaScript client.
+ *
+ * GuacamoleReader provides no means of waiting for data without blocking,
+ * thus each read request still occupies a thread of the tunnel executor
+ * while waiting on guacd, but no longer occupies a container thread.
+ *
+ * Servlets extending this class must be deployed with asynchronous support
+ * enabled, as must any filters through which their requests pass.
+ *
+ * @author Michael Jumper
+ */
+public abstract class GuacamoleAsyncHTTPTunnelServlet
+        extends GuacamoleHTTPTunnelServlet {
+
+    /**
+     * Logger for this class.
+     */
+    private final Logger logger = LoggerFactory.getLogger(GuacamoleAsyncHTTPTunnelServlet.class);
+
+    /**
+     * The number of bytes of instruction data which may be accumulated
+     * before being written to the response, even if more data is available
+     * from the tunnel.
+     */
+    private static final int RESPONSE_BUFFER_SIZE = 8192;
+
+    /**
+     * The end-of-instructions marker sent at the end of each read response.
+     */
+    private static final byte[] END_OF_INSTRUCTIONS = { '0', '.', ';' };
+
+    /**
+     * Returns the executor which should run the loop relaying data from
+     * each tunnel to the response of a read request. By default, this is the
+     * default GuacamoleTunnelExecutor.
+     *
+     * @return The executor to use for all read requests.
+     */
+    protected GuacamoleTunnelExecutor getTunnelExecutor() {
+        return GuacamoleTunnelExecutor.getDefault();
+    }
+
+    /**
+     * Detaches the given tunnel from the given session and closes it,
+     * logging any error which prevents the tunnel from closing.
+     *
+     * @param session The session the tunnel is attached to.
+     * @param tunnel The tunnel to detach and close.
+     */
+    private void detachAndClose(GuacamoleSession session,
+            GuacamoleTunnel tunnel) {
+
+        session.detachTunnel(tunnel);
+
+        try {
+            tunnel.close();
+        }
+        catch (GuacamoleException e) {
+            logger.debug("Unable to close tunnel.", e);
+        }
+
+    }
+
+    /**
+     * Logs the given error and, if the response has not yet been committed,
+     * sends it to the client in the same manner as errors raised by
+     * handleTunnelRequest().
+     *
+     * @param response The response to send the error within.
+     * @param e The error which occurred.
+     */
+    private void sendAsyncError(HttpServletResponse response,
+            GuacamoleException e) {
+
+        logger.error("HTTP tunnel request failed: {}", e.getMessage());
+        logger.debug("Internal error in HTTP tunnel.", e);
+
+        try {
+            sendError(response, e.getStatus(), "Internal server error.");
+        }
+        catch (ServletException se) {
+            logger.debug("Unable to send error to client.", se);
+        }
+
+    }
+
+    /**
+     * Relays instructions from a tunnel to the response of a single read
+     * request. The relay runs within the tunnel executor, blocking only its
+     * own thread while waiting on guacd or on the output stream becoming
+     * ready. No pooled resources are held until the relay has both been
+     * admitted by the executor and obtained read access to the tunnel.
+     */
+    private class ReadRelay implements Runnable, WriteListener {
+
+        /**
+         * The asynchronous context of the read request.
+         */
+        private final AsyncContext asyncContext;
+
+        /**
+         * The response of the read request.
+         */
+        private final HttpServletResponse response;
+
+        /**
+         * The output stream of the response, in non-blocking mode.
+         */
+        private final ServletOutputStream out;
+
+        /**
+         * The session the tunnel is attached to.
+         */
+        private final GuacamoleSession session;
+
+        /**
+         * The tunnel being read.
+         */
+        private final GuacamoleTunnel tunnel;
+
+        /**
+         * Buffer of UTF-8 instruction data not yet written to the response,
+         * obtained from the pool only while this relay has read access.
+         */
+        private UTF8InstructionBuffer buffer;
+
+        /**
+         * Whether this relay has been registered as the WriteListener of
+         * the output stream.
+         */
+        private boolean listening = false;
+
+        /**
+         * The error reported by the container for the output stream, if any.
+         */
+        private Throwable error;
+
+        /**
+         * Creates a new ReadRelay which relays data from the given tunnel to
+         * the response of the read request having the given asynchronous
+         * context.
+         *
+         * @param asyncContext The asynchronous context of the read request.
+         * @param session The session the tunnel is attached to.
+         * @param tunnel The tunnel to read from.
+         * @throws IOException If the output stream of the response cannot be
+         *                     obtained.
+         */
+        public ReadRelay(AsyncContext asyncContext, GuacamoleSession session,
+                GuacamoleTunnel tunnel) throws IOException {
+            this.asyncContext = asyncContext;
+            this.response = (HttpServletResponse) asyncContext.getResponse();
+            this.out = response.getOutputStream();
+            this.session = session;
+            this.tunnel = tunnel;
+        }
+
+        @Override
+        public synchronized void onWritePossible() {
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onError(Throwable t) {
+            error = t;
+            notifyAll();
+        }
+
+        /**
+         * Waits until the output stream is ready to accept data. If the
+         * output stream is not ready, the container will invoke
+         * onWritePossible() once it is.
+         *
+         * @throws IOException If the container reports an error for the
+         *                     output stream, or the wait is interrupted.
+         */
+        private synchronized void awaitReady() throws IOException {
+
+            try {
+                while (error == null && !out.isReady())
+                    wait();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for output.", e);
+            }
+
+            if (error != null)
+                throw new IOException("Response output failed.", error);
+
+        }
+
+        /**
+         * Writes the given data to the response once the output stream is
+         * ready, flushing the response once the data is accepted.
+         *
+         * @param data The data to write.
+         * @param length The number of bytes of data to write.
+         * @throws IOException If an error occurs while writing the data.
+         */
+        private void send(byte[] data, int length) throws IOException {
+
+            awaitReady();
+            out.write(data, 0, length);
+
+            awaitReady();
+            out.flush();
+
+        }
+
+        /**
+         * Writes any buffered instruction data to the response.
+         *
+         * @throws IOException If an error occurs while writing the data.
+         */
+        private void sendBuffer() throws IOException {
+
+            if (buffer.length() == 0)
+                return;
+
+            send(buffer.getArray(), buffer.length());
+            buffer.clear();
+
+        }
+
+        /**
+         * Writes any buffered instruction data followed by the
+         * end-of-instructions marker, waiting until everything written has
+         * been accepted.
+         *
+         * @throws IOException If an error occurs while writing the data.
+         */
+        private void sendEndOfInstructions() throws IOException {
+            sendBuffer();
+            send(END_OF_INSTRUCTIONS, END_OF_INSTRUCTIONS.length);
+            awaitReady();
+        }
+
+        /**
+         * Callback which resubmits this relay once read access is handed off
+         * by the current reader.
+         */
+        private final Runnable handoff = new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+                    getTunnelExecutor().execute(tunnel, ReadRelay.this);
+                }
+                catch (GuacamoleException e) {
+
+                    logger.warn("Unable to resume HTTP tunnel read: {}", e.getMessage());
+                    logger.debug("Error resuming HTTP tunnel read.", e);
+
+                    // Abandon read request entirely
+                    tunnel.cancelReaderRequest();
+
+                    try {
+                        sendError(response, e.getStatus(), e.getMessage());
+                    }
+                    catch (ServletException se) {
+                        logger.debug("Unable to send error to client.", se);
+                    }
+
+                    asyncContext.complete();
+
+                }
+
+            }
+
+        };
+
+        @Override
+        public void run() {
+
+            // Switch output to non-blocking mode only once admitted by the
+            // executor, such that rejected requests can still send errors
+            if (!listening) {
+                out.setWriteListener(this);
+                listening = true;
+            }
+
+            // Obtain exclusive read access if immediately available,
+            // otherwise wait for the current reader to hand off without
+            // occupying this thread
+            GuacamoleReader reader = tunnel.tryAcquireReader();
+            if (reader == null) {
+                tunnel.awaitReader(handoff);
+                return;
+            }
+
+            buffer = new UTF8InstructionBuffer(getByteArrayPool());
+            try {
+
+                try {
+
+                    // Detach tunnel and throw error if EOF (and we haven't
+                    // sent any data yet.
+                    boolean more = buffer.read(reader);
+                    if (!more)
+                        throw new GuacamoleConnectionClosedException("Tunnel reached end of stream.");
+
+                    // For all messages, until another stream is ready (we
+                    // send at least one message)
+                    do {
+
+                        // Write if we expect to wait or the buffer is full
+                        if (!reader.available()
+                                || buffer.length() >= RESPONSE_BUFFER_SIZE)
+                            sendBuffer();
+
+                        // No more messages another stream can take over
+                        if (tunnel.isReaderRequested())
+                            break;
+
+                    } while (tunnel.isOpen() && (more = buffer.read(reader)));
+
+                    // Close tunnel immediately upon EOF
+                    if (!more)
+                        tunnel.close();
+
+                    // End-of-instructions marker
+                    sendEndOfInstructions();
+
+                }
+
+                // Send end-of-stream marker if connection is closed
+                catch (GuacamoleConnectionClosedException e) {
+                    sendEndOfInstructions();
+                }
+
+            }
+            catch (GuacamoleException e) {
+                detachAndClose(session, tunnel);
+                sendAsyncError(response, e);
+            }
+            catch (IOException e) {
+
+                // Log typically frequent I/O error if desired
+                logger.debug("Error writing to servlet output stream", e);
+                detachAndClose(session, tunnel);
+
+            }
+            finally {
+                buffer.release();
+                tunnel.releaseReader();
+                asyncContext.complete();
+            }
+
+        }
+
+    }
+
+    /**
+     * Called whenever the JavaScript Guacamole client makes a read request.
+     * The request is placed into asynchronous mode and serviced by a relay
+     * running within the tunnel executor, freeing the container thread.
+     *
+     * @param request The HttpServletRequest associated with the read request
+     *                received.
+     * @param response The HttpServletResponse associated with the read request
+     *                 received.
+     * @param tunnelUUID The UUID of the tunnel to read from, as specified in
+     *                   the read request. This tunnel must be attached to
+     *                   the Guacamole session.
+     * @throws GuacamoleException If an error occurs while handling the read
+     *                            request.
+     */
+    @Override
+    protected void doRead(HttpServletRequest request,
+            HttpServletResponse response, String tunnelUUID)
+            throws GuacamoleException {
+
+        HttpSession httpSession = request.getSession(false);
+        GuacamoleSession session = new GuacamoleSession(httpSession);
+
+        // Get tunnel, ensure tunnel exists
+        GuacamoleTunnel tunnel = session.getTunnel(tunnelUUID);
+        if (tunnel == null)
+            throw new GuacamoleResourceNotFoundException("No such tunnel.");
+
+        // Ensure tunnel is open
+        if (!tunnel.isOpen())
+            throw new GuacamoleResourceNotFoundException("Tunnel is closed.");
+
+        // Note that although we are sending text, Webkit browsers will
+        // buffer 1024 bytes before starting a normal stream if we use
+        // anything but application/octet-stream.
+        response.setContentType("application/octet-stream");
+        response.setHeader("Cache-Control", "no-cache");
+
+        // Long-polling reads last as long as the tunnel has data
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(0);
+
+        // Signal any current reader to end its response
+        tunnel.requestReader();
+
+        try {
+
+            ReadRelay relay = new ReadRelay(asyncContext, session, tunnel);
+            getTunnelExecutor().execute(tunnel, relay);
+
+        }
+        catch (IOException e) {
+            tunnel.cancelReaderRequest();
+            asyncContext.complete();
+            throw new GuacamoleServerException("Unable to start asynchronous read.", e);
+        }
+        catch (GuacamoleException e) {
+            tunnel.cancelReaderRequest();
+            asyncContext.complete();
+            throw e;
+        }
+
+    }
+
+    /**
+     * Called whenever the JavaScript Guacamole client makes a write request.
+     * The request body is received asynchronously, without holding a
+     * container thread, and is written to the tunnel in its entirety once
+     * received such that the instructions of concurrent write requests are
+     * never interleaved.
+     *
+     * @param request The HttpServletRequest associated with the write request
+     *                received. Any data to be written will be specified within
+     *                the body of this request.
+     * @param response The HttpServletResponse associated with the write request
+     *                 received.
+     * @param tunnelUUID The UUID of the tunnel to write to, as specified in
+     *                   the write request. This tunnel must be attached to
+     *                   the Guacamole session.
+     * @throws GuacamoleException If an error occurs while handling the write
+     *                            request.
+     */
+    @Override
+    protected void doWrite(HttpServletRequest request,
+            final HttpServletResponse response, String tunnelUUID)
+            throws GuacamoleException {
+
+        HttpSession httpSession = request.getSession(false);
+        final GuacamoleSession session = new GuacamoleSession(httpSession);
+
+        final GuacamoleTunnel tunnel = session.getTunnel(tunnelUUID);
+        if (tunnel == null)
+            throw new GuacamoleResourceNotFoundException("No such tunnel.");
+
+        // We still need to set the content type to avoid the default of
+        // text/html, as such a content type would cause some browsers to
+        // attempt to parse the result, even though the JavaScript client
+        // does not explicitly request such parsing.
+        response.setContentType("application/octet-stream");
+        response.setHeader("Cache-Control", "no-cache");
+        response.setContentLength(0);
+
+        final AsyncContext asyncContext = request.startAsync();
+
+        try {
+
+            final ServletInputStream input = request.getInputStream();
+            input.setReadListener(new ReadListener() {
+
+                /**
+                 * The request body received thus far.
+                 */
+                private final ByteArrayOutputStream body =
+                        new ByteArrayOutputStream();
+
+                /**
+                 * Pooled buffer for data read from the request body.
+                 */
+                private byte[] chunk = getByteArrayPool().acquire();
+
+                /**
+                 * Returns the pooled buffer to its pool.
+                 */
+                private void releaseChunk() {
+                    getByteArrayPool().release(chunk);
+                    chunk = null;
+                }
+
+                @Override
+                public void onDataAvailable() throws IOException {
+
+                    // Read only as much as is available without blocking
+                    int length;
+                    while (input.isReady()
+                            && (length = input.read(chunk)) != -1)
+                        body.write(chunk, 0, length);
+
+                }
+
+                @Override
+                public void onAllDataRead() {
+
+                    // Get writer from tunnel
+                    GuacamoleWriter writer = tunnel.acquireWriter();
+
+                    try {
+                        if (tunnel.isOpen())
+                            UTF8InstructionBuffer.write(writer,
+                                    body.toByteArray(), 0, body.size());
+                    }
+                    catch (GuacamoleConnectionClosedException e) {
+                        logger.debug("Connection to guacd closed.", e);
+                    }
+                    catch (GuacamoleException e) {
+                        detachAndClose(session, tunnel);
+                        sendAsyncError(response, e);
+                    }
+                    finally {
+                        releaseChunk();
+                        tunnel.releaseWriter();
+                        asyncContext.complete();
+                    }
+
+                }
+
+                @Override
+                public void onError(Throwable t) {
+
+                    // Log typically frequent I/O error if desired
+                    logger.debug("Error reading from servlet input stream", t);
+
+                    releaseChunk();
+                    detachAndClose(session, tunnel);
+                    asyncContext.complete();
+
+                }
+
+            });
+
+        }
+        catch (IOException e) {
+
+            // Detach and close
+            detachAndClose(session, tunnel);
+            asyncContext.complete();
+
+            throw new GuacamoleServerException("I/O Error sending data to server: " + e.getMessage(), e);
+        }
+
+    }
+
+}
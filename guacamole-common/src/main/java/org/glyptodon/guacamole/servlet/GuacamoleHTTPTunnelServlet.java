@@ -23,12 +23,17 @@
 package org.glyptodon.guacamole.servlet;
 
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.Reader;
-import java.io.Writer;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Enumeration;
+import java.util.concurrent.CountDownLatch;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -39,8 +44,13 @@ import org.glyptodon.guacamole.GuacamoleConnectionClosedException;
 import org.glyptodon.guacamole.GuacamoleException;
 import org.glyptodon.guacamole.GuacamoleResourceNotFoundException;
 import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.io.ByteArrayPool;
+import org.glyptodon.guacamole.io.CharArrayPool;
+import org.glyptodon.guacamole.io.CompressionMonitor;
 import org.glyptodon.guacamole.io.GuacamoleReader;
 import org.glyptodon.guacamole.io.GuacamoleWriter;
+import org.glyptodon.guacamole.io.MonitoredGZIPOutputStream;
+import org.glyptodon.guacamole.io.UTF8InstructionBuffer;
 import org.glyptodon.guacamole.net.GuacamoleTunnel;
 import org.glyptodon.guacamole.protocol.GuacamoleStatus;
 import org.slf4j.Logger;
@@ -84,6 +94,110 @@ public abstract class GuacamoleHTTPTunnelServlet extends HttpServlet {
      */
     private static final int UUID_LENGTH = 36;
 
+    /**
+     * The number of bytes of instruction data which may be buffered before
+     * being written to the response of a read request, even if more data is
+     * available from the tunnel.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * The end-of-instructions marker sent at the end of each read response.
+     */
+    private static final byte[] END_OF_INSTRUCTIONS = { '0', '.', ';' };
+
+    /**
+     * The UTF-8 character set.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Returns the pool providing byte buffers for read and write requests.
+     * By default, this is the default ByteArrayPool.
+     *
+     * @return The pool to use for all byte buffers.
+     */
+    protected ByteArrayPool getByteArrayPool() {
+        return ByteArrayPool.getDefault();
+    }
+
+    /**
+     * Returns the pool providing character buffers for write requests. By
+     * default, this is the default CharArrayPool.
+     *
+     * @return The pool to use for all character buffers.
+     */
+    protected CharArrayPool getCharArrayPool() {
+        return CharArrayPool.getDefault();
+    }
+
+    /**
+     * Returns whether read responses may be gzip-compressed. If enabled,
+     * each read response is compressed only if the client accepts gzip and
+     * the data recently sent over the tunnel has been compressing well, as
+     * decided by the CompressionMonitor of the tunnel. By default,
+     * compression is disabled.
+     *
+     * @return true if read responses may be compressed, false otherwise.
+     */
+    protected boolean isCompressionEnabled() {
+        return false;
+    }
+
+    /**
+     * Returns whether the given request declares that its response may be
+     * gzip-compressed.
+     *
+     * @param request The request to test.
+     * @return true if the response may be gzip-compressed, false otherwise.
+     */
+    private static boolean acceptsGzip(HttpServletRequest request) {
+
+        Enumeration<String> headers = request.getHeaders("Accept-Encoding");
+        if (headers == null)
+            return false;
+
+        // Look for a "gzip" coding which is not explicitly refused
+        while (headers.hasMoreElements()) {
+            for (String coding : headers.nextElement().split(",")) {
+
+                String[] parameters = coding.split(";");
+                if (!parameters[0].trim().equalsIgnoreCase("gzip"))
+                    continue;
+
+                // Accept unless the quality value is zero
+                boolean refused = false;
+                for (int i = 1; i < parameters.length; i++) {
+                    String parameter = parameters[i].replace(" ", "");
+                    if (parameter.matches("q=0(\\.0*)?"))
+                        refused = true;
+                }
+
+                if (!refused)
+                    return true;
+
+            }
+        }
+
+        return false;
+
+    }
+
+    @Override
+    public void destroy() {
+
+        // Report effectiveness of buffer pooling
+        ByteArrayPool bytePool = getByteArrayPool();
+        CharArrayPool charPool = getCharArrayPool();
+        logger.debug("HTTP tunnel buffer pools: {}% of byte buffers and {}% "
+                + "of character buffers reused.",
+                Math.round(bytePool.getHitRate() * 100),
+                Math.round(charPool.getHitRate() * 100));
+
+        super.destroy();
+
+    }
+
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException {
         handleTunnelRequest(request, response);
@@ -231,6 +345,52 @@ public abstract class GuacamoleHTTPTunnelServlet extends HttpServlet {
      */
     protected abstract GuacamoleTunnel doConnect(HttpServletRequest request) throws GuacamoleException;
 
+    /**
+     * Obtains exclusive read access to the given tunnel, waiting for the
+     * current reader, if any, to hand off read access. Unlike
+     * GuacamoleTunnel.acquireReader(), the wait is not spent queued on the
+     * reader lock, but is woken through GuacamoleTunnel.awaitReader() when
+     * the current reader releases the tunnel, at which point read access is
+     * attempted again. Read access must have been requested with
+     * GuacamoleTunnel.requestReader() beforehand.
+     *
+     * @param tunnel The tunnel to obtain read access to.
+     * @return A GuacamoleReader for reading from the given tunnel.
+     * @throws GuacamoleException If interrupted while waiting for read
+     *                            access.
+     */
+    private GuacamoleReader awaitReader(GuacamoleTunnel tunnel)
+            throws GuacamoleException {
+
+        GuacamoleReader reader;
+        while ((reader = tunnel.tryAcquireReader()) == null) {
+
+            // Wait for the current reader to release the tunnel
+            final CountDownLatch released = new CountDownLatch(1);
+            tunnel.awaitReader(new Runnable() {
+
+                @Override
+                public void run() {
+                    released.countDown();
+                }
+
+            });
+
+            try {
+                released.await();
+            }
+            catch (InterruptedException e) {
+                tunnel.cancelReaderRequest();
+                Thread.currentThread().interrupt();
+                throw new GuacamoleServerException("Interrupted while waiting for tunnel.", e);
+            }
+
+        }
+
+        return reader;
+
+    }
+
     /**
      * Called whenever the JavaScript Guacamole client makes a read request.
      * This function should in general not be overridden, as it already
@@ -262,8 +422,13 @@ public abstract class GuacamoleHTTPTunnelServlet extends HttpServlet {
         if (!tunnel.isOpen())
             throw new GuacamoleResourceNotFoundException("Tunnel is closed.");
 
-        // Obtain exclusive read access
-        GuacamoleReader reader = tunnel.acquireReader();
+        // Signal any current reader to end its response, then obtain
+        // exclusive read access once it has done so
+        tunnel.requestReader();
+        GuacamoleReader reader = awaitReader(tunnel);
+
+        // Buffer instructions within pooled memory
+        UTF8InstructionBuffer buffer = new UTF8InstructionBuffer(getByteArrayPool());
 
         try {
 
@@ -273,50 +438,78 @@ public abstract class GuacamoleHTTPTunnelServlet extends HttpServlet {
             response.setContentType("application/octet-stream");
             response.setHeader("Cache-Control", "no-cache");
 
-            // Get writer for response
-            Writer out = new BufferedWriter(new OutputStreamWriter(
-                    response.getOutputStream(), "UTF-8"));
+            // Compress only if allowed, and only if recent data from this
+            // tunnel has compressed well
+            CompressionMonitor monitor = tunnel.getCompressionMonitor();
+            boolean adaptive = isCompressionEnabled() && acceptsGzip(request)
+                    && MonitoredGZIPOutputStream.isSupported();
+            boolean compressing = adaptive && monitor.isCompressing();
+
+            // Get output stream for response
+            OutputStream out = response.getOutputStream();
+            if (compressing) {
+                response.setHeader("Content-Encoding", "gzip");
+                out = new MonitoredGZIPOutputStream(out, monitor);
+            }
 
             // Stream data to response, ensuring output stream is closed
             try {
 
                 // Detach tunnel and throw error if EOF (and we haven't sent any
                 // data yet.
-                char[] message = reader.read();
-                if (message == null)
+                boolean more = buffer.read(reader);
+                if (!more)
                     throw new GuacamoleConnectionClosedException("Tunnel reached end of stream.");
 
                 // For all messages, until another stream is ready (we send at least one message)
                 do {
 
-                    // Get message output bytes
-                    out.write(message, 0, message.length);
+                    // Send buffered data if full or if we expect to wait
+                    boolean idle = !reader.available();
+                    if (idle || buffer.length() >= BUFFER_SIZE) {
+
+                        // Periodically re-test whether uncompressed data
+                        // has become worth compressing
+                        if (adaptive && !compressing)
+                            monitor.sample(buffer.getArray(), 0, buffer.length());
+
+                        out.write(buffer.getArray(), 0, buffer.length());
+                        buffer.clear();
+
+                    }
 
                     // Flush if we expect to wait
-                    if (!reader.available()) {
+                    if (idle) {
                         out.flush();
                         response.flushBuffer();
                     }
 
                     // No more messages another stream can take over
-                    if (tunnel.hasQueuedReaderThreads())
+                    if (tunnel.isReaderRequested())
                         break;
 
-                } while (tunnel.isOpen() && (message = reader.read()) != null);
+                    // End the response if compression should now be
+                    // switched on or off, such that the next response can
+                    // switch
+                    if (adaptive && monitor.isCompressing() != compressing)
+                        break;
+
+                } while (tunnel.isOpen() && (more = buffer.read(reader)));
 
                 // Close tunnel immediately upon EOF
-                if (message == null)
+                if (!more)
                     tunnel.close();
 
                 // End-of-instructions marker
-                out.write("0.;");
+                out.write(buffer.getArray(), 0, buffer.length());
+                out.write(END_OF_INSTRUCTIONS);
                 out.flush();
                 response.flushBuffer();
             }
 
             // Send end-of-stream marker if connection is closed
             catch (GuacamoleConnectionClosedException e) {
-                out.write("0.;");
+                out.write(END_OF_INSTRUCTIONS);
                 out.flush();
                 response.flushBuffer();
             }
@@ -347,6 +540,7 @@ public abstract class GuacamoleHTTPTunnelServlet extends HttpServlet {
 
         }
         finally {
+            buffer.release();
             tunnel.releaseReader();
         }
 
@@ -391,28 +585,51 @@ public abstract class GuacamoleHTTPTunnelServlet extends HttpServlet {
             // Get writer from tunnel
             GuacamoleWriter writer = tunnel.acquireWriter();
 
-            // Get input reader for HTTP stream
-            Reader input = new InputStreamReader(
-                    request.getInputStream(), "UTF-8");
+            // Get input stream for HTTP request
+            InputStream input = request.getInputStream();
+
+            // Buffers within pooled memory
+            byte[] inputBytes = getByteArrayPool().acquire();
+            char[] inputChars = getCharArrayPool().acquire();
 
             // Transfer data from input stream to tunnel output, ensuring
             // input is always closed
             try {
 
-                // Buffer
+                ByteBuffer bytes = ByteBuffer.wrap(inputBytes);
+                CharBuffer chars = CharBuffer.wrap(inputChars);
+
+                CharsetDecoder decoder = UTF8.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+                // Transfer data using buffers, retaining any partial
+                // character until the remainder of its bytes are read
                 int length;
-                char[] buffer = new char[8192];
+                while (tunnel.isOpen() && (length = input.read(inputBytes,
+                        bytes.position(), bytes.remaining())) != -1) {
 
-                // Transfer data using buffer
-                while (tunnel.isOpen() &&
-                        (length = input.read(buffer, 0, buffer.length)) != -1)
-                    writer.write(buffer, 0, length);
+                    bytes.position(bytes.position() + length);
+                    bytes.flip();
+
+                    CoderResult result;
+                    do {
+                        result = decoder.decode(bytes, chars, false);
+                        writer.write(inputChars, 0, chars.position());
+                        chars.clear();
+                    } while (result.isOverflow());
+
+                    bytes.compact();
+
+                }
 
             }
 
-            // Close input stream in all cases
+            // Close input stream and return buffers in all cases
             finally {
                 input.close();
+                getByteArrayPool().release(inputBytes);
+                getCharArrayPool().release(inputChars);
             }
 
         }
@@ -23,6 +23,9 @@
 package org.glyptodon.guacamole.websocket;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Future;
 import javax.websocket.CloseReason;
 import javax.websocket.CloseReason.CloseCode;
 import javax.websocket.Endpoint;
@@ -32,11 +35,16 @@ import javax.websocket.OnClose;
 import javax.websocket.OnMessage;
 import javax.websocket.OnOpen;
 import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
 import javax.websocket.Session;
 import org.glyptodon.guacamole.GuacamoleException;
 import org.glyptodon.guacamole.io.GuacamoleReader;
 import org.glyptodon.guacamole.io.GuacamoleWriter;
+import org.glyptodon.guacamole.io.UTF8InstructionBuffer;
+import org.glyptodon.guacamole.net.FrameBatcher;
 import org.glyptodon.guacamole.net.GuacamoleTunnel;
+import org.glyptodon.guacamole.net.GuacamoleTunnelExecutor;
 import org.glyptodon.guacamole.GuacamoleClientException;
 import org.glyptodon.guacamole.GuacamoleConnectionClosedException;
 import org.glyptodon.guacamole.protocol.GuacamoleStatus;
@@ -47,12 +55,33 @@ import org.slf4j.LoggerFactory;
  * A WebSocket implementation of GuacamoleTunnel functionality, compatible with
  * the Guacamole.WebSocketTunnel object included with the JavaScript API.
  * Messages sent/received are simply chunks of the Guacamole protocol
- * instruction stream.
+ * instruction stream. If the "guacamole-binary" subprotocol is negotiated,
+ * messages are binary and contain the instruction stream encoded as UTF-8,
+ * otherwise messages are text.
  *
  * @author Michael Jumper
  */
 public abstract class GuacamoleWebSocketTunnelEndpoint extends Endpoint {
 
+    /**
+     * The WebSocket subprotocol carrying the instruction stream within text
+     * messages.
+     */
+    public static final String TEXT_SUBPROTOCOL = "guacamole";
+
+    /**
+     * The WebSocket subprotocol carrying the instruction stream within binary
+     * messages, as UTF-8.
+     */
+    public static final String BINARY_SUBPROTOCOL = "guacamole-binary";
+
+    /**
+     * The name of the WebSocket extension which compresses each message, as
+     * defined by RFC 7692. Whether this extension is negotiated is decided
+     * by the configurator of the endpoint.
+     */
+    public static final String DEFLATE_EXTENSION = "permessage-deflate";
+
     /**
      * The default, minimum buffer size for instructions.
      */
@@ -68,7 +97,33 @@ public abstract class GuacamoleWebSocketTunnelEndpoint extends Endpoint {
      * as reads/writes to this tunnel.
      */
     private GuacamoleTunnel tunnel;
+
+    /**
+     * Whether the client connection has closed, such that the stream of
+     * instructions from the tunnel should no longer be read.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * The queue of messages being sent to the client, or null if the
+     * connection has not yet opened. This queue is closed with the
+     * connection, as the container may never complete a pending send once
+     * the connection is lost.
+     */
+    private volatile WebSocketSendQueue<Object> sendQueue;
     
+    /**
+     * Closes the queue of messages being sent to the client, if any, such
+     * that a relay blocked on that queue stops rather than waiting forever.
+     */
+    private void closeSendQueue() {
+
+        WebSocketSendQueue<Object> queue = sendQueue;
+        if (queue != null)
+            queue.close();
+
+    }
+
     /**
      * Sends the given status on the given WebSocket connection and closes the
      * connection.
@@ -89,6 +144,39 @@ public abstract class GuacamoleWebSocketTunnelEndpoint extends Endpoint {
 
     }
 
+    /**
+     * Returns the number of unsent bytes at which reads from guacd will stop
+     * until the client catches up. By default, this is
+     * WebSocketSendQueue.DEFAULT_HIGH_WATERMARK.
+     *
+     * @return The high watermark of the outbound message queue, in bytes.
+     */
+    protected int getSendHighWatermark() {
+        return WebSocketSendQueue.DEFAULT_HIGH_WATERMARK;
+    }
+
+    /**
+     * Returns the number of unsent bytes at which stopped reads from guacd
+     * will resume. By default, this is
+     * WebSocketSendQueue.DEFAULT_LOW_WATERMARK.
+     *
+     * @return The low watermark of the outbound message queue, in bytes.
+     */
+    protected int getSendLowWatermark() {
+        return WebSocketSendQueue.DEFAULT_LOW_WATERMARK;
+    }
+
+    /**
+     * Returns the executor which should run the loop relaying data from
+     * each tunnel to its client. By default, this is the default
+     * GuacamoleTunnelExecutor.
+     *
+     * @return The executor to use for all tunnels.
+     */
+    protected GuacamoleTunnelExecutor getTunnelExecutor() {
+        return GuacamoleTunnelExecutor.getDefault();
+    }
+
     /**
      * Returns a new tunnel for the given session. How this tunnel is created
      * or retrieved is implementation-dependent.
@@ -135,42 +223,160 @@ public abstract class GuacamoleWebSocketTunnelEndpoint extends Endpoint {
 
         });
 
-        // Prepare read transfer thread
-        Thread readThread = new Thread() {
+        session.addMessageHandler(new MessageHandler.Whole<ByteBuffer>() {
+
+            @Override
+            public void onMessage(ByteBuffer message) {
+                GuacamoleWebSocketTunnelEndpoint.this.onMessage(message);
+            }
+
+        });
+
+        // Send binary messages only if negotiated with the client
+        final boolean binary = BINARY_SUBPROTOCOL.equals(session.getNegotiatedSubprotocol());
+
+        // Remote (client) side of this connection
+        final RemoteEndpoint.Async remote = session.getAsyncRemote();
+
+        // Queue of messages being sent to the client. Reads from guacd stop
+        // while this queue is above its high watermark
+        final WebSocketSendQueue<Object> queue =
+                new WebSocketSendQueue<Object>(getSendHighWatermark(),
+                        getSendLowWatermark()) {
+
+            @Override
+            protected Future<?> dispatch(Object message) {
+
+                SendHandler handler = new SendHandler() {
+
+                    @Override
+                    public void onResult(SendResult result) {
+                        completed(result.getException());
+                    }
+
+                };
+
+                // Send as binary or text, depending on message type
+                if (message instanceof ByteBuffer)
+                    remote.sendBinary((ByteBuffer) message, handler);
+                else
+                    remote.sendText((String) message, handler);
+
+                return null;
+
+            }
+
+        };
+
+        // Allow queue to be closed with the connection
+        sendQueue = queue;
+
+        // Prepare loop relaying data from tunnel
+        Runnable pump = new Runnable() {
 
             /**
-             * Remote (client) side of this connection
+             * Relays all instructions from the given reader to the client
+             * as text messages.
+             *
+             * @param reader The reader to relay instructions from.
+             * @throws GuacamoleException If an error occurs while reading.
+             * @throws IOException If an error occurs while sending.
              */
-            private final RemoteEndpoint.Basic remote = session.getBasicRemote();
-                
+            private void relayText(GuacamoleReader reader)
+                    throws GuacamoleException, IOException {
+
+                StringBuilder buffer = new StringBuilder(BUFFER_SIZE);
+                FrameBatcher batcher = tunnel.getFrameBatcher();
+                char[] readMessage;
+
+                // Announce tunnel UUID, allowing the client to resume
+                buffer.append(tunnel.getUUIDInstruction());
+
+                // Attempt to read
+                while (!closed && (readMessage = reader.read()) != null) {
+
+                    // Do not send data read after the client has gone
+                    if (closed)
+                        break;
+
+                    // Buffer message
+                    buffer.append(readMessage);
+                    batcher.buffered(readMessage, 0, readMessage.length);
+
+                    // Flush if we expect to wait or buffer is getting full
+                    if (batcher.shouldFlush(reader, buffer.length())) {
+                        queue.send(buffer.toString(), buffer.length());
+                        buffer.setLength(0);
+                        batcher.flushed();
+                    }
+
+                }
+
+            }
+
+            /**
+             * Relays all instructions from the given reader to the client
+             * as binary messages containing UTF-8.
+             *
+             * @param reader The reader to relay instructions from.
+             * @throws GuacamoleException If an error occurs while reading.
+             * @throws IOException If an error occurs while sending.
+             */
+            private void relayBinary(GuacamoleReader reader)
+                    throws GuacamoleException, IOException {
+
+                UTF8InstructionBuffer buffer = new UTF8InstructionBuffer(BUFFER_SIZE);
+                FrameBatcher batcher = tunnel.getFrameBatcher();
+
+                // Announce tunnel UUID, allowing the client to resume
+                buffer.append(tunnel.getUUIDInstruction().toCharArray());
+                int instructionStart = buffer.length();
+
+                // Attempt to read
+                while (!closed && buffer.read(reader)) {
+
+                    // Do not send data read after the client has gone
+                    if (closed)
+                        break;
+
+                    batcher.buffered(buffer.getArray(), instructionStart,
+                            buffer.length() - instructionStart);
+
+                    // Flush if we expect to wait or buffer is getting full
+                    if (batcher.shouldFlush(reader, buffer.length())) {
+                        byte[] message = Arrays.copyOf(buffer.getArray(), buffer.length());
+                        queue.send(ByteBuffer.wrap(message), message.length);
+                        buffer.clear();
+                        batcher.flushed();
+                    }
+
+                    instructionStart = buffer.length();
+
+                }
+
+            }
+
             @Override
             public void run() {
 
-                StringBuilder buffer = new StringBuilder(BUFFER_SIZE);
                 GuacamoleReader reader = tunnel.acquireReader();
-                char[] readMessage;
 
                 try {
 
                     try {
 
-                        // Attempt to read
-                        while ((readMessage = reader.read()) != null) {
-
-                            // Buffer message
-                            buffer.append(readMessage);
-
-                            // Flush if we expect to wait or buffer is getting full
-                            if (!reader.available() || buffer.length() >= BUFFER_SIZE) {
-                                remote.sendText(buffer.toString());
-                                buffer.setLength(0);
-                            }
+                        // Relay all instructions until no more data
+                        if (binary)
+                            relayBinary(reader);
+                        else
+                            relayText(reader);
 
+                        // No more data, unless the client has gone
+                        if (!closed) {
+                            queue.drain();
+                            closeConnection(session, GuacamoleStatus.SUCCESS);
                         }
 
-                        // No more data
-                        closeConnection(session, GuacamoleStatus.SUCCESS);
-
                     }
 
                     // Catch any thrown guacamole exception and attempt
@@ -183,6 +389,7 @@ public abstract class GuacamoleWebSocketTunnelEndpoint extends Endpoint {
                     }
                     catch (GuacamoleConnectionClosedException e) {
                         logger.debug("Connection to guacd closed.", e);
+                        queue.drain();
                         closeConnection(session, GuacamoleStatus.SUCCESS);
                     }
                     catch (GuacamoleException e) {
@@ -195,12 +402,28 @@ public abstract class GuacamoleWebSocketTunnelEndpoint extends Endpoint {
                 catch (IOException e) {
                     logger.debug("I/O error prevents further reads.", e);
                 }
+                finally {
+                    tunnel.releaseReader();
+                }
+
+                logger.debug("WebSocket send queue peaked at {} bytes, "
+                        + "stalling reads {} times for {} ms total.",
+                        queue.getMaxQueuedBytes(), queue.getStallCount(),
+                        queue.getStallTime() / 1000000);
 
             }
 
         };
 
-        readThread.start();
+        // Relay data from tunnel on shared executor
+        try {
+            getTunnelExecutor().execute(tunnel, pump);
+        }
+        catch (GuacamoleException e) {
+            logger.warn("Unable to start WebSocket tunnel: {}", e.getMessage());
+            logger.debug("Error starting WebSocket tunnel.", e);
+            closeConnection(session, e.getStatus());
+        }
 
     }
 
@@ -223,14 +446,65 @@ public abstract class GuacamoleWebSocketTunnelEndpoint extends Endpoint {
         tunnel.releaseWriter();
 
     }
+
+    /**
+     * Writes the UTF-8 instructions within the given binary message to the
+     * tunnel.
+     *
+     * @param message The binary message received.
+     */
+    public void onMessage(ByteBuffer message) {
+
+        // Copy message if not backed by an accessible array
+        if (!message.hasArray()) {
+            byte[] copy = new byte[message.remaining()];
+            message.get(copy);
+            message = ByteBuffer.wrap(copy);
+        }
+
+        GuacamoleWriter writer = tunnel.acquireWriter();
+
+        try {
+            // Write received message
+            UTF8InstructionBuffer.write(writer, message.array(),
+                    message.arrayOffset() + message.position(), message.remaining());
+        }
+        catch (GuacamoleConnectionClosedException e) {
+            logger.debug("Connection to guacd closed.", e);
+        }
+        catch (GuacamoleException e) {
+            logger.debug("WebSocket tunnel write failed.", e);
+        }
+
+        tunnel.releaseWriter();
+
+    }
     
+    @Override
+    public void onError(Session session, Throwable cause) {
+        logger.debug("WebSocket tunnel connection failed.", cause);
+        closed = true;
+        closeSendQueue();
+    }
+
     @Override
     @OnClose
     public void onClose(Session session, CloseReason closeReason) {
 
+        closed = true;
+        closeSendQueue();
+
         try {
-            if (tunnel != null)
+
+            if (tunnel == null)
+                return;
+
+            // Allow resumption if connection was lost without a close frame
+            if (closeReason.getCloseCode() == CloseReason.CloseCodes.CLOSED_ABNORMALLY)
+                tunnel.detach();
+            else
                 tunnel.close();
+
         }
         catch (GuacamoleException e) {
             logger.debug("Unable to close WebSocket tunnel.", e);
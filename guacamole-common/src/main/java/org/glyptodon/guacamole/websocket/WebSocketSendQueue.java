@@ -0,0 +1,499 @@
+/*
+ * Copyright (C) 2014 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.websocket;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import org.glyptodon.guacamole.net.GuacamoleTunnelStatistics;
+
+/**
+ * Bounded queue of outbound WebSocket messages which are sent
+ * asynchronously. Once the total size of unsent messages reaches the high
+ * watermark, send() blocks until enough messages have been sent to bring the
+ * total back down to the low watermark. When used by the thread reading from
+ * guacd, this stops reads from guacd while the client is slow, rather than
+ * blocking on each individual message.
+ *
+ * Implementations send messages either with a completion callback, invoking
+ * completed() once each message is sent, or by returning a Future from
+ * dispatch(). Messages in callback mode are dispatched one at a time, as
+ * some containers refuse to begin a new asynchronous message until the
+ * previous message has been sent. Messages returning a Future are dispatched
+ * immediately, with their completion checked by the sending thread.
+ *
+ * The size of unsent messages and time spent blocked are also added to the
+ * totals of the default GuacamoleTunnelStatistics.
+ *
+ * @author Michael Jumper
+ * @param <T> The type of message sent.
+ */
+public abstract class WebSocketSendQueue<T> {
+
+    /**
+     * The default high watermark, in bytes.
+     */
+    public static final int DEFAULT_HIGH_WATERMARK = 262144;
+
+    /**
+     * The default low watermark, in bytes.
+     */
+    public static final int DEFAULT_LOW_WATERMARK = 65536;
+
+    /**
+     * The interval at which the Future of the oldest unsent message is
+     * checked while blocked, in milliseconds.
+     */
+    private static final long FUTURE_POLL_INTERVAL = 10;
+
+    /**
+     * A message which has been queued but not yet sent.
+     *
+     * @param <T> The type of message sent.
+     */
+    private static class Entry<T> {
+
+        /**
+         * The message to send.
+         */
+        private final T message;
+
+        /**
+         * The size of the message, in bytes.
+         */
+        private final int size;
+
+        /**
+         * The Future tracking the send of this message, if dispatched and
+         * the implementation returned a Future, or null otherwise.
+         */
+        private Future<?> future;
+
+        /**
+         * Whether this message has been dispatched.
+         */
+        private boolean dispatched = false;
+
+        /**
+         * Creates a new Entry for the given message.
+         *
+         * @param message The message to send.
+         * @param size The size of the message, in bytes.
+         */
+        public Entry(T message, int size) {
+            this.message = message;
+            this.size = size;
+        }
+
+    }
+
+    /**
+     * All messages which have not yet been sent, in order.
+     */
+    private final LinkedList<Entry<T>> entries = new LinkedList<Entry<T>>();
+
+    /**
+     * The total size of all messages which have not yet been sent, in bytes.
+     */
+    private int queuedBytes = 0;
+
+    /**
+     * The high watermark, in bytes.
+     */
+    private final int highWatermark;
+
+    /**
+     * The low watermark, in bytes.
+     */
+    private final int lowWatermark;
+
+    /**
+     * Whether a message is currently being sent in callback mode.
+     */
+    private boolean callbackPending = false;
+
+    /**
+     * Whether messages are currently being dispatched.
+     */
+    private boolean dispatching = false;
+
+    /**
+     * The first error encountered while sending, if any.
+     */
+    private Throwable error = null;
+
+    /**
+     * The largest number of bytes ever queued.
+     */
+    private int maxQueuedBytes = 0;
+
+    /**
+     * The number of times send() has blocked at the high watermark.
+     */
+    private long stallCount = 0;
+
+    /**
+     * The total time send() has spent blocked, in nanoseconds.
+     */
+    private long stallTime = 0;
+
+    /**
+     * The statistics shared by all tunnels.
+     */
+    private final GuacamoleTunnelStatistics statistics =
+            GuacamoleTunnelStatistics.getDefault();
+
+    /**
+     * Creates a new WebSocketSendQueue with the given watermarks.
+     *
+     * @param highWatermark The number of unsent bytes at which send() will
+     *                      block.
+     * @param lowWatermark The number of unsent bytes at which a blocked
+     *                     send() will return. This is clamped to the high
+     *                     watermark.
+     */
+    public WebSocketSendQueue(int highWatermark, int lowWatermark) {
+        this.highWatermark = Math.max(highWatermark, 1);
+        this.lowWatermark = Math.max(Math.min(lowWatermark, this.highWatermark), 0);
+    }
+
+    /**
+     * Creates a new WebSocketSendQueue with the default watermarks.
+     */
+    public WebSocketSendQueue() {
+        this(DEFAULT_HIGH_WATERMARK, DEFAULT_LOW_WATERMARK);
+    }
+
+    /**
+     * Begins sending the given message asynchronously. If this function
+     * returns null, the implementation must invoke completed() exactly once
+     * when the send finishes, and no other message will be dispatched until
+     * it does.
+     *
+     * @param message The message to send.
+     * @return A Future which completes when the message has been sent, or
+     *         null if completion will be signalled via completed().
+     */
+    protected abstract Future<?> dispatch(T message);
+
+    /**
+     * Returns the oldest message which has not yet been dispatched.
+     *
+     * @return The oldest undispatched message, or null if all messages have
+     *         been dispatched.
+     */
+    private Entry<T> nextUndispatched() {
+
+        for (Entry<T> entry : entries) {
+            if (!entry.dispatched)
+                return entry;
+        }
+
+        return null;
+
+    }
+
+    /**
+     * Dispatches all queued messages which may be dispatched now. Messages
+     * are dispatched in order, stopping at any message in callback mode
+     * which has not yet completed.
+     */
+    private void dispatchQueued() {
+
+        // Completion may be signalled from within dispatch(), in which case
+        // the outer call continues dispatching
+        if (dispatching)
+            return;
+
+        dispatching = true;
+        try {
+
+            Entry<T> entry;
+            while (!callbackPending && (entry = nextUndispatched()) != null) {
+
+                // Assume callback mode until a Future is returned
+                entry.dispatched = true;
+                callbackPending = true;
+
+                entry.future = dispatch(entry.message);
+                if (entry.future != null)
+                    callbackPending = false;
+
+            }
+
+        }
+        finally {
+            dispatching = false;
+        }
+
+    }
+
+    /**
+     * Removes all leading messages whose Futures have completed, recording
+     * the first error encountered.
+     */
+    private void reapCompleted() {
+
+        while (!entries.isEmpty()) {
+
+            Entry<T> entry = entries.getFirst();
+            if (entry.future == null || !entry.future.isDone())
+                return;
+
+            try {
+                entry.future.get();
+            }
+            catch (ExecutionException e) {
+                fail(e.getCause());
+                return;
+            }
+            catch (InterruptedException e) {
+                fail(e);
+                return;
+            }
+
+            entries.removeFirst();
+            queuedBytes -= entry.size;
+            statistics.queued(-entry.size);
+
+        }
+
+    }
+
+    /**
+     * Records the given error, if no error has yet been recorded, and
+     * discards all unsent messages.
+     *
+     * @param cause The error which occurred.
+     */
+    private void fail(Throwable cause) {
+
+        if (error == null)
+            error = cause;
+
+        entries.clear();
+        statistics.queued(-queuedBytes);
+        queuedBytes = 0;
+        notifyAll();
+
+    }
+
+    /**
+     * Throws the recorded error, if any, as an IOException.
+     *
+     * @throws IOException If a previous send failed.
+     */
+    private void checkError() throws IOException {
+
+        if (error == null)
+            return;
+
+        if (error instanceof IOException)
+            throw (IOException) error;
+
+        throw new IOException("Asynchronous WebSocket send failed.", error);
+
+    }
+
+    /**
+     * Waits until no more than the given number of bytes remain unsent.
+     *
+     * @param limit The maximum number of unsent bytes to wait for.
+     * @throws IOException If a send fails or the wait is interrupted.
+     */
+    private void awaitQueuedBytes(int limit) throws IOException {
+
+        try {
+
+            reapCompleted();
+            while (queuedBytes > limit && error == null) {
+
+                // Futures cannot notify this queue, and must be polled
+                if (entries.getFirst().future != null)
+                    wait(FUTURE_POLL_INTERVAL);
+
+                // Otherwise wait for completed()
+                else
+                    wait();
+
+                reapCompleted();
+
+            }
+
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for WebSocket send.", e);
+        }
+
+        checkError();
+
+    }
+
+    /**
+     * Queues the given message for sending. If the total size of unsent
+     * messages reaches the high watermark, this function blocks until it
+     * drops to the low watermark.
+     *
+     * @param message The message to send. The message must not be modified
+     *                after this call.
+     * @param size The size of the message, in bytes.
+     * @throws IOException If a previous send failed, or if interrupted while
+     *                     blocked.
+     */
+    public synchronized void send(T message, int size) throws IOException {
+
+        checkError();
+        reapCompleted();
+
+        entries.add(new Entry<T>(message, size));
+        queuedBytes += size;
+        statistics.queued(size);
+        maxQueuedBytes = Math.max(maxQueuedBytes, queuedBytes);
+
+        dispatchQueued();
+
+        // Stop accepting messages until the client catches up
+        if (queuedBytes >= highWatermark) {
+
+            long start = System.nanoTime();
+            stallCount++;
+
+            try {
+                awaitQueuedBytes(lowWatermark);
+            }
+            finally {
+                long elapsed = System.nanoTime() - start;
+                stallTime += elapsed;
+                statistics.stalled(elapsed);
+            }
+
+        }
+
+    }
+
+    /**
+     * Notifies this queue that the message most recently dispatched in
+     * callback mode has finished sending.
+     *
+     * @param cause The error which caused the send to fail, or null if the
+     *              message was sent successfully.
+     */
+    protected synchronized void completed(Throwable cause) {
+
+        // Ignore completions arriving after failure
+        if (!callbackPending)
+            return;
+
+        callbackPending = false;
+
+        if (cause != null) {
+            fail(cause);
+            return;
+        }
+
+        // Remove the completed message, the only dispatched message without
+        // a Future
+        for (Entry<T> entry : entries) {
+            if (entry.dispatched && entry.future == null) {
+                entries.remove(entry);
+                queuedBytes -= entry.size;
+                statistics.queued(-entry.size);
+                break;
+            }
+        }
+
+        reapCompleted();
+        dispatchQueued();
+        notifyAll();
+
+    }
+
+    /**
+     * Closes this queue, discarding all unsent messages. Any thread blocked
+     * within send() or drain() is woken, and that call and all future calls
+     * fail. This must be called once the WebSocket connection has closed,
+     * as the container may never signal completion of a message sent in
+     * callback mode, nor complete its Future, once the connection is gone.
+     */
+    public synchronized void close() {
+        fail(new IOException("WebSocket connection closed."));
+    }
+
+    /**
+     * Waits until all queued messages have been sent.
+     *
+     * @throws IOException If a send fails, or if interrupted while waiting.
+     */
+    public synchronized void drain() throws IOException {
+        awaitQueuedBytes(0);
+    }
+
+    /**
+     * Returns the number of messages which have not yet been sent.
+     *
+     * @return The number of messages which have not yet been sent.
+     */
+    public synchronized int getQueueDepth() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the total size of all messages which have not yet been sent.
+     *
+     * @return The total size of all unsent messages, in bytes.
+     */
+    public synchronized int getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * Returns the largest total size of unsent messages observed.
+     *
+     * @return The largest total size of unsent messages, in bytes.
+     */
+    public synchronized int getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    /**
+     * Returns the number of times send() has blocked at the high watermark.
+     *
+     * @return The number of times send() has blocked.
+     */
+    public synchronized long getStallCount() {
+        return stallCount;
+    }
+
+    /**
+     * Returns the total time send() has spent blocked at the high watermark.
+     *
+     * @return The total time spent blocked, in nanoseconds.
+     */
+    public synchronized long getStallTime() {
+        return stallTime;
+    }
+
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.display;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import javax.imageio.ImageIO;
+import org.glyptodon.guacamole.protocol.Base64Codec;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests DisplayState, verifying that interpreted drawing is reproduced by
+ * snapshots and that unsupported drawing prevents snapshots until the
+ * affected layer is repainted.
+ *
+ * @author Michael Jumper
+ */
+public class DisplayStateTest {
+
+    /**
+     * Returns the base64-encoded PNG of a solid image of the given size and
+     * color.
+     *
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @param argb The color of every pixel, as ARGB.
+     * @return The base64-encoded PNG data.
+     * @throws Exception If the image cannot be encoded.
+     */
+    private static String png(int width, int height, int argb) throws Exception {
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++)
+                image.setRGB(x, y, argb);
+        }
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", data);
+        return Base64Codec.encode(data.toByteArray());
+
+    }
+
+    /**
+     * Returns the image drawn by the first "png" instruction for the given
+     * layer within the given instructions.
+     *
+     * @param instructions The instructions to search.
+     * @param layer The index of the layer.
+     * @return The image drawn to the given layer, or null if none.
+     * @throws Exception If the image cannot be decoded.
+     */
+    private static BufferedImage getImage(List<GuacamoleInstruction> instructions,
+            String layer) throws Exception {
+
+        for (GuacamoleInstruction instruction : instructions) {
+            if (instruction.getOpcode().equals("png")
+                    && instruction.getArgs().get(1).equals(layer))
+                return ImageIO.read(new ByteArrayInputStream(
+                        Base64Codec.decode(instruction.getArgs().get(4))));
+        }
+
+        return null;
+
+    }
+
+    /**
+     * Returns the opcodes of the given instructions, in order.
+     *
+     * @param instructions The instructions.
+     * @return The opcodes of the given instructions.
+     */
+    private static List<String> getOpcodes(List<GuacamoleInstruction> instructions) {
+        List<String> opcodes = new ArrayList<String>();
+        for (GuacamoleInstruction instruction : instructions)
+            opcodes.add(instruction.getOpcode());
+        return opcodes;
+    }
+
+    /**
+     * Verifies that images, fills, copies, layer positions and the cursor
+     * are reproduced by a snapshot.
+     *
+     * @throws Exception If an image cannot be encoded or decoded.
+     */
+    @Test
+    public void testSnapshot() throws Exception {
+
+        DisplayState state = new DisplayState();
+        state.handle(new GuacamoleInstruction("size", "0", "8", "8"));
+        state.handle(new GuacamoleInstruction("png", "12", "0", "0", "0", png(8, 8, 0xFFFF0000)));
+
+        // Fill the bottom half of the default layer with blue
+        state.handle(new GuacamoleInstruction("rect", "0", "0", "4", "8", "4"));
+        state.handle(new GuacamoleInstruction("cfill", "14", "0", "0", "0", "255", "255"));
+
+        // Copy a red pixel to a buffer and use it as the cursor
+        state.handle(new GuacamoleInstruction("copy", "0", "0", "0", "1", "1", "12", "-1", "0", "0"));
+        state.handle(new GuacamoleInstruction("cursor", "0", "0", "-1", "0", "0", "1", "1"));
+        state.handle(new GuacamoleInstruction("dispose", "-1"));
+
+        // Add a positioned layer
+        state.handle(new GuacamoleInstruction("size", "1", "2", "2"));
+        state.handle(new GuacamoleInstruction("move", "1", "0", "3", "3", "0"));
+        state.handle(new GuacamoleInstruction("sync", "1234"));
+
+        assertTrue(state.isKnown());
+        List<GuacamoleInstruction> instructions = state.getInstructions();
+        assertNotNull(instructions);
+
+        assertEquals("dispose", instructions.get(0).getOpcode());
+        assertEquals("sync", instructions.get(instructions.size() - 1).getOpcode());
+        assertEquals("1234", instructions.get(instructions.size() - 1).getArgs().get(0));
+        assertTrue(getOpcodes(instructions).contains("move"));
+        assertTrue(getOpcodes(instructions).contains("cursor"));
+
+        BufferedImage image = getImage(instructions, "0");
+        assertEquals(0xFFFF0000, image.getRGB(0, 0));
+        assertEquals(0xFF0000FF, image.getRGB(7, 7));
+
+        // The undrawn layer needs no image
+        assertNull(getImage(instructions, "1"));
+
+    }
+
+    /**
+     * Verifies that unsupported drawing and missed instructions prevent
+     * snapshots until the affected layers are entirely repainted.
+     *
+     * @throws Exception If an image cannot be encoded.
+     */
+    @Test
+    public void testInvalidation() throws Exception {
+
+        DisplayState state = new DisplayState();
+        state.handle(new GuacamoleInstruction("size", "0", "4", "4"));
+
+        // Lines are not interpreted
+        state.handle(new GuacamoleInstruction("line", "0", "1", "1"));
+        state.handle(new GuacamoleInstruction("cstroke", "14", "0", "round", "round", "1", "0", "0", "0", "255"));
+        assertFalse(state.isKnown());
+        assertNull(state.getInstructions());
+
+        // Partial repaints are not enough
+        state.handle(new GuacamoleInstruction("png", "12", "0", "0", "0", png(2, 2, 0xFF00FF00)));
+        assertFalse(state.isKnown());
+
+        state.handle(new GuacamoleInstruction("png", "12", "0", "0", "0", png(4, 4, 0xFF00FF00)));
+        assertTrue(state.isKnown());
+
+        // Missed instructions require repainting and repositioning
+        state.handle(new GuacamoleInstruction("size", "1", "2", "2"));
+        state.invalidate();
+        state.handle(new GuacamoleInstruction("rect", "0", "0", "0", "4", "4"));
+        state.handle(new GuacamoleInstruction("cfill", "12", "0", "0", "0", "0", "255"));
+        state.handle(new GuacamoleInstruction("rect", "1", "0", "0", "2", "2"));
+        state.handle(new GuacamoleInstruction("cfill", "12", "1", "0", "0", "0", "255"));
+        assertFalse(state.isKnown());
+
+        state.handle(new GuacamoleInstruction("move", "1", "0", "0", "0", "0"));
+        state.handle(new GuacamoleInstruction("cursor", "0", "0", "0", "0", "0", "1", "1"));
+        assertTrue(state.isKnown());
+
+    }
+
+    /**
+     * Verifies that layers are not kept beyond the pixel limit.
+     */
+    @Test
+    public void testPixelLimit() {
+
+        DisplayState state = new DisplayState(100);
+        state.handle(new GuacamoleInstruction("size", "0", "10", "10"));
+        assertEquals(100, state.getPixels());
+        assertTrue(state.isKnown());
+
+        state.handle(new GuacamoleInstruction("size", "1", "10", "10"));
+        assertEquals(100, state.getPixels());
+        assertFalse(state.isKnown());
+
+        state.handle(new GuacamoleInstruction("dispose", "1"));
+        assertTrue(state.isKnown());
+
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.io;
+
+import java.io.StringReader;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests ArrayPool, verifying that released arrays are reused, that the pool
+ * is bounded, and that hits and misses are counted.
+ *
+ * @author Michael Jumper
+ */
+public class ArrayPoolTest {
+
+    /**
+     * Verifies that released arrays are reused by later calls to acquire(),
+     * and that the hit rate reflects this.
+     */
+    @Test
+    public void testReuse() {
+
+        ByteArrayPool pool = new ByteArrayPool(16, 2);
+        assertEquals(0, pool.getHitRate(), 0);
+
+        byte[] first = pool.acquire();
+        assertEquals(16, first.length);
+        assertEquals(1, pool.getMissCount());
+
+        pool.release(first);
+        assertEquals(1, pool.getPooledCount());
+
+        assertSame(first, pool.acquire());
+        assertEquals(1, pool.getHitCount());
+        assertEquals(0, pool.getPooledCount());
+        assertEquals(0.5, pool.getHitRate(), 0);
+
+    }
+
+    /**
+     * Verifies that the pool retains no more than its maximum number of
+     * arrays, and ignores arrays it could not have provided.
+     */
+    @Test
+    public void testBounds() {
+
+        CharArrayPool pool = new CharArrayPool(16, 2);
+
+        char[] a = pool.acquire();
+        char[] b = pool.acquire();
+        char[] c = pool.acquire();
+
+        pool.release(a);
+        pool.release(b);
+        pool.release(c);
+        assertEquals(2, pool.getPooledCount());
+        assertEquals(1, pool.getDiscardCount());
+
+        // Arrays of the wrong length, such as grown buffers, are ignored
+        pool.acquire();
+        pool.release(new char[32]);
+        pool.release(null);
+        assertEquals(1, pool.getPooledCount());
+
+    }
+
+    /**
+     * Verifies that a UTF8InstructionBuffer returns its pooled array upon
+     * release.
+     *
+     * @throws Exception If an instruction cannot be read.
+     */
+    @Test
+    public void testInstructionBuffer() throws Exception {
+
+        ByteArrayPool pool = new ByteArrayPool(64, 4);
+
+        UTF8InstructionBuffer buffer = new UTF8InstructionBuffer(pool);
+        assertTrue(buffer.read(new ReaderGuacamoleReader(
+                new StringReader("4.sync,1.0;"))));
+        assertEquals(11, buffer.length());
+
+        buffer.release();
+        assertEquals(1, pool.getPooledCount());
+
+        new UTF8InstructionBuffer(pool).release();
+        assertEquals(1, pool.getHitCount());
+
+    }
+
+}
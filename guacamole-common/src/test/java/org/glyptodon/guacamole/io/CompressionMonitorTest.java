@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests CompressionMonitor and MonitoredGZIPOutputStream, verifying that
+ * compression is switched on for compressible data, switched off again for
+ * incompressible data, and that compressed output remains readable after
+ * each flush.
+ *
+ * @author Michael Jumper
+ */
+public class CompressionMonitorTest {
+
+    /**
+     * Source of incompressible data. A single generator is used such that
+     * successive arrays differ, as repeated data would compress well.
+     */
+    private final Random random = new Random(1234);
+
+    /**
+     * Returns the given number of bytes of highly compressible,
+     * instruction-like data.
+     *
+     * @param length The number of bytes to return.
+     * @return An array of highly compressible data.
+     */
+    private static byte[] compressible(int length) {
+
+        byte[] data = new byte[length];
+        byte[] instruction = "4.sync,10.1234567890;".getBytes();
+        for (int i = 0; i < length; i++)
+            data[i] = instruction[i % instruction.length];
+
+        return data;
+
+    }
+
+    /**
+     * Returns the given number of random, incompressible bytes.
+     *
+     * @param length The number of bytes to return.
+     * @return An array of incompressible data.
+     */
+    private byte[] incompressible(int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Verifies that sampling compressible data switches compression on,
+     * and that only data beyond the sample interval triggers a trial.
+     */
+    @Test
+    public void testSampling() {
+
+        CompressionMonitor monitor = new CompressionMonitor(0.5, 0.8, 1024);
+        assertFalse(monitor.isCompressing());
+
+        // Random data should never enable compression
+        monitor.sample(incompressible(512), 0, 512);
+        assertEquals(1, monitor.getSampleCount());
+        assertFalse(monitor.isCompressing());
+
+        // Data below the sample interval should not be tested
+        monitor.sample(compressible(512), 0, 512);
+        assertEquals(1, monitor.getSampleCount());
+
+        // Compressible data should eventually enable compression
+        for (int i = 0; i < 8 && !monitor.isCompressing(); i++)
+            monitor.sample(compressible(1024), 0, 1024);
+
+        assertTrue(monitor.isCompressing());
+        assertTrue(monitor.getRatio() <= 0.5);
+        assertEquals(0, monitor.getUncompressedBytes());
+
+    }
+
+    /**
+     * Verifies that incompressible data written through a
+     * MonitoredGZIPOutputStream switches compression off, that metrics are
+     * reported, and that all data flushed can be decompressed.
+     */
+    @Test
+    public void testGZIPOutputStream() throws Exception {
+
+        if (!MonitoredGZIPOutputStream.isSupported())
+            return;
+
+        CompressionMonitor monitor = new CompressionMonitor(0.5, 0.8, 1024);
+        monitor.sample(compressible(2048), 0, 2048);
+        assertTrue(monitor.isCompressing());
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        MonitoredGZIPOutputStream out = new MonitoredGZIPOutputStream(compressed, monitor);
+
+        byte[] text = compressible(4096);
+        out.write(text);
+        out.flush();
+
+        // Flushed data must be readable before the stream is finished
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()));
+        byte[] decompressed = new byte[text.length];
+        int length = 0;
+        while (length < decompressed.length) {
+            int read = in.read(decompressed, length, decompressed.length - length);
+            assertTrue(read > 0);
+            length += read;
+        }
+
+        assertArrayEquals(text, decompressed);
+        assertEquals(4096, monitor.getUncompressedBytes());
+        assertTrue(monitor.isCompressing());
+
+        // Incompressible data should eventually disable compression
+        for (int i = 0; i < 8 && monitor.isCompressing(); i++) {
+            out.write(incompressible(4096));
+            out.flush();
+        }
+
+        assertFalse(monitor.isCompressing());
+        assertTrue(monitor.getCompressedBytes() > 0);
+        out.close();
+
+    }
+
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the InputStreamGuacamoleReader implementation of GuacamoleReader,
+ * validating that instructions are located and decoded correctly from UTF-8.
+ *
+ * @author Michael Jumper
+ */
+public class InputStreamGuacamoleReaderTest {
+
+    /**
+     * Returns an InputStream which provides the given data encoded as UTF-8,
+     * never returning more than one byte per read, such that multi-byte
+     * characters are always split across reads.
+     *
+     * @param data The data to provide.
+     * @return An InputStream which provides the given data one byte at a
+     *         time.
+     * @throws UnsupportedEncodingException If UTF-8 is not supported.
+     */
+    private static InputStream getSlowStream(String data)
+            throws UnsupportedEncodingException {
+
+        final InputStream source = new ByteArrayInputStream(data.getBytes("UTF-8"));
+        return new InputStream() {
+
+            @Override
+            public int read() throws IOException {
+                return source.read();
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                return source.read(buffer, offset, Math.min(length, 1));
+            }
+
+        };
+
+    }
+
+    /**
+     * Test of InputStreamGuacamoleReader parsing.
+     * 
+     * @throws Exception If a parse error occurs while parsing the
+     *                   known-good test string.
+     */
+    @Test
+    public void testReader() throws Exception {
+
+        // Test string
+        final String test = "1.a,2.bc,3.def,10.helloworld;4.test,5.test2;0.;3.foo;";
+
+        GuacamoleReader reader = new InputStreamGuacamoleReader(
+                new ByteArrayInputStream(test.getBytes("UTF-8")));
+
+        GuacamoleInstruction instruction;
+
+        // Validate first test instruction
+        instruction = reader.readInstruction();
+        assertNotNull(instruction);
+        assertEquals(3, instruction.getArgs().size());
+        assertEquals("a", instruction.getOpcode());
+        assertEquals("bc", instruction.getArgs().get(0));
+        assertEquals("def", instruction.getArgs().get(1));
+        assertEquals("helloworld", instruction.getArgs().get(2));
+
+        // Validate second test instruction
+        instruction = reader.readInstruction();
+        assertNotNull(instruction);
+        assertEquals(1, instruction.getArgs().size());
+        assertEquals("test", instruction.getOpcode());
+        assertEquals("test2", instruction.getArgs().get(0));
+
+        // Validate third test instruction
+        instruction = reader.readInstruction();
+        assertNotNull(instruction);
+        assertEquals(0, instruction.getArgs().size());
+        assertEquals("", instruction.getOpcode());
+
+        // Validate fourth test instruction
+        instruction = reader.readInstruction();
+        assertNotNull(instruction);
+        assertEquals(0, instruction.getArgs().size());
+        assertEquals("foo", instruction.getOpcode());
+
+        // There should be no more instructions
+        instruction = reader.readInstruction();
+        assertNull(instruction);
+
+    }
+
+    /**
+     * Test of InputStreamGuacamoleReader parsing of instructions containing
+     * multi-byte characters, including characters outside the Basic
+     * Multilingual Plane, with every character split across reads.
+     *
+     * @throws Exception If a parse error occurs while parsing the
+     *                   known-good test string.
+     */
+    @Test
+    public void testMultiByte() throws Exception {
+
+        // Two-byte, three-byte, and four-byte characters
+        final String twoByte   = "héllo";
+        final String threeByte = "日本";
+        final String fourByte  = "😀";
+
+        // Test string, with lengths in Unicode characters
+        final String test =
+                  "4.text,5." + twoByte + ",2." + threeByte + ";"
+                + "4.text,1." + fourByte + ",3.a" + fourByte + "b;"
+                + "3.end;";
+
+        InputStreamGuacamoleReader reader = new InputStreamGuacamoleReader(getSlowStream(test));
+
+        GuacamoleInstruction instruction;
+
+        // Validate first test instruction
+        instruction = reader.readInstruction();
+        assertNotNull(instruction);
+        assertEquals("text", instruction.getOpcode());
+        assertEquals(2, instruction.getArgs().size());
+        assertEquals(twoByte, instruction.getArgs().get(0));
+        assertEquals(threeByte, instruction.getArgs().get(1));
+
+        // Validate second test instruction, which must be rewritten such that
+        // its lengths count UTF-16 code units
+        assertEquals("4.text,2." + fourByte + ",4.a" + fourByte + "b;",
+                new String(reader.read()));
+
+        // Validate undecoded final instruction
+        ByteBuffer utf8 = reader.readUTF8();
+        assertNotNull(utf8);
+        byte[] bytes = new byte[utf8.remaining()];
+        utf8.get(bytes);
+        assertEquals("3.end;", new String(bytes, "UTF-8"));
+
+        // There should be no more instructions
+        assertNull(reader.readUTF8());
+
+    }
+
+    /**
+     * Test that instructions are returned exactly as received when read as
+     * UTF-8.
+     *
+     * @throws Exception If a parse error occurs while parsing the
+     *                   known-good test string.
+     */
+    @Test
+    public void testReadUTF8() throws Exception {
+
+        final String first  = "4.blob,1.0,6.éééééé;";
+        final String second = "4.sync,4.1234;";
+
+        UTF8GuacamoleReader reader = new InputStreamGuacamoleReader(
+                new ByteArrayInputStream((first + second).getBytes("UTF-8")));
+
+        ByteBuffer utf8;
+        byte[] bytes;
+
+        // Validate first instruction
+        utf8 = reader.readUTF8();
+        bytes = new byte[utf8.remaining()];
+        utf8.get(bytes);
+        assertArrayEquals(first.getBytes("UTF-8"), bytes);
+
+        // Validate second instruction
+        utf8 = reader.readUTF8();
+        bytes = new byte[utf8.remaining()];
+        utf8.get(bytes);
+        assertArrayEquals(second.getBytes("UTF-8"), bytes);
+
+        // There should be no more instructions
+        assertNull(reader.readUTF8());
+
+    }
+
+    /**
+     * Test that malformed element lengths and terminators are rejected.
+     *
+     * @throws Exception If the test data cannot be encoded.
+     */
+    @Test
+    public void testInvalid() throws Exception {
+
+        final String[] invalid = {
+            "4.test,x.test2;",
+            "4.test:5.test2;",
+            "2.ééé;"
+        };
+
+        for (String test : invalid) {
+
+            GuacamoleReader reader = new InputStreamGuacamoleReader(
+                    new ByteArrayInputStream(test.getBytes("UTF-8")));
+
+            try {
+                reader.read();
+                fail("Invalid instruction accepted: " + test);
+            }
+            catch (GuacamoleException e) {
+                // Expected
+            }
+
+        }
+
+    }
+
+}
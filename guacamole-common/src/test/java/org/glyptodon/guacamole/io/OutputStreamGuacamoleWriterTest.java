@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the OutputStreamGuacamoleWriter implementation of GuacamoleWriter,
+ * validating that written data is encoded as UTF-8.
+ *
+ * @author Michael Jumper
+ */
+public class OutputStreamGuacamoleWriterTest {
+
+    /**
+     * Test that written characters, instructions, and UTF-8 data all produce
+     * the expected UTF-8 output.
+     *
+     * @throws Exception If an error occurs while writing the test data.
+     */
+    @Test
+    public void testWriter() throws Exception {
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        OutputStreamGuacamoleWriter writer = new OutputStreamGuacamoleWriter(output);
+
+        final String chars = "3.key,5.65307,1.1;4.text,3.é日😀;";
+        final String utf8  = "4.sync,4.1234;";
+
+        writer.write(chars.toCharArray());
+        writer.writeInstruction(new GuacamoleInstruction("mouse", "10", "20", "0"));
+        writer.writeUTF8(utf8.getBytes("UTF-8"), 0, utf8.length());
+
+        assertArrayEquals(
+            (chars + "5.mouse,2.10,2.20,1.0;" + utf8).getBytes("UTF-8"),
+            output.toByteArray()
+        );
+
+    }
+
+    /**
+     * Test that a buffered writer coalesces writes until its threshold is
+     * reached, flush() is called, or its flush delay elapses.
+     *
+     * @throws Exception If an error occurs while writing the test data.
+     */
+    @Test
+    public void testCoalescing() throws Exception {
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        OutputStreamGuacamoleWriter writer = new OutputStreamGuacamoleWriter(output, 64, 50);
+
+        final String mouse = "5.mouse,2.10,2.20,1.0;";
+
+        // Nothing is sent until flushed
+        writer.write(mouse.toCharArray());
+        writer.writeInstruction(new GuacamoleInstruction("mouse", "10", "20", "0"));
+        assertEquals(0, output.size());
+        assertEquals(0, writer.getFlushCount());
+
+        // Explicit flush sends both instructions at once
+        writer.flush();
+        assertArrayEquals((mouse + mouse).getBytes("UTF-8"), output.toByteArray());
+        assertEquals(2, writer.getWriteCount());
+        assertEquals(1, writer.getFlushCount());
+
+        // Reaching the threshold sends immediately
+        output.reset();
+        writer.write(mouse.toCharArray());
+        writer.write(mouse.toCharArray());
+        assertEquals(0, output.size());
+        writer.write(mouse.toCharArray());
+        assertArrayEquals((mouse + mouse + mouse).getBytes("UTF-8"), output.toByteArray());
+        assertEquals(2, writer.getFlushCount());
+
+        // Data is sent once the delay elapses
+        output.reset();
+        writer.write(mouse.toCharArray());
+        assertEquals(0, output.size());
+        Thread.sleep(500);
+        synchronized (writer) {
+            assertArrayEquals(mouse.getBytes("UTF-8"), output.toByteArray());
+            assertEquals(3, writer.getFlushCount());
+        }
+
+    }
+
+    /**
+     * Test that a scheduled flush which blocks, as when the peer is not
+     * reading, does not delay the scheduled flushes of other writers.
+     *
+     * @throws Exception If an error occurs while writing the test data.
+     */
+    @Test
+    public void testBlockedFlush() throws Exception {
+
+        final CountDownLatch unblock = new CountDownLatch(1);
+
+        // Stream which blocks until released
+        OutputStream blocking = new OutputStream() {
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    unblock.await();
+                }
+                catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+
+        };
+
+        final String mouse = "5.mouse,2.10,2.20,1.0;";
+
+        try {
+
+            OutputStreamGuacamoleWriter stalled = new OutputStreamGuacamoleWriter(blocking, 64, 10);
+            stalled.write(mouse.toCharArray());
+            Thread.sleep(100);
+
+            // Other writers are still flushed once their delay elapses
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            OutputStreamGuacamoleWriter writer = new OutputStreamGuacamoleWriter(output, 64, 10);
+            writer.write(mouse.toCharArray());
+            Thread.sleep(500);
+
+            synchronized (writer) {
+                assertArrayEquals(mouse.getBytes("UTF-8"), output.toByteArray());
+            }
+
+        }
+        finally {
+            unblock.countDown();
+        }
+
+    }
+
+}
@@ -22,6 +22,8 @@
 
 package org.glyptodon.guacamole.io;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.io.StringReader;
 import org.glyptodon.guacamole.GuacamoleException;
 import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
@@ -86,6 +88,96 @@ public class ReaderGuacamoleReaderTest {
 
     }
 
+    /**
+     * Test of ReaderGuacamoleReader returning instructions as views of its
+     * internal buffer.
+     *
+     * @throws GuacamoleException If a parse error occurs while parsing the
+     *                            known-good test string.
+     */
+    @Test
+    public void testReadBuffer() throws GuacamoleException {
+
+        // Test string
+        final String test = "1.a,2.bc,3.def,10.helloworld;4.test,5.test2;0.;3.foo;";
+
+        BufferedGuacamoleReader reader = new ReaderGuacamoleReader(new StringReader(test));
+
+        // Each buffer must contain exactly one instruction
+        assertEquals("1.a,2.bc,3.def,10.helloworld;", reader.readBuffer().toString());
+        assertEquals("4.test,5.test2;", reader.readBuffer().toString());
+        assertEquals("0.;", reader.readBuffer().toString());
+        assertEquals("3.foo;", reader.readBuffer().toString());
+
+        // There should be no more instructions
+        assertNull(reader.readBuffer());
+
+    }
+
+    /**
+     * Test of ReaderGuacamoleReader parsing when instruction data arrives in
+     * small, arbitrarily-split chunks, including instructions larger than the
+     * initial internal buffer.
+     *
+     * @throws GuacamoleException If a parse error occurs while parsing the
+     *                            known-good test data.
+     */
+    @Test
+    public void testChunkedReader() throws GuacamoleException {
+
+        // Build element larger than the initial buffer
+        StringBuilder largeElement = new StringBuilder();
+        for (int i=0; i<50000; i++)
+            largeElement.append((char) ('a' + i % 26));
+
+        // Build test data consisting of many instructions
+        StringBuilder test = new StringBuilder();
+        for (int i=0; i<1000; i++) {
+            String value = Integer.toString(i);
+            test.append("4.sync,").append(value.length()).append('.').append(value).append(';');
+        }
+        test.append("4.blob,").append(largeElement.length()).append('.').append(largeElement).append(';');
+        test.append("3.end;");
+
+        // Reader which never returns more than a few characters at a time
+        final StringReader source = new StringReader(test.toString());
+        Reader chunked = new Reader() {
+
+            @Override
+            public int read(char[] buffer, int offset, int length) throws IOException {
+                return source.read(buffer, offset, Math.min(length, 7));
+            }
+
+            @Override
+            public void close() throws IOException {
+                source.close();
+            }
+
+        };
+
+        ReaderGuacamoleReader reader = new ReaderGuacamoleReader(chunked);
+
+        // Validate all sync instructions, in order
+        for (int i=0; i<1000; i++) {
+            GuacamoleInstruction instruction = reader.readInstruction();
+            assertNotNull(instruction);
+            assertEquals("sync", instruction.getOpcode());
+            assertEquals(1, instruction.getArgs().size());
+            assertEquals(Integer.toString(i), instruction.getArgs().get(0));
+        }
+
+        // Validate large instruction
+        GuacamoleInstruction instruction = reader.readInstruction();
+        assertNotNull(instruction);
+        assertEquals("blob", instruction.getOpcode());
+        assertEquals(largeElement.toString(), instruction.getArgs().get(0));
+
+        // Validate final instruction as a copied buffer
+        assertEquals("3.end;", new String(reader.read()));
+
+        // There should be no more instructions
+        assertNull(reader.read());
+
+    }
 
-   
 }
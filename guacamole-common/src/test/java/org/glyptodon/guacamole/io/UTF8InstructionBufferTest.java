@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests UTF8InstructionBuffer, verifying that instructions are buffered as
+ * UTF-8 whether read as bytes or as characters, and written back intact.
+ *
+ * @author Michael Jumper
+ */
+public class UTF8InstructionBufferTest {
+
+    /**
+     * Test instruction stream containing two and three byte characters.
+     */
+    private static final String INSTRUCTIONS =
+            "4.test,4.aé€b;5.other,1.x;";
+
+    /**
+     * Reads all instructions from the given reader into a new buffer,
+     * returning the buffered bytes.
+     *
+     * @param reader The reader to read instructions from.
+     * @return The bytes buffered.
+     * @throws GuacamoleException If an error occurs while reading.
+     */
+    private static byte[] readAll(GuacamoleReader reader) throws GuacamoleException {
+
+        // Use a tiny initial capacity to exercise growth
+        UTF8InstructionBuffer buffer = new UTF8InstructionBuffer(4);
+        int count = 0;
+        while (buffer.read(reader))
+            count++;
+
+        assertEquals(2, count);
+        return Arrays.copyOf(buffer.getArray(), buffer.length());
+
+    }
+
+    /**
+     * Verifies that instructions read as bytes or as characters produce
+     * identical UTF-8.
+     *
+     * @throws Exception If an error occurs while reading or encoding.
+     */
+    @Test
+    public void testRead() throws Exception {
+
+        byte[] expected = INSTRUCTIONS.getBytes("UTF-8");
+
+        byte[] fromBytes = readAll(new InputStreamGuacamoleReader(
+                new ByteArrayInputStream(expected)));
+        byte[] fromChars = readAll(new ReaderGuacamoleReader(
+                new StringReader(INSTRUCTIONS)));
+
+        assertArrayEquals(expected, fromBytes);
+        assertArrayEquals(expected, fromChars);
+
+    }
+
+    /**
+     * Verifies that the length prefixes of instructions containing
+     * characters outside the Basic Multilingual Plane are rewritten to count
+     * UTF-16 code units when read as bytes, matching the lengths of
+     * instructions read as characters.
+     *
+     * @throws Exception If an error occurs while reading or encoding.
+     */
+    @Test
+    public void testSupplementary() throws Exception {
+
+        // "\uD83D\uDE00" is a single character as UTF-8, but two as UTF-16
+        String received = "4.clip,3.a\uD83D\uDE00b;5.other,1.x;";
+        String expected = "4.clip,4.a\uD83D\uDE00b;5.other,1.x;";
+
+        byte[] fromBytes = readAll(new InputStreamGuacamoleReader(
+                new ByteArrayInputStream(received.getBytes("UTF-8"))));
+
+        assertArrayEquals(expected.getBytes("UTF-8"), fromBytes);
+
+    }
+
+    /**
+     * Verifies that UTF-8 instructions are written intact to both byte and
+     * character writers.
+     *
+     * @throws Exception If an error occurs while writing or decoding.
+     */
+    @Test
+    public void testWrite() throws Exception {
+
+        byte[] data = INSTRUCTIONS.getBytes("UTF-8");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStreamGuacamoleWriter byteWriter = new OutputStreamGuacamoleWriter(bytes);
+        UTF8InstructionBuffer.write(byteWriter, data, 0, data.length);
+        byteWriter.flush();
+
+        StringWriter chars = new StringWriter();
+        WriterGuacamoleWriter charWriter = new WriterGuacamoleWriter(chars);
+        UTF8InstructionBuffer.write(charWriter, data, 0, data.length);
+        charWriter.flush();
+
+        assertArrayEquals(data, bytes.toByteArray());
+        assertEquals(INSTRUCTIONS, chars.toString());
+
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.net;
+
+import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.protocol.ClientSyncTracker;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Test which validates measurement of frame round-trip times by
+ * ClientSyncTracker, and adaptation of batching to those times by
+ * FrameBatcher.
+ *
+ * @author Michael Jumper
+ */
+public class FrameBatcherTest {
+
+    /**
+     * GuacamoleReader which never has data, and only reports whether more
+     * data is available.
+     */
+    private static class StubGuacamoleReader implements GuacamoleReader {
+
+        /**
+         * Whether more data should be reported as available.
+         */
+        private final boolean available;
+
+        /**
+         * Creates a new StubGuacamoleReader which always reports the given
+         * availability of data.
+         *
+         * @param available Whether more data should be reported as
+         *                  available.
+         */
+        public StubGuacamoleReader(boolean available) {
+            this.available = available;
+        }
+
+        @Override
+        public boolean available() {
+            return available;
+        }
+
+        @Override
+        public char[] read() {
+            return null;
+        }
+
+        @Override
+        public GuacamoleInstruction readInstruction() {
+            return null;
+        }
+
+    }
+
+    /**
+     * Test which verifies that complete frames are sent immediately, that
+     * the round-trip time of each frame is measured once acknowledged, and
+     * that the batch size and flush deadline grow with that time.
+     *
+     * @throws Exception If an error occurs while batching or waiting.
+     */
+    @Test
+    public void testAdapt() throws Exception {
+
+        ClientSyncTracker tracker = new ClientSyncTracker();
+        FrameBatcher batcher = new FrameBatcher(tracker);
+        GuacamoleReader idle = new StubGuacamoleReader(false);
+
+        // Nothing is known until a frame has been acknowledged
+        assertEquals(-1, tracker.getRoundTripTime());
+        assertEquals(FrameBatcher.DEFAULT_BATCH_SIZE, batcher.getBatchSize());
+        assertEquals(0, batcher.getFlushDeadline());
+
+        // Partial frames are sent without waiting until the RTT is known
+        char[] move = "4.move,1.0,1.0,1.1;".toCharArray();
+        batcher.buffered(move, 0, move.length);
+        assertTrue(batcher.shouldFlush(idle, move.length));
+        batcher.flushed();
+        assertEquals(0, tracker.getFramesBehind());
+
+        // A sync completes the frame, which is reported once sent
+        byte[] sync = "4.sync,4.1234;".getBytes("UTF-8");
+        batcher.buffered(sync, 0, sync.length);
+        assertTrue(batcher.shouldFlush(idle, sync.length));
+        batcher.flushed();
+        assertEquals(1, tracker.getFramesBehind());
+
+        // Acknowledge after a known delay
+        Thread.sleep(50);
+        tracker.frameAcknowledged(1234);
+        assertEquals(0, tracker.getFramesBehind());
+        assertEquals(1234, tracker.getLastAcknowledged());
+
+        long rtt = tracker.getRoundTripTime();
+        assertTrue(rtt >= 50000000L);
+
+        // Larger round trips result in larger batches and longer waits
+        batcher.flushed();
+        assertTrue(batcher.getBatchSize() > FrameBatcher.DEFAULT_BATCH_SIZE);
+        assertTrue(batcher.getBatchSize() <= FrameBatcher.MAX_BATCH_SIZE);
+        assertEquals(Math.min(10000000L, rtt / 8), batcher.getFlushDeadline());
+
+        // Full batches are sent regardless of whether more data is available
+        GuacamoleReader busy = new StubGuacamoleReader(true);
+        batcher.buffered(move, 0, move.length);
+        assertFalse(batcher.shouldFlush(busy, move.length));
+        assertTrue(batcher.shouldFlush(busy, batcher.getBatchSize()));
+
+    }
+
+}
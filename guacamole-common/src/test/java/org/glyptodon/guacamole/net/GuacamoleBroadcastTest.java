@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.net;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import org.glyptodon.guacamole.GuacamoleClientTimeoutException;
+import org.glyptodon.guacamole.GuacamoleServerBusyException;
+import org.glyptodon.guacamole.display.AsyncDisplayState;
+import org.glyptodon.guacamole.display.DisplayState;
+import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.io.GuacamoleWriter;
+import org.glyptodon.guacamole.io.ReaderGuacamoleReader;
+import org.glyptodon.guacamole.io.WriterGuacamoleWriter;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests GuacamoleBroadcast, verifying that the owner and each viewer read
+ * the shared instruction stream independently, that input is merged, and
+ * that viewers which fall behind are dropped without slowing the owner or
+ * resynchronized from a snapshot of the display.
+ *
+ * @author Michael Jumper
+ */
+public class GuacamoleBroadcastTest {
+
+    /**
+     * Returns a new socket whose reader contains the given data and whose
+     * writer writes to the given StringWriter.
+     *
+     * @param data The data to be read from the socket.
+     * @param output The StringWriter receiving all data written.
+     * @return A new GuacamoleSocket.
+     */
+    private static GuacamoleSocket createSocket(String data, StringWriter output) {
+
+        final GuacamoleReader reader = new ReaderGuacamoleReader(new StringReader(data));
+        final GuacamoleWriter writer = new WriterGuacamoleWriter(output);
+
+        return new GuacamoleSocket() {
+
+            @Override
+            public GuacamoleReader getReader() { return reader; }
+
+            @Override
+            public GuacamoleWriter getWriter() { return writer; }
+
+            @Override
+            public void close() {}
+
+            @Override
+            public boolean isOpen() { return true; }
+
+        };
+
+    }
+
+    /**
+     * Reads all remaining data from the given reader.
+     *
+     * @param reader The reader to read from.
+     * @return All remaining data.
+     * @throws Exception If an error occurs while reading.
+     */
+    private static String readAll(GuacamoleReader reader) throws Exception {
+
+        StringBuilder data = new StringBuilder();
+
+        char[] instruction;
+        while ((instruction = reader.read()) != null)
+            data.append(instruction);
+
+        return data.toString();
+
+    }
+
+    /**
+     * Verifies that the owner and all viewers receive the entire stream,
+     * and that only keyboard and mouse input of interactive viewers is
+     * merged with the input of the owner.
+     *
+     * @throws Exception If an error occurs while reading or writing.
+     */
+    @Test
+    public void testFanOut() throws Exception {
+
+        String stream = "4.size,1.0,4.1024,3.768;4.sync,1.1;4.sync,1.2;";
+        StringWriter input = new StringWriter();
+
+        GuacamoleBroadcast broadcast = new GuacamoleBroadcast(createSocket(stream, input));
+        GuacamoleSocket owner = broadcast.getOwnerSocket();
+        GuacamoleSocket viewer = broadcast.subscribe(true);
+        GuacamoleSocket readOnly = broadcast.subscribe(false);
+        assertEquals(2, broadcast.getViewerCount());
+
+        broadcast.start(new GuacamoleTunnel(owner));
+
+        assertEquals(stream, readAll(owner.getReader()));
+        assertEquals(stream, readAll(viewer.getReader()));
+        assertEquals(stream, readAll(readOnly.getReader()));
+
+        // Instructions may be split across writes
+        owner.getWriter().write("4.sync,1.1;".toCharArray());
+        viewer.getWriter().write("4.sync,1.1;5.mouse,2.".toCharArray());
+        viewer.getWriter().write("10,2.20,1.1;10.disconnect;".toCharArray());
+        readOnly.getWriter().write("3.key,2.65,1.1;".toCharArray());
+        owner.getWriter().write("4.sync,1.2;".toCharArray());
+
+        assertEquals("4.sync,1.1;5.mouse,2.10,2.20,1.1;4.sync,1.2;", input.toString());
+
+        viewer.close();
+        readOnly.close();
+        assertEquals(0, broadcast.getViewerCount());
+
+    }
+
+    /**
+     * Verifies that a viewer which falls a full buffer behind is dropped,
+     * while the owner receives the entire stream.
+     *
+     * @throws Exception If an error occurs while reading.
+     */
+    @Test
+    public void testDropSlowViewer() throws Exception {
+
+        StringBuilder stream = new StringBuilder();
+        for (int i = 0; i < 10; i++)
+            stream.append("4.sync,1.").append(i).append(';');
+
+        GuacamoleBroadcast broadcast = new GuacamoleBroadcast(
+                createSocket(stream.toString(), new StringWriter()), 4);
+        GuacamoleSocket owner = broadcast.getOwnerSocket();
+        GuacamoleSocket viewer = broadcast.subscribe(false);
+
+        broadcast.start(new GuacamoleTunnel(owner));
+
+        // Owner is never dropped, despite the small buffer
+        assertEquals(stream.toString(), readAll(owner.getReader()));
+
+        // The viewer never read, and is now too far behind
+        assertFalse(viewer.isOpen());
+        try {
+            viewer.getReader().read();
+            fail("Viewer should have been dropped.");
+        }
+        catch (GuacamoleClientTimeoutException e) {
+            // Expected
+        }
+
+        assertEquals(1, broadcast.getDroppedCount());
+
+    }
+
+    /**
+     * Verifies that a viewer joining after the stream has been read, or
+     * falling a full buffer behind, receives a snapshot of the display
+     * rather than being dropped.
+     *
+     * @throws Exception If an error occurs while reading.
+     */
+    @Test
+    public void testSnapshot() throws Exception {
+
+        StringBuilder stream = new StringBuilder("4.size,1.0,1.2,1.2;");
+        for (int i = 0; i < 10; i++)
+            stream.append("4.sync,1.").append(i).append(';');
+
+        // Interpret instructions immediately
+        AsyncDisplayState display = new AsyncDisplayState(new DisplayState(),
+                AsyncDisplayState.DEFAULT_MAX_QUEUED_CHARS, new Executor() {
+
+                    @Override
+                    public void execute(Runnable task) {
+                        task.run();
+                    }
+
+                });
+
+        GuacamoleBroadcast broadcast = new GuacamoleBroadcast(
+                createSocket(stream.toString(), new StringWriter()), 4, display);
+        GuacamoleSocket owner = broadcast.getOwnerSocket();
+        GuacamoleSocket slowViewer = broadcast.subscribe(false);
+
+        broadcast.start(new GuacamoleTunnel(owner));
+        assertEquals(stream.toString(), readAll(owner.getReader()));
+
+        String snapshot = "4.size,1.0,1.2,1.2;4.sync,1.9;";
+
+        // The slow viewer is resynchronized rather than dropped
+        assertTrue(slowViewer.isOpen());
+        assertEquals(snapshot, readAll(slowViewer.getReader()));
+        assertEquals(0, broadcast.getDroppedCount());
+
+        // Late viewers begin with the same snapshot
+        GuacamoleSocket lateViewer = broadcast.subscribe(false);
+        assertEquals(snapshot, readAll(lateViewer.getReader()));
+
+    }
+
+    /**
+     * Verifies that a broadcast whose pump cannot be admitted by the
+     * executor fails to start, ending the stream for the owner with the
+     * same error rather than leaving the owner waiting for data.
+     *
+     * @throws Exception If the test fails to complete.
+     */
+    @Test
+    public void testServerBusy() throws Exception {
+
+        GuacamoleBroadcast broadcast = new GuacamoleBroadcast(
+                createSocket("4.sync,1.1;", new StringWriter()));
+        GuacamoleSocket owner = broadcast.getOwnerSocket();
+
+        // Executor admitting no tunnels, as its only slot is occupied
+        final CountDownLatch done = new CountDownLatch(1);
+        GuacamoleTunnelExecutor executor = new GuacamoleTunnelExecutor(1, false);
+        executor.execute(new GuacamoleTunnel(owner), new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    done.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+        });
+
+        try {
+            broadcast.start(new GuacamoleTunnel(owner), executor);
+            fail("Broadcast should not start while the executor is busy.");
+        }
+        catch (GuacamoleServerBusyException e) {
+            // Expected
+        }
+
+        try {
+            owner.getReader().read();
+            fail("Owner should not receive data from a broadcast never started.");
+        }
+        catch (GuacamoleServerBusyException e) {
+            // Expected
+        }
+
+        done.countDown();
+        executor.shutdown();
+
+    }
+
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.net;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.io.GuacamoleWriter;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests GuacamoleSocketPool, verifying that idle sockets are maintained,
+ * handed out, counted, and evicted once too old or closed by the remote
+ * end.
+ *
+ * @author Michael Jumper
+ */
+public class GuacamoleSocketPoolTest {
+
+    /**
+     * Factory producing sockets which are open until closed, and which never
+     * have data available.
+     */
+    private static class TestSocketFactory implements GuacamoleSocketFactory {
+
+        /**
+         * The number of sockets created so far.
+         */
+        private int created = 0;
+
+        @Override
+        public synchronized GuacamoleSocket createSocket() {
+
+            created++;
+
+            return new GuacamoleSocket() {
+
+                private boolean open = true;
+
+                @Override
+                public GuacamoleReader getReader() {
+                    return new GuacamoleReader() {
+
+                        @Override
+                        public boolean available() {
+                            return false;
+                        }
+
+                        @Override
+                        public char[] read() {
+                            return null;
+                        }
+
+                        @Override
+                        public GuacamoleInstruction readInstruction() {
+                            return null;
+                        }
+
+                    };
+                }
+
+                @Override
+                public GuacamoleWriter getWriter() {
+                    return null;
+                }
+
+                @Override
+                public void close() {
+                    open = false;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return open;
+                }
+
+            };
+
+        }
+
+        /**
+         * Returns the number of sockets created so far.
+         *
+         * @return The number of sockets created so far.
+         */
+        public synchronized int getCreated() {
+            return created;
+        }
+
+    }
+
+    /**
+     * Waits up to five seconds for the given pool to contain the given
+     * number of idle sockets.
+     *
+     * @param pool The pool to wait for.
+     * @param count The number of idle sockets to wait for.
+     * @throws InterruptedException If the wait is interrupted.
+     */
+    private void awaitIdle(GuacamoleSocketPool pool, int count)
+            throws InterruptedException {
+
+        for (int i = 0; i < 500 && pool.getIdleCount() < count; i++)
+            Thread.sleep(10);
+
+        assertEquals(count, pool.getIdleCount());
+
+    }
+
+    /**
+     * Test that the pool fills itself, satisfies requests from idle sockets,
+     * and replaces idle sockets which exceed the maximum idle time.
+     *
+     * @throws Exception If an error occurs while performing the test.
+     */
+    @Test
+    public void testPool() throws Exception {
+
+        TestSocketFactory factory = new TestSocketFactory();
+        GuacamoleSocketPool pool = new GuacamoleSocketPool(factory, 2, 200);
+
+        try {
+
+            // Pool fills in background
+            awaitIdle(pool, 2);
+
+            // Idle socket is handed out and replaced
+            GuacamoleSocket socket = pool.poll();
+            assertNotNull(socket);
+            assertTrue(socket.isOpen());
+            assertEquals(1, pool.getHits());
+            assertEquals(0, pool.getMisses());
+            awaitIdle(pool, 2);
+
+            // Old sockets are evicted and replaced
+            Thread.sleep(500);
+            awaitIdle(pool, 2);
+            assertTrue(pool.getEvictions() >= 2);
+            assertTrue(factory.getCreated() >= 5);
+
+        }
+        finally {
+            pool.close();
+        }
+
+        assertEquals(0, pool.getIdleCount());
+
+    }
+
+    /**
+     * Test that an empty pool counts misses and creates sockets on demand.
+     *
+     * @throws GuacamoleException If an error occurs while creating sockets.
+     */
+    @Test
+    public void testEmptyPool() throws GuacamoleException {
+
+        TestSocketFactory factory = new TestSocketFactory();
+        GuacamoleSocketPool pool = new GuacamoleSocketPool(factory, 0, 200);
+
+        assertNull(pool.poll());
+        assertNotNull(pool.acquire());
+        assertEquals(0, pool.getHits());
+        assertEquals(2, pool.getMisses());
+        assertEquals(1, factory.getCreated());
+
+        pool.close();
+
+    }
+
+    /**
+     * Test that an idle socket whose remote end has closed the connection is
+     * evicted rather than handed out, even though the socket has not been
+     * idle too long and remains open locally.
+     *
+     * @throws Exception If an error occurs while performing the test.
+     */
+    @Test
+    public void testRemoteClose() throws Exception {
+
+        final ServerSocket server = new ServerSocket(0, 50,
+                InetAddress.getByName("127.0.0.1"));
+        server.setSoTimeout(5000);
+
+        GuacamoleSocketPool pool = new GuacamoleSocketPool(new GuacamoleSocketFactory() {
+
+            @Override
+            public GuacamoleSocket createSocket() throws GuacamoleException {
+                return new InetGuacamoleSocket("127.0.0.1", server.getLocalPort());
+            }
+
+        }, 1, 60000);
+
+        try {
+
+            // Close remote end of the only idle socket
+            awaitIdle(pool, 1);
+            Socket remote = server.accept();
+            remote.close();
+            Thread.sleep(100);
+
+            // Closed socket must not be handed out
+            GuacamoleSocket socket = pool.poll();
+            assertEquals(1, pool.getEvictions());
+
+            // Any socket handed out instead is the open replacement
+            if (socket != null) {
+                assertTrue(socket.isOpen());
+                socket.close();
+            }
+
+        }
+        finally {
+            pool.close();
+            server.close();
+        }
+
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.net;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.glyptodon.guacamole.GuacamoleServerBusyException;
+import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.io.GuacamoleWriter;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests GuacamoleTunnelExecutor, verifying that pumps run on threads named
+ * after their tunnels, and that the maximum number of tunnels is enforced.
+ *
+ * @author Michael Jumper
+ */
+public class GuacamoleTunnelExecutorTest {
+
+    /**
+     * Returns a new tunnel around a socket which is never used.
+     *
+     * @return A new GuacamoleTunnel.
+     */
+    private static GuacamoleTunnel createTunnel() {
+        return new GuacamoleTunnel(new GuacamoleSocket() {
+
+            @Override
+            public GuacamoleReader getReader() { return null; }
+
+            @Override
+            public GuacamoleWriter getWriter() { return null; }
+
+            @Override
+            public void close() {}
+
+            @Override
+            public boolean isOpen() { return true; }
+
+        });
+    }
+
+    /**
+     * Verifies that pumps beyond the maximum number of tunnels are rejected
+     * until running pumps finish, and that gauges reflect this.
+     *
+     * @throws Exception If the test is interrupted or a pump cannot start.
+     */
+    @Test
+    public void testMaxTunnels() throws Exception {
+
+        GuacamoleTunnelExecutor executor = new GuacamoleTunnelExecutor(1, false);
+
+        final GuacamoleTunnel tunnel = createTunnel();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final String[] threadName = new String[1];
+
+        executor.execute(tunnel, new Runnable() {
+
+            @Override
+            public void run() {
+                threadName[0] = Thread.currentThread().getName();
+                started.countDown();
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+        });
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals("guacamole-tunnel-" + tunnel.getUUID(), threadName[0]);
+        assertEquals(1, executor.getActiveCount());
+
+        // Second tunnel exceeds limit
+        try {
+            executor.execute(createTunnel(), new Runnable() {
+
+                @Override
+                public void run() {}
+
+            });
+            fail("Tunnel beyond maximum was not rejected.");
+        }
+        catch (GuacamoleServerBusyException e) {
+            // Expected
+        }
+
+        assertEquals(1, executor.getRejectedCount());
+
+        // Once finished, further tunnels are accepted
+        release.countDown();
+        for (int i = 0; i < 100 && executor.getCompletedCount() == 0; i++)
+            Thread.sleep(10);
+
+        assertEquals(1, executor.getCompletedCount());
+        assertEquals(0, executor.getActiveCount());
+        assertEquals(0, executor.getQueuedCount());
+
+        final CountDownLatch finished = new CountDownLatch(1);
+        executor.execute(createTunnel(), new Runnable() {
+
+            @Override
+            public void run() {
+                finished.countDown();
+            }
+
+        });
+
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        executor.shutdown();
+
+    }
+
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.net;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.io.GuacamoleWriter;
+import org.glyptodon.guacamole.io.ReaderGuacamoleReader;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the reader hand-off of GuacamoleTunnel, verifying that announced
+ * readers are visible to the current reader and receive read access without
+ * blocking a thread, and that stream taps and the writer are created
+ * exactly once.
+ *
+ * @author Michael Jumper
+ */
+public class GuacamoleTunnelTest {
+
+    /**
+     * Returns a new tunnel around a socket whose reader contains no data.
+     *
+     * @return A new GuacamoleTunnel.
+     */
+    private static GuacamoleTunnel createTunnel() {
+        return createTunnel(new ArrayList<GuacamoleStreamTap>());
+    }
+
+    /**
+     * Returns a new tunnel around a socket whose reader contains no data,
+     * binding the given taps to its instruction stream.
+     *
+     * @param taps The taps to bind, in order.
+     * @return A new GuacamoleTunnel.
+     */
+    private static GuacamoleTunnel createTunnel(List<GuacamoleStreamTap> taps) {
+
+        final GuacamoleReader reader = new ReaderGuacamoleReader(new StringReader(""));
+
+        return new GuacamoleTunnel(new GuacamoleSocket() {
+
+            @Override
+            public GuacamoleReader getReader() { return reader; }
+
+            @Override
+            public GuacamoleWriter getWriter() { return null; }
+
+            @Override
+            public void close() {}
+
+            @Override
+            public boolean isOpen() { return true; }
+
+        }, taps);
+
+    }
+
+    /**
+     * Verifies that a reader announced with requestReader() is visible to
+     * the current reader, and that the request is satisfied once read access
+     * is acquired.
+     */
+    @Test
+    public void testRequestReader() {
+
+        GuacamoleTunnel tunnel = createTunnel();
+
+        assertNotNull(tunnel.acquireReader());
+        assertFalse(tunnel.isReaderRequested());
+
+        tunnel.requestReader();
+        assertTrue(tunnel.isReaderRequested());
+        tunnel.releaseReader();
+
+        assertNotNull(tunnel.tryAcquireReader());
+        assertFalse(tunnel.isReaderRequested());
+        tunnel.releaseReader();
+
+        // Cancelled requests are no longer visible
+        tunnel.requestReader();
+        tunnel.cancelReaderRequest();
+        assertFalse(tunnel.isReaderRequested());
+
+    }
+
+    /**
+     * Verifies that a callback registered with awaitReader() while another
+     * thread has read access is invoked once that thread releases read
+     * access, and is then able to acquire read access.
+     *
+     * @throws Exception If the test is interrupted.
+     */
+    @Test
+    public void testAwaitReader() throws Exception {
+
+        final GuacamoleTunnel tunnel = createTunnel();
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        // Hold read access within another thread
+        Thread holder = new Thread() {
+
+            @Override
+            public void run() {
+
+                tunnel.acquireReader();
+                acquired.countDown();
+
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                finally {
+                    tunnel.releaseReader();
+                }
+
+            }
+
+        };
+
+        holder.start();
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+
+        // Read access is not immediately available
+        assertNull(tunnel.tryAcquireReader());
+
+        final AtomicReference<GuacamoleReader> handedOff = new AtomicReference<GuacamoleReader>();
+        final CountDownLatch invoked = new CountDownLatch(1);
+        tunnel.awaitReader(new Runnable() {
+
+            @Override
+            public void run() {
+                handedOff.set(tunnel.tryAcquireReader());
+                invoked.countDown();
+            }
+
+        });
+
+        // Callback must wait for the holder to release read access
+        assertFalse(invoked.await(100, TimeUnit.MILLISECONDS));
+
+        release.countDown();
+        assertTrue(invoked.await(5, TimeUnit.SECONDS));
+        holder.join();
+
+        // Callback ran within the releasing thread and acquired read access
+        assertNotNull(handedOff.get());
+
+    }
+
+    /**
+     * Verifies that awaitReader() invokes its callback immediately if no
+     * thread has read access.
+     */
+    @Test
+    public void testAwaitReaderImmediate() {
+
+        final GuacamoleTunnel tunnel = createTunnel();
+        final boolean[] invoked = { false };
+
+        tunnel.awaitReader(new Runnable() {
+
+            @Override
+            public void run() {
+                invoked[0] = true;
+            }
+
+        });
+
+        assertTrue(invoked[0]);
+
+    }
+
+    /**
+     * Tap which records the order in which it is bound and whether it has
+     * been closed, returning the reader it is given unchanged.
+     */
+    private static class OrderedTap implements GuacamoleStreamTap {
+
+        /**
+         * The name of this tap.
+         */
+        private final String name;
+
+        /**
+         * The names of all taps bound, in the order they were bound.
+         */
+        private final List<String> bound;
+
+        /**
+         * Whether this tap has been closed.
+         */
+        private boolean closed = false;
+
+        /**
+         * Creates a new OrderedTap which adds its name to the given list
+         * when bound.
+         *
+         * @param name The name of the tap.
+         * @param bound The list receiving the names of all taps bound.
+         */
+        public OrderedTap(String name, List<String> bound) {
+            this.name = name;
+            this.bound = bound;
+        }
+
+        @Override
+        public GuacamoleReader tap(GuacamoleTunnel tunnel, GuacamoleReader reader) {
+            bound.add(name);
+            return reader;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+    }
+
+    /**
+     * Verifies that taps are bound in order only when read access is first
+     * acquired, that the same reader is returned thereafter, and that taps
+     * are closed along with the tunnel.
+     *
+     * @throws Exception If the tunnel cannot be closed.
+     */
+    @Test
+    public void testTaps() throws Exception {
+
+        List<String> bound = new ArrayList<String>();
+        OrderedTap first = new OrderedTap("first", bound);
+        OrderedTap second = new OrderedTap("second", bound);
+
+        GuacamoleTunnel tunnel = createTunnel(Arrays.<GuacamoleStreamTap>asList(first, second));
+        assertTrue(bound.isEmpty());
+
+        GuacamoleReader reader = tunnel.acquireReader();
+        tunnel.releaseReader();
+        assertSame(reader, tunnel.acquireReader());
+        tunnel.releaseReader();
+
+        assertEquals(Arrays.asList("first", "second"), bound);
+
+        tunnel.close();
+        assertTrue(first.closed);
+        assertTrue(second.closed);
+
+    }
+
+    /**
+     * Verifies that the same writer is returned each time write access is
+     * acquired, rather than a new writer being created for every write.
+     */
+    @Test
+    public void testWriterReused() {
+
+        GuacamoleTunnel tunnel = createTunnel();
+
+        GuacamoleWriter writer = tunnel.acquireWriter();
+        assertNotNull(writer);
+        tunnel.releaseWriter();
+
+        assertSame(writer, tunnel.acquireWriter());
+        tunnel.releaseWriter();
+
+    }
+
+}
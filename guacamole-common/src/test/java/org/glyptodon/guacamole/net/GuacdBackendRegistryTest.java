@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.net;
+
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests GuacdBackendRegistry, verifying that backends are selected by load
+ * relative to weight, and that unhealthy backends are avoided.
+ *
+ * @author Michael Jumper
+ */
+public class GuacdBackendRegistryTest {
+
+    /**
+     * Returns a new backend at the given port on localhost, with the given
+     * weight and no pooled sockets.
+     *
+     * @param port The port of the backend.
+     * @param weight The weight of the backend.
+     * @return A new GuacdBackend.
+     */
+    private static GuacdBackend backend(int port, int weight) {
+        return new GuacdBackend("localhost", port, false, weight, 0, 0);
+    }
+
+    /**
+     * Verifies that tunnels are distributed in proportion to weight.
+     */
+    @Test
+    public void testWeightedSelection() {
+
+        GuacdBackend light = backend(4822, 1);
+        GuacdBackend heavy = backend(4823, 2);
+        GuacdBackendRegistry registry = new GuacdBackendRegistry(
+                Arrays.asList(light, heavy), 0);
+
+        // Open six tunnels, always on the selected backend
+        for (int i = 0; i < 6; i++)
+            registry.select(Collections.<GuacdBackend>emptyList()).tunnelOpened();
+
+        assertEquals(2, light.getActiveTunnels());
+        assertEquals(4, heavy.getActiveTunnels());
+
+        // Excluded backends are never selected
+        assertSame(light, registry.select(Collections.singletonList(heavy)));
+        assertNull(registry.select(Arrays.asList(light, heavy)));
+
+        registry.close();
+
+    }
+
+    /**
+     * Verifies that a backend which fails its health check is selected only
+     * once no healthy backend remains.
+     *
+     * @throws Exception If an unused port cannot be found.
+     */
+    @Test
+    public void testUnhealthyBackend() throws Exception {
+
+        // Find a port on which nothing is listening
+        ServerSocket server = new ServerSocket(0);
+        int port = server.getLocalPort();
+        server.close();
+
+        GuacdBackend down = backend(port, 1);
+        GuacdBackend up = backend(4822, 1);
+        GuacdBackendRegistry registry = new GuacdBackendRegistry(
+                Arrays.asList(down, up), 0);
+
+        assertFalse(down.probe());
+        assertFalse(down.isHealthy());
+
+        // The busier, healthy backend still wins
+        up.tunnelOpened();
+        up.tunnelOpened();
+        assertSame(up, registry.select(Collections.<GuacdBackend>emptyList()));
+        assertSame(down, registry.select(Collections.singletonList(up)));
+
+        registry.close();
+
+    }
+
+    /**
+     * Verifies that a registry replacing another continues counting the
+     * tunnels of each guacd which remains configured, including tunnels
+     * which close only after the replacement.
+     */
+    @Test
+    public void testSharedTunnels() {
+
+        GuacdBackend oldBackend = backend(4822, 1);
+        GuacdBackendRegistry previous = new GuacdBackendRegistry(
+                Collections.singletonList(oldBackend), 0);
+
+        oldBackend.tunnelOpened();
+        oldBackend.tunnelOpened();
+
+        GuacdBackend kept = backend(4822, 1);
+        GuacdBackend added = backend(4823, 1);
+        GuacdBackendRegistry registry = new GuacdBackendRegistry(
+                Arrays.asList(kept, added), 0);
+
+        registry.shareTunnels(previous);
+        previous.close();
+
+        assertEquals(2, kept.getActiveTunnels());
+        assertEquals(0, added.getActiveTunnels());
+        assertSame(added, registry.select(Collections.<GuacdBackend>emptyList()));
+
+        // Tunnels of the previous registry are still counted when closed
+        oldBackend.tunnelClosed();
+        assertEquals(1, kept.getActiveTunnels());
+
+        registry.close();
+
+    }
+
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.protocol;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.io.GuacamoleWriter;
+import org.glyptodon.guacamole.io.ReaderGuacamoleReader;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Test which validates coalescing of stale updates by
+ * CoalescingGuacamoleReader, and tracking of acknowledged frames by
+ * ClientSyncTracker.
+ *
+ * @author Michael Jumper
+ */
+public class CoalescingGuacamoleReaderTest {
+
+    /**
+     * Returns a "png" instruction which replaces the given area of the given
+     * layer with a PNG image. Only the PNG header is included in the image
+     * data.
+     *
+     * @param layer The layer to draw to.
+     * @param x The X coordinate of the image.
+     * @param y The Y coordinate of the image.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @return A "png" instruction in serialized form.
+     */
+    private static String png(int layer, int x, int y, int width, int height) {
+
+        byte[] header = {
+            (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n',
+            0, 0, 0, 13, 'I', 'H', 'D', 'R',
+            (byte) (width >> 24), (byte) (width >> 16), (byte) (width >> 8), (byte) width,
+            (byte) (height >> 24), (byte) (height >> 16), (byte) (height >> 8), (byte) height
+        };
+
+        return new GuacamoleInstruction("png", "12", Integer.toString(layer),
+                Integer.toString(x), Integer.toString(y),
+                Base64Codec.encode(header)).toString();
+
+    }
+
+    /**
+     * Reads all remaining instructions from the given reader.
+     *
+     * @param reader The reader to read from.
+     * @return All remaining instructions, in serialized form.
+     * @throws GuacamoleException If an error occurs while reading.
+     */
+    private static List<String> readAll(GuacamoleReader reader)
+            throws GuacamoleException {
+
+        List<String> instructions = new ArrayList<String>();
+
+        char[] instruction;
+        while ((instruction = reader.read()) != null)
+            instructions.add(new String(instruction));
+
+        return instructions;
+
+    }
+
+    /**
+     * Test that superseded cursor, move and image updates are dropped only
+     * while the client is lagging, without reordering the instructions
+     * which remain.
+     *
+     * @throws Exception If an error occurs while reading the test
+     *                   instructions.
+     */
+    @Test
+    public void testCoalesce() throws Exception {
+
+        String cursorA = "6.cursor,1.0,1.0,2.-1,1.0,1.0,2.16,2.16;";
+        String cursorB = "6.cursor,1.1,1.1,2.-1,1.0,1.0,2.16,2.16;";
+        String moveA   = "4.move,1.1,1.0,1.0,1.0,1.0;";
+        String moveB   = "4.move,1.1,1.0,2.10,2.10,1.0;";
+        String small   = png(1, 10, 10, 50, 50);
+        String large   = png(1, 0, 0, 100, 100);
+        String copy    = "4.copy,1.1,1.0,1.0,2.10,2.10,2.12,1.0,1.0,1.0;";
+        String sync    = "4.sync,3.100;";
+
+        String frame = cursorA + moveA + small + large + cursorB + moveB + sync;
+
+        // Client is keeping up - everything passes through
+        ClientSyncTracker tracker = new ClientSyncTracker();
+        GuacamoleReader reader = new CoalescingGuacamoleReader(
+                new ReaderGuacamoleReader(new StringReader(frame)), tracker, 2);
+
+        List<String> instructions = readAll(reader);
+        assertEquals(7, instructions.size());
+        assertEquals(1, tracker.getFramesBehind());
+
+        // Client is lagging - superseded updates are dropped
+        tracker = new ClientSyncTracker();
+        tracker.frameSent(1);
+        tracker.frameSent(2);
+        tracker.frameSent(3);
+        reader = new CoalescingGuacamoleReader(
+                new ReaderGuacamoleReader(new StringReader(frame)), tracker, 2);
+
+        instructions = readAll(reader);
+        assertEquals(4, instructions.size());
+        assertEquals(large,   instructions.get(0));
+        assertEquals(cursorB, instructions.get(1));
+        assertEquals(moveB,   instructions.get(2));
+        assertEquals(sync,    instructions.get(3));
+        assertEquals(4, tracker.getFramesBehind());
+
+        // Images read by other instructions are never dropped
+        reader = new CoalescingGuacamoleReader(new ReaderGuacamoleReader(
+                new StringReader(small + copy + large + sync)), tracker, 2);
+
+        instructions = readAll(reader);
+        assertEquals(4, instructions.size());
+        assertEquals(small, instructions.get(0));
+
+    }
+
+    /**
+     * Test that acknowledgements are found within client data, even if
+     * split across writes, and that each acknowledgement clears all frames
+     * up to and including the acknowledged frame.
+     *
+     * @throws Exception If an error occurs while writing.
+     */
+    @Test
+    public void testAcknowledge() throws Exception {
+
+        ClientSyncTracker tracker = new ClientSyncTracker();
+        tracker.frameSent(100);
+        tracker.frameSent(200);
+        tracker.frameSent(300);
+
+        final StringBuilder written = new StringBuilder();
+        GuacamoleWriter writer = new SyncTrackingGuacamoleWriter(new GuacamoleWriter() {
+
+            @Override
+            public void write(char[] chunk, int off, int len) {
+                written.append(chunk, off, len);
+            }
+
+            @Override
+            public void write(char[] chunk) {
+                write(chunk, 0, chunk.length);
+            }
+
+            @Override
+            public void writeInstruction(GuacamoleInstruction instruction) {
+                written.append(instruction.toString());
+            }
+
+        }, tracker);
+
+        // Acknowledgement split within both opcode and timestamp
+        writer.write("5.mouse,1.0,1.0,1.0;4.sy".toCharArray());
+        assertEquals(3, tracker.getFramesBehind());
+        writer.write("nc,3.2".toCharArray());
+        writer.write("00;3.key,2.65,1.1;".toCharArray());
+        assertEquals(1, tracker.getFramesBehind());
+        assertEquals(200, tracker.getLastAcknowledged());
+
+        // Acknowledgement following multi-byte characters
+        writer.write("4.name,2.\u00E9\uD83D\uDE00;".toCharArray());
+        writer.write("4.sync,3.300;".toCharArray());
+        assertEquals(0, tracker.getFramesBehind());
+
+        // Data is passed through unchanged
+        assertEquals("5.mouse,1.0,1.0,1.0;4.sync,3.200;3.key,2.65,1.1;"
+                + "4.name,2.\u00E9\uD83D\uDE00;4.sync,3.300;", written.toString());
+
+    }
+
+}
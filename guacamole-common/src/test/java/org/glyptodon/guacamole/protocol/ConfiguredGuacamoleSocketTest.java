@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.protocol;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.io.GuacamoleWriter;
+import org.glyptodon.guacamole.io.ReaderGuacamoleReader;
+import org.glyptodon.guacamole.io.WriterGuacamoleWriter;
+import org.glyptodon.guacamole.net.GuacamoleSocket;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests ConfiguredGuacamoleSocket, verifying that the handshake is sent
+ * correctly and in as few writes as possible.
+ *
+ * @author Michael Jumper
+ */
+public class ConfiguredGuacamoleSocketTest {
+
+    /**
+     * Test that the client half of the handshake following "args" is sent
+     * in a single write.
+     *
+     * @throws Exception If an error occurs while performing the test.
+     */
+    @Test
+    public void testHandshake() throws Exception {
+
+        final StringWriter sent = new StringWriter();
+        final GuacamoleReader reader = new ReaderGuacamoleReader(
+                new StringReader("4.args,8.hostname,4.port;5.ready,4.$abc;"));
+        final WriterGuacamoleWriter writer = new WriterGuacamoleWriter(sent);
+
+        GuacamoleSocket socket = new GuacamoleSocket() {
+
+            @Override
+            public GuacamoleReader getReader() {
+                return reader;
+            }
+
+            @Override
+            public GuacamoleWriter getWriter() {
+                return writer;
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+        };
+
+        GuacamoleConfiguration config = new GuacamoleConfiguration();
+        config.setProtocol("vnc");
+        config.setParameter("hostname", "localhost");
+
+        ConfiguredGuacamoleSocket configured = new ConfiguredGuacamoleSocket(
+                socket, config, new GuacamoleClientInformation());
+
+        assertEquals("$abc", configured.getConnectionID());
+        assertTrue(configured.getArgsWaitTime() >= 0);
+        assertTrue(configured.getReadyWaitTime() >= 0);
+
+        // One write for "select", one for everything else
+        assertEquals(2, writer.getFlushCount());
+        assertTrue(sent.toString().startsWith("6.select,3.vnc;4.size,"));
+        assertTrue(sent.toString().endsWith("7.connect,9.localhost,0.;"));
+
+    }
+
+}
@@ -91,5 +91,31 @@ public class FilteredGuacamoleReaderTest {
         assertNull(instruction);
 
     }
+
+    /**
+     * Test that instructions allowed through the filter unchanged are read in
+     * their original form, and that dropped instructions are skipped.
+     *
+     * @throws Exception If an error occurs while reading or filtering the
+     *                   test instructions.
+     */
+    @Test
+    public void testFilterRead() throws Exception {
+
+        // Test string
+        final String test = "3.yes,1.A;2.no,1.B;3.yes,1.C;3.yes,1.D;4.nope,1.E;";
+
+        GuacamoleReader reader = new FilteredGuacamoleReader(new ReaderGuacamoleReader(new StringReader(test)),
+                                                             new TestFilter());
+
+        // Validate allowed instructions
+        assertEquals("3.yes,1.A;", new String(reader.read()));
+        assertEquals("3.yes,1.C;", new String(reader.read()));
+        assertEquals("3.yes,1.D;", new String(reader.read()));
+
+        // Should be done now
+        assertNull(reader.read());
+
+    }
     
 }
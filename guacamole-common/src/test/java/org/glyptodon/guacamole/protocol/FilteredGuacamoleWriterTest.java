@@ -69,5 +69,25 @@ public class FilteredGuacamoleWriterTest {
         assertEquals("3.yes,1.A;3.yes,1.C;3.yes,1.D;3.yes,5.hello;3.yes,5.world;", stringWriter.toString());
 
     }
-    
+
+    @Test
+    public void testSplitInstructions() throws Exception {
+
+        StringWriter stringWriter = new StringWriter();
+        GuacamoleWriter writer = new FilteredGuacamoleWriter(new WriterGuacamoleWriter(stringWriter),
+                                                             new TestFilter());
+
+        // Write instructions split within lengths, elements and terminators
+        String data = "3.yes,1.A;2.no,1.B;3.yes,11.hello world;4.nope,1.E;3.yes,1.F;";
+        writer.write(data.substring(0, 4).toCharArray());
+        writer.write(data.substring(4, 12).toCharArray());
+        writer.write(data.substring(12, 27).toCharArray());
+        writer.write(data.substring(27, 35).toCharArray());
+        writer.write(data.substring(35).toCharArray());
+
+        // Validate filtered results
+        assertEquals("3.yes,1.A;3.yes,11.hello world;3.yes,1.F;", stringWriter.toString());
+
+    }
+
 }
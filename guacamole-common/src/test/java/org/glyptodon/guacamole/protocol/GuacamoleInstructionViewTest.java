@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.protocol;
+
+import org.glyptodon.guacamole.GuacamoleException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Unit test for GuacamoleInstructionView. Verifies that instruction elements
+ * are located correctly within the underlying buffer, and that malformed
+ * instructions are rejected.
+ *
+ * @author Michael Jumper
+ */
+public class GuacamoleInstructionViewTest {
+
+    /**
+     * Test of viewing instructions within a larger buffer.
+     *
+     * @throws GuacamoleException If a parse error occurs while parsing the
+     *                            known-good test string.
+     */
+    @Test
+    public void testView() throws GuacamoleException {
+
+        // Test string containing two instructions, surrounded by other data
+        final char[] test = "xx4.test,5.test2,0.;4.sync,8.12345678;yy".toCharArray();
+
+        GuacamoleInstructionView view = new GuacamoleInstructionView();
+
+        // Validate first instruction
+        view.reset(test, 2, 18);
+        assertTrue(view.isOpcode("test"));
+        assertFalse(view.isOpcode("tes"));
+        assertEquals("test", view.getOpcode());
+        assertEquals(2, view.getArgCount());
+        assertTrue(view.argEquals(0, "test2"));
+        assertEquals("test2", view.getArg(0));
+        assertEquals("", view.getArgs().get(1));
+        assertEquals("4.test,5.test2,0.;", view.toString());
+
+        // Copy must remain valid after view is reset
+        GuacamoleInstruction copy = view.toInstruction();
+
+        // Validate second instruction
+        view.reset(test, 20, 18);
+        assertEquals("sync", view.getOpcode());
+        assertEquals(1, view.getArgs().size());
+        assertEquals("12345678", view.getArgSequence(0).toString());
+
+        // Validate copy of first instruction
+        assertEquals("test", copy.getOpcode());
+        assertEquals(2, copy.getArgs().size());
+        assertEquals("test2", copy.getArgs().get(0));
+        assertEquals("4.test,5.test2,0.;", copy.toString());
+
+        // Opcodes which were seen before should not be converted again
+        String opcode = view.getOpcode();
+        view.reset(test, 20, 18);
+        assertSame(opcode, view.getOpcode());
+
+    }
+
+    /**
+     * Test that incomplete or otherwise malformed instructions are rejected.
+     */
+    @Test
+    public void testInvalid() {
+
+        final String[] invalid = {
+            "4.test,5.test2",
+            "4.test,5.test2;3.foo;",
+            "4.test;5",
+            "4.testx",
+            "a.test;"
+        };
+
+        GuacamoleInstructionView view = new GuacamoleInstructionView();
+
+        for (String test : invalid) {
+            try {
+                view.reset(test.toCharArray(), 0, test.length());
+                fail("Invalid instruction accepted: " + test);
+            }
+            catch (GuacamoleException e) {
+                // Expected
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.protocol;
+
+import java.io.StringReader;
+import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.io.ReaderGuacamoleReader;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Test which validates buffering of unacknowledged instructions by
+ * ReplayBuffer, and their replay by ReplayGuacamoleReader.
+ *
+ * @author Michael Jumper
+ */
+public class ReplayGuacamoleReaderTest {
+
+    /**
+     * Reads the given number of instructions from the given reader.
+     *
+     * @param reader The reader to read from.
+     * @param count The number of instructions to read.
+     * @return The instructions read, concatenated.
+     * @throws Exception If an error occurs while reading.
+     */
+    private static String read(GuacamoleReader reader, int count)
+            throws Exception {
+
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < count; i++)
+            data.append(reader.read());
+
+        return data.toString();
+
+    }
+
+    /**
+     * Verifies that only instructions following the last acknowledged frame
+     * are replayed, and that replay precedes any further data.
+     *
+     * @throws Exception If an error occurs while reading.
+     */
+    @Test
+    public void testReplay() throws Exception {
+
+        ClientSyncTracker tracker = new ClientSyncTracker();
+        ReplayBuffer buffer = new ReplayBuffer();
+
+        GuacamoleReader reader = new ReplayGuacamoleReader(new ReaderGuacamoleReader(
+                new StringReader("4.move,1.1,1.0,1.0,1.0;4.sync,3.100;"
+                               + "4.move,1.1,1.0,1.5,1.5;4.sync,3.200;"
+                               + "4.move,1.1,1.0,1.9,1.9;4.sync,3.300;")),
+                buffer, tracker);
+
+        // Send first two frames, only the first of which is acknowledged
+        assertEquals("4.move,1.1,1.0,1.0,1.0;4.sync,3.100;", read(reader, 2));
+        tracker.frameSent(100);
+        tracker.frameAcknowledged(100);
+        assertEquals("4.move,1.1,1.0,1.5,1.5;4.sync,3.200;", read(reader, 2));
+        tracker.frameSent(200);
+
+        // The client reconnects, having missed the second frame
+        assertTrue(buffer.isComplete());
+        buffer.beginReplay(tracker.getLastAcknowledged());
+        assertTrue(reader.available());
+        assertEquals("4.move,1.1,1.0,1.5,1.5;4.sync,3.200;", read(reader, 2));
+
+        // Data continues after replay
+        assertEquals("4.move,1.1,1.0,1.9,1.9;4.sync,3.300;", read(reader, 2));
+        assertNull(reader.read());
+
+        // Acknowledged data is no longer kept
+        tracker.frameAcknowledged(200);
+        buffer.beginReplay(tracker.getLastAcknowledged());
+        assertEquals("4.move,1.1,1.0,1.9,1.9;4.sync,3.300;", read(reader, 2));
+
+    }
+
+    /**
+     * Verifies that a buffer which overflows cannot be replayed until a
+     * frame sent after the overflow is acknowledged.
+     *
+     * @throws Exception If an error occurs while reading.
+     */
+    @Test
+    public void testOverflow() throws Exception {
+
+        ClientSyncTracker tracker = new ClientSyncTracker();
+        ReplayBuffer buffer = new ReplayBuffer(40);
+
+        GuacamoleReader reader = new ReplayGuacamoleReader(new ReaderGuacamoleReader(
+                new StringReader("4.move,1.1,1.0,1.0,1.0;4.sync,1.1;"
+                               + "4.move,1.1,1.0,1.5,1.5;4.sync,1.2;"
+                               + "4.sync,1.3;")),
+                buffer, tracker);
+
+        // Unacknowledged data exceeds the buffer within the second frame
+        read(reader, 3);
+        assertFalse(buffer.isComplete());
+        assertEquals(0, buffer.getLength());
+
+        // Acknowledging a frame sent since the overflow recovers
+        read(reader, 2);
+        tracker.frameSent(2);
+        tracker.frameSent(3);
+        tracker.frameAcknowledged(2);
+        buffer.beginReplay(tracker.getLastAcknowledged());
+        assertTrue(buffer.isComplete());
+        assertEquals("4.sync,1.3;", read(reader, 1));
+        assertFalse(buffer.hasReplay());
+
+    }
+
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.recording;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Tests RecordingIndexer, RecordingIndex and RecordingReader, verifying that
+ * recordings indexed while recording or offline can be opened at an
+ * arbitrary time.
+ *
+ * @author Michael Jumper
+ */
+public class RecordingIndexTest {
+
+    /**
+     * A "png" instruction covering the whole 64x48 default layer.
+     */
+    private static final String FULL_PNG =
+            "3.png,2.12,1.0,1.0,1.0,44.iVBORw0KGgoAAAANSUhEUgAAAEAAAAAwCAYAAAAAAAAA;";
+
+    /**
+     * A "png" instruction drawing a 16x16 image away from the origin.
+     */
+    private static final String PARTIAL_PNG =
+            "3.png,2.12,1.0,2.10,2.10,44.iVBORw0KGgoAAAANSUhEUgAAABAAAAAQCAYAAAAAAAAA;";
+
+    /**
+     * A "png" instruction drawing a 16x16 image at the origin.
+     */
+    private static final String SMALL_PNG =
+            "3.png,2.12,1.0,1.0,1.0,44.iVBORw0KGgoAAAANSUhEUgAAABAAAAAQCAYAAAAAAAAA;";
+
+    /**
+     * A recording spanning fifteen seconds, with checkpoints due at the
+     * first and third syncs.
+     */
+    private static final String[] RECORDING = {
+        "4.size,1.0,2.64,2.48;",
+        FULL_PNG,
+        "4.sync,4.1000;",
+        PARTIAL_PNG,
+        "4.sync,4.6000;",
+        SMALL_PNG,
+        "4.sync,5.11000;",
+        PARTIAL_PNG,
+        "4.sync,5.16000;"
+    };
+
+    /**
+     * Directory receiving all recordings.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Returns the byte offset following the given instruction of the test
+     * recording.
+     *
+     * @param index The index of the instruction within RECORDING.
+     * @return The byte offset following that instruction.
+     */
+    private static long offsetAfter(int index) {
+
+        long offset = 0;
+        for (int i = 0; i <= index; i++)
+            offset += RECORDING[i].length();
+
+        return offset;
+
+    }
+
+    /**
+     * Verifies the contents of an index of the test recording.
+     *
+     * @param index The index to verify.
+     */
+    private static void verifyIndex(RecordingIndex index) {
+
+        assertEquals(4, index.getSyncCount());
+        assertEquals(1000, index.getStartTime());
+        assertEquals(16000, index.getEndTime());
+
+        assertEquals(0, index.getOffset(999));
+        assertEquals(offsetAfter(2), index.getOffset(1000));
+        assertEquals(offsetAfter(6), index.getOffset(15999));
+        assertEquals(offsetAfter(8), index.getOffset(20000));
+
+        // Checkpoints at first sync and once interval has elapsed
+        assertEquals(2, index.getCheckpoints().size());
+        assertNull(index.getCheckpoint(999));
+        assertEquals(1000, index.getCheckpoint(10999).getTimestamp());
+
+        RecordingIndex.Checkpoint checkpoint = index.getCheckpoint(11500);
+        assertEquals(11000, checkpoint.getTimestamp());
+        assertEquals(offsetAfter(6), checkpoint.getOffset());
+
+        // Smaller image at origin does not replace full-frame image
+        List<RecordingIndex.LayerState> layers = checkpoint.getLayers();
+        assertEquals(1, layers.size());
+        assertEquals(0, layers.get(0).getLayer());
+        assertEquals(64, layers.get(0).getWidth());
+        assertEquals(48, layers.get(0).getHeight());
+        assertEquals(offsetAfter(0), layers.get(0).getPNGOffset());
+        assertEquals(FULL_PNG.length(), layers.get(0).getPNGLength());
+
+    }
+
+    /**
+     * Verifies that a recording indexed while recording can be opened at an
+     * arbitrary time, restoring the nearest checkpoint and then streaming
+     * the instructions which follow it. The partial updates between the last
+     * full-layer image and the checkpoint must be replayed without their
+     * "sync" instructions.
+     *
+     * @throws Exception If the recording cannot be written or read.
+     */
+    @Test
+    public void testRecordAndSeek() throws Exception {
+
+        File directory = folder.getRoot();
+        File indexFile = new File(directory, "test.index");
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        RecordingSegmentWriter storage = new RecordingSegmentWriter(directory, "test", 64);
+        RecordingIndexer indexer = new RecordingIndexer(
+                new FileOutputStream(indexFile), 10000);
+        SessionRecorder recorder = new SessionRecorder(storage, indexer, 4096,
+                1000, executor);
+
+        for (String instruction : RECORDING) {
+            char[] data = instruction.toCharArray();
+            recorder.record(data, 0, data.length);
+        }
+
+        recorder.close();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        RecordingIndex index = RecordingIndex.read(indexFile);
+        verifyIndex(index);
+
+        // Open at 11.5 seconds
+        RecordingReader reader = new RecordingReader(directory, "test", index, 11500);
+        try {
+
+            assertEquals(11000, reader.getStartTime());
+
+            // Layer restored from full image and later partial updates
+            assertEquals("4.size,1.0,2.64,2.48;", new String(reader.read()));
+            assertEquals(FULL_PNG, new String(reader.read()));
+            assertEquals(PARTIAL_PNG, new String(reader.read()));
+            assertEquals(SMALL_PNG, new String(reader.read()));
+
+            // Instructions following checkpoint
+            assertEquals(PARTIAL_PNG, new String(reader.read()));
+            assertEquals("4.sync,5.16000;", new String(reader.read()));
+            assertNull(reader.read());
+
+        }
+        finally {
+            reader.close();
+        }
+
+    }
+
+    /**
+     * Verifies that indexing a complete recording offline produces the same
+     * index as indexing while recording.
+     *
+     * @throws Exception If the recording cannot be indexed.
+     */
+    @Test
+    public void testOfflineIndex() throws Exception {
+
+        StringBuilder recording = new StringBuilder();
+        for (String instruction : RECORDING)
+            recording.append(instruction);
+
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        RecordingIndexer.index(new ByteArrayInputStream(
+                recording.toString().getBytes("UTF-8")), index, 10000);
+
+        verifyIndex(RecordingIndex.read(new ByteArrayInputStream(index.toByteArray())));
+
+    }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.recording;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.io.ReaderGuacamoleReader;
+import org.glyptodon.guacamole.protocol.RecordingGuacamoleReader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Tests SessionRecorder, verifying that recorded instructions are written to
+ * rotating segment files, and that a "degraded" instruction replaces
+ * instructions dropped while the writer is behind.
+ *
+ * @author Michael Jumper
+ */
+public class SessionRecorderTest {
+
+    /**
+     * Directory receiving all recordings.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Reads the full contents of all segments written by the given storage,
+     * in order.
+     *
+     * @param storage The storage whose segments should be read.
+     * @return The concatenated contents of all segments.
+     * @throws Exception If a segment cannot be read.
+     */
+    private static String readSegments(RecordingSegmentWriter storage)
+            throws Exception {
+
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+
+        for (int i = 0; i < storage.getSegmentCount(); i++) {
+
+            InputStream input = new FileInputStream(storage.getSegmentFile(i));
+            try {
+                int length;
+                while ((length = input.read(buffer)) != -1)
+                    contents.write(buffer, 0, length);
+            }
+            finally {
+                input.close();
+            }
+
+        }
+
+        return contents.toString("UTF-8");
+
+    }
+
+    /**
+     * Shuts down the given executor, waiting for all queued writes to
+     * complete.
+     *
+     * @param executor The executor to shut down.
+     * @throws Exception If the test is interrupted.
+     */
+    private static void finish(ScheduledThreadPoolExecutor executor)
+            throws Exception {
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Verifies that all instructions read through a RecordingGuacamoleReader
+     * are written, in order, across multiple segments which are truncated
+     * to the data they contain.
+     *
+     * @throws Exception If the recording cannot be written or read.
+     */
+    @Test
+    public void testRecording() throws Exception {
+
+        String stream = "4.size,1.0,4.1024,3.768;4.sync,5.12345;4.sync,5.12346;";
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        RecordingSegmentWriter storage = new RecordingSegmentWriter(
+                folder.getRoot(), "test", 32);
+        SessionRecorder recorder = new SessionRecorder(storage, 1024, 1000, executor);
+
+        GuacamoleReader reader = new RecordingGuacamoleReader(
+                new ReaderGuacamoleReader(new StringReader(stream)), recorder);
+
+        StringBuilder read = new StringBuilder();
+        char[] instruction;
+        while ((instruction = reader.read()) != null)
+            read.append(instruction);
+
+        recorder.close();
+        finish(executor);
+
+        assertEquals(stream, read.toString());
+        assertEquals(stream, readSegments(storage));
+
+        // The syncs do not fit alongside the size instruction
+        assertEquals(2, storage.getSegmentCount());
+        assertEquals(24, storage.getSegmentFile(0).length());
+        assertEquals(30, storage.getSegmentFile(1).length());
+
+        File unused = storage.getSegmentFile(2);
+        assertFalse(unused.exists());
+
+    }
+
+    /**
+     * Verifies that instructions are dropped rather than queued while the
+     * writer is behind, and that a "degraded" instruction noting the number
+     * dropped is written once the writer catches up.
+     *
+     * @throws Exception If the recording cannot be written or read.
+     */
+    @Test
+    public void testDegraded() throws Exception {
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        RecordingSegmentWriter storage = new RecordingSegmentWriter(
+                folder.getRoot(), "degraded", 1024);
+        SessionRecorder recorder = new SessionRecorder(storage, 20, 1000, executor);
+
+        // Stall the writer
+        final CountDownLatch stalled = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    stalled.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+        });
+
+        // Only the first instruction fits within the queue
+        char[] sync = "4.sync,1.0;".toCharArray();
+        recorder.record(sync, 0, sync.length);
+        assertFalse(recorder.isDegraded());
+
+        recorder.record(sync, 0, sync.length);
+        assertTrue(recorder.isDegraded());
+
+        // Further instructions are dropped even if they would fit
+        char[] nop = "3.nop;".toCharArray();
+        recorder.record(nop, 0, nop.length);
+        assertEquals(2, recorder.getDroppedCount());
+
+        // Allow writer to catch up
+        stalled.countDown();
+        recorder.close();
+        finish(executor);
+
+        assertFalse(recorder.isDegraded());
+        assertEquals(0, recorder.getQueuedBytes());
+        assertEquals("4.sync,1.0;8.degraded,1.2;", readSegments(storage));
+
+    }
+
+}
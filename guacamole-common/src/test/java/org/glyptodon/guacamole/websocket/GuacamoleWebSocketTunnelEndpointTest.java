@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.websocket;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import javax.websocket.CloseReason;
+import javax.websocket.EndpointConfig;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.io.GuacamoleWriter;
+import org.glyptodon.guacamole.net.GuacamoleSocket;
+import org.glyptodon.guacamole.net.GuacamoleStreamTap;
+import org.glyptodon.guacamole.net.GuacamoleTunnel;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+import org.glyptodon.guacamole.protocol.ReplayBuffer;
+import org.glyptodon.guacamole.protocol.ReplayGuacamoleReader;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Test which verifies that a WebSocket tunnel detached by an abnormal close
+ * can be resumed by a new connection, which is told the UUID of the tunnel
+ * and receives the instructions not acknowledged by the lost connection and
+ * all data which follows.
+ *
+ * @author Michael Jumper
+ */
+public class GuacamoleWebSocketTunnelEndpointTest {
+
+    /**
+     * Instruction data marking the end of the stream read from the test
+     * socket.
+     */
+    private static final char[] EOF = new char[0];
+
+    /**
+     * The maximum number of milliseconds to wait for any message.
+     */
+    private static final long TIMEOUT = 5000;
+
+    /**
+     * GuacamoleReader which reads instructions as they are provided by the
+     * test, blocking until each is available.
+     */
+    private static class QueueGuacamoleReader implements GuacamoleReader {
+
+        /**
+         * The instructions not yet read.
+         */
+        private final BlockingQueue<char[]> queue = new LinkedBlockingQueue<char[]>();
+
+        /**
+         * Provides the given instruction data for reading.
+         *
+         * @param data The instruction data to provide, or EOF to end the
+         *             stream.
+         */
+        public void provide(char[] data) {
+            queue.add(data);
+        }
+
+        @Override
+        public boolean available() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public char[] read() throws GuacamoleException {
+
+            try {
+                char[] data = queue.take();
+                if (data == EOF)
+                    return null;
+                return data;
+            }
+            catch (InterruptedException e) {
+                throw new GuacamoleException("Interrupted while reading.", e);
+            }
+
+        }
+
+        @Override
+        public GuacamoleInstruction readInstruction() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+    /**
+     * Endpoint which always relays the same tunnel, as a resumed connection
+     * would.
+     */
+    private static class TestEndpoint extends GuacamoleWebSocketTunnelEndpoint {
+
+        /**
+         * The tunnel to relay.
+         */
+        private final GuacamoleTunnel tunnel;
+
+        /**
+         * Creates a new endpoint which relays the given tunnel.
+         *
+         * @param tunnel The tunnel to relay.
+         */
+        public TestEndpoint(GuacamoleTunnel tunnel) {
+            this.tunnel = tunnel;
+        }
+
+        @Override
+        protected GuacamoleTunnel createTunnel(Session session,
+                EndpointConfig config) {
+            return tunnel;
+        }
+
+    }
+
+    /**
+     * Returns a new WebSocket session which negotiated the text subprotocol
+     * and adds each text message sent to the given queue.
+     *
+     * @param messages The queue to receive all text messages sent.
+     * @return A new Session.
+     */
+    private static Session createSession(final BlockingQueue<String> messages) {
+
+        // Remote endpoint which completes all sends immediately
+        final RemoteEndpoint.Async remote = (RemoteEndpoint.Async) Proxy.newProxyInstance(
+                RemoteEndpoint.Async.class.getClassLoader(),
+                new Class<?>[] { RemoteEndpoint.Async.class },
+                new InvocationHandler() {
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+
+                if (method.getName().equals("sendText") && args.length == 2) {
+                    messages.add((String) args[0]);
+                    ((SendHandler) args[1]).onResult(new SendResult());
+                }
+
+                return null;
+
+            }
+
+        });
+
+        return (Session) Proxy.newProxyInstance(
+                Session.class.getClassLoader(),
+                new Class<?>[] { Session.class },
+                new InvocationHandler() {
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+
+                String name = method.getName();
+                if (name.equals("getAsyncRemote"))
+                    return remote;
+                if (name.equals("getNegotiatedSubprotocol"))
+                    return "guacamole";
+                if (name.equals("getNegotiatedExtensions"))
+                    return Collections.emptyList();
+
+                return null;
+
+            }
+
+        });
+
+    }
+
+    /**
+     * Waits for the given queue of messages to contain the given data,
+     * failing if it does not within the timeout.
+     *
+     * @param messages The queue of messages sent.
+     * @param expected The data expected, possibly split across messages.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private static void assertReceived(BlockingQueue<String> messages,
+            String expected) throws InterruptedException {
+
+        StringBuilder received = new StringBuilder();
+        while (received.length() < expected.length()) {
+
+            String message = messages.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertNotNull("Timed out after receiving \"" + received + "\"", message);
+
+            received.append(message);
+
+        }
+
+        assertEquals(expected, received.toString());
+
+    }
+
+    /**
+     * Verifies that the relay of a connection closed abnormally releases the
+     * tunnel, and that a new connection to the same tunnel receives the
+     * unacknowledged instructions followed by any new data.
+     *
+     * @throws Exception If the test fails to complete.
+     */
+    @Test
+    public void testResume() throws Exception {
+
+        final QueueGuacamoleReader reader = new QueueGuacamoleReader();
+        final ReplayBuffer buffer = new ReplayBuffer();
+
+        GuacamoleSocket socket = new GuacamoleSocket() {
+
+            @Override
+            public GuacamoleReader getReader() { return reader; }
+
+            @Override
+            public GuacamoleWriter getWriter() { return null; }
+
+            @Override
+            public void close() {}
+
+            @Override
+            public boolean isOpen() { return true; }
+
+        };
+
+        // Tunnel which remains open when detached, replaying unacknowledged
+        // instructions to any resumed connection
+        GuacamoleTunnel tunnel = new GuacamoleTunnel(socket,
+                Collections.<GuacamoleStreamTap>singletonList(new GuacamoleStreamTap() {
+
+            @Override
+            public GuacamoleReader tap(GuacamoleTunnel tunnel, GuacamoleReader reader) {
+                return new ReplayGuacamoleReader(reader, buffer, tunnel.getSyncTracker());
+            }
+
+            @Override
+            public void close() {}
+
+        })) {
+
+            @Override
+            public void detach() {}
+
+        };
+
+        // First connection receives data before being lost
+        BlockingQueue<String> first = new LinkedBlockingQueue<String>();
+        TestEndpoint firstEndpoint = new TestEndpoint(tunnel);
+        firstEndpoint.onOpen(createSession(first), null);
+
+        reader.provide("4.sync,1.1;".toCharArray());
+        assertReceived(first, tunnel.getUUIDInstruction() + "4.sync,1.1;");
+
+        firstEndpoint.onClose(null, new CloseReason(
+                CloseReason.CloseCodes.CLOSED_ABNORMALLY, null));
+
+        // Data read while the connection is lost must not be lost
+        reader.provide("4.sync,1.2;".toCharArray());
+
+        // Resumed connection receives all unacknowledged data, then new data
+        BlockingQueue<String> second = new LinkedBlockingQueue<String>();
+        buffer.requestReplay();
+        new TestEndpoint(tunnel).onOpen(createSession(second), null);
+        assertReceived(second, tunnel.getUUIDInstruction()
+                + "4.sync,1.1;4.sync,1.2;");
+
+        reader.provide("4.sync,1.3;".toCharArray());
+        assertReceived(second, "4.sync,1.3;");
+
+        reader.provide(EOF);
+        assertTrue(first.isEmpty());
+
+    }
+
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2014 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.websocket;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import org.glyptodon.guacamole.net.GuacamoleTunnelStatistics;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests WebSocketSendQueue, verifying that sends block at the high watermark
+ * and resume at the low watermark, in both callback and Future modes.
+ *
+ * @author Michael Jumper
+ */
+public class WebSocketSendQueueTest {
+
+    /**
+     * Queue in callback mode, recording each dispatched message. Messages
+     * complete only when complete() is invoked.
+     */
+    private static class CallbackQueue extends WebSocketSendQueue<String> {
+
+        /**
+         * All messages dispatched so far, in order.
+         */
+        private final List<String> dispatched = new ArrayList<String>();
+
+        public CallbackQueue() {
+            super(100, 50);
+        }
+
+        @Override
+        protected Future<?> dispatch(String message) {
+            dispatched.add(message);
+            return null;
+        }
+
+        /**
+         * Completes the message currently being sent.
+         */
+        public void complete() {
+            completed(null);
+        }
+
+    }
+
+    /**
+     * Sends the given message on the given queue from a new thread,
+     * returning that thread.
+     *
+     * @param queue The queue to send the message on.
+     * @param message The message to send.
+     * @param size The size of the message.
+     * @return The started thread.
+     */
+    private static Thread sendAsync(final WebSocketSendQueue<String> queue,
+            final String message, final int size) {
+
+        Thread thread = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    queue.send(message, size);
+                }
+                catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+        };
+
+        thread.start();
+        return thread;
+
+    }
+
+    /**
+     * Verifies that messages in callback mode are dispatched one at a time,
+     * and that send() blocks from the high watermark to the low watermark.
+     *
+     * @throws Exception If the test is interrupted or a send fails.
+     */
+    @Test
+    public void testCallbackWatermarks() throws Exception {
+
+        CallbackQueue queue = new CallbackQueue();
+
+        // Below high watermark, sends return immediately
+        queue.send("a", 40);
+        queue.send("b", 40);
+        assertEquals(80, queue.getQueuedBytes());
+        assertEquals(1, queue.dispatched.size());
+
+        // Crossing the high watermark blocks
+        Thread sender = sendAsync(queue, "c", 40);
+        sender.join(100);
+        assertTrue(sender.isAlive());
+
+        // Still above low watermark after first completion
+        queue.complete();
+        sender.join(100);
+        assertTrue(sender.isAlive());
+        assertEquals(2, queue.dispatched.size());
+
+        // Resumes once at or below low watermark
+        queue.complete();
+        sender.join(1000);
+        assertFalse(sender.isAlive());
+
+        assertEquals(40, queue.getQueuedBytes());
+        assertEquals(120, queue.getMaxQueuedBytes());
+        assertEquals(1, queue.getStallCount());
+        assertTrue(queue.getStallTime() > 0);
+
+        queue.complete();
+        queue.drain();
+        assertEquals(0, queue.getQueueDepth());
+        assertEquals(3, queue.dispatched.size());
+
+    }
+
+    /**
+     * Verifies that messages in Future mode are dispatched immediately, and
+     * that their completion is observed while blocked.
+     *
+     * @throws Exception If the test is interrupted or a send fails.
+     */
+    @Test
+    public void testFutureWatermarks() throws Exception {
+
+        final List<FutureTask<Void>> sends = new ArrayList<FutureTask<Void>>();
+
+        WebSocketSendQueue<String> queue = new WebSocketSendQueue<String>(100, 50) {
+
+            @Override
+            protected Future<?> dispatch(String message) {
+                FutureTask<Void> send = new FutureTask<Void>(new Callable<Void>() {
+
+                    @Override
+                    public Void call() {
+                        return null;
+                    }
+
+                });
+                sends.add(send);
+                return send;
+            }
+
+        };
+
+        queue.send("a", 60);
+        Thread sender = sendAsync(queue, "b", 40);
+        sender.join(100);
+        assertTrue(sender.isAlive());
+        assertEquals(2, queue.getQueueDepth());
+
+        // Completing the first send drops below the low watermark
+        sends.get(0).run();
+        sender.join(1000);
+        assertFalse(sender.isAlive());
+        assertEquals(40, queue.getQueuedBytes());
+
+        sends.get(1).run();
+        queue.drain();
+        assertEquals(0, queue.getQueuedBytes());
+
+    }
+
+    /**
+     * Verifies that a failed send is reported by the next call to send().
+     *
+     * @throws Exception If the test is interrupted.
+     */
+    @Test(expected = IOException.class)
+    public void testFailure() throws Exception {
+
+        CallbackQueue queue = new CallbackQueue();
+        queue.send("a", 10);
+        queue.completed(new IOException("Test failure."));
+        queue.send("b", 10);
+
+    }
+
+    /**
+     * Verifies that closing the queue releases a send blocked at the high
+     * watermark whose pending message will never complete, and that the
+     * released send fails.
+     *
+     * @throws Exception If the test is interrupted.
+     */
+    @Test
+    public void testClose() throws Exception {
+
+        final CallbackQueue queue = new CallbackQueue();
+        final List<IOException> errors = new ArrayList<IOException>();
+
+        // Block above high watermark, with completion never signalled
+        Thread sender = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    queue.send("a", 120);
+                }
+                catch (IOException e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            }
+
+        };
+
+        sender.start();
+        sender.join(100);
+        assertTrue(sender.isAlive());
+
+        // Closing wakes and fails the blocked send
+        queue.close();
+        sender.join(1000);
+        assertFalse(sender.isAlive());
+        assertEquals(0, queue.getQueuedBytes());
+
+        synchronized (errors) {
+            assertEquals(1, errors.size());
+        }
+
+    }
+
+    /**
+     * Verifies that unsent messages and stalls are added to the default
+     * GuacamoleTunnelStatistics, and removed once sent or discarded.
+     *
+     * @throws Exception If the test fails unexpectedly.
+     */
+    @Test
+    public void testStatistics() throws Exception {
+
+        GuacamoleTunnelStatistics statistics = GuacamoleTunnelStatistics.getDefault();
+        long queuedBytes = statistics.getQueuedBytes();
+        long stallCount = statistics.getStallCount();
+
+        CallbackQueue queue = new CallbackQueue();
+
+        queue.send("a", 30);
+        queue.send("b", 40);
+        assertEquals(queuedBytes + 70, statistics.getQueuedBytes());
+
+        // Sent messages are no longer counted
+        queue.complete();
+        assertEquals(queuedBytes + 40, statistics.getQueuedBytes());
+
+        // Discarded messages are no longer counted
+        queue.close();
+        assertEquals(queuedBytes, statistics.getQueuedBytes());
+        assertEquals(stallCount, statistics.getStallCount());
+
+    }
+
+}
@@ -70,6 +70,54 @@ public interface Environment {
 
     };
 
+    /**
+     * The number of idle, already-connected sockets to guacd which should be
+     * kept ready for new connections. If zero or unset, a new socket is
+     * connected for every connection.
+     */
+    public static final IntegerGuacamoleProperty GUACD_POOL_SIZE = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-pool-size"; }
+
+    };
+
+    /**
+     * The maximum number of milliseconds that an idle socket to guacd may be
+     * kept before it is closed and replaced. This must be less than the time
+     * guacd waits for a new connection to begin its handshake.
+     */
+    public static final IntegerGuacamoleProperty GUACD_POOL_MAX_IDLE = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-pool-max-idle"; }
+
+    };
+
+    /**
+     * A comma-separated list of guacd instances among which connections
+     * should be distributed, each given as "hostname:port" or
+     * "hostname:port:weight". If unset, the single instance described by
+     * guacd-hostname and guacd-port is used.
+     */
+    public static final StringGuacamoleProperty GUACD_BACKENDS = new StringGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-backends"; }
+
+    };
+
+    /**
+     * The number of milliseconds between health checks of each guacd
+     * instance. If zero, no periodic health checks are performed.
+     */
+    public static final IntegerGuacamoleProperty GUACD_PROBE_INTERVAL = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-probe-interval"; }
+
+    };
+
     /**
      * Returns the Guacamole home directory as determined when this Environment
      * object was created. The Guacamole home directory is found by checking, in
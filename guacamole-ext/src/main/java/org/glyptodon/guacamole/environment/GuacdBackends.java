@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.environment;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.net.GuacdBackend;
+import org.glyptodon.guacamole.net.GuacdBackendRegistry;
+
+/**
+ * Provides the GuacdBackendRegistry shared by all connections, describing
+ * the guacd instances configured within guacamole.properties. If the guacd
+ * settings change while the shared environment is reloaded, a new registry
+ * is created for subsequent connections, and the idle sockets of the
+ * previous registry are closed. Connections already established are not
+ * affected, and continue to count toward the load of their guacd within the
+ * new registry if that guacd is still configured.
+ *
+ * @author Michael Jumper
+ */
+public class GuacdBackends {
+
+    /**
+     * The default maximum number of milliseconds that an idle socket may be
+     * kept, chosen to be safely below the handshake timeout of guacd.
+     */
+    public static final int DEFAULT_MAX_IDLE = 10000;
+
+    /**
+     * The default number of milliseconds between health checks.
+     */
+    public static final int DEFAULT_PROBE_INTERVAL = 10000;
+
+    /**
+     * The default hostname of guacd.
+     */
+    private static final String DEFAULT_HOSTNAME = "localhost";
+
+    /**
+     * The default port of guacd.
+     */
+    private static final int DEFAULT_PORT = 4822;
+
+    /**
+     * The shared registry, created when first requested.
+     */
+    private static GuacdBackendRegistry registry;
+
+    /**
+     * The guacd settings the shared registry was created from, as returned
+     * by getSettings().
+     */
+    private static String registrySettings;
+
+    /**
+     * This class is not intended to be instantiated.
+     */
+    private GuacdBackends() {}
+
+    /**
+     * Returns a description of all guacd settings within the given
+     * environment, which changes whenever any of those settings change.
+     *
+     * @param environment The environment describing guacd.
+     * @return A description of the guacd settings of the given environment.
+     * @throws GuacamoleException If the properties describing guacd cannot
+     *                            be read.
+     */
+    private static String getSettings(Environment environment)
+            throws GuacamoleException {
+        return environment.getProperty(Environment.GUACD_HOSTNAME) + ';'
+             + environment.getProperty(Environment.GUACD_PORT) + ';'
+             + environment.getProperty(Environment.GUACD_SSL) + ';'
+             + environment.getProperty(Environment.GUACD_POOL_SIZE) + ';'
+             + environment.getProperty(Environment.GUACD_POOL_MAX_IDLE) + ';'
+             + environment.getProperty(Environment.GUACD_BACKENDS) + ';'
+             + environment.getProperty(Environment.GUACD_PROBE_INTERVAL);
+    }
+
+    /**
+     * Returns the registry of all guacd instances described by
+     * guacamole.properties, creating that registry if necessary, or if the
+     * guacd settings have changed since the registry was created.
+     *
+     * @return The shared GuacdBackendRegistry.
+     * @throws GuacamoleException If the properties describing guacd cannot
+     *                            be read.
+     */
+    public static synchronized GuacdBackendRegistry getRegistry()
+            throws GuacamoleException {
+
+        Environment environment = SharedEnvironment.getInstance();
+        String settings = getSettings(environment);
+
+        // Replace registry if guacd settings were reloaded
+        if (registry == null || !settings.equals(registrySettings)) {
+
+            GuacdBackendRegistry previous = registry;
+            registry = createRegistry(environment);
+            registrySettings = settings;
+
+            if (previous != null) {
+                registry.shareTunnels(previous);
+                previous.close();
+            }
+
+        }
+
+        return registry;
+
+    }
+
+    /**
+     * Creates a new registry of all guacd instances described by the given
+     * environment.
+     *
+     * @param environment The environment describing guacd.
+     * @return A new GuacdBackendRegistry.
+     * @throws GuacamoleException If the properties describing guacd cannot
+     *                            be read or are invalid.
+     */
+    public static GuacdBackendRegistry createRegistry(Environment environment)
+            throws GuacamoleException {
+
+        boolean ssl = environment.getProperty(Environment.GUACD_SSL, false);
+        int poolSize = environment.getProperty(Environment.GUACD_POOL_SIZE, 0);
+        int maxIdle = environment.getProperty(Environment.GUACD_POOL_MAX_IDLE, DEFAULT_MAX_IDLE);
+        int probeInterval = environment.getProperty(Environment.GUACD_PROBE_INTERVAL, DEFAULT_PROBE_INTERVAL);
+
+        List<GuacdBackend> backends = new ArrayList<GuacdBackend>();
+
+        // Use single guacd if no list is given
+        String backendList = environment.getProperty(Environment.GUACD_BACKENDS);
+        if (backendList == null) {
+            backends.add(new GuacdBackend(
+                environment.getProperty(Environment.GUACD_HOSTNAME, DEFAULT_HOSTNAME),
+                environment.getProperty(Environment.GUACD_PORT, DEFAULT_PORT),
+                ssl, 1, poolSize, maxIdle
+            ));
+        }
+
+        // Otherwise, parse each "hostname:port[:weight]"
+        else {
+
+            for (String entry : backendList.split(",")) {
+
+                entry = entry.trim();
+                if (entry.isEmpty())
+                    continue;
+
+                String[] parts = entry.split(":");
+                if (parts.length < 2 || parts.length > 3)
+                    throw new GuacamoleServerException("Invalid guacd backend \"" + entry + "\". Expected \"hostname:port\" or \"hostname:port:weight\".");
+
+                try {
+                    backends.add(new GuacdBackend(
+                        parts[0],
+                        Integer.parseInt(parts[1]),
+                        ssl,
+                        parts.length == 3 ? Integer.parseInt(parts[2]) : 1,
+                        poolSize, maxIdle
+                    ));
+                }
+                catch (NumberFormatException e) {
+                    throw new GuacamoleServerException("Invalid port or weight in guacd backend \"" + entry + "\".", e);
+                }
+
+            }
+
+        }
+
+        return new GuacdBackendRegistry(backends, probeInterval);
+
+    }
+
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.environment;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.properties.GuacamoleProperty;
+import org.glyptodon.guacamole.protocols.ProtocolInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Environment shared by everything within the locally-running Guacamole
+ * instance, reading guacamole.properties and all protocol definitions only
+ * once rather than each time an Environment is needed. The files within
+ * GUACAMOLE_HOME are checked for changes periodically, and the environment
+ * is reloaded if they have changed. Each reload builds an entirely new
+ * LocalEnvironment which replaces the previous one atomically, such that
+ * readers always see a consistent set of properties and protocols. If a
+ * reload fails, the previous environment remains in use.
+ *
+ * @author Michael Jumper
+ */
+public class SharedEnvironment implements Environment {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(SharedEnvironment.class);
+
+    /**
+     * The default number of milliseconds between checks for changes to the
+     * files within GUACAMOLE_HOME.
+     */
+    public static final int DEFAULT_CHECK_INTERVAL = 5000;
+
+    /**
+     * The shared instance returned by getInstance(), created when first
+     * requested.
+     */
+    private static SharedEnvironment instance;
+
+    /**
+     * The environment currently in use.
+     */
+    private volatile Environment environment;
+
+    /**
+     * A description of the name, size and modification time of each file
+     * the current environment was read from. Access is guarded by the
+     * monitor of this object.
+     */
+    private String fingerprint;
+
+    /**
+     * Creates a new SharedEnvironment, reading the environment of the
+     * locally-running Guacamole instance. The files within GUACAMOLE_HOME
+     * are checked for changes only when refresh() is called.
+     *
+     * @throws GuacamoleException If an error occurs while reading the
+     *                            environment.
+     */
+    public SharedEnvironment() throws GuacamoleException {
+        environment = new LocalEnvironment();
+        fingerprint = getFingerprint(environment.getGuacamoleHome());
+    }
+
+    /**
+     * Returns the SharedEnvironment used by the locally-running Guacamole
+     * instance, creating it if necessary. The returned environment checks
+     * for changes every DEFAULT_CHECK_INTERVAL milliseconds using a single
+     * daemon thread.
+     *
+     * @return The shared SharedEnvironment.
+     * @throws GuacamoleException If an error occurs while reading the
+     *                            environment for the first time.
+     */
+    public static synchronized SharedEnvironment getInstance()
+            throws GuacamoleException {
+
+        if (instance == null) {
+
+            final SharedEnvironment environment = new SharedEnvironment();
+
+            ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "guacamole-environment-watcher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+
+            });
+
+            executor.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    environment.refresh();
+                }
+
+            }, DEFAULT_CHECK_INTERVAL, DEFAULT_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+
+            instance = environment;
+
+        }
+
+        return instance;
+
+    }
+
+    /**
+     * Returns a description of the name, size and modification time of
+     * guacamole.properties and of each protocol definition within the given
+     * GUACAMOLE_HOME, which changes whenever any of those files change.
+     *
+     * @param guacHome The GUACAMOLE_HOME directory.
+     * @return A description of the files read from GUACAMOLE_HOME.
+     */
+    private static String getFingerprint(File guacHome) {
+
+        StringBuilder fingerprint = new StringBuilder();
+        appendFingerprint(fingerprint, new File(guacHome, "guacamole.properties"));
+
+        // Include each protocol definition, in a stable order
+        File[] protocols = new File(guacHome, "protocols").listFiles(
+            new FilenameFilter() {
+
+                @Override
+                public boolean accept(File file, String string) {
+                    return string.endsWith(".xml");
+                }
+
+            }
+        );
+
+        if (protocols != null) {
+            Arrays.sort(protocols);
+            for (File protocol : protocols)
+                appendFingerprint(fingerprint, protocol);
+        }
+
+        return fingerprint.toString();
+
+    }
+
+    /**
+     * Appends the name, size and modification time of the given file to
+     * the given fingerprint.
+     *
+     * @param fingerprint The fingerprint to append to.
+     * @param file The file to describe.
+     */
+    private static void appendFingerprint(StringBuilder fingerprint, File file) {
+        fingerprint.append(file.getName()).append(':')
+                   .append(file.length()).append(':')
+                   .append(file.lastModified()).append(';');
+    }
+
+    /**
+     * Checks whether the files within GUACAMOLE_HOME have changed, reloading
+     * the environment if so. If the environment cannot be reloaded, the
+     * previous environment remains in use until the files change again.
+     *
+     * @return true if the environment was reloaded, false otherwise.
+     */
+    public synchronized boolean refresh() {
+
+        String current = getFingerprint(environment.getGuacamoleHome());
+        if (current.equals(fingerprint))
+            return false;
+
+        // Do not retry until the files change again
+        fingerprint = current;
+
+        try {
+            environment = new LocalEnvironment();
+            logger.info("Configuration within \"{}\" has changed and has been reloaded.",
+                    environment.getGuacamoleHome());
+            return true;
+        }
+        catch (GuacamoleException e) {
+            logger.warn("Configuration has changed but could not be reloaded: {}", e.getMessage());
+            logger.debug("Error reloading environment.", e);
+            return false;
+        }
+
+    }
+
+    @Override
+    public File getGuacamoleHome() {
+        return environment.getGuacamoleHome();
+    }
+
+    @Override
+    public Map<String, ProtocolInfo> getProtocols() {
+        return Collections.unmodifiableMap(environment.getProtocols());
+    }
+
+    @Override
+    public ProtocolInfo getProtocol(String name) {
+        return environment.getProtocol(name);
+    }
+
+    @Override
+    public <Type> Type getProperty(GuacamoleProperty<Type> property)
+            throws GuacamoleException {
+        return environment.getProperty(property);
+    }
+
+    @Override
+    public <Type> Type getProperty(GuacamoleProperty<Type> property,
+            Type defaultValue) throws GuacamoleException {
+        return environment.getProperty(property, defaultValue);
+    }
+
+    @Override
+    public <Type> Type getRequiredProperty(GuacamoleProperty<Type> property)
+            throws GuacamoleException {
+        return environment.getRequiredProperty(property);
+    }
+
+}
@@ -25,14 +25,10 @@ package org.glyptodon.guacamole.net.auth.simple;
 import java.util.Collections;
 import java.util.List;
 import org.glyptodon.guacamole.GuacamoleException;
-import org.glyptodon.guacamole.environment.Environment;
-import org.glyptodon.guacamole.environment.LocalEnvironment;
+import org.glyptodon.guacamole.environment.GuacdBackends;
 import org.glyptodon.guacamole.net.GuacamoleSocket;
-import org.glyptodon.guacamole.net.InetGuacamoleSocket;
-import org.glyptodon.guacamole.net.SSLGuacamoleSocket;
 import org.glyptodon.guacamole.net.auth.AbstractConnection;
 import org.glyptodon.guacamole.net.auth.ConnectionRecord;
-import org.glyptodon.guacamole.protocol.ConfiguredGuacamoleSocket;
 import org.glyptodon.guacamole.protocol.GuacamoleClientInformation;
 import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
 
@@ -82,24 +78,8 @@ public class SimpleConnection extends AbstractConnection {
     public GuacamoleSocket connect(GuacamoleClientInformation info)
             throws GuacamoleException {
 
-        Environment env = new LocalEnvironment();
-        
-        // Get guacd connection parameters
-        String hostname = env.getProperty(Environment.GUACD_HOSTNAME);
-        int port = env.getProperty(Environment.GUACD_PORT);
-
-        // If guacd requires SSL, use it
-        if (env.getProperty(Environment.GUACD_SSL, false))
-            return new ConfiguredGuacamoleSocket(
-                new SSLGuacamoleSocket(hostname, port),
-                config, info
-            );
-
-        // Return connected socket
-        return new ConfiguredGuacamoleSocket(
-            new InetGuacamoleSocket(hostname, port),
-            config, info
-        );
+        // Return socket connected to least-loaded guacd
+        return GuacdBackends.getRegistry().connect(config, info);
 
     }
 
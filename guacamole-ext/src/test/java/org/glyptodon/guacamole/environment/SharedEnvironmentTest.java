@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.environment;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Test which verifies that SharedEnvironment reads its configuration once,
+ * and reloads that configuration only when it changes.
+ *
+ * @author Michael Jumper
+ */
+public class SharedEnvironmentTest {
+
+    /**
+     * Temporary directory used as GUACAMOLE_HOME.
+     */
+    @Rule
+    public TemporaryFolder guacHome = new TemporaryFolder();
+
+    /**
+     * The value of the guacamole.home system property before the test, if
+     * any.
+     */
+    private String originalHome;
+
+    /**
+     * Points the guacamole.home system property at the temporary directory.
+     */
+    @Before
+    public void setUp() {
+        originalHome = System.getProperty("guacamole.home");
+        System.setProperty("guacamole.home", guacHome.getRoot().getAbsolutePath());
+    }
+
+    /**
+     * Restores the original value of the guacamole.home system property.
+     */
+    @After
+    public void tearDown() {
+        if (originalHome != null)
+            System.setProperty("guacamole.home", originalHome);
+        else
+            System.clearProperty("guacamole.home");
+    }
+
+    /**
+     * Writes the given contents to guacamole.properties within the
+     * temporary GUACAMOLE_HOME.
+     *
+     * @param contents The contents of guacamole.properties.
+     * @throws IOException If guacamole.properties cannot be written.
+     */
+    private void writeProperties(String contents) throws IOException {
+        FileWriter writer = new FileWriter(new File(guacHome.getRoot(), "guacamole.properties"));
+        try {
+            writer.write(contents);
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Verifies that properties are reloaded by refresh() only after
+     * guacamole.properties has changed.
+     *
+     * @throws Exception If the environment cannot be read.
+     */
+    @Test
+    public void testRefresh() throws Exception {
+
+        writeProperties("guacd-port: 1234\n");
+        SharedEnvironment environment = new SharedEnvironment();
+        assertEquals(Integer.valueOf(1234), environment.getProperty(Environment.GUACD_PORT));
+
+        // Nothing has changed
+        assertFalse(environment.refresh());
+        assertEquals(Integer.valueOf(1234), environment.getProperty(Environment.GUACD_PORT));
+
+        // The new value is visible once reloaded
+        writeProperties("guacd-port: 12345\nguacd-hostname: example\n");
+        assertTrue(environment.refresh());
+        assertEquals(Integer.valueOf(12345), environment.getProperty(Environment.GUACD_PORT));
+        assertEquals("example", environment.getProperty(Environment.GUACD_HOSTNAME));
+
+        assertFalse(environment.refresh());
+
+    }
+
+}
@@ -64,4 +64,9 @@ public class BasicGuacamoleTunnelServlet extends GuacamoleHTTPTunnelServlet {
 
     }
 
+    @Override
+    protected boolean isCompressionEnabled() {
+        return TunnelCompression.isEnabled();
+    }
+
 }
@@ -26,6 +26,7 @@ import com.google.inject.Guice;
 import com.google.inject.Injector;
 import com.google.inject.servlet.GuiceServletContextListener;
 import javax.servlet.ServletContextEvent;
+import org.glyptodon.guacamole.net.GuacamoleTunnelExecutor;
 import org.glyptodon.guacamole.net.basic.log.LogModule;
 import org.glyptodon.guacamole.net.basic.rest.RESTAuthModule;
 import org.glyptodon.guacamole.net.basic.rest.RESTModule;
@@ -63,6 +64,9 @@ public class BasicServletContextListener extends GuiceServletContextListener {
         // Shutdown TokenSessionMap
         sessionMap.shutdown();
 
+        // Stop accepting new tunnels
+        GuacamoleTunnelExecutor.getDefault().shutdown();
+
         super.contextDestroyed(servletContextEvent);
         
     }
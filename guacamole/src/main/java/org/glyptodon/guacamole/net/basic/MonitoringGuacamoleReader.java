@@ -22,19 +22,23 @@
 
 package org.glyptodon.guacamole.net.basic;
 
+import java.nio.CharBuffer;
 import java.util.List;
 import javax.xml.bind.DatatypeConverter;
 import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.io.BufferedGuacamoleReader;
 import org.glyptodon.guacamole.io.GuacamoleReader;
 import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+import org.glyptodon.guacamole.protocol.GuacamoleInstructionView;
 
 /**
  * GuacamoleReader implementation which watches for specific instructions,
- * maintaining state based on the observed instructions.
+ * maintaining state based on the observed instructions. Observed instructions
+ * are never modified, and are returned by read() in their original form.
  * 
  * @author Michael Jumper
  */
-public class MonitoringGuacamoleReader implements GuacamoleReader {
+public class MonitoringGuacamoleReader implements BufferedGuacamoleReader {
 
     /**
      * The underlying GuacamoleReader.
@@ -50,6 +54,18 @@ public class MonitoringGuacamoleReader implements GuacamoleReader {
      * The index of the clipboard stream, if any.
      */
     private String clipboard_stream_index = null;
+
+    /**
+     * Reusable view of instructions read from an underlying reader which
+     * cannot provide views itself.
+     */
+    private final GuacamoleInstructionView instructionView = new GuacamoleInstructionView();
+
+    /**
+     * Reusable CharBuffer returned by readBuffer(), recreated only when the
+     * buffer backing the returned instruction changes.
+     */
+    private CharBuffer bufferView;
     
     /**
      * Creates a new MonitoringGuacamoleReader which watches the instructions
@@ -65,33 +81,17 @@ public class MonitoringGuacamoleReader implements GuacamoleReader {
         this.reader = reader;
     }
 
-    @Override
-    public boolean available() throws GuacamoleException {
-        return reader.available();
-    }
-
-    @Override
-    public char[] read() throws GuacamoleException {
-
-        // Read single instruction, handle end-of-stream
-        GuacamoleInstruction instruction = readInstruction();
-        if (instruction == null)
-            return null;
-
-        return instruction.toString().toCharArray();
-
-    }
-
-    @Override
-    public GuacamoleInstruction readInstruction() throws GuacamoleException {
+    /**
+     * Updates the clipboard state based on the given instruction.
+     *
+     * @param instruction The instruction to observe.
+     */
+    private void observe(GuacamoleInstruction instruction) {
 
-        // Read single instruction, handle end-of-stream
-        GuacamoleInstruction instruction = reader.readInstruction();
-        if (instruction == null)
-            return null;
+        String opcode = instruction.getOpcode();
 
         // If clipboard changing, reset clipboard state
-        if (instruction.getOpcode().equals("clipboard")) {
+        if (opcode.equals("clipboard")) {
             List<String> args = instruction.getArgs();
             if (args.size() >= 2) {
                 clipboard_stream_index = args.get(0);
@@ -100,23 +100,106 @@ public class MonitoringGuacamoleReader implements GuacamoleReader {
         }
 
         // Add clipboard blobs to existing streams
-        else if (instruction.getOpcode().equals("blob")) {
+        else if (opcode.equals("blob")) {
             List<String> args = instruction.getArgs();
-            if (args.size() >= 2 && args.get(0).equals(clipboard_stream_index)) {
+            if (clipboard_stream_index != null && args.size() >= 2
+                    && args.get(0).equals(clipboard_stream_index)) {
                 String base64 = args.get(1);
                 clipboard.append(DatatypeConverter.parseBase64Binary(base64));
             }
         }
         
         // Terminate and update clipboard at end of stream
-        else if (instruction.getOpcode().equals("end")) {
+        else if (opcode.equals("end")) {
             List<String> args = instruction.getArgs();
-            if (args.size() >= 1 && args.get(0).equals(clipboard_stream_index)) {
+            if (clipboard_stream_index != null && args.size() >= 1
+                    && args.get(0).equals(clipboard_stream_index)) {
                 clipboard.commit();
                 clipboard_stream_index = null;
             }
         }
-        
+
+    }
+
+    @Override
+    public boolean available() throws GuacamoleException {
+        return reader.available();
+    }
+
+    @Override
+    public GuacamoleInstructionView readInstructionView() throws GuacamoleException {
+
+        GuacamoleInstructionView view;
+
+        // Use view directly from underlying reader, if supported
+        if (reader instanceof BufferedGuacamoleReader)
+            view = ((BufferedGuacamoleReader) reader).readInstructionView();
+
+        // Otherwise, view original form of fully-parsed instruction
+        else {
+
+            GuacamoleInstruction instruction = reader.readInstruction();
+            if (instruction == null)
+                return null;
+
+            char[] data = instruction.toString().toCharArray();
+            instructionView.reset(data, 0, data.length);
+            view = instructionView;
+
+        }
+
+        // Handle end-of-stream
+        if (view == null)
+            return null;
+
+        observe(view);
+        return view;
+
+    }
+
+    @Override
+    public CharBuffer readBuffer() throws GuacamoleException {
+
+        // Read single instruction, handle end-of-stream
+        GuacamoleInstructionView view = readInstructionView();
+        if (view == null)
+            return null;
+
+        // Wrap new buffer only if necessary
+        char[] data = view.getBuffer();
+        if (bufferView == null || bufferView.array() != data)
+            bufferView = CharBuffer.wrap(data);
+
+        bufferView.limit(view.getOffset() + view.getLength()).position(view.getOffset());
+        return bufferView;
+
+    }
+
+    @Override
+    public char[] read() throws GuacamoleException {
+
+        // Read single instruction, handle end-of-stream
+        CharBuffer instructionBuffer = readBuffer();
+        if (instructionBuffer == null)
+            return null;
+
+        // Copy original form of instruction
+        char[] instruction = new char[instructionBuffer.remaining()];
+        instructionBuffer.get(instruction);
+
+        return instruction;
+
+    }
+
+    @Override
+    public GuacamoleInstruction readInstruction() throws GuacamoleException {
+
+        // Read single instruction, handle end-of-stream
+        GuacamoleInstruction instruction = reader.readInstruction();
+        if (instruction == null)
+            return null;
+
+        observe(instruction);
         return instruction;
         
     }
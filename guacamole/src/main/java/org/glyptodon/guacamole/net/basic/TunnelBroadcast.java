@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.net.basic;
+
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.net.GuacamoleBroadcast;
+import org.glyptodon.guacamole.net.auth.UserContext;
+
+/**
+ * A tunnel whose instruction stream is being shared with viewers, along
+ * with the connection or connection group it was created for. Viewers must
+ * be authorized to use that same connection or connection group.
+ *
+ * @author Michael Jumper
+ */
+public class TunnelBroadcast {
+
+    /**
+     * The broadcast sharing the instruction stream of the tunnel.
+     */
+    private final GuacamoleBroadcast broadcast;
+
+    /**
+     * The type of the identifier the tunnel was created for.
+     */
+    private final TunnelRequest.IdentifierType type;
+
+    /**
+     * The identifier of the connection or connection group the tunnel was
+     * created for, without prefix.
+     */
+    private final String identifier;
+
+    /**
+     * Creates a new TunnelBroadcast describing a tunnel created for the
+     * given connection or connection group.
+     *
+     * @param broadcast The broadcast sharing the instruction stream of the
+     *                  tunnel.
+     * @param type The type of the identifier the tunnel was created for.
+     * @param identifier The identifier of the connection or connection group
+     *                   the tunnel was created for, without prefix.
+     */
+    public TunnelBroadcast(GuacamoleBroadcast broadcast,
+            TunnelRequest.IdentifierType type, String identifier) {
+        this.broadcast = broadcast;
+        this.type = type;
+        this.identifier = identifier;
+    }
+
+    /**
+     * Returns the broadcast sharing the instruction stream of the tunnel.
+     *
+     * @return The broadcast sharing the instruction stream of the tunnel.
+     */
+    public GuacamoleBroadcast getBroadcast() {
+        return broadcast;
+    }
+
+    /**
+     * Returns whether the user of the given context may view the tunnel,
+     * being authorized to use the connection or connection group the tunnel
+     * was created for.
+     *
+     * @param context The context of the user wishing to view the tunnel.
+     * @return true if the user may view the tunnel, false otherwise.
+     * @throws GuacamoleException If an error occurs while checking the
+     *                            permissions of the user.
+     */
+    public boolean isAuthorized(UserContext context) throws GuacamoleException {
+
+        switch (type) {
+
+            case CONNECTION:
+                return context.getRootConnectionGroup()
+                        .getConnectionDirectory().get(identifier) != null;
+
+            case CONNECTION_GROUP:
+                return context.getRootConnectionGroup()
+                        .getConnectionGroupDirectory().get(identifier) != null;
+
+            // Tunnels of viewers are never themselves shared
+            default:
+                return false;
+
+        }
+
+    }
+
+}
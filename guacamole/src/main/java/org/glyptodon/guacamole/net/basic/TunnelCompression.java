@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.net.basic;
+
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.environment.SharedEnvironment;
+import org.glyptodon.guacamole.net.basic.properties.BasicGuacamoleProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads whether tunnel traffic may be compressed from guacamole.properties.
+ * The shared environment is read directly, as some WebSocket endpoints which
+ * need this setting are created by the container rather than by injection.
+ *
+ * @author Michael Jumper
+ */
+public final class TunnelCompression {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(TunnelCompression.class);
+
+    /**
+     * This class should not be instantiated.
+     */
+    private TunnelCompression() {}
+
+    /**
+     * Returns whether tunnel traffic may be compressed, as specified by the
+     * "tunnel-compression" property. Compression is disabled if the property
+     * is not set or cannot be read.
+     *
+     * @return true if tunnel traffic may be compressed, false otherwise.
+     */
+    public static boolean isEnabled() {
+
+        try {
+            return SharedEnvironment.getInstance().getProperty(BasicGuacamoleProperties.TUNNEL_COMPRESSION, false);
+        }
+        catch (GuacamoleException e) {
+            logger.error("Unable to read guacamole.properties: {}", e.getMessage());
+            logger.debug("Error while reading \"{}\".", BasicGuacamoleProperties.TUNNEL_COMPRESSION.getName(), e);
+            return false;
+        }
+
+    }
+
+}
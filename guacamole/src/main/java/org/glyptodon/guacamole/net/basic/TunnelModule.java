@@ -25,6 +25,10 @@ package org.glyptodon.guacamole.net.basic;
 import com.google.inject.servlet.ServletModule;
 import java.lang.reflect.InvocationTargetException;
 import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.environment.Environment;
+import org.glyptodon.guacamole.environment.SharedEnvironment;
+import org.glyptodon.guacamole.net.GuacamoleTunnelExecutor;
+import org.glyptodon.guacamole.net.basic.properties.BasicGuacamoleProperties;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -97,10 +101,48 @@ public class TunnelModule extends ServletModule {
 
     }
 
+    /**
+     * Replaces the default GuacamoleTunnelExecutor with an executor
+     * configured using guacamole.properties.
+     */
+    private void configureTunnelExecutor() {
+
+        int maxTunnels;
+        boolean virtualThreads;
+
+        // Read executor configuration from the shared environment, as the
+        // injector providing that environment does not yet exist
+        try {
+            Environment environment = SharedEnvironment.getInstance();
+            maxTunnels = environment.getProperty(BasicGuacamoleProperties.MAX_TUNNELS,
+                    GuacamoleTunnelExecutor.UNLIMITED);
+            virtualThreads = environment.getProperty(BasicGuacamoleProperties.TUNNEL_VIRTUAL_THREADS,
+                    false);
+        }
+        catch (GuacamoleException e) {
+            logger.error("Unable to read guacamole.properties: {}", e.getMessage());
+            logger.debug("Error while reading tunnel executor configuration.", e);
+            maxTunnels = GuacamoleTunnelExecutor.UNLIMITED;
+            virtualThreads = false;
+        }
+
+        GuacamoleTunnelExecutor executor = new GuacamoleTunnelExecutor(maxTunnels, virtualThreads);
+        GuacamoleTunnelExecutor.setDefault(executor);
+
+        if (maxTunnels == GuacamoleTunnelExecutor.UNLIMITED)
+            logger.debug("Tunnels will run on {} threads, without limit.",
+                    executor.isVirtual() ? "virtual" : "platform");
+        else
+            logger.debug("Tunnels will run on {} threads, limited to {} tunnels.",
+                    executor.isVirtual() ? "virtual" : "platform", maxTunnels);
+
+    }
+
     @Override
     protected void configureServlets() {
 
         bind(TunnelRequestService.class);
+        configureTunnelExecutor();
 
         // Set up HTTP tunnel
         serve("/tunnel").with(BasicGuacamoleTunnelServlet.class);
@@ -45,7 +45,12 @@ public interface TunnelRequest {
         /**
          * The unique identifier of a connection group.
          */
-        CONNECTION_GROUP("g/");
+        CONNECTION_GROUP("g/"),
+
+        /**
+         * The unique identifier of a tunnel being shared with viewers.
+         */
+        TUNNEL("t/");
         
         /**
          * The prefix which precedes an identifier of this type.
@@ -81,6 +86,10 @@ public interface TunnelRequest {
             // Connection group identifiers
             if (identifier.startsWith(CONNECTION_GROUP.PREFIX))
                 return CONNECTION_GROUP;
+
+            // Tunnel identifiers
+            if (identifier.startsWith(TUNNEL.PREFIX))
+                return TUNNEL;
             
             // Otherwise, unknown
             return null;
@@ -25,25 +25,44 @@ package org.glyptodon.guacamole.net.basic;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import org.glyptodon.guacamole.net.basic.rest.clipboard.ClipboardRESTService;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import org.glyptodon.guacamole.GuacamoleClientException;
 import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleResourceNotFoundException;
 import org.glyptodon.guacamole.GuacamoleSecurityException;
 import org.glyptodon.guacamole.GuacamoleUnauthorizedException;
+import org.glyptodon.guacamole.display.AsyncDisplayState;
+import org.glyptodon.guacamole.environment.Environment;
+import org.glyptodon.guacamole.io.CompressionMonitor;
 import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.net.GuacamoleBroadcast;
+import org.glyptodon.guacamole.net.GuacamoleStreamTap;
 import org.glyptodon.guacamole.net.GuacamoleSocket;
 import org.glyptodon.guacamole.net.GuacamoleTunnel;
 import org.glyptodon.guacamole.net.auth.Connection;
 import org.glyptodon.guacamole.net.auth.ConnectionGroup;
 import org.glyptodon.guacamole.net.auth.Directory;
 import org.glyptodon.guacamole.net.auth.UserContext;
+import org.glyptodon.guacamole.net.basic.properties.BasicGuacamoleProperties;
 import org.glyptodon.guacamole.net.basic.rest.auth.AuthenticationService;
 import org.glyptodon.guacamole.net.event.TunnelCloseEvent;
 import org.glyptodon.guacamole.net.event.TunnelConnectEvent;
 import org.glyptodon.guacamole.net.event.listener.TunnelCloseListener;
 import org.glyptodon.guacamole.net.event.listener.TunnelConnectListener;
-import org.glyptodon.guacamole.properties.GuacamoleProperties;
+import org.glyptodon.guacamole.protocol.CoalescingGuacamoleReader;
 import org.glyptodon.guacamole.protocol.GuacamoleClientInformation;
+import org.glyptodon.guacamole.protocol.RecordingGuacamoleReader;
+import org.glyptodon.guacamole.protocol.ReplayBuffer;
+import org.glyptodon.guacamole.protocol.ReplayGuacamoleReader;
+import org.glyptodon.guacamole.recording.RecordingIndexer;
+import org.glyptodon.guacamole.recording.RecordingSegmentWriter;
+import org.glyptodon.guacamole.recording.SessionRecorder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -70,6 +89,26 @@ public class TunnelRequestService {
     @Inject
     private AuthenticationService authenticationService;
 
+    /**
+     * Service which keeps tunnels open for clients which lost their
+     * connection, allowing those tunnels to be resumed.
+     */
+    @Inject
+    private TunnelResumeService resumeService;
+
+    /**
+     * The environment of the Guacamole server, reloaded automatically as its
+     * configuration changes.
+     */
+    @Inject
+    private Environment environment;
+
+    /**
+     * All tunnels currently being shared with viewers, by tunnel UUID.
+     */
+    private final ConcurrentMap<String, TunnelBroadcast> broadcasts =
+            new ConcurrentHashMap<String, TunnelBroadcast>();
+
     /**
      * Notifies all listeners in the given session that a tunnel has been
      * connected.
@@ -148,7 +187,171 @@ public class TunnelRequestService {
 
     }
 
-    
+    /**
+     * Creates a SessionRecorder which records and indexes the instruction
+     * stream of the given tunnel within the directory given by the
+     * "recording-path" property, if that property is set.
+     *
+     * @param tunnel The tunnel to be recorded.
+     * @return A new SessionRecorder, or null if tunnels are not being
+     *         recorded or the recorder could not be created.
+     */
+    private SessionRecorder createRecorder(GuacamoleTunnel tunnel) {
+
+        try {
+
+            // Do not record if no recording path is set
+            File path = environment.getProperty(BasicGuacamoleProperties.RECORDING_PATH);
+            if (path == null)
+                return null;
+
+            int segmentSize = environment.getProperty(
+                    BasicGuacamoleProperties.RECORDING_SEGMENT_SIZE,
+                    RecordingSegmentWriter.DEFAULT_SEGMENT_SIZE);
+
+            String name = tunnel.getUUID().toString();
+            RecordingSegmentWriter storage = new RecordingSegmentWriter(path,
+                    name, segmentSize);
+
+            // Index recording alongside its segments
+            RecordingIndexer indexer;
+            try {
+                indexer = new RecordingIndexer(new FileOutputStream(
+                        new File(path, name + ".index")),
+                        RecordingIndexer.DEFAULT_CHECKPOINT_INTERVAL);
+            }
+            catch (IOException e) {
+                logger.warn("Session recording will not be indexed: {}", e.getMessage());
+                logger.debug("Unable to create recording index.", e);
+                indexer = null;
+            }
+
+            logger.debug("Recording tunnel \"{}\" to \"{}\".", name, path);
+            return new SessionRecorder(storage, indexer);
+
+        }
+        catch (GuacamoleException e) {
+            logger.warn("Session recording failed to initialize: {}", e.getMessage());
+            logger.debug("Error setting up session recording.", e);
+            return null;
+        }
+
+    }
+
+    /**
+     * Creates the taps to be bound to the instruction stream of a new
+     * tunnel, in order, according to guacamole.properties. The stream is
+     * recorded as received from guacd, updates a lagging client would not
+     * see are then dropped, clipboard events are then observed, and
+     * everything actually sent is finally kept for replay.
+     *
+     * @param session The session which will own the tunnel.
+     * @param viewing Whether the tunnel is viewing a shared tunnel, whose
+     *                stream is already recorded.
+     * @param replay The buffer which should receive every instruction sent
+     *               to the client, or null if the tunnel cannot be resumed.
+     * @return The taps to bind to the instruction stream of the tunnel.
+     * @throws GuacamoleException If guacamole.properties cannot be read.
+     */
+    private List<GuacamoleStreamTap> createTaps(GuacamoleSession session,
+            boolean viewing, final ReplayBuffer replay)
+            throws GuacamoleException {
+
+        List<GuacamoleStreamTap> taps = new ArrayList<GuacamoleStreamTap>();
+
+        // Record instruction stream, if enabled
+        if (!viewing) {
+            taps.add(new GuacamoleStreamTap() {
+
+                /**
+                 * The recorder receiving the instruction stream, or null if
+                 * the stream is not being recorded.
+                 */
+                private SessionRecorder recorder;
+
+                @Override
+                public GuacamoleReader tap(GuacamoleTunnel tunnel,
+                        GuacamoleReader reader) {
+
+                    recorder = createRecorder(tunnel);
+                    if (recorder == null)
+                        return reader;
+
+                    return new RecordingGuacamoleReader(reader, recorder);
+
+                }
+
+                @Override
+                public void close() {
+                    if (recorder != null)
+                        recorder.close();
+                }
+
+            });
+        }
+
+        // Drop updates a lagging client would not see, if enabled
+        final Integer maxFramesBehind = environment.getProperty(
+                BasicGuacamoleProperties.COALESCE_FRAMES_BEHIND);
+        if (maxFramesBehind != null) {
+            taps.add(new GuacamoleStreamTap() {
+
+                @Override
+                public GuacamoleReader tap(GuacamoleTunnel tunnel,
+                        GuacamoleReader reader) {
+                    return new CoalescingGuacamoleReader(reader,
+                            tunnel.getSyncTracker(), maxFramesBehind);
+                }
+
+                @Override
+                public void close() {
+                }
+
+            });
+        }
+
+        // Monitor instructions which pertain to server-side events, if enabled
+        if (environment.getProperty(ClipboardRESTService.INTEGRATION_ENABLED, false)) {
+
+            final ClipboardState clipboard = session.getClipboardState();
+            taps.add(new GuacamoleStreamTap() {
+
+                @Override
+                public GuacamoleReader tap(GuacamoleTunnel tunnel,
+                        GuacamoleReader reader) {
+                    return new MonitoringGuacamoleReader(clipboard, reader);
+                }
+
+                @Override
+                public void close() {
+                }
+
+            });
+
+        }
+
+        // Keep everything sent for replay, if resumable
+        if (replay != null) {
+            taps.add(new GuacamoleStreamTap() {
+
+                @Override
+                public GuacamoleReader tap(GuacamoleTunnel tunnel,
+                        GuacamoleReader reader) {
+                    return new ReplayGuacamoleReader(reader, replay,
+                            tunnel.getSyncTracker());
+                }
+
+                @Override
+                public void close() {
+                }
+
+            });
+        }
+
+        return taps;
+
+    }
+
     /**
      * Creates a new tunnel using the parameters and credentials present in
      * the given request.
@@ -164,6 +367,21 @@ public class TunnelRequestService {
         final String authToken = request.getParameter("authToken");
         GuacamoleSession session = authenticationService.getGuacamoleSession(authToken);
 
+        // Resume a detached tunnel of the same session, if requested
+        String resume = request.getParameter("resume");
+        if (resume != null) {
+
+            if (!session.getTunnels().containsKey(resume))
+                throw new GuacamoleSecurityException("Requested tunnel is not authorized.");
+
+            GuacamoleTunnel tunnel = resumeService.resume(resume);
+            if (tunnel == null)
+                throw new GuacamoleResourceNotFoundException("Tunnel can no longer be resumed.");
+
+            return tunnel;
+
+        }
+
         // Get ID of connection
         String id = request.getParameter("id");
         TunnelRequest.IdentifierType id_type = TunnelRequest.IdentifierType.getType(id);
@@ -251,42 +469,111 @@ public class TunnelRequestService {
                 break;
             }
 
+            // Tunnel identifiers, for viewing a shared tunnel
+            case TUNNEL: {
+
+                UserContext context = session.getUserContext();
+
+                // Get shared tunnel, requiring access to its connection
+                TunnelBroadcast shared = broadcasts.get(id);
+                if (shared == null || !shared.isAuthorized(context)) {
+                    logger.info("Tunnel \"{}\" is not shared with user \"{}\".", id, context.self().getUsername());
+                    throw new GuacamoleSecurityException("Requested tunnel is not authorized.");
+                }
+
+                // Subscribe to shared tunnel
+                socket = shared.getBroadcast().subscribe(environment.getProperty(
+                        BasicGuacamoleProperties.TUNNEL_BROADCAST_VIEWER_INPUT, false));
+                logger.info("User \"{}\" is viewing tunnel \"{}\".", context.self().getUsername(), id);
+                break;
+            }
+
             // Fail if unsupported type
             default:
                 throw new GuacamoleClientException("Connection not supported for provided identifier type.");
 
         }
 
-        // Associate socket with tunnel
-        GuacamoleTunnel tunnel = new GuacamoleTunnel(socket) {
-
-            @Override
-            public GuacamoleReader acquireReader() {
+        // Share tunnel with viewers, if enabled
+        final boolean viewing = id_type == TunnelRequest.IdentifierType.TUNNEL;
+        GuacamoleBroadcast broadcast = null;
+        if (!viewing && environment.getProperty(BasicGuacamoleProperties.TUNNEL_BROADCAST, false)) {
+
+            // Model the display for late viewers only if enabled
+            Integer snapshotPixels = environment.getProperty(
+                    BasicGuacamoleProperties.TUNNEL_BROADCAST_SNAPSHOT_PIXELS);
+            AsyncDisplayState display = null;
+            if (snapshotPixels != null)
+                display = new AsyncDisplayState(snapshotPixels);
+
+            broadcast = new GuacamoleBroadcast(socket, environment.getProperty(
+                    BasicGuacamoleProperties.TUNNEL_BROADCAST_BUFFER_SIZE,
+                    GuacamoleBroadcast.DEFAULT_CAPACITY), display);
+            socket = broadcast.getOwnerSocket();
+        }
 
-                // Monitor instructions which pertain to server-side events, if necessary
-                try {
-                    if (GuacamoleProperties.getProperty(ClipboardRESTService.INTEGRATION_ENABLED, false)) {
+        // Keep unacknowledged data for returning clients only if enabled
+        final ReplayBuffer replay;
+        if (!viewing && resumeService.isEnabled())
+            replay = new ReplayBuffer(environment.getProperty(
+                    BasicGuacamoleProperties.TUNNEL_RESUME_BUFFER_SIZE,
+                    ReplayBuffer.DEFAULT_MAX_LENGTH));
+        else
+            replay = null;
 
-                        GuacamoleSession session = authenticationService.getGuacamoleSession(authToken);
-                        ClipboardState clipboard = session.getClipboardState();
+        // Associate socket with tunnel
+        GuacamoleTunnel tunnel = new GuacamoleTunnel(socket,
+                createTaps(session, viewing, replay)) {
 
-                        return new MonitoringGuacamoleReader(clipboard, super.acquireReader());
+            @Override
+            public void detach() throws GuacamoleException {
 
-                    }
-                }
-                catch (GuacamoleException e) {
-                    logger.warn("Clipboard integration failed to initialize: {}", e.getMessage());
-                    logger.debug("Error setting up clipboard integration.", e);
-                }
+                // Await return of client, if resumable
+                if (replay != null)
+                    resumeService.detach(this, replay);
+                else
+                    close();
 
-                // Pass through by default.
-                return super.acquireReader();
-                
             }
 
             @Override
             public void close() throws GuacamoleException {
 
+                // No longer await return of client
+                resumeService.remove(getUUID().toString());
+
+                // Report effectiveness of compression, if attempted. The
+                // monitor is only created on request, thus is not requested
+                // unless it will be reported.
+                if (logger.isDebugEnabled()) {
+                    CompressionMonitor monitor = getCompressionMonitor();
+                    if (monitor.getUncompressedBytes() > 0 || monitor.getSampleCount() > 0)
+                        logger.debug("Tunnel \"{}\" compressed {} bytes to {} bytes "
+                                + "in {} ms (current ratio {}%, {} trial compressions).",
+                                getUUID(), monitor.getUncompressedBytes(),
+                                monitor.getCompressedBytes(),
+                                monitor.getCompressionTime() / 1000000,
+                                Math.round(monitor.getRatio() * 100),
+                                monitor.getSampleCount());
+                }
+
+                // Stop sharing with viewers, if shared
+                TunnelBroadcast shared = broadcasts.remove(getUUID().toString());
+                if (shared != null && shared.getBroadcast().getDroppedCount() > 0)
+                    logger.debug("Tunnel \"{}\" dropped {} viewers which fell "
+                            + "too far behind.", getUUID(),
+                            shared.getBroadcast().getDroppedCount());
+
+                // Report round-trip time and batching chosen for client
+                if (logger.isDebugEnabled()) {
+                    long rtt = getSyncTracker().getRoundTripTime();
+                    if (rtt >= 0)
+                        logger.debug("Tunnel \"{}\" measured a round-trip time "
+                                + "of {} ms, sending batches of up to {} bytes.",
+                                getUUID(), rtt / 1000000,
+                                getFrameBatcher().getBatchSize());
+                }
+
                 // Get session - just close if session does not exist
                 GuacamoleSession session;
                 try {
@@ -318,6 +605,30 @@ public class TunnelRequestService {
         }
 
         session.addTunnel(tunnel);
+
+        // Begin sharing with viewers only once connected
+        if (broadcast != null) {
+            broadcasts.put(tunnel.getUUID().toString(),
+                    new TunnelBroadcast(broadcast, id_type, id));
+
+            // The shared stream cannot be read without its pump
+            try {
+                broadcast.start(tunnel);
+            }
+            catch (GuacamoleException e) {
+                logger.warn("Unable to share tunnel \"{}\": {}",
+                        tunnel.getUUID(), e.getMessage());
+                logger.debug("Error starting broadcast of tunnel.", e);
+                tunnel.close();
+                throw e;
+            }
+
+            logger.debug("Tunnel \"{}\" may be viewed by other users of the same connection.",
+                    tunnel.getUUID());
+        }
+
+        logger.debug("Tunnel \"{}\" belongs to user \"{}\".", tunnel.getUUID(),
+                session.getUserContext().self().getUsername());
         return tunnel;
 
     }
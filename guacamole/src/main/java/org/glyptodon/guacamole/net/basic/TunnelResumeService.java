@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.net.basic;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.environment.Environment;
+import org.glyptodon.guacamole.io.GuacamoleWriter;
+import org.glyptodon.guacamole.net.GuacamoleTunnel;
+import org.glyptodon.guacamole.net.basic.properties.BasicGuacamoleProperties;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+import org.glyptodon.guacamole.protocol.ReplayBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Service which keeps tunnels whose clients lost their connection open for
+ * a grace period, such that a returning client can resume the tunnel
+ * without a new connection to guacd. While detached, each tunnel keeps its
+ * connection to guacd alive, and the memory used by the replay buffers of
+ * all detached tunnels is limited, closing tunnels according to the
+ * configured ResumeEvictionPolicy.
+ *
+ * @author Michael Jumper
+ */
+@Singleton
+public class TunnelResumeService {
+
+    /**
+     * Logger for this class.
+     */
+    private final Logger logger = LoggerFactory.getLogger(TunnelResumeService.class);
+
+    /**
+     * The environment of the Guacamole server, reloaded automatically as its
+     * configuration changes.
+     */
+    @Inject
+    private Environment environment;
+
+    /**
+     * The default maximum total length of the replay buffers of all
+     * detached tunnels, in characters.
+     */
+    private static final int DEFAULT_MAX_MEMORY = 16777216;
+
+    /**
+     * The interval between "nop" instructions sent to guacd on behalf of
+     * each detached tunnel, in milliseconds, such that guacd does not
+     * consider the client unresponsive.
+     */
+    private static final long KEEP_ALIVE_INTERVAL = 5000;
+
+    /**
+     * A tunnel awaiting the return of its client.
+     */
+    private static class DetachedTunnel {
+
+        /**
+         * The detached tunnel.
+         */
+        private final GuacamoleTunnel tunnel;
+
+        /**
+         * The instructions to replay when the tunnel is resumed.
+         */
+        private final ReplayBuffer buffer;
+
+        /**
+         * The time the tunnel was detached, in milliseconds since the
+         * epoch.
+         */
+        private final long detachedAt = System.currentTimeMillis();
+
+        /**
+         * The task which closes the tunnel once the grace period elapses.
+         */
+        private ScheduledFuture<?> expiry;
+
+        /**
+         * Creates a new DetachedTunnel describing the given tunnel.
+         *
+         * @param tunnel The detached tunnel.
+         * @param buffer The instructions to replay when the tunnel is
+         *               resumed.
+         */
+        public DetachedTunnel(GuacamoleTunnel tunnel, ReplayBuffer buffer) {
+            this.tunnel = tunnel;
+            this.buffer = buffer;
+        }
+
+    }
+
+    /**
+     * All detached tunnels, by tunnel UUID.
+     */
+    private final ConcurrentMap<String, DetachedTunnel> detached =
+            new ConcurrentHashMap<String, DetachedTunnel>();
+
+    /**
+     * Executor which closes expired tunnels and keeps detached tunnels
+     * alive.
+     */
+    private final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "guacamole-tunnel-resume");
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    });
+
+    /**
+     * Creates a new TunnelResumeService, starting the task which keeps
+     * detached tunnels alive.
+     */
+    public TunnelResumeService() {
+        timer.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                keepAlive();
+            }
+
+        }, KEEP_ALIVE_INTERVAL, KEEP_ALIVE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the configured grace period.
+     *
+     * @return The number of milliseconds a detached tunnel may wait for its
+     *         client, or 0 if tunnels cannot be resumed.
+     * @throws GuacamoleException If guacamole.properties cannot be parsed.
+     */
+    private int getGracePeriod() throws GuacamoleException {
+        return environment.getProperty(
+                BasicGuacamoleProperties.TUNNEL_RESUME_GRACE_PERIOD, 0);
+    }
+
+    /**
+     * Returns whether tunnels may be resumed after their clients lose their
+     * connection.
+     *
+     * @return true if tunnels may be resumed, false otherwise.
+     * @throws GuacamoleException If guacamole.properties cannot be parsed.
+     */
+    public boolean isEnabled() throws GuacamoleException {
+        return getGracePeriod() > 0;
+    }
+
+    /**
+     * Closes the given tunnel, logging any error.
+     *
+     * @param tunnel The tunnel to close.
+     */
+    private void close(GuacamoleTunnel tunnel) {
+        try {
+            tunnel.close();
+        }
+        catch (GuacamoleException e) {
+            logger.debug("Unable to close detached tunnel.", e);
+        }
+    }
+
+    /**
+     * Detaches the given tunnel from its lost client, keeping it open for
+     * the configured grace period. If the tunnel cannot be resumed, it is
+     * closed immediately.
+     *
+     * @param tunnel The tunnel whose client lost its connection.
+     * @param buffer The instructions to replay when the tunnel is resumed.
+     * @throws GuacamoleException If an error occurs while closing the
+     *                            tunnel.
+     */
+    public void detach(final GuacamoleTunnel tunnel, ReplayBuffer buffer)
+            throws GuacamoleException {
+
+        final String uuid = tunnel.getUUID().toString();
+
+        // Close if replay would be incomplete
+        int gracePeriod = getGracePeriod();
+        if (gracePeriod <= 0 || !buffer.isComplete() || !tunnel.isOpen()) {
+            logger.debug("Tunnel \"{}\" cannot be resumed.", uuid);
+            tunnel.close();
+            return;
+        }
+
+        // Close automatically once grace period elapses
+        DetachedTunnel entry = new DetachedTunnel(tunnel, buffer);
+        entry.expiry = timer.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                if (detached.remove(uuid) != null) {
+                    logger.info("Tunnel \"{}\" was not resumed in time.", uuid);
+                    close(tunnel);
+                }
+            }
+
+        }, gracePeriod, TimeUnit.MILLISECONDS);
+
+        detached.put(uuid, entry);
+        logger.info("Tunnel \"{}\" detached, awaiting client for up to {} ms.",
+                uuid, gracePeriod);
+
+        evict();
+
+    }
+
+    /**
+     * Closes detached tunnels according to the configured
+     * ResumeEvictionPolicy until the replay buffers of the remaining
+     * detached tunnels fit within the configured limit.
+     *
+     * @throws GuacamoleException If guacamole.properties cannot be parsed.
+     */
+    private void evict() throws GuacamoleException {
+
+        long maxMemory = environment.getProperty(
+                BasicGuacamoleProperties.TUNNEL_RESUME_MAX_MEMORY, DEFAULT_MAX_MEMORY);
+        ResumeEvictionPolicy policy = environment.getProperty(
+                BasicGuacamoleProperties.TUNNEL_RESUME_EVICTION, ResumeEvictionPolicy.OLDEST);
+
+        for (;;) {
+
+            // Total memory and choose victim in one pass
+            long total = 0;
+            DetachedTunnel victim = null;
+            for (DetachedTunnel entry : detached.values()) {
+
+                long length = entry.buffer.getLength();
+                total += length;
+
+                if (victim == null
+                        || (policy == ResumeEvictionPolicy.OLDEST && entry.detachedAt < victim.detachedAt)
+                        || (policy == ResumeEvictionPolicy.LARGEST && length > victim.buffer.getLength()))
+                    victim = entry;
+
+            }
+
+            if (total <= maxMemory || victim == null)
+                return;
+
+            String uuid = victim.tunnel.getUUID().toString();
+            if (detached.remove(uuid, victim)) {
+                victim.expiry.cancel(false);
+                logger.info("Tunnel \"{}\" closed to free memory for other detached tunnels.", uuid);
+                close(victim.tunnel);
+            }
+
+        }
+
+    }
+
+    /**
+     * Sends a "nop" instruction to guacd on behalf of each detached tunnel.
+     * Tunnels which can no longer be written to are closed.
+     */
+    private void keepAlive() {
+
+        for (DetachedTunnel entry : detached.values()) {
+
+            GuacamoleTunnel tunnel = entry.tunnel;
+            GuacamoleWriter writer = tunnel.acquireWriter();
+
+            try {
+                writer.writeInstruction(new GuacamoleInstruction("nop"));
+            }
+            catch (GuacamoleException e) {
+                logger.debug("Unable to keep detached tunnel alive.", e);
+                if (detached.remove(tunnel.getUUID().toString(), entry)) {
+                    entry.expiry.cancel(false);
+                    close(tunnel);
+                }
+            }
+            finally {
+                tunnel.releaseWriter();
+            }
+
+        }
+
+    }
+
+    /**
+     * Resumes the detached tunnel having the given UUID, such that the next
+     * instructions read from the tunnel are those the client may have
+     * missed.
+     *
+     * @param uuid The UUID of the tunnel to resume.
+     * @return The resumed tunnel, or null if no such tunnel is detached.
+     */
+    public GuacamoleTunnel resume(String uuid) {
+
+        DetachedTunnel entry = detached.remove(uuid);
+        if (entry == null)
+            return null;
+
+        entry.expiry.cancel(false);
+
+        GuacamoleTunnel tunnel = entry.tunnel;
+        // Begin replay only once the returning client reads, as the reader
+        // of the lost client may still be finishing its last read
+        entry.buffer.requestReplay();
+        logger.info("Tunnel \"{}\" resumed, replaying {} characters.",
+                uuid, entry.buffer.getLength());
+
+        return tunnel;
+
+    }
+
+    /**
+     * Stops tracking the tunnel having the given UUID, if detached, as that
+     * tunnel is being closed.
+     *
+     * @param uuid The UUID of the tunnel being closed.
+     */
+    public void remove(String uuid) {
+
+        DetachedTunnel entry = detached.remove(uuid);
+        if (entry != null)
+            entry.expiry.cancel(false);
+
+    }
+
+}
@@ -79,4 +79,185 @@ public class BasicGuacamoleProperties {
 
     };
 
+    /**
+     * The number of bytes which may be queued for sending to a WebSocket
+     * client before reads from guacd stop.
+     */
+    public static final IntegerGuacamoleProperty WEBSOCKET_SEND_HIGH_WATERMARK = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "websocket-send-high-watermark"; }
+
+    };
+
+    /**
+     * The number of bytes queued for sending to a WebSocket client at which
+     * stopped reads from guacd resume.
+     */
+    public static final IntegerGuacamoleProperty WEBSOCKET_SEND_LOW_WATERMARK = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "websocket-send-low-watermark"; }
+
+    };
+
+    /**
+     * The maximum number of WebSocket tunnels which may be active at any one
+     * time. Further tunnels are rejected as the server is busy.
+     */
+    public static final IntegerGuacamoleProperty MAX_TUNNELS = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "max-tunnels"; }
+
+    };
+
+    /**
+     * Whether WebSocket tunnels should relay data using virtual threads,
+     * if supported by the JVM.
+     */
+    public static final BooleanGuacamoleProperty TUNNEL_VIRTUAL_THREADS = new BooleanGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-virtual-threads"; }
+
+    };
+
+    /**
+     * Whether tunnel traffic may be compressed. HTTP tunnels compress with
+     * gzip only while the data of each tunnel compresses well, and WebSocket
+     * tunnels accept the "permessage-deflate" extension.
+     */
+    public static final BooleanGuacamoleProperty TUNNEL_COMPRESSION = new BooleanGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-compression"; }
+
+    };
+
+    /**
+     * The number of frames a client may fall behind before updates it would
+     * never see are dropped. If omitted, updates are never dropped.
+     */
+    public static final IntegerGuacamoleProperty COALESCE_FRAMES_BEHIND = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "coalesce-frames-behind"; }
+
+    };
+
+    /**
+     * Whether the instruction stream of each tunnel may be shared with
+     * viewers who are authorized to use the same connection. By default,
+     * tunnels are not shared.
+     */
+    public static final BooleanGuacamoleProperty TUNNEL_BROADCAST = new BooleanGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-broadcast"; }
+
+    };
+
+    /**
+     * The number of instructions buffered for viewers of a shared tunnel.
+     * Viewers falling further behind than this are disconnected.
+     */
+    public static final IntegerGuacamoleProperty TUNNEL_BROADCAST_BUFFER_SIZE = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-broadcast-buffer-size"; }
+
+    };
+
+    /**
+     * Whether viewers of a shared tunnel may send keyboard and mouse input.
+     * By default, viewers may only watch.
+     */
+    public static final BooleanGuacamoleProperty TUNNEL_BROADCAST_VIEWER_INPUT = new BooleanGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-broadcast-viewer-input"; }
+
+    };
+
+    /**
+     * The maximum total number of pixels of the display model kept for each
+     * shared tunnel, such that viewers joining late or falling behind
+     * receive a snapshot of the current display. If omitted, no model is
+     * kept, and viewers receive only the stream from the point they join.
+     */
+    public static final IntegerGuacamoleProperty TUNNEL_BROADCAST_SNAPSHOT_PIXELS = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-broadcast-snapshot-pixels"; }
+
+    };
+
+    /**
+     * The number of milliseconds a WebSocket tunnel whose client connection
+     * was lost remains open, awaiting the client's return. If omitted,
+     * tunnels are closed immediately.
+     */
+    public static final IntegerGuacamoleProperty TUNNEL_RESUME_GRACE_PERIOD = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-resume-grace-period"; }
+
+    };
+
+    /**
+     * The maximum number of characters of unacknowledged instructions kept
+     * for each tunnel to replay to a returning client. Tunnels exceeding
+     * this cannot be resumed until the client acknowledges more data.
+     */
+    public static final IntegerGuacamoleProperty TUNNEL_RESUME_BUFFER_SIZE = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-resume-buffer-size"; }
+
+    };
+
+    /**
+     * The maximum total number of characters kept for all tunnels awaiting
+     * the return of their clients, beyond which tunnels are closed.
+     */
+    public static final IntegerGuacamoleProperty TUNNEL_RESUME_MAX_MEMORY = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-resume-max-memory"; }
+
+    };
+
+    /**
+     * Which tunnels awaiting the return of their clients are closed first
+     * when the limit on their total memory is exceeded.
+     */
+    public static final ResumeEvictionPolicyProperty TUNNEL_RESUME_EVICTION = new ResumeEvictionPolicyProperty() {
+
+        @Override
+        public String getName() { return "tunnel-resume-eviction"; }
+
+    };
+
+    /**
+     * The directory in which the instruction stream of each tunnel should be
+     * recorded. If omitted, tunnels are not recorded.
+     */
+    public static final FileGuacamoleProperty RECORDING_PATH = new FileGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "recording-path"; }
+
+    };
+
+    /**
+     * The size of each segment file of a recording, in bytes.
+     */
+    public static final IntegerGuacamoleProperty RECORDING_SEGMENT_SIZE = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "recording-segment-size"; }
+
+    };
+
 }
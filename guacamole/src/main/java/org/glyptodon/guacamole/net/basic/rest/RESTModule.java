@@ -23,6 +23,11 @@
 package org.glyptodon.guacamole.net.basic.rest;
 
 import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
+import com.google.inject.Singleton;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.environment.Environment;
+import org.glyptodon.guacamole.environment.SharedEnvironment;
 
 /**
  * A Guice Module for setting up dependency injection for the 
@@ -39,5 +44,18 @@ public class RESTModule extends AbstractModule {
         bind(ObjectRetrievalService.class);
         
     }
+
+    /**
+     * Provides the environment shared by the entire Guacamole instance,
+     * which is reloaded automatically as its configuration changes.
+     *
+     * @return The shared Environment.
+     * @throws GuacamoleException If the environment cannot be read.
+     */
+    @Provides
+    @Singleton
+    public Environment provideEnvironment() throws GuacamoleException {
+        return SharedEnvironment.getInstance();
+    }
     
 }
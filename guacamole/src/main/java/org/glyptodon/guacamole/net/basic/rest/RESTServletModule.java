@@ -31,6 +31,7 @@ import org.glyptodon.guacamole.net.basic.rest.clipboard.ClipboardRESTService;
 import org.glyptodon.guacamole.net.basic.rest.connection.ConnectionRESTService;
 import org.glyptodon.guacamole.net.basic.rest.connectiongroup.ConnectionGroupRESTService;
 import org.glyptodon.guacamole.net.basic.rest.protocol.ProtocolRESTService;
+import org.glyptodon.guacamole.net.basic.rest.statistics.StatisticsRESTService;
 import org.glyptodon.guacamole.net.basic.rest.user.UserRESTService;
 
 /**
@@ -48,6 +49,7 @@ public class RESTServletModule extends ServletModule {
         bind(ConnectionRESTService.class);
         bind(ConnectionGroupRESTService.class);
         bind(ProtocolRESTService.class);
+        bind(StatisticsRESTService.class);
         bind(UserRESTService.class);
         bind(TokenRESTService.class);
         
@@ -31,7 +31,6 @@ import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import org.glyptodon.guacamole.GuacamoleException;
 import org.glyptodon.guacamole.environment.Environment;
-import org.glyptodon.guacamole.environment.LocalEnvironment;
 import org.glyptodon.guacamole.net.basic.rest.AuthProviderRESTExposure;
 import org.glyptodon.guacamole.net.basic.rest.auth.AuthenticationService;
 import org.glyptodon.guacamole.protocols.ProtocolInfo;
@@ -57,6 +56,13 @@ public class ProtocolRESTService {
      */
     @Inject
     private AuthenticationService authenticationService;
+
+    /**
+     * The environment of this Guacamole instance, describing all available
+     * protocols.
+     */
+    @Inject
+    private Environment environment;
     
     /**
      * Gets a map of protocols defined in the system - protocol name to protocol.
@@ -80,8 +86,7 @@ public class ProtocolRESTService {
         authenticationService.getUserContext(authToken);
 
         // Get and return a map of all protocols.
-        Environment env = new LocalEnvironment();
-        return env.getProtocols();
+        return environment.getProtocols();
 
     }
 
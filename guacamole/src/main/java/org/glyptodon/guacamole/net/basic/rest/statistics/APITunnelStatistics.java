@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.net.basic.rest.statistics;
+
+import java.util.concurrent.TimeUnit;
+import org.glyptodon.guacamole.net.GuacamoleTunnelExecutor;
+import org.glyptodon.guacamole.net.GuacamoleTunnelStatistics;
+
+/**
+ * A snapshot of the statistics describing all tunnels of this Guacamole
+ * instance, to expose through the REST endpoints.
+ *
+ * @author Michael Jumper
+ */
+public class APITunnelStatistics {
+
+    /**
+     * The maximum number of tunnels which may run at any one time, or zero
+     * if unlimited.
+     */
+    private final int maxTunnels;
+
+    /**
+     * The number of tunnels currently running.
+     */
+    private final int activeTunnels;
+
+    /**
+     * The number of tunnels accepted but not yet running.
+     */
+    private final int queuedTunnels;
+
+    /**
+     * The number of tunnels rejected due to the maximum number of tunnels.
+     */
+    private final long rejectedTunnels;
+
+    /**
+     * The number of tunnels which have finished.
+     */
+    private final long completedTunnels;
+
+    /**
+     * The total size of all WebSocket messages queued but not yet sent, in
+     * bytes.
+     */
+    private final long queuedBytes;
+
+    /**
+     * The number of times sending to a WebSocket client has blocked.
+     */
+    private final long stallCount;
+
+    /**
+     * The total time spent blocked sending to WebSocket clients, in
+     * milliseconds.
+     */
+    private final long stallTime;
+
+    /**
+     * The number of batches of instructions sent to clients.
+     */
+    private final long batchCount;
+
+    /**
+     * The number of complete frames sent to clients.
+     */
+    private final long frameCount;
+
+    /**
+     * The number of writes accepted by the writers of all tunnels.
+     */
+    private final long writeCount;
+
+    /**
+     * The number of times data written has actually been sent.
+     */
+    private final long flushCount;
+
+    /**
+     * The total number of bytes compressed.
+     */
+    private final long uncompressedBytes;
+
+    /**
+     * The total size of all compressed output, in bytes.
+     */
+    private final long compressedBytes;
+
+    /**
+     * The number of trial compressions performed.
+     */
+    private final long sampleCount;
+
+    /**
+     * The total time spent compressing, in milliseconds.
+     */
+    private final long compressionTime;
+
+    /**
+     * Creates a new APITunnelStatistics from the current values of the given
+     * executor and statistics.
+     *
+     * @param executor
+     *     The executor running all tunnels.
+     *
+     * @param statistics
+     *     The statistics shared by all tunnels.
+     */
+    public APITunnelStatistics(GuacamoleTunnelExecutor executor,
+            GuacamoleTunnelStatistics statistics) {
+
+        this.maxTunnels       = executor.getMaxTunnels();
+        this.activeTunnels    = executor.getActiveCount();
+        this.queuedTunnels    = executor.getQueuedCount();
+        this.rejectedTunnels  = executor.getRejectedCount();
+        this.completedTunnels = executor.getCompletedCount();
+
+        this.queuedBytes = statistics.getQueuedBytes();
+        this.stallCount  = statistics.getStallCount();
+        this.stallTime   = TimeUnit.NANOSECONDS.toMillis(statistics.getStallTime());
+
+        this.batchCount = statistics.getBatchCount();
+        this.frameCount = statistics.getFrameCount();
+
+        this.writeCount = statistics.getWriteCount();
+        this.flushCount = statistics.getFlushCount();
+
+        this.uncompressedBytes = statistics.getUncompressedBytes();
+        this.compressedBytes   = statistics.getCompressedBytes();
+        this.sampleCount       = statistics.getSampleCount();
+        this.compressionTime   = TimeUnit.NANOSECONDS.toMillis(statistics.getCompressionTime());
+
+    }
+
+    /**
+     * Returns the maximum number of tunnels which may run at any one time.
+     *
+     * @return
+     *     The maximum number of tunnels, or zero if unlimited.
+     */
+    public int getMaxTunnels() {
+        return maxTunnels;
+    }
+
+    /**
+     * Returns the number of tunnels currently running.
+     *
+     * @return
+     *     The number of tunnels currently running.
+     */
+    public int getActiveTunnels() {
+        return activeTunnels;
+    }
+
+    /**
+     * Returns the number of tunnels accepted but not yet running.
+     *
+     * @return
+     *     The number of tunnels accepted but not yet running.
+     */
+    public int getQueuedTunnels() {
+        return queuedTunnels;
+    }
+
+    /**
+     * Returns the number of tunnels rejected due to the maximum number of
+     * tunnels.
+     *
+     * @return
+     *     The number of tunnels rejected.
+     */
+    public long getRejectedTunnels() {
+        return rejectedTunnels;
+    }
+
+    /**
+     * Returns the number of tunnels which have finished.
+     *
+     * @return
+     *     The number of tunnels which have finished.
+     */
+    public long getCompletedTunnels() {
+        return completedTunnels;
+    }
+
+    /**
+     * Returns the total size of all WebSocket messages queued but not yet
+     * sent.
+     *
+     * @return
+     *     The total size of all unsent WebSocket messages, in bytes.
+     */
+    public long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * Returns the number of times sending to a WebSocket client has blocked
+     * because the client was not keeping up.
+     *
+     * @return
+     *     The number of times sending has blocked.
+     */
+    public long getStallCount() {
+        return stallCount;
+    }
+
+    /**
+     * Returns the total time spent blocked sending to WebSocket clients.
+     *
+     * @return
+     *     The total time spent blocked, in milliseconds.
+     */
+    public long getStallTime() {
+        return stallTime;
+    }
+
+    /**
+     * Returns the number of batches of instructions sent to clients.
+     *
+     * @return
+     *     The number of batches sent.
+     */
+    public long getBatchCount() {
+        return batchCount;
+    }
+
+    /**
+     * Returns the number of complete frames sent to clients.
+     *
+     * @return
+     *     The number of complete frames sent.
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Returns the number of writes accepted by the writers of all tunnels.
+     *
+     * @return
+     *     The number of writes accepted.
+     */
+    public long getWriteCount() {
+        return writeCount;
+    }
+
+    /**
+     * Returns the number of times data written has actually been sent.
+     * Comparing this value against getWriteCount() shows the effect of
+     * coalescing writes.
+     *
+     * @return
+     *     The number of times data written has been sent.
+     */
+    public long getFlushCount() {
+        return flushCount;
+    }
+
+    /**
+     * Returns the total number of bytes compressed, excluding trial
+     * compressions.
+     *
+     * @return
+     *     The total number of bytes compressed.
+     */
+    public long getUncompressedBytes() {
+        return uncompressedBytes;
+    }
+
+    /**
+     * Returns the total size of all compressed output, excluding trial
+     * compressions.
+     *
+     * @return
+     *     The total size of all compressed output, in bytes.
+     */
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /**
+     * Returns the number of trial compressions performed.
+     *
+     * @return
+     *     The number of trial compressions performed.
+     */
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Returns the total time spent compressing, including trial
+     * compressions.
+     *
+     * @return
+     *     The total time spent compressing, in milliseconds.
+     */
+    public long getCompressionTime() {
+        return compressionTime;
+    }
+
+}
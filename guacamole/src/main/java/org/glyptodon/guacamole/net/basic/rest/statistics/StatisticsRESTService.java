@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.net.basic.rest.statistics;
+
+import com.google.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleSecurityException;
+import org.glyptodon.guacamole.net.GuacamoleTunnelExecutor;
+import org.glyptodon.guacamole.net.GuacamoleTunnelStatistics;
+import org.glyptodon.guacamole.net.auth.User;
+import org.glyptodon.guacamole.net.auth.permission.Permission;
+import org.glyptodon.guacamole.net.auth.permission.SystemPermission;
+import org.glyptodon.guacamole.net.basic.rest.AuthProviderRESTExposure;
+import org.glyptodon.guacamole.net.basic.rest.auth.AuthenticationService;
+
+/**
+ * A REST Service for retrieving the statistics of all tunnels, including
+ * the state of the tunnel executor, WebSocket send queues, batching and
+ * compression. Only administrators may retrieve these statistics.
+ *
+ * @author Michael Jumper
+ */
+@Path("/statistics")
+@Produces(MediaType.APPLICATION_JSON)
+public class StatisticsRESTService {
+
+    /**
+     * System administration permission.
+     */
+    private static final Permission SYSTEM_PERMISSION =
+                new SystemPermission(SystemPermission.Type.ADMINISTER);
+
+    /**
+     * A service for authenticating users from auth tokens.
+     */
+    @Inject
+    private AuthenticationService authenticationService;
+
+    /**
+     * Retrieves the current statistics of all tunnels.
+     *
+     * @param authToken
+     *     The authentication token that is used to authenticate the user
+     *     performing the operation.
+     *
+     * @return
+     *     A snapshot of the current statistics of all tunnels.
+     *
+     * @throws GuacamoleException
+     *     If an error occurs while authenticating the user, or if the user
+     *     lacks permission to administer the system.
+     */
+    @GET
+    @Path("/tunnels")
+    @AuthProviderRESTExposure
+    public APITunnelStatistics getTunnelStatistics(@QueryParam("token") String authToken)
+            throws GuacamoleException {
+
+        User self = authenticationService.getUserContext(authToken).self();
+
+        // Deny access if administrative permission is missing
+        if (!self.hasPermission(SYSTEM_PERMISSION))
+            throw new GuacamoleSecurityException("Permission to read tunnel statistics denied.");
+
+        return new APITunnelStatistics(GuacamoleTunnelExecutor.getDefault(),
+                GuacamoleTunnelStatistics.getDefault());
+
+    }
+
+}
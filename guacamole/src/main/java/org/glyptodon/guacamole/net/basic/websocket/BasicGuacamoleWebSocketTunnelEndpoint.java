@@ -23,14 +23,18 @@
 package org.glyptodon.guacamole.net.basic.websocket;
 
 import com.google.inject.Provider;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import javax.websocket.EndpointConfig;
+import javax.websocket.Extension;
 import javax.websocket.HandshakeResponse;
 import javax.websocket.Session;
 import javax.websocket.server.HandshakeRequest;
 import javax.websocket.server.ServerEndpointConfig;
 import org.glyptodon.guacamole.GuacamoleException;
 import org.glyptodon.guacamole.net.GuacamoleTunnel;
+import org.glyptodon.guacamole.net.basic.TunnelCompression;
 import org.glyptodon.guacamole.net.basic.TunnelRequestService;
 import org.glyptodon.guacamole.websocket.GuacamoleWebSocketTunnelEndpoint;
 
@@ -78,6 +82,25 @@ public class BasicGuacamoleWebSocketTunnelEndpoint extends GuacamoleWebSocketTun
             this.tunnelRequestServiceProvider = tunnelRequestServiceProvider;
         }
         
+        @Override
+        public List<Extension> getNegotiatedExtensions(List<Extension> installed,
+                List<Extension> requested) {
+
+            List<Extension> negotiated = super.getNegotiatedExtensions(installed, requested);
+            if (TunnelCompression.isEnabled())
+                return negotiated;
+
+            // Refuse compression unless enabled
+            List<Extension> accepted = new ArrayList<Extension>(negotiated.size());
+            for (Extension extension : negotiated) {
+                if (!DEFLATE_EXTENSION.equals(extension.getName()))
+                    accepted.add(extension);
+            }
+
+            return accepted;
+
+        }
+
         @Override
         public void modifyHandshake(ServerEndpointConfig config, HandshakeRequest request, HandshakeResponse response) {
 
@@ -119,4 +142,14 @@ public class BasicGuacamoleWebSocketTunnelEndpoint extends GuacamoleWebSocketTun
 
     }
 
+    @Override
+    protected int getSendHighWatermark() {
+        return WebSocketSendWatermarks.getHighWatermark();
+    }
+
+    @Override
+    protected int getSendLowWatermark() {
+        return WebSocketSendWatermarks.getLowWatermark();
+    }
+
 }
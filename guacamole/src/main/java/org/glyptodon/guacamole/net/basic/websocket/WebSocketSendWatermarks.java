@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 Glyptodon LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.net.basic.websocket;
+
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.environment.SharedEnvironment;
+import org.glyptodon.guacamole.net.basic.properties.BasicGuacamoleProperties;
+import org.glyptodon.guacamole.properties.IntegerGuacamoleProperty;
+import org.glyptodon.guacamole.websocket.WebSocketSendQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the watermarks of the outbound message queue of each WebSocket
+ * tunnel from guacamole.properties. The shared environment is read directly,
+ * as the WebSocket endpoints are created by the container rather than by
+ * injection.
+ *
+ * @author Michael Jumper
+ */
+public final class WebSocketSendWatermarks {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(WebSocketSendWatermarks.class);
+
+    /**
+     * This class should not be instantiated.
+     */
+    private WebSocketSendWatermarks() {}
+
+    /**
+     * Reads the given property, returning the given default value if the
+     * property is not set or cannot be read.
+     *
+     * @param property The property to read.
+     * @param defaultValue The value to return if the property is not set or
+     *                     cannot be read.
+     * @return The value of the property, or the default value.
+     */
+    private static int getProperty(IntegerGuacamoleProperty property,
+            int defaultValue) {
+
+        try {
+            return SharedEnvironment.getInstance().getProperty(property, defaultValue);
+        }
+        catch (GuacamoleException e) {
+            logger.error("Unable to read guacamole.properties: {}", e.getMessage());
+            logger.debug("Error while reading \"{}\".", property.getName(), e);
+            return defaultValue;
+        }
+
+    }
+
+    /**
+     * Returns the number of unsent bytes at which reads from guacd will stop
+     * until the client catches up, as specified by the
+     * "websocket-send-high-watermark" property.
+     *
+     * @return The high watermark, in bytes.
+     */
+    public static int getHighWatermark() {
+        return getProperty(BasicGuacamoleProperties.WEBSOCKET_SEND_HIGH_WATERMARK,
+                WebSocketSendQueue.DEFAULT_HIGH_WATERMARK);
+    }
+
+    /**
+     * Returns the number of unsent bytes at which stopped reads from guacd
+     * will resume, as specified by the "websocket-send-low-watermark"
+     * property.
+     *
+     * @return The low watermark, in bytes.
+     */
+    public static int getLowWatermark() {
+        return getProperty(BasicGuacamoleProperties.WEBSOCKET_SEND_LOW_WATERMARK,
+                WebSocketSendQueue.DEFAULT_LOW_WATERMARK);
+    }
+
+}
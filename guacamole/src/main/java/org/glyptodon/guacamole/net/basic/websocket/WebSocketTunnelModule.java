@@ -32,6 +32,7 @@ import org.glyptodon.guacamole.GuacamoleException;
 import org.glyptodon.guacamole.net.basic.GuacamoleClassLoader;
 import org.glyptodon.guacamole.net.basic.TunnelLoader;
 import org.glyptodon.guacamole.net.basic.TunnelRequestService;
+import org.glyptodon.guacamole.websocket.GuacamoleWebSocketTunnelEndpoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -94,7 +95,10 @@ public class WebSocketTunnelModule extends ServletModule implements TunnelLoader
         ServerEndpointConfig config =
                 ServerEndpointConfig.Builder.create(BasicGuacamoleWebSocketTunnelEndpoint.class, "/websocket-tunnel")
                                             .configurator(new BasicGuacamoleWebSocketTunnelEndpoint.Configurator(tunnelRequestServiceProvider))
-                                            .subprotocols(Arrays.asList(new String[]{"guacamole"}))
+                                            .subprotocols(Arrays.asList(new String[]{
+                                                GuacamoleWebSocketTunnelEndpoint.BINARY_SUBPROTOCOL,
+                                                GuacamoleWebSocketTunnelEndpoint.TEXT_SUBPROTOCOL
+                                            }))
                                             .build();
 
         try {
@@ -27,18 +27,25 @@ import javax.servlet.http.HttpServletRequest;
 import org.glyptodon.guacamole.GuacamoleException;
 import org.glyptodon.guacamole.io.GuacamoleReader;
 import org.glyptodon.guacamole.io.GuacamoleWriter;
+import org.glyptodon.guacamole.io.UTF8InstructionBuffer;
+import org.glyptodon.guacamole.net.FrameBatcher;
 import org.glyptodon.guacamole.net.GuacamoleTunnel;
+import org.glyptodon.guacamole.net.GuacamoleTunnelExecutor;
 import org.eclipse.jetty.websocket.WebSocket;
 import org.eclipse.jetty.websocket.WebSocket.Connection;
 import org.eclipse.jetty.websocket.WebSocketServlet;
 import org.glyptodon.guacamole.GuacamoleClientException;
 import org.glyptodon.guacamole.GuacamoleConnectionClosedException;
 import org.glyptodon.guacamole.protocol.GuacamoleStatus;
+import org.glyptodon.guacamole.websocket.GuacamoleWebSocketTunnelEndpoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A WebSocketServlet partial re-implementation of GuacamoleTunnelServlet.
+ * Instructions are sent within binary messages as UTF-8 if the
+ * "guacamole-binary" subprotocol is selected, and within text messages
+ * otherwise.
  *
  * @author Michael Jumper
  */
@@ -54,6 +61,18 @@ public abstract class GuacamoleWebSocketTunnelServlet extends WebSocketServlet {
      */
     private static final int BUFFER_SIZE = 8192;
 
+    /**
+     * The WebSocket status code indicating that the connection was lost
+     * without a close frame being received.
+     */
+    private static final int CLOSED_ABNORMALLY = 1006;
+
+    /**
+     * WebSocket which accepts both text and binary messages.
+     */
+    private interface TunnelWebSocket
+            extends WebSocket.OnTextMessage, WebSocket.OnBinaryMessage {}
+
     /**
      * Sends the given status on the given WebSocket connection and closes the
      * connection.
@@ -72,6 +91,9 @@ public abstract class GuacamoleWebSocketTunnelServlet extends WebSocketServlet {
     @Override
     public WebSocket doWebSocketConnect(HttpServletRequest request, String protocol) {
 
+        // Send binary messages only if selected for this connection
+        final boolean binary = GuacamoleWebSocketTunnelEndpoint.BINARY_SUBPROTOCOL.equals(protocol);
+
         // Get tunnel
         final GuacamoleTunnel tunnel;
 
@@ -85,7 +107,13 @@ public abstract class GuacamoleWebSocketTunnelServlet extends WebSocketServlet {
         }
 
         // Return new WebSocket which communicates through tunnel
-        return new WebSocket.OnTextMessage() {
+        return new TunnelWebSocket() {
+
+            /**
+             * Whether the client connection has closed, such that the stream of
+             * instructions from the tunnel should no longer be read.
+             */
+            private volatile boolean closed = false;
 
             @Override
             public void onMessage(String string) {
@@ -105,6 +133,24 @@ public abstract class GuacamoleWebSocketTunnelServlet extends WebSocketServlet {
                 tunnel.releaseWriter();
             }
 
+            @Override
+            public void onMessage(byte[] data, int offset, int length) {
+                GuacamoleWriter writer = tunnel.acquireWriter();
+
+                // Write message received
+                try {
+                    UTF8InstructionBuffer.write(writer, data, offset, length);
+                }
+                catch (GuacamoleConnectionClosedException e) {
+                    logger.debug("Connection to guacd closed.", e);
+                }
+                catch (GuacamoleException e) {
+                    logger.debug("WebSocket tunnel write failed.", e);
+                }
+
+                tunnel.releaseWriter();
+            }
+
             @Override
             public void onOpen(final Connection connection) {
 
@@ -114,35 +160,109 @@ public abstract class GuacamoleWebSocketTunnelServlet extends WebSocketServlet {
                     return;
                 }
 
-                Thread readThread = new Thread() {
+                Runnable pump = new Runnable() {
 
-                    @Override
-                    public void run() {
+                    /**
+                     * Relays all instructions from the given reader to the
+                     * client as text messages.
+                     *
+                     * @param reader The reader to relay instructions from.
+                     * @throws GuacamoleException If an error occurs while
+                     *                            reading.
+                     * @throws IOException If an error occurs while sending.
+                     */
+                    private void relayText(GuacamoleReader reader)
+                            throws GuacamoleException, IOException {
 
                         StringBuilder buffer = new StringBuilder(BUFFER_SIZE);
-                        GuacamoleReader reader = tunnel.acquireReader();
+                        FrameBatcher batcher = tunnel.getFrameBatcher();
                         char[] readMessage;
 
-                        try {
+                        // Announce tunnel UUID, allowing the client to resume
+                        buffer.append(tunnel.getUUIDInstruction());
 
-                            try {
+                        // Attempt to read
+                        while (!closed && (readMessage = reader.read()) != null) {
 
-                                // Attempt to read
-                                while ((readMessage = reader.read()) != null) {
+                            // Do not send data read after the client has gone
+                            if (closed)
+                                break;
 
-                                    // Buffer message
-                                    buffer.append(readMessage);
+                            // Buffer message
+                            buffer.append(readMessage);
+                            batcher.buffered(readMessage, 0, readMessage.length);
 
-                                    // Flush if we expect to wait or buffer is getting full
-                                    if (!reader.available() || buffer.length() >= BUFFER_SIZE) {
-                                        connection.sendMessage(buffer.toString());
-                                        buffer.setLength(0);
-                                    }
+                            // Flush if we expect to wait or buffer is getting full
+                            if (batcher.shouldFlush(reader, buffer.length())) {
+                                connection.sendMessage(buffer.toString());
+                                buffer.setLength(0);
+                                batcher.flushed();
+                            }
 
-                                }
+                        }
 
-                                // No more data
-                                closeConnection(connection, GuacamoleStatus.SUCCESS);
+                    }
+
+                    /**
+                     * Relays all instructions from the given reader to the
+                     * client as binary messages containing UTF-8.
+                     *
+                     * @param reader The reader to relay instructions from.
+                     * @throws GuacamoleException If an error occurs while
+                     *                            reading.
+                     * @throws IOException If an error occurs while sending.
+                     */
+                    private void relayBinary(GuacamoleReader reader)
+                            throws GuacamoleException, IOException {
+
+                        UTF8InstructionBuffer buffer = new UTF8InstructionBuffer(BUFFER_SIZE);
+                        FrameBatcher batcher = tunnel.getFrameBatcher();
+
+                        // Announce tunnel UUID, allowing the client to resume
+                        buffer.append(tunnel.getUUIDInstruction().toCharArray());
+                        int instructionStart = buffer.length();
+
+                        // Attempt to read
+                        while (!closed && buffer.read(reader)) {
+
+                            // Do not send data read after the client has gone
+                            if (closed)
+                                break;
+
+                            batcher.buffered(buffer.getArray(), instructionStart,
+                                    buffer.length() - instructionStart);
+
+                            // Flush if we expect to wait or buffer is getting full
+                            if (batcher.shouldFlush(reader, buffer.length())) {
+                                connection.sendMessage(buffer.getArray(), 0, buffer.length());
+                                buffer.clear();
+                                batcher.flushed();
+                            }
+
+                            instructionStart = buffer.length();
+
+                        }
+
+                    }
+
+                    @Override
+                    public void run() {
+
+                        GuacamoleReader reader = tunnel.acquireReader();
+
+                        try {
+
+                            try {
+
+                                // Relay all instructions until no more data
+                                if (binary)
+                                    relayBinary(reader);
+                                else
+                                    relayText(reader);
+
+                                // No more data, unless the client has gone
+                                if (!closed)
+                                    closeConnection(connection, GuacamoleStatus.SUCCESS);
                                 
                             }
 
@@ -168,19 +288,39 @@ public abstract class GuacamoleWebSocketTunnelServlet extends WebSocketServlet {
                         catch (IOException e) {
                             logger.debug("WebSocket tunnel read failed due to I/O error.", e);
                         }
+                        finally {
+                            tunnel.releaseReader();
+                        }
 
                     }
 
                 };
 
-                readThread.start();
+                // Relay data from tunnel on shared executor
+                try {
+                    getTunnelExecutor().execute(tunnel, pump);
+                }
+                catch (GuacamoleException e) {
+                    logger.warn("Unable to start WebSocket tunnel: {}", e.getMessage());
+                    logger.debug("Error starting WebSocket tunnel.", e);
+                    closeConnection(connection, e.getStatus());
+                }
 
             }
 
             @Override
             public void onClose(int i, String string) {
+
+                closed = true;
+
                 try {
-                    if (tunnel != null)
+                    if (tunnel == null)
+                        return;
+
+                    // Allow resumption if connection was lost
+                    if (i == CLOSED_ABNORMALLY)
+                        tunnel.detach();
+                    else
                         tunnel.close();
                 }
                 catch (GuacamoleException e) {
@@ -192,6 +332,17 @@ public abstract class GuacamoleWebSocketTunnelServlet extends WebSocketServlet {
 
     }
 
+    /**
+     * Returns the executor which should run the loop relaying data from
+     * each tunnel to its client. By default, this is the default
+     * GuacamoleTunnelExecutor.
+     *
+     * @return The executor to use for all tunnels.
+     */
+    protected GuacamoleTunnelExecutor getTunnelExecutor() {
+        return GuacamoleTunnelExecutor.getDefault();
+    }
+
     /**
      * Called whenever the JavaScript Guacamole client makes a connection
      * request. It it up to the implementor of this function to define what
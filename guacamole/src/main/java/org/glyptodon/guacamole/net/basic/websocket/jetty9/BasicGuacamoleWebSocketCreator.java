@@ -22,14 +22,20 @@
 
 package org.glyptodon.guacamole.net.basic.websocket.jetty9;
 
+import java.util.ArrayList;
+import java.util.List;
 import org.eclipse.jetty.websocket.api.UpgradeRequest;
 import org.eclipse.jetty.websocket.api.UpgradeResponse;
+import org.eclipse.jetty.websocket.api.extensions.ExtensionConfig;
 import org.eclipse.jetty.websocket.servlet.WebSocketCreator;
+import org.glyptodon.guacamole.net.basic.TunnelCompression;
 import org.glyptodon.guacamole.net.basic.TunnelRequestService;
+import org.glyptodon.guacamole.websocket.GuacamoleWebSocketTunnelEndpoint;
 
 /**
  * WebSocketCreator which selects the appropriate WebSocketListener
- * implementation if the "guacamole" subprotocol is in use.
+ * implementation if the "guacamole" or "guacamole-binary" subprotocol is in
+ * use.
  * 
  * @author Michael Jumper
  */
@@ -54,11 +60,24 @@ public class BasicGuacamoleWebSocketCreator implements WebSocketCreator {
     @Override
     public Object createWebSocket(UpgradeRequest request, UpgradeResponse response) {
 
-        // Validate and use "guacamole" subprotocol
+        // Validate and use first supported subprotocol, in order of client
+        // preference
         for (String subprotocol : request.getSubProtocols()) {
 
-            if ("guacamole".equals(subprotocol)) {
+            if (GuacamoleWebSocketTunnelEndpoint.TEXT_SUBPROTOCOL.equals(subprotocol)
+                    || GuacamoleWebSocketTunnelEndpoint.BINARY_SUBPROTOCOL.equals(subprotocol)) {
                 response.setAcceptedSubProtocol(subprotocol);
+
+                // Refuse compression unless enabled
+                if (!TunnelCompression.isEnabled()) {
+                    List<ExtensionConfig> accepted = new ArrayList<ExtensionConfig>();
+                    for (ExtensionConfig extension : request.getExtensions()) {
+                        if (!GuacamoleWebSocketTunnelEndpoint.DEFLATE_EXTENSION.equals(extension.getName()))
+                            accepted.add(extension);
+                    }
+                    response.setExtensions(accepted);
+                }
+
                 return new BasicGuacamoleWebSocketTunnelListener(tunnelRequestService);
             }
 
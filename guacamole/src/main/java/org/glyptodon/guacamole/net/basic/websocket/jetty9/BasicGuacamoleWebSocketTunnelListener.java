@@ -26,6 +26,7 @@ import org.eclipse.jetty.websocket.api.Session;
 import org.glyptodon.guacamole.GuacamoleException;
 import org.glyptodon.guacamole.net.GuacamoleTunnel;
 import org.glyptodon.guacamole.net.basic.TunnelRequestService;
+import org.glyptodon.guacamole.net.basic.websocket.WebSocketSendWatermarks;
 
 /**
  * WebSocket listener implementation which properly parses connection IDs
@@ -56,4 +57,14 @@ public class BasicGuacamoleWebSocketTunnelListener extends GuacamoleWebSocketTun
         return tunnelRequestService.createTunnel(new WebSocketTunnelRequest(session.getUpgradeRequest()));
     }
 
+    @Override
+    protected int getSendHighWatermark() {
+        return WebSocketSendWatermarks.getHighWatermark();
+    }
+
+    @Override
+    protected int getSendLowWatermark() {
+        return WebSocketSendWatermarks.getLowWatermark();
+    }
+
 }
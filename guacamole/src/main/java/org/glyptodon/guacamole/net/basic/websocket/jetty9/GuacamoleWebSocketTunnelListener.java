@@ -23,6 +23,9 @@
 package org.glyptodon.guacamole.net.basic.websocket.jetty9;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Future;
 import org.eclipse.jetty.websocket.api.CloseStatus;
 import org.eclipse.jetty.websocket.api.RemoteEndpoint;
 import org.eclipse.jetty.websocket.api.Session;
@@ -32,13 +35,20 @@ import org.glyptodon.guacamole.GuacamoleConnectionClosedException;
 import org.glyptodon.guacamole.GuacamoleException;
 import org.glyptodon.guacamole.io.GuacamoleReader;
 import org.glyptodon.guacamole.io.GuacamoleWriter;
+import org.glyptodon.guacamole.io.UTF8InstructionBuffer;
+import org.glyptodon.guacamole.net.FrameBatcher;
 import org.glyptodon.guacamole.net.GuacamoleTunnel;
+import org.glyptodon.guacamole.net.GuacamoleTunnelExecutor;
 import org.glyptodon.guacamole.protocol.GuacamoleStatus;
+import org.glyptodon.guacamole.websocket.GuacamoleWebSocketTunnelEndpoint;
+import org.glyptodon.guacamole.websocket.WebSocketSendQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * WebSocket listener implementation which provides a Guacamole tunnel
+ * WebSocket listener implementation which provides a Guacamole tunnel. If the
+ * "guacamole-binary" subprotocol was accepted, instructions are sent within
+ * binary messages as UTF-8, otherwise within text messages.
  * 
  * @author Michael Jumper
  */
@@ -49,6 +59,12 @@ public abstract class GuacamoleWebSocketTunnelListener implements WebSocketListe
      */
     private static final int BUFFER_SIZE = 8192;
 
+    /**
+     * The WebSocket status code indicating that the connection was lost
+     * without a close frame being received.
+     */
+    private static final int CLOSED_ABNORMALLY = 1006;
+
     /**
      * Logger for this class.
      */
@@ -59,7 +75,33 @@ public abstract class GuacamoleWebSocketTunnelListener implements WebSocketListe
      * as reads/writes to this tunnel.
      */
     private GuacamoleTunnel tunnel;
+
+    /**
+     * Whether the client connection has closed, such that the stream of
+     * instructions from the tunnel should no longer be read.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * The queue of messages being sent to the client, or null if the
+     * connection has not yet opened. This queue is closed with the
+     * connection, as the container may never complete a pending send once
+     * the connection is lost.
+     */
+    private volatile WebSocketSendQueue<Object> sendQueue;
  
+    /**
+     * Closes the queue of messages being sent to the client, if any, such
+     * that a relay blocked on that queue stops rather than waiting forever.
+     */
+    private void closeSendQueue() {
+
+        WebSocketSendQueue<Object> queue = sendQueue;
+        if (queue != null)
+            queue.close();
+
+    }
+
     /**
      * Sends the given status on the given WebSocket connection and closes the
      * connection.
@@ -80,6 +122,39 @@ public abstract class GuacamoleWebSocketTunnelListener implements WebSocketListe
 
     }
 
+    /**
+     * Returns the number of unsent bytes at which reads from guacd will stop
+     * until the client catches up. By default, this is
+     * WebSocketSendQueue.DEFAULT_HIGH_WATERMARK.
+     *
+     * @return The high watermark of the outbound message queue, in bytes.
+     */
+    protected int getSendHighWatermark() {
+        return WebSocketSendQueue.DEFAULT_HIGH_WATERMARK;
+    }
+
+    /**
+     * Returns the number of unsent bytes at which stopped reads from guacd
+     * will resume. By default, this is
+     * WebSocketSendQueue.DEFAULT_LOW_WATERMARK.
+     *
+     * @return The low watermark of the outbound message queue, in bytes.
+     */
+    protected int getSendLowWatermark() {
+        return WebSocketSendQueue.DEFAULT_LOW_WATERMARK;
+    }
+
+    /**
+     * Returns the executor which should run the loop relaying data from
+     * each tunnel to its client. By default, this is the default
+     * GuacamoleTunnelExecutor.
+     *
+     * @return The executor to use for all tunnels.
+     */
+    protected GuacamoleTunnelExecutor getTunnelExecutor() {
+        return GuacamoleTunnelExecutor.getDefault();
+    }
+
     /**
      * Returns a new tunnel for the given session. How this tunnel is created
      * or retrieved is implementation-dependent.
@@ -113,42 +188,141 @@ public abstract class GuacamoleWebSocketTunnelListener implements WebSocketListe
             return;
         }
 
-        // Prepare read transfer thread
-        Thread readThread = new Thread() {
+        // Send binary messages only if accepted for this connection
+        final boolean binary = GuacamoleWebSocketTunnelEndpoint.BINARY_SUBPROTOCOL.equals(
+                session.getUpgradeResponse().getAcceptedSubProtocol());
+
+        // Remote (client) side of this connection
+        final RemoteEndpoint remote = session.getRemote();
+
+        // Queue of messages being sent to the client. Reads from guacd stop
+        // while this queue is above its high watermark
+        final WebSocketSendQueue<Object> queue =
+                new WebSocketSendQueue<Object>(getSendHighWatermark(),
+                        getSendLowWatermark()) {
+
+            @Override
+            protected Future<?> dispatch(Object message) {
+
+                // Send as binary or text, depending on message type
+                if (message instanceof ByteBuffer)
+                    return remote.sendBytesByFuture((ByteBuffer) message);
+
+                return remote.sendStringByFuture((String) message);
+
+            }
+
+        };
+
+        // Allow queue to be closed with the connection
+        sendQueue = queue;
+
+        // Prepare loop relaying data from tunnel
+        Runnable pump = new Runnable() {
+
+            /**
+             * Relays all instructions from the given reader to the client
+             * as text messages.
+             *
+             * @param reader The reader to relay instructions from.
+             * @throws GuacamoleException If an error occurs while reading.
+             * @throws IOException If an error occurs while sending.
+             */
+            private void relayText(GuacamoleReader reader)
+                    throws GuacamoleException, IOException {
+
+                StringBuilder buffer = new StringBuilder(BUFFER_SIZE);
+                FrameBatcher batcher = tunnel.getFrameBatcher();
+                char[] readMessage;
+
+                // Announce tunnel UUID, allowing the client to resume
+                buffer.append(tunnel.getUUIDInstruction());
+
+                // Attempt to read
+                while (!closed && (readMessage = reader.read()) != null) {
+
+                    // Do not send data read after the client has gone
+                    if (closed)
+                        break;
+
+                    // Buffer message
+                    buffer.append(readMessage);
+                    batcher.buffered(readMessage, 0, readMessage.length);
+
+                    // Flush if we expect to wait or buffer is getting full
+                    if (batcher.shouldFlush(reader, buffer.length())) {
+                        queue.send(buffer.toString(), buffer.length());
+                        buffer.setLength(0);
+                        batcher.flushed();
+                    }
+
+                }
+
+            }
 
             /**
-             * Remote (client) side of this connection
+             * Relays all instructions from the given reader to the client
+             * as binary messages containing UTF-8.
+             *
+             * @param reader The reader to relay instructions from.
+             * @throws GuacamoleException If an error occurs while reading.
+             * @throws IOException If an error occurs while sending.
              */
-            private final RemoteEndpoint remote = session.getRemote();
-                
+            private void relayBinary(GuacamoleReader reader)
+                    throws GuacamoleException, IOException {
+
+                UTF8InstructionBuffer buffer = new UTF8InstructionBuffer(BUFFER_SIZE);
+                FrameBatcher batcher = tunnel.getFrameBatcher();
+
+                // Announce tunnel UUID, allowing the client to resume
+                buffer.append(tunnel.getUUIDInstruction().toCharArray());
+                int instructionStart = buffer.length();
+
+                // Attempt to read
+                while (!closed && buffer.read(reader)) {
+
+                    // Do not send data read after the client has gone
+                    if (closed)
+                        break;
+
+                    batcher.buffered(buffer.getArray(), instructionStart,
+                            buffer.length() - instructionStart);
+
+                    // Flush if we expect to wait or buffer is getting full
+                    if (batcher.shouldFlush(reader, buffer.length())) {
+                        byte[] message = Arrays.copyOf(buffer.getArray(), buffer.length());
+                        queue.send(ByteBuffer.wrap(message), message.length);
+                        buffer.clear();
+                        batcher.flushed();
+                    }
+
+                    instructionStart = buffer.length();
+
+                }
+
+            }
+
             @Override
             public void run() {
 
-                StringBuilder buffer = new StringBuilder(BUFFER_SIZE);
                 GuacamoleReader reader = tunnel.acquireReader();
-                char[] readMessage;
 
                 try {
 
                     try {
 
-                        // Attempt to read
-                        while ((readMessage = reader.read()) != null) {
-
-                            // Buffer message
-                            buffer.append(readMessage);
-
-                            // Flush if we expect to wait or buffer is getting full
-                            if (!reader.available() || buffer.length() >= BUFFER_SIZE) {
-                                remote.sendString(buffer.toString());
-                                buffer.setLength(0);
-                            }
+                        // Relay all instructions until no more data
+                        if (binary)
+                            relayBinary(reader);
+                        else
+                            relayText(reader);
 
+                        // No more data, unless the client has gone
+                        if (!closed) {
+                            queue.drain();
+                            closeConnection(session, GuacamoleStatus.SUCCESS);
                         }
 
-                        // No more data
-                        closeConnection(session, GuacamoleStatus.SUCCESS);
-
                     }
 
                     // Catch any thrown guacamole exception and attempt
@@ -161,6 +335,7 @@ public abstract class GuacamoleWebSocketTunnelListener implements WebSocketListe
                     }
                     catch (GuacamoleConnectionClosedException e) {
                         logger.debug("Connection to guacd closed.", e);
+                        queue.drain();
                         closeConnection(session, GuacamoleStatus.SUCCESS);
                     }
                     catch (GuacamoleException e) {
@@ -173,12 +348,28 @@ public abstract class GuacamoleWebSocketTunnelListener implements WebSocketListe
                 catch (IOException e) {
                     logger.debug("I/O error prevents further reads.", e);
                 }
+                finally {
+                    tunnel.releaseReader();
+                }
+
+                logger.debug("WebSocket send queue peaked at {} bytes, "
+                        + "stalling reads {} times for {} ms total.",
+                        queue.getMaxQueuedBytes(), queue.getStallCount(),
+                        queue.getStallTime() / 1000000);
 
             }
 
         };
 
-        readThread.start();
+        // Relay data from tunnel on shared executor
+        try {
+            getTunnelExecutor().execute(tunnel, pump);
+        }
+        catch (GuacamoleException e) {
+            logger.warn("Unable to start WebSocket tunnel: {}", e.getMessage());
+            logger.debug("Error starting WebSocket tunnel.", e);
+            closeConnection(session, e.getStatus());
+        }
 
     }
 
@@ -204,17 +395,35 @@ public abstract class GuacamoleWebSocketTunnelListener implements WebSocketListe
 
     @Override
     public void onWebSocketBinary(byte[] payload, int offset, int length) {
-        throw new UnsupportedOperationException("Binary WebSocket messages are not supported.");
+
+        GuacamoleWriter writer = tunnel.acquireWriter();
+
+        try {
+            // Write received message
+            UTF8InstructionBuffer.write(writer, payload, offset, length);
+        }
+        catch (GuacamoleConnectionClosedException e) {
+            logger.debug("Connection to guacd closed.", e);
+        }
+        catch (GuacamoleException e) {
+            logger.debug("WebSocket tunnel write failed.", e);
+        }
+
+        tunnel.releaseWriter();
+
     }
 
     @Override
     public void onWebSocketError(Throwable t) {
 
         logger.debug("WebSocket tunnel closing due to error.", t);
+        closed = true;
+        closeSendQueue();
         
+        // Connection is lost, but may be resumed
         try {
             if (tunnel != null)
-                tunnel.close();
+                tunnel.detach();
         }
         catch (GuacamoleException e) {
             logger.debug("Unable to close connection to guacd.", e);
@@ -226,9 +435,20 @@ public abstract class GuacamoleWebSocketTunnelListener implements WebSocketListe
     @Override
     public void onWebSocketClose(int statusCode, String reason) {
 
+        closed = true;
+        closeSendQueue();
+
         try {
-            if (tunnel != null)
+
+            if (tunnel == null)
+                return;
+
+            // Allow resumption if connection was lost
+            if (statusCode == CLOSED_ABNORMALLY)
+                tunnel.detach();
+            else
                 tunnel.close();
+
         }
         catch (GuacamoleException e) {
             logger.debug("Unable to close connection to guacd.", e);
@@ -22,6 +22,7 @@
 
 package org.glyptodon.guacamole.net.basic.websocket.tomcat;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
@@ -32,18 +33,25 @@ import javax.servlet.http.HttpServletRequest;
 import org.glyptodon.guacamole.GuacamoleException;
 import org.glyptodon.guacamole.io.GuacamoleReader;
 import org.glyptodon.guacamole.io.GuacamoleWriter;
+import org.glyptodon.guacamole.io.UTF8InstructionBuffer;
+import org.glyptodon.guacamole.net.FrameBatcher;
 import org.glyptodon.guacamole.net.GuacamoleTunnel;
+import org.glyptodon.guacamole.net.GuacamoleTunnelExecutor;
 import org.apache.catalina.websocket.StreamInbound;
 import org.apache.catalina.websocket.WebSocketServlet;
 import org.apache.catalina.websocket.WsOutbound;
 import org.glyptodon.guacamole.GuacamoleClientException;
 import org.glyptodon.guacamole.GuacamoleConnectionClosedException;
 import org.glyptodon.guacamole.protocol.GuacamoleStatus;
+import org.glyptodon.guacamole.websocket.GuacamoleWebSocketTunnelEndpoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A WebSocketServlet partial re-implementation of GuacamoleTunnelServlet.
+ * Instructions are sent within binary messages as UTF-8 if the
+ * "guacamole-binary" subprotocol is selected, and within text messages
+ * otherwise.
  *
  * @author Michael Jumper
  */
@@ -54,6 +62,12 @@ public abstract class GuacamoleWebSocketTunnelServlet extends WebSocketServlet {
      */
     private static final int BUFFER_SIZE = 8192;
 
+    /**
+     * The WebSocket status code indicating that the connection was lost
+     * without a close frame being received.
+     */
+    private static final int CLOSED_ABNORMALLY = 1006;
+
     /**
      * Logger for this class.
      */
@@ -81,10 +95,12 @@ public abstract class GuacamoleWebSocketTunnelServlet extends WebSocketServlet {
     @Override
     protected String selectSubProtocol(List<String> subProtocols) {
 
-        // Search for expected protocol
-        for (String protocol : subProtocols)
-            if ("guacamole".equals(protocol))
-                return "guacamole";
+        // Search for expected protocols, in order of client preference
+        for (String protocol : subProtocols) {
+            if (GuacamoleWebSocketTunnelEndpoint.TEXT_SUBPROTOCOL.equals(protocol)
+                    || GuacamoleWebSocketTunnelEndpoint.BINARY_SUBPROTOCOL.equals(protocol))
+                return protocol;
+        }
         
         // Otherwise, fail
         return null;
@@ -106,9 +122,18 @@ public abstract class GuacamoleWebSocketTunnelServlet extends WebSocketServlet {
             return null;
         }
 
+        // Send binary messages only if selected for this connection
+        final boolean binary = GuacamoleWebSocketTunnelEndpoint.BINARY_SUBPROTOCOL.equals(protocol);
+
         // Return new WebSocket which communicates through tunnel
         return new StreamInbound() {
 
+            /**
+             * Whether the client connection has closed, such that the stream of
+             * instructions from the tunnel should no longer be read.
+             */
+            private volatile boolean closed = false;
+
             @Override
             protected void onTextData(Reader reader) throws IOException {
 
@@ -143,35 +168,109 @@ public abstract class GuacamoleWebSocketTunnelServlet extends WebSocketServlet {
                     return;
                 }
 
-                Thread readThread = new Thread() {
+                Runnable pump = new Runnable() {
 
-                    @Override
-                    public void run() {
+                    /**
+                     * Relays all instructions from the given reader to the
+                     * client as text messages.
+                     *
+                     * @param reader The reader to relay instructions from.
+                     * @throws GuacamoleException If an error occurs while
+                     *                            reading.
+                     * @throws IOException If an error occurs while sending.
+                     */
+                    private void relayText(GuacamoleReader reader)
+                            throws GuacamoleException, IOException {
 
                         StringBuilder buffer = new StringBuilder(BUFFER_SIZE);
-                        GuacamoleReader reader = tunnel.acquireReader();
+                        FrameBatcher batcher = tunnel.getFrameBatcher();
                         char[] readMessage;
 
-                        try {
+                        // Announce tunnel UUID, allowing the client to resume
+                        buffer.append(tunnel.getUUIDInstruction());
 
-                            try {
+                        // Attempt to read
+                        while (!closed && (readMessage = reader.read()) != null) {
+
+                            // Do not send data read after the client has gone
+                            if (closed)
+                                break;
 
-                                // Attempt to read
-                                while ((readMessage = reader.read()) != null) {
+                            // Buffer message
+                            buffer.append(readMessage);
+                            batcher.buffered(readMessage, 0, readMessage.length);
 
-                                    // Buffer message
-                                    buffer.append(readMessage);
+                            // Flush if we expect to wait or buffer is getting full
+                            if (batcher.shouldFlush(reader, buffer.length())) {
+                                outbound.writeTextMessage(CharBuffer.wrap(buffer));
+                                buffer.setLength(0);
+                                batcher.flushed();
+                            }
 
-                                    // Flush if we expect to wait or buffer is getting full
-                                    if (!reader.available() || buffer.length() >= BUFFER_SIZE) {
-                                        outbound.writeTextMessage(CharBuffer.wrap(buffer));
-                                        buffer.setLength(0);
-                                    }
+                        }
 
-                                }
+                    }
 
-                                // No more data
-                                closeConnection(outbound, GuacamoleStatus.SUCCESS);
+                    /**
+                     * Relays all instructions from the given reader to the
+                     * client as binary messages containing UTF-8.
+                     *
+                     * @param reader The reader to relay instructions from.
+                     * @throws GuacamoleException If an error occurs while
+                     *                            reading.
+                     * @throws IOException If an error occurs while sending.
+                     */
+                    private void relayBinary(GuacamoleReader reader)
+                            throws GuacamoleException, IOException {
+
+                        UTF8InstructionBuffer buffer = new UTF8InstructionBuffer(BUFFER_SIZE);
+                        FrameBatcher batcher = tunnel.getFrameBatcher();
+
+                        // Announce tunnel UUID, allowing the client to resume
+                        buffer.append(tunnel.getUUIDInstruction().toCharArray());
+                        int instructionStart = buffer.length();
+
+                        // Attempt to read
+                        while (!closed && buffer.read(reader)) {
+
+                            // Do not send data read after the client has gone
+                            if (closed)
+                                break;
+
+                            batcher.buffered(buffer.getArray(), instructionStart,
+                                    buffer.length() - instructionStart);
+
+                            // Flush if we expect to wait or buffer is getting full
+                            if (batcher.shouldFlush(reader, buffer.length())) {
+                                outbound.writeBinaryMessage(buffer.toByteBuffer());
+                                buffer.clear();
+                                batcher.flushed();
+                            }
+
+                            instructionStart = buffer.length();
+
+                        }
+
+                    }
+
+                    @Override
+                    public void run() {
+
+                        GuacamoleReader reader = tunnel.acquireReader();
+
+                        try {
+
+                            try {
+
+                                // Relay all instructions until no more data
+                                if (binary)
+                                    relayBinary(reader);
+                                else
+                                    relayText(reader);
+
+                                // No more data, unless the client has gone
+                                if (!closed)
+                                    closeConnection(outbound, GuacamoleStatus.SUCCESS);
 
                             }
 
@@ -197,19 +296,39 @@ public abstract class GuacamoleWebSocketTunnelServlet extends WebSocketServlet {
                         catch (IOException e) {
                             logger.debug("I/O error prevents further reads.", e);
                         }
+                        finally {
+                            tunnel.releaseReader();
+                        }
 
                     }
 
                 };
 
-                readThread.start();
+                // Relay data from tunnel on shared executor
+                try {
+                    getTunnelExecutor().execute(tunnel, pump);
+                }
+                catch (GuacamoleException e) {
+                    logger.warn("Unable to start WebSocket tunnel: {}", e.getMessage());
+                    logger.debug("Error starting WebSocket tunnel.", e);
+                    closeConnection(outbound, e.getStatus());
+                }
 
             }
 
             @Override
             public void onClose(int i) {
+
+                closed = true;
+
                 try {
-                    if (tunnel != null)
+                    if (tunnel == null)
+                        return;
+
+                    // Allow resumption if connection was lost
+                    if (i == CLOSED_ABNORMALLY)
+                        tunnel.detach();
+                    else
                         tunnel.close();
                 }
                 catch (GuacamoleException e) {
@@ -219,13 +338,47 @@ public abstract class GuacamoleWebSocketTunnelServlet extends WebSocketServlet {
 
             @Override
             protected void onBinaryData(InputStream in) throws IOException {
-                throw new UnsupportedOperationException("Not supported yet.");
+
+                // Read entire message
+                ByteArrayOutputStream message = new ByteArrayOutputStream(BUFFER_SIZE);
+                byte[] buffer = new byte[BUFFER_SIZE];
+
+                int num_read;
+                while ((num_read = in.read(buffer)) > 0)
+                    message.write(buffer, 0, num_read);
+
+                GuacamoleWriter writer = tunnel.acquireWriter();
+
+                // Write message received
+                try {
+                    UTF8InstructionBuffer.write(writer, message.toByteArray(), 0, message.size());
+                }
+                catch (GuacamoleConnectionClosedException e) {
+                    logger.debug("Connection to guacd closed.", e);
+                }
+                catch (GuacamoleException e) {
+                    logger.debug("WebSocket tunnel write failed.", e);
+                }
+
+                tunnel.releaseWriter();
+
             }
 
         };
 
     }
 
+    /**
+     * Returns the executor which should run the loop relaying data from
+     * each tunnel to its client. By default, this is the default
+     * GuacamoleTunnelExecutor.
+     *
+     * @return The executor to use for all tunnels.
+     */
+    protected GuacamoleTunnelExecutor getTunnelExecutor() {
+        return GuacamoleTunnelExecutor.getDefault();
+    }
+
     /**
      * Called whenever the JavaScript Guacamole client makes a connection
      * request. It it up to the implementor of this function to define what